@@ -19,6 +19,10 @@
 
 package org.georchestra.console.ds;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -33,10 +37,12 @@ import java.util.Collections;
 import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
 
 import javax.annotation.Nullable;
 import javax.sql.DataSource;
 
+import org.apache.commons.io.IOUtils;
 import org.georchestra.ds.DataServiceException;
 import org.georchestra.ds.users.Account;
 import org.locationtech.jts.geom.Geometry;
@@ -83,8 +89,9 @@ public class AccountGDPRDaoImpl implements AccountGDPRDao {
 
     private static final String DELETE_EXTRACTORAPP_RECORDS = "update extractorapp.extractor_log set username = ? where username = ?";
 
-    private static final String QUERY_GEODOCS_RECORDS = "select standard, raw_file_content, file_hash, created_at, last_access, access_count"
-            + " from mapfishapp.geodocs where username = ?";
+    private static final String QUERY_GEODOCS_RECORDS = "select d.standard, c.compression, c.content, d.file_hash, d.created_at,"
+            + " d.last_access, d.access_count from mapfishapp.geodocs d"
+            + " join mapfishapp.geodoc_contents c on c.content_hash = d.content_hash where d.username = ?";
     private static final String DELETE_GEODOCS_RECORDS = "update mapfishapp.geodocs set username = ? where username = ?";
 
     private static final String QUERY_OGCSTATS_RECORDS = "select date, service, layer, id, request, org, roles from ogcstatistics.ogc_services_log where user_name = ?";
@@ -307,7 +314,7 @@ public class AccountGDPRDaoImpl implements AccountGDPRDao {
         GeodocRecord.GeodocRecordBuilder builder = GeodocRecord.builder();
         try {
             builder.standard(rs.getString("standard"));
-            builder.rawFileContent(rs.getString("raw_file_content"));
+            builder.rawFileContent(getGeodocContent(rs));
             builder.fileHash(rs.getString("file_hash"));
             builder.createdAt(ifNonNull(rs.getTimestamp("created_at"), Timestamp::toLocalDateTime));
             Timestamp lastAccess = rs.getTimestamp("last_access");
@@ -365,6 +372,25 @@ public class AccountGDPRDaoImpl implements AccountGDPRDao {
         return builder.build();
     }
 
+    /**
+     * Mapfishapp stores the geodoc contents compressed, except the ones migrated
+     * from the former raw_file_content column
+     */
+    private static String getGeodocContent(ResultSet rs) throws SQLException {
+        byte[] content = rs.getBytes("content");
+        if (content == null) {
+            return null;
+        }
+        if ("gzip".equals(rs.getString("compression"))) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(content))) {
+                content = IOUtils.toByteArray(in);
+            } catch (IOException e) {
+                throw new SQLException("Unable to decompress geodoc content", e);
+            }
+        }
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
     private static @NonNull List<String> getStringArray(ResultSet rs, String column) throws SQLException {
         java.sql.Array array = rs.getArray(column);
         if (array != null) {
@@ -8,6 +8,8 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
 import java.sql.ResultSet;
 import java.sql.Time;
 import java.sql.Timestamp;
@@ -18,6 +20,7 @@ import java.time.temporal.ChronoField;
 import java.time.temporal.TemporalAccessor;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import org.georchestra.console.ds.AccountGDPRDao.ExtractorRecord;
 import org.georchestra.console.ds.AccountGDPRDao.GeodocRecord;
@@ -53,13 +56,29 @@ public class AccountGDPRDaoTest {
     public @Test void testGeodocRecord() throws Exception {
         GeodocRecord expected = new GeodocRecord("SLD", "<StyledLayerDescriptor/>", "abcdef123", ldt1, ldt2, 10);
 
-        ResultSet rs = mockResultset("standard", "SLD", "raw_file_content", "<StyledLayerDescriptor/>", "file_hash",
-                "abcdef123", "created_at", ts1, "last_access", ts2, "access_count", 10);
+        ResultSet rs = mockResultset("standard", "SLD", "compression", "gzip", "content",
+                gzip("<StyledLayerDescriptor/>"), "file_hash", "abcdef123", "created_at", ts1, "last_access", ts2,
+                "access_count", 10);
         GeodocRecord record = AccountGDPRDaoImpl.createGeodocRecord(rs);
         assertNotNull(record);
         assertEquals(expected, record);
     }
 
+    public @Test void testGeodocRecordNotCompressed() throws Exception {
+        ResultSet rs = mockResultset("standard", "SLD", "compression", "none", "content",
+                "<StyledLayerDescriptor/>".getBytes(StandardCharsets.UTF_8), "file_hash", "abcdef123");
+        GeodocRecord record = AccountGDPRDaoImpl.createGeodocRecord(rs);
+        assertEquals("<StyledLayerDescriptor/>", record.getRawFileContent());
+    }
+
+    private byte[] gzip(String content) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return out.toByteArray();
+    }
+
     public @Test void testOgcStatisticsRecord() throws Exception {
         String service = "WFS";
         String layer = "roads";
@@ -167,6 +186,8 @@ public class AccountGDPRDaoTest {
                 when(arr.getArray()).thenReturn(value);
                 value = arr;
                 when = when(rs.getArray(eq(name)));
+            } else if (byte[].class.equals(valueClass)) {
+                when = when(rs.getBytes(eq(name)));
             } else if (Geometry.class.isAssignableFrom(valueClass)) {
                 value = new WKBWriter().write((Geometry) value);
                 when = when(rs.getBytes(eq(name)));
@@ -30,6 +30,7 @@ import java.util.HashMap;
 import java.util.Properties;
 
 import javax.annotation.PostConstruct;
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.logging.Log;
@@ -80,7 +81,16 @@ public abstract class AbstractEmailFactory {
         // this is the default constructor for use by spring
     }
 
-    public abstract Email createEmail(HttpServletRequest request, final String[] recipients, final String url)
+    public Email createEmail(HttpServletRequest request, final String[] recipients, final String url)
+            throws IOException {
+        return createEmail(request.getServletContext(), recipients, url);
+    }
+
+    /**
+     * Creates the email of an extraction which is not bound to an http request,
+     * such as one restored from the persisted extraction queue.
+     */
+    public abstract Email createEmail(ServletContext servletContext, final String[] recipients, final String url)
             throws IOException;
 
     // -------------- Not public API -------------- //
@@ -123,7 +133,7 @@ public abstract class AbstractEmailFactory {
         }
     }
 
-    protected String readFile(HttpServletRequest request, final String path) throws IOException {
+    protected String readFile(ServletContext servletContext, final String path) throws IOException {
         String realPath = null;
         // If georConfig is activated, then the given path is already the one
         // pointing to the correct template file. Else, we fall back on the
@@ -135,7 +145,7 @@ public abstract class AbstractEmailFactory {
             }
             realPath = path;
         } else {
-            realPath = request.getSession().getServletContext().getRealPath(path);
+            realPath = servletContext.getRealPath(path);
         }
         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(realPath), "UTF-8"));
         StringBuilder builder = new StringBuilder();
@@ -26,20 +26,20 @@ import java.util.List;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
-import javax.servlet.http.HttpServletRequest;
+import javax.servlet.ServletContext;
 
 public class EmailFactoryDefault extends AbstractEmailFactory {
 
     @Override
-    public Email createEmail(HttpServletRequest request, final String[] recipients, final String url)
+    public Email createEmail(ServletContext servletContext, final String[] recipients, final String url)
             throws IOException {
 
         final long expiry = this.expireDeamon.getExpiry();
-        final String msgAck = readFile(request, emailAckTemplateFile);
-        final String msgDone = readFile(request, emailTemplateFile);
+        final String msgAck = readFile(servletContext, emailAckTemplateFile);
+        final String msgDone = readFile(servletContext, emailTemplateFile);
         final HashMap<String, String> extraKeywords = readExtraKeywords(extraKeywordsFile);
 
-        return new Email(request, recipients, emailSubject, this.smtpHost, this.smtpPort, this.emailHtml, this.replyTo,
+        return new Email(null, recipients, emailSubject, this.smtpHost, this.smtpPort, this.emailHtml, this.replyTo,
                 this.from, this.bodyEncoding, this.subjectEncoding, this.publicUrl, this.instanceName) {
             public void sendDone(List<String> successes, List<String> failures, List<String> oversized, long fileSize)
                     throws MessagingException {
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends an extraction archive, supporting the HTTP range and conditional
+ * requests so that an interrupted download can be resumed.
+ * <p>
+ * The archives are never modified once written, the strong ETag is thus
+ * derived from the archive name, size and modification date. When the servlet
+ * container supports it (Tomcat's {@code org.apache.tomcat.sendfile.support}
+ * request attribute), a single range is handed over to the container which
+ * sends it with sendfile; otherwise the file is copied to the response.
+ */
+class ArchiveDownload {
+
+    static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    /** above that many ranges, the whole archive is sent */
+    static final int MAX_RANGES = 16;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final String contentType;
+    private final String filename;
+
+    ArchiveDownload(File file, String contentType, String filename) {
+        this.file = file;
+        this.contentType = contentType;
+        this.filename = filename;
+    }
+
+    void send(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final long length = file.length();
+        // HTTP dates have a one second precision
+        final long lastModified = file.lastModified() / 1000 * 1000;
+        final String etag = etag(file);
+
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+
+        if (!checkPreconditions(request, response, etag, lastModified)) {
+            return;
+        }
+
+        List<long[]> ranges = null;
+        String rangeHeader = request.getHeader("Range");
+        if (rangeHeader != null && ifRange(request, etag, lastModified)) {
+            ranges = parseRanges(rangeHeader, length);
+            if (ranges != null && ranges.isEmpty()) {
+                response.setHeader("Content-Range", "bytes */" + length);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        }
+
+        final boolean head = "HEAD".equalsIgnoreCase(request.getMethod());
+        response.setHeader("Content-Disposition", "attachment; filename=" + filename);
+        if (ranges == null) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            sendRange(request, response, 0, length, head);
+        } else if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            response.setHeader("Content-Range", contentRange(range, length));
+            sendRange(request, response, range[0], range[1] - range[0] + 1, head);
+        } else {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            sendMultipart(response, ranges, length, head);
+        }
+    }
+
+    /**
+     * Evaluates the conditional headers in the order of RFC 7232 section 6.
+     *
+     * @return false if the response has been sent (304 or 412)
+     */
+    private boolean checkPreconditions(HttpServletRequest request, HttpServletResponse response, String etag,
+            long lastModified) throws IOException {
+        String ifMatch = request.getHeader("If-Match");
+        if (ifMatch != null) {
+            if (!matches(ifMatch, etag, false)) {
+                response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+                return false;
+            }
+        } else {
+            long ifUnmodifiedSince = dateHeader(request, "If-Unmodified-Since");
+            if (ifUnmodifiedSince != -1 && lastModified > ifUnmodifiedSince) {
+                response.sendError(HttpServletResponse.SC_PRECONDITION_FAILED);
+                return false;
+            }
+        }
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (matches(ifNoneMatch, etag, true)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return false;
+            }
+        } else {
+            long ifModifiedSince = dateHeader(request, "If-Modified-Since");
+            if (ifModifiedSince != -1 && lastModified <= ifModifiedSince) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the Range header applies: If-Range is absent, or it holds
+     *         the current (strong) ETag or the exact modification date
+     */
+    private boolean ifRange(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(etag);
+        }
+        return dateHeader(request, "If-Range") == lastModified;
+    }
+
+    private void sendRange(HttpServletRequest request, HttpServletResponse response, long start, long count,
+            boolean head) throws IOException {
+        response.setContentLengthLong(count);
+        if (head) {
+            return;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START, Long.valueOf(start));
+            request.setAttribute(SENDFILE_END, Long.valueOf(start + count));
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            OutputStream out = response.getOutputStream();
+            copy(channel, start, count, out, ByteBuffer.allocate(BUFFER_SIZE));
+            out.flush();
+        }
+    }
+
+    private void sendMultipart(HttpServletResponse response, List<long[]> ranges, long length, boolean head)
+            throws IOException {
+        final String boundary = UUID.randomUUID().toString().replace("-", "");
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            String partHeader = "\r\n--" + boundary + "\r\n" //
+                    + "Content-Type: " + contentType + "\r\n" //
+                    + "Content-Range: " + contentRange(range, length) + "\r\n\r\n";
+            byte[] bytes = partHeader.getBytes(StandardCharsets.ISO_8859_1);
+            partHeaders.add(bytes);
+            contentLength += bytes.length + range[1] - range[0] + 1;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        contentLength += end.length;
+        response.setContentLengthLong(contentLength);
+        if (head) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            OutputStream out = response.getOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                out.write(partHeaders.get(i));
+                copy(channel, range[0], range[1] - range[0] + 1, out, buffer);
+            }
+            out.write(end);
+            out.flush();
+        }
+    }
+
+    private static void copy(FileChannel channel, long position, long count, OutputStream out, ByteBuffer buffer)
+            throws IOException {
+        while (count > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of " + position);
+            }
+            out.write(buffer.array(), 0, read);
+            position += read;
+            count -= read;
+        }
+    }
+
+    private static String contentRange(long[] range, long length) {
+        return "bytes " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    static String etag(File file) {
+        return "\"" + Integer.toHexString(file.getName().hashCode()) + "-" + Long.toHexString(file.length()) + "-"
+                + Long.toHexString(file.lastModified()) + "\"";
+    }
+
+    /**
+     * @param weak whether the weak comparison applies, the strong one otherwise
+     */
+    static boolean matches(String header, String etag, boolean weak) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*")) {
+                return true;
+            }
+            if (candidate.startsWith("W/")) {
+                if (!weak) {
+                    continue;
+                }
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long dateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            // not a date, ignored as RFC 7232 requires
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a {@code bytes} Range header into inclusive [first, last] ranges,
+     * sorted and with the overlapping or adjacent ones merged.
+     *
+     * @return null if the header is to be ignored (invalid, another unit, too
+     *         many ranges), an empty list if no range is satisfiable
+     */
+    static List<long[]> parseRanges(String header, long length) {
+        header = header.trim();
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // suffix range: the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new long[] { Math.max(0, length - suffix), length - 1 });
+                    }
+                    continue;
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                if (start < length) {
+                    ranges.add(new long[] { start, Math.min(end, length - 1) });
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        ranges.sort(Comparator.comparingLong(r -> r[0]));
+        List<long[]> merged = new ArrayList<>(ranges.size());
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.task.ExtractionQueueStore;
+import org.georchestra.extractorapp.ws.extractor.task.ExtractionQueueStore.StoredArchive;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Index of the extraction archives in the storage directory, with their size,
+ * creation time and owner.
+ * <p>
+ * The archives produced by this instance are {@link #register registered} as
+ * they are written, the storage directory is only listed when the index is
+ * first used and then every {@link #setRescanPeriod rescan period}, to pick up
+ * the archives written or deleted by other means. The owner and creation time
+ * of the archives found this way are read from the extraction queue, when
+ * they were produced by an extraction not purged yet, whatever the instance
+ * which ran it. The expired archives are found from a creation time ordered
+ * set, without looking at the others.
+ * <p>
+ * The index also enforces the global and per user disk quotas, by deleting the
+ * least recently downloaded (or created) archives.
+ */
+public class ArchiveIndex {
+
+    private static final Log LOG = LogFactory.getLog(ArchiveIndex.class.getPackage().getName());
+
+    static final String UNKNOWN_OWNER = "";
+
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private long maxSize = 0;
+    private long maxUserSize = 0;
+    private long rescanPeriod = 24 * HOUR;
+    private ExtractionQueueStore queueStore;
+
+    /** by name, least recently used first */
+    private final LinkedHashMap<String, Archive> archives = new LinkedHashMap<>(16, 0.75f, true);
+    /** oldest first */
+    private final TreeSet<Archive> byCreation = new TreeSet<>(
+            Comparator.comparingLong((Archive a) -> a.created).thenComparing(a -> a.name));
+    private final Map<String, Long> userSizes = new HashMap<>();
+    private long totalSize;
+    private long lastScan;
+    private long deletedCount;
+
+    private static class Archive {
+        final String name;
+        final long size;
+        final long created;
+        final String owner;
+
+        Archive(String name, long size, long created, String owner) {
+            this.name = name;
+            this.size = size;
+            this.created = created;
+            this.owner = owner == null ? UNKNOWN_OWNER : owner;
+        }
+    }
+
+    /**
+     * Records an archive just written, then deletes the least recently used ones
+     * if it makes its owner or the storage exceed their quota.
+     *
+     * @throws ArchiveQuotaExceededException if the archive exceeds a quota on its
+     *                                       own, it is then deleted rather than
+     *                                       the other archives
+     */
+    public synchronized void register(File archive, String owner) {
+        scanIfNeeded();
+        Archive registered = new Archive(archive.getName(), archive.length(), archive.lastModified(), owner);
+        String quota = exceededQuota(registered);
+        if (quota != null) {
+            // possibly found by the scan
+            remove(archives.get(registered.name));
+            delete(registered, "over " + quota + " on its own");
+            throw new ArchiveQuotaExceededException(registered.name, quota);
+        }
+        add(registered);
+        enforceQuotas(registered);
+    }
+
+    private String exceededQuota(Archive archive) {
+        if (maxUserSize > 0 && !UNKNOWN_OWNER.equals(archive.owner) && archive.size > maxUserSize * MEGABYTE) {
+            return "the quota of " + archive.owner;
+        }
+        if (maxSize > 0 && archive.size > maxSize * MEGABYTE) {
+            return "the storage quota";
+        }
+        return null;
+    }
+
+    /**
+     * Marks the archive as recently used, it is the last to be evicted by the
+     * quotas.
+     */
+    public synchronized void touch(String name) {
+        archives.get(name);
+    }
+
+    /**
+     * Deletes the archives older than the expiry, then the least recently used
+     * ones exceeding the quotas.
+     *
+     * @param expiry in milliseconds
+     */
+    public synchronized void expire(long expiry) {
+        scanIfNeeded();
+        final long limit = System.currentTimeMillis() - expiry;
+        while (!byCreation.isEmpty() && byCreation.first().created < limit) {
+            Archive archive = byCreation.first();
+            delete(archive, "expired");
+        }
+        enforceQuotas(null);
+    }
+
+    /**
+     * @param kept the archive not to delete, null for none
+     */
+    private void enforceQuotas(Archive kept) {
+        if (maxUserSize > 0) {
+            Set<String> overQuota = new HashSet<>();
+            userSizes.forEach((owner, size) -> {
+                if (!UNKNOWN_OWNER.equals(owner) && size > maxUserSize * MEGABYTE) {
+                    overQuota.add(owner);
+                }
+            });
+            for (String owner : overQuota) {
+                for (Archive archive : leastRecentlyUsed(owner)) {
+                    if (userSizes.getOrDefault(owner, 0L) <= maxUserSize * MEGABYTE) {
+                        break;
+                    }
+                    if (archive != kept) {
+                        delete(archive, "over the quota of " + owner);
+                    }
+                }
+            }
+        }
+        if (maxSize > 0 && totalSize > maxSize * MEGABYTE) {
+            for (Archive archive : leastRecentlyUsed(null)) {
+                if (totalSize <= maxSize * MEGABYTE) {
+                    break;
+                }
+                if (archive != kept) {
+                    delete(archive, "over the storage quota");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param owner null for all the archives
+     */
+    private List<Archive> leastRecentlyUsed(String owner) {
+        List<Archive> lru = new ArrayList<>();
+        for (Archive archive : archives.values()) {
+            if (owner == null || owner.equals(archive.owner)) {
+                lru.add(archive);
+            }
+        }
+        return lru;
+    }
+
+    private void add(Archive archive) {
+        remove(archives.get(archive.name));
+        archives.put(archive.name, archive);
+        byCreation.add(archive);
+        totalSize += archive.size;
+        userSizes.merge(archive.owner, archive.size, Long::sum);
+    }
+
+    private void remove(Archive archive) {
+        // remove(key, value) does not count as an access, unlike get
+        if (archive == null || !archives.remove(archive.name, archive)) {
+            return;
+        }
+        byCreation.remove(archive);
+        totalSize -= archive.size;
+        if (userSizes.merge(archive.owner, -archive.size, Long::sum) <= 0) {
+            userSizes.remove(archive.owner);
+        }
+    }
+
+    private void delete(Archive archive, String reason) {
+        remove(archive);
+        File file = FileUtils.storageFile(archive.name);
+        if (file.delete() || !file.exists()) {
+            deletedCount++;
+            LOG.info("Deleted archive " + archive.name + " (" + reason + ")");
+        } else {
+            LOG.warn("Unable to delete archive " + archive.name + " (" + reason + ")");
+        }
+    }
+
+    private void scanIfNeeded() {
+        if (lastScan == 0 || (rescanPeriod > 0 && lastScan + rescanPeriod < System.currentTimeMillis())) {
+            scan();
+        }
+    }
+
+    /**
+     * Lists the storage directory, adding the unknown archives and dropping the
+     * ones that no longer exist. The owner of an archive found this way is only
+     * known if it is recorded in the extraction queue.
+     */
+    public synchronized void scan() {
+        lastScan = System.currentTimeMillis();
+        File storage = FileUtils.storageFile("");
+        File[] files = storage.listFiles((dir, name) -> name.endsWith(ExtractorController.EXTRACTION_ZIP_EXT));
+        if (files == null) {
+            files = new File[0];
+        }
+        Map<String, StoredArchive> stored = queueStore == null ? Collections.emptyMap()
+                : queueStore.listArchives();
+        // the new archives are added as least recently used first
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        Map<String, Archive> known = new HashMap<>(archives);
+        for (File file : files) {
+            Archive archive = known.remove(file.getName());
+            if (archive != null && archive.size == file.length()) {
+                continue;
+            }
+            String owner = archive == null ? null : archive.owner;
+            long created = file.lastModified();
+            String uuid = file.getName().substring(0,
+                    file.getName().length() - ExtractorController.EXTRACTION_ZIP_EXT.length());
+            StoredArchive record = stored.get(uuid);
+            // unless the file was replaced since
+            if (record != null && record.size == file.length()) {
+                owner = record.username;
+                created = record.creationDate.getTime();
+            }
+            add(new Archive(file.getName(), file.length(), created, owner));
+        }
+        // deleted by other means
+        known.values().forEach(this::remove);
+        LOG.debug("Indexed " + archives.size() + " archives in " + storage);
+    }
+
+    public synchronized JSONObject statsAsJson() throws JSONException {
+        scanIfNeeded();
+        JSONObject json = new JSONObject();
+        json.put("archives", archives.size());
+        json.put("size", totalSize);
+        json.put("maxSize", maxSize * MEGABYTE);
+        json.put("maxUserSize", maxUserSize * MEGABYTE);
+        json.put("deletedCount", deletedCount);
+        if (!byCreation.isEmpty()) {
+            json.put("oldest", byCreation.first().created);
+        }
+        JSONObject users = new JSONObject();
+        userSizes.forEach((owner, size) -> {
+            try {
+                users.put(UNKNOWN_OWNER.equals(owner) ? "unknown" : owner, size);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        json.put("users", users);
+        return json;
+    }
+
+    synchronized long getTotalSize() {
+        return totalSize;
+    }
+
+    synchronized long getUserSize(String owner) {
+        return userSizes.getOrDefault(owner, 0L);
+    }
+
+    /**
+     * Sets the extraction queue the owners of the archives are read from, if
+     * any. Without it the archives not registered since this instance started
+     * only count in the global quota.
+     */
+    public void setQueueStore(ExtractionQueueStore queueStore) {
+        this.queueStore = queueStore;
+    }
+
+    /**
+     * Maximum size of all the archives, in megabytes. 0, the default, for no
+     * limit.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Maximum size of the archives of a single user, in megabytes. 0, the
+     * default, for no limit. The archives whose owner is not known, see
+     * {@link #setQueueStore}, only count in the global quota.
+     */
+    public void setMaxUserSize(long maxUserSize) {
+        this.maxUserSize = maxUserSize;
+    }
+
+    /**
+     * Number of hours between two listings of the storage directory, 0 to list
+     * it only once. Defaults to 24.
+     */
+    public void setRescanPeriod(long rescanPeriod) {
+        this.rescanPeriod = rescanPeriod * HOUR;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+/**
+ * Thrown when an archive is larger than the storage or its owner quota on its
+ * own, the archive is then deleted.
+ */
+public class ArchiveQuotaExceededException extends RuntimeException {
+    public ArchiveQuotaExceededException(String name, String quota) {
+        super("The archive " + name + " exceeds " + quota + " on its own");
+    }
+}
@@ -20,7 +20,6 @@
 package org.georchestra.extractorapp.ws.extractor;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -32,12 +31,12 @@ import javax.annotation.PostConstruct;
 
 /**
  * This is a bean that starts a timer in the startup method. When the timer task
- * is run (this) all files in the archive storage directory are checked and the
- * expired elements are deleted.
+ * is run (this) the expired archives are looked up in the {@link ArchiveIndex}
+ * and deleted, as well as the ones exceeding the disk quotas.
  *
  * @author jeichar
  */
-public class ExpiredArchiveDaemon extends TimerTask implements FilenameFilter {
+public class ExpiredArchiveDaemon extends TimerTask {
 
     private static final Log LOG = LogFactory.getLog(ExpiredArchiveDaemon.class.getPackage().getName());
     private static final long SECOND = 1000;
@@ -48,6 +47,7 @@ public class ExpiredArchiveDaemon extends TimerTask implements FilenameFilter {
     private long period = 10 * MINUTE;
     private long expiry = 10 * DAYS;
     private ExtractionManager extractionManager;
+    private ArchiveIndex archiveIndex = new ArchiveIndex();
 
     /**
      * This is the init-method in the spring configuration file so it is called by
@@ -72,15 +72,7 @@ public class ExpiredArchiveDaemon extends TimerTask implements FilenameFilter {
 
         extractionManager.cleanExpiredTasks(expiry);
 
-        for (File f : storageFile.listFiles(this)) {
-            if (f.lastModified() + expiry < System.currentTimeMillis()) {
-                if (f.delete()) {
-                    LOG.info("Deleted expired archive: " + f.getName());
-                } else {
-                    LOG.warn("Unable to delete expired archive: " + f.getName());
-                }
-            }
-        }
+        archiveIndex.expire(expiry);
     }
 
     /**
@@ -107,13 +99,12 @@ public class ExpiredArchiveDaemon extends TimerTask implements FilenameFilter {
         return this.period / MINUTE;
     }
 
-    @Override
-    public boolean accept(File dir, String name) {
-        return name.endsWith(ExtractorController.EXTRACTION_ZIP_EXT);
-    }
-
     public void setExtractionManager(ExtractionManager extractionManager) {
         this.extractionManager = extractionManager;
     }
 
+    public void setArchiveIndex(ArchiveIndex archiveIndex) {
+        this.archiveIndex = archiveIndex;
+    }
+
 }
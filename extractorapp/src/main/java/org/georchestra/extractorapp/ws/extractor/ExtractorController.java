@@ -32,7 +32,6 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -40,7 +39,6 @@ import java.util.UUID;
 
 import javax.annotation.PostConstruct;
 import javax.servlet.ServletContext;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
@@ -51,10 +49,14 @@ import org.apache.commons.logging.LogFactory;
 import org.georchestra.commons.security.SecurityHeaders;
 import org.georchestra.extractorapp.ws.AbstractEmailFactory;
 import org.georchestra.extractorapp.ws.Email;
+import org.georchestra.extractorapp.ws.extractor.csw.MetadataHarvester;
 import org.georchestra.extractorapp.ws.extractor.task.ExecutionMetadata;
 import org.georchestra.extractorapp.ws.extractor.task.ExecutionPriority;
 import org.georchestra.extractorapp.ws.extractor.task.ExtractionManager;
+import org.georchestra.extractorapp.ws.extractor.task.ExtractionQueueStore.QueuedExtraction;
+import org.georchestra.extractorapp.ws.extractor.task.ExtractionResultCache;
 import org.georchestra.extractorapp.ws.extractor.task.ExtractionTask;
+import org.georchestra.extractorapp.ws.extractor.wcs.RasterPipeline;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -79,6 +81,11 @@ public class ExtractorController implements ServletContextAware {
     private static final String UUID_PARAM = "uuid";
 
     private static final String EXTRACTOR_TASKS = BASE_MAPPING + "tasks";
+    private static final String WFS_CACHE_STATS_MAPPING = BASE_MAPPING + "stats/wfscache";
+    private static final String HTTP_CLIENT_STATS_MAPPING = BASE_MAPPING + "stats/http";
+    private static final String RESULT_CACHE_STATS_MAPPING = BASE_MAPPING + "stats/results";
+    private static final String STORAGE_STATS_MAPPING = BASE_MAPPING + "stats/storage";
+    private static final String METADATA_STATS_MAPPING = BASE_MAPPING + "stats/metadata";
 
     private String responseTemplateFile;
     private String reponseMimeType;
@@ -90,12 +97,20 @@ public class ExtractorController implements ServletContextAware {
     private String extractionFolderPrefix;
     private boolean remoteReproject = true;
     private boolean useCommandLineGDAL = false;
+    private int wfsTilesPerSide = 1;
+    private int wfsPageConcurrency = 2;
+    private int wcsTileSize = 0;
+    private int wcsTileConcurrency = 2;
 
     private UsernamePasswordCredentials adminCredentials;
     private String secureHost;
     private long maxCoverageExtractionSize = Long.MAX_VALUE;
 
     private ExtractionManager extractionManager;
+    private WfsDataStoreCache wfsDataStoreCache;
+    private RasterPipeline rasterPipeline;
+    private SharedHttpClient httpClient;
+    private WcsPermissionCache wcsPermissionCache;
     private String userAgent;
 
     private @Autowired DataSource dataSource;
@@ -113,29 +128,26 @@ public class ExtractorController implements ServletContextAware {
                         "extractorapp does not have access to " + storageFile + " and cannot create it");
             }
         }
+        extractionManager.recoverQueue(this::restoreTask);
     }
 
-    @RequestMapping(value = RESULTS_MAPPING, method = RequestMethod.GET)
+    /**
+     * Sends the extraction archive. Supports range requests, so that interrupted
+     * downloads can be resumed, and conditional requests.
+     */
+    @RequestMapping(value = RESULTS_MAPPING, method = { RequestMethod.GET, RequestMethod.HEAD })
     public void results(HttpServletRequest request, HttpServletResponse response) throws IOException {
         String uuid = request.getParameter(UUID_PARAM);
         File file = FileUtils.storageFile(uuid + EXTRACTION_ZIP_EXT);
 
         if (file.exists()) {
-            LOG.info("request for extraction archive: " + file + " requested by " + request.getRemoteAddr());
-            FileInputStream in = new FileInputStream(file);
-            ServletOutputStream out = response.getOutputStream();
-            try {
-                response.setContentType("application/zip");
-                response.setHeader("Content-Disposition",
-                        "attachment; filename=" + extractionFolderPrefix + uuid + ".zip");
-                in.getChannel().transferTo(0, file.length(), Channels.newChannel(out));
-            } finally {
-                try {
-                    in.close();
-                } finally {
-                    out.close();
-                }
+            LOG.info("request for extraction archive: " + file + " requested by " + request.getRemoteAddr()
+                    + (request.getHeader("Range") == null ? "" : " (range " + request.getHeader("Range") + ")"));
+            if (extractionManager.getArchiveIndex() != null) {
+                extractionManager.getArchiveIndex().touch(file.getName());
             }
+            new ArchiveDownload(file, "application/zip", extractionFolderPrefix + uuid + ".zip").send(request,
+                    response);
         } else {
             LOG.warn("request for a non-existing extraction archive: " + file + " requested by "
                     + request.getRemoteAddr());
@@ -180,6 +192,109 @@ public class ExtractorController implements ServletContextAware {
         }
     }
 
+    /**
+     * Reports the usage of the WFS datastore cache (size, hit ratio...).
+     */
+    @RequestMapping(value = WFS_CACHE_STATS_MAPPING, method = RequestMethod.GET)
+    public void getWfsCacheStats(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        if (wfsDataStoreCache == null) {
+            response.sendError(404, "WFS datastore cache is disabled");
+            return;
+        }
+        response.setCharacterEncoding(responseCharset);
+        response.setContentType("application/json");
+
+        PrintWriter out = response.getWriter();
+        try {
+            out.println(wfsDataStoreCache.statsAsJson().toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reports the disk usage of the extraction archives, per user.
+     */
+    @RequestMapping(value = STORAGE_STATS_MAPPING, method = RequestMethod.GET)
+    public void getStorageStats(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        ArchiveIndex archiveIndex = extractionManager.getArchiveIndex();
+        if (archiveIndex == null) {
+            response.sendError(404, "Archive index is disabled");
+            return;
+        }
+        response.setCharacterEncoding(responseCharset);
+        response.setContentType("application/json");
+
+        PrintWriter out = response.getWriter();
+        try {
+            out.println(archiveIndex.statsAsJson().toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reports how many metadata records were served from the harvester cache.
+     */
+    @RequestMapping(value = METADATA_STATS_MAPPING, method = RequestMethod.GET)
+    public void getMetadataStats(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        MetadataHarvester metadataHarvester = extractionManager.getMetadataHarvester();
+        if (metadataHarvester == null) {
+            response.sendError(404, "Metadata harvester is disabled");
+            return;
+        }
+        response.setCharacterEncoding(responseCharset);
+        response.setContentType("application/json");
+
+        PrintWriter out = response.getWriter();
+        try {
+            out.println(metadataHarvester.statsAsJson().toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reports the usage of the extraction result cache.
+     */
+    @RequestMapping(value = RESULT_CACHE_STATS_MAPPING, method = RequestMethod.GET)
+    public void getResultCacheStats(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        ExtractionResultCache resultCache = extractionManager.getResultCache();
+        if (resultCache == null) {
+            response.sendError(404, "Extraction result cache is disabled");
+            return;
+        }
+        response.setCharacterEncoding(responseCharset);
+        response.setContentType("application/json");
+
+        PrintWriter out = response.getWriter();
+        try {
+            out.println(resultCache.statsAsJson().toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reports the usage of the connection pool of the outbound requests.
+     */
+    @RequestMapping(value = HTTP_CLIENT_STATS_MAPPING, method = RequestMethod.GET)
+    public void getHttpClientStats(HttpServletRequest request, HttpServletResponse response) throws Exception {
+        if (httpClient == null) {
+            response.sendError(404, "No shared HTTP client configured");
+            return;
+        }
+        response.setCharacterEncoding(responseCharset);
+        response.setContentType("application/json");
+
+        PrintWriter out = response.getWriter();
+        try {
+            out.println(httpClient.statsAsJson().toString());
+        } finally {
+            out.close();
+        }
+    }
+
     /**
      * Analyzes the changes required in the task described in the parameter. This
      * method supposes that only one change is done in one call.
@@ -285,30 +400,19 @@ public class ExtractorController implements ServletContextAware {
 
         UUID requestUuid = UUID.randomUUID();
 
-        URL urlObj = new URL(servletUrl);
-        if (urlObj.getPort() == urlObj.getDefaultPort()) {
-            urlObj = new URL(urlObj.getProtocol(), urlObj.getHost(), urlObj.getFile());
-        }
-        StringBuilder url = new StringBuilder(urlObj.toString());
-        url.append(RESULTS_MAPPING);
-        url.append("?");
-        url.append(UUID_PARAM);
-        url.append("=");
-        url.append(requestUuid);
+        String url = resultsUrl(requestUuid);
 
         List<ExtractorLayerRequest> requests = Collections.unmodifiableList(ExtractorLayerRequest.parseJson(postData));
         if (requests.size() > 0) {
 
             String[] recipients = requests.get(0)._emails;
-            Email email = emailFactory.createEmail(request, recipients, url.toString());
+            Email email = emailFactory.createEmail(request, recipients, url);
 
             String username = SecurityHeaders.decode(request.getHeader(SEC_USERNAME));
             String roles = SecurityHeaders.decode(request.getHeader(SEC_ROLES));
             String org = SecurityHeaders.decode(request.getHeader(SEC_ORGNAME));
-            RequestConfiguration requestConfig = new RequestConfiguration(requests, requestUuid, email, servletContext,
-                    testing, username, roles, org, adminCredentials, secureHost, extractionFolderPrefix,
-                    maxCoverageExtractionSize, remoteReproject, useCommandLineGDAL, postData, this.userAgent);
-            ExtractionTask extractor = new ExtractionTask(requestConfig, this.dataSource);
+            ExtractionTask extractor = createTask(requests, requestUuid, email, testing, username, roles, org,
+                    postData);
 
             LOG.info("Sending mail to user");
             try {
@@ -324,7 +428,7 @@ public class ExtractorController implements ServletContextAware {
                 extractionManager.submit(extractor);
             }
 
-            reponseData = replace(readFile(responseTemplateFile), url.toString(), recipients);
+            reponseData = replace(readFile(responseTemplateFile), url, recipients);
 
             response.setCharacterEncoding(responseCharset);
             response.setContentType(reponseMimeType);
@@ -338,6 +442,56 @@ public class ExtractorController implements ServletContextAware {
         }
     }
 
+    private ExtractionTask createTask(List<ExtractorLayerRequest> requests, UUID requestUuid, Email email,
+            boolean testing, String username, String roles, String org, String postData) throws Exception {
+        RequestConfiguration requestConfig = new RequestConfiguration(requests, requestUuid, email, servletContext,
+                testing, username, roles, org, adminCredentials, secureHost, extractionFolderPrefix,
+                maxCoverageExtractionSize, remoteReproject, useCommandLineGDAL, postData, this.userAgent);
+        requestConfig.setWfsDataStoreCache(this.wfsDataStoreCache);
+        requestConfig.setWfsPaging(wfsTilesPerSide, wfsPageConcurrency);
+        requestConfig.setWcsTiling(wcsTileSize, wcsTileConcurrency);
+        requestConfig.setRasterPipeline(this.rasterPipeline);
+        requestConfig.setHttpClient(this.httpClient);
+        requestConfig.setWcsPermissionCache(this.wcsPermissionCache);
+        return new ExtractionTask(requestConfig, this.dataSource);
+    }
+
+    /**
+     * Rebuilds the task of an extraction restored from the persisted queue. The
+     * acknowledgement email is not sent again.
+     *
+     * @return the task, null if the persisted request can't be parsed anymore
+     */
+    private ExtractionTask restoreTask(QueuedExtraction queued) {
+        try {
+            List<ExtractorLayerRequest> requests = Collections
+                    .unmodifiableList(ExtractorLayerRequest.parseJson(queued.request));
+            if (requests.isEmpty()) {
+                return null;
+            }
+            Email email = emailFactory.createEmail(servletContext, requests.get(0)._emails, resultsUrl(queued.uuid));
+            return createTask(requests, queued.uuid, email, false, queued.username, queued.roles, queued.org,
+                    queued.request);
+        } catch (Exception e) {
+            LOG.error("Unable to restore the extraction " + queued.uuid, e);
+            return null;
+        }
+    }
+
+    private String resultsUrl(UUID requestUuid) throws MalformedURLException {
+        URL urlObj = new URL(servletUrl);
+        if (urlObj.getPort() == urlObj.getDefaultPort()) {
+            urlObj = new URL(urlObj.getProtocol(), urlObj.getHost(), urlObj.getFile());
+        }
+        StringBuilder url = new StringBuilder(urlObj.toString());
+        url.append(RESULTS_MAPPING);
+        url.append("?");
+        url.append(UUID_PARAM);
+        url.append("=");
+        url.append(requestUuid);
+        return url.toString();
+    }
+
     // ----------------- JavaBean methods ----------------- //
 
     /**
@@ -410,6 +564,60 @@ public class ExtractorController implements ServletContextAware {
         this.extractionManager = extractionManager;
     }
 
+    /**
+     * Number of tiles along each axis of the requested bbox when downloading WFS
+     * layers page by page. Defaults to 1, which downloads a layer with a single
+     * GetFeature request.
+     */
+    public void setWfsTilesPerSide(int wfsTilesPerSide) {
+        this.wfsTilesPerSide = Math.max(1, wfsTilesPerSide);
+    }
+
+    /**
+     * Maximum number of pages of a WFS layer downloaded at the same time. Defaults
+     * to 2.
+     */
+    public void setWfsPageConcurrency(int wfsPageConcurrency) {
+        this.wfsPageConcurrency = Math.max(1, wfsPageConcurrency);
+    }
+
+    /**
+     * Width and height, in pixels, of the tiles a WCS coverage is downloaded with
+     * when it is extracted as GeoTIFF. Defaults to 0, which downloads a coverage
+     * with a single GetCoverage request, limited to the maxCoverageExtractionSize.
+     */
+    public void setWcsTileSize(int wcsTileSize) {
+        this.wcsTileSize = Math.max(0, wcsTileSize);
+    }
+
+    /**
+     * Maximum number of tiles downloaded at the same time from a WCS server, all
+     * extractions included. Defaults to 2.
+     */
+    public void setWcsTileConcurrency(int wcsTileConcurrency) {
+        this.wcsTileConcurrency = Math.max(1, wcsTileConcurrency);
+    }
+
+    public void setWfsDataStoreCache(WfsDataStoreCache wfsDataStoreCache) {
+        this.wfsDataStoreCache = wfsDataStoreCache;
+    }
+
+    /**
+     * Reprojects and encodes the coverages in process for the formats it handles,
+     * the other formats fall back to GDAL when useCommandLineGDAL is set.
+     */
+    public void setRasterPipeline(RasterPipeline rasterPipeline) {
+        this.rasterPipeline = rasterPipeline;
+    }
+
+    public void setHttpClient(SharedHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    public void setWcsPermissionCache(WcsPermissionCache wcsPermissionCache) {
+        this.wcsPermissionCache = wcsPermissionCache;
+    }
+
     public void setRemoteReproject(boolean remoteReproject) {
         this.remoteReproject = remoteReproject;
     }
@@ -26,7 +26,6 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.geotools.geometry.jts.ReferencedEnvelope;
-import org.geotools.referencing.CRS;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -75,6 +74,7 @@ public class ExtractorLayerRequest {
     private final JSONObject _globalJson;
     private String _wfsName;
     private Long dbLogId;
+    private String sourceVersion;
 
     public ExtractorLayerRequest(JSONObject layerJson, JSONObject globalJson, JSONArray emails)
             throws NoSuchAuthorityCodeException, FactoryException, MalformedURLException, JSONException {
@@ -83,7 +83,7 @@ public class ExtractorLayerRequest {
         _emails = parseEmails(emails);
         _url = parseURL();
         _epsg = parseProjection();
-        _projection = CRS.decode(_epsg);
+        _projection = ReferencingCache.decode(_epsg);
         _owsType = parseType();
         _format = parseFormat();
         _bbox = parseBbox();
@@ -248,7 +248,7 @@ public class ExtractorLayerRequest {
         JSONObject bbox = (JSONObject) get(BBOX_KEY, BBOX_KEY, false);
 
         String srs = bbox.getString(BBOX_SRS_KEY);
-        CoordinateReferenceSystem crs = CRS.decode(srs);
+        CoordinateReferenceSystem crs = ReferencingCache.decode(srs);
 
         JSONArray values = bbox.getJSONArray(BBOX_VALUE_KEY);
         double minx = values.getDouble(0);
@@ -286,4 +286,20 @@ public class ExtractorLayerRequest {
     public Long getDbLogId() {
         return dbLogId;
     }
+
+    /**
+     * Sets the version of the source data, as advertised by the server
+     * capabilities (updateSequence), when checking the permissions.
+     */
+    public void setSourceVersion(String sourceVersion) {
+        this.sourceVersion = sourceVersion;
+    }
+
+    /**
+     * @return the version of the source data, null if the server does not
+     *         advertise one
+     */
+    public String getSourceVersion() {
+        return sourceVersion;
+    }
 }
@@ -35,6 +35,13 @@ public enum FileFormat {
             return "KML";
         }
 
+    },
+    gpkg {
+        @Override
+        public String getDriver() {
+            return "GPKG";
+        }
+
     };
 
     /**
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.data.DefaultTransaction;
+import org.geotools.data.FeatureWriter;
+import org.geotools.data.Transaction;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.GeoPkgDataStoreFactory;
+import org.geotools.jdbc.JDBCDataStore;
+import org.geotools.jdbc.JDBCDataStoreFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Writes the features into a single OGC GeoPackage file.
+ * <p>
+ * The features are streamed from the source collection into one SQLite
+ * transaction, the inserts being sent by batches of {@link #BATCH_SIZE}, and
+ * the R-tree spatial index is built once all of them are written.
+ */
+final class GeoPackageFeatureWriter extends FileFeatureWriter {
+
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * New instance of {@link GeoPackageFeatureWriter}
+     * 
+     * @param basedir  output folder
+     * @param features input the set of Features to write
+     */
+    public GeoPackageFeatureWriter(File basedir, SimpleFeatureCollection features) {
+        super(basedir, features);
+    }
+
+    @Override
+    public List<File> generateFiles() throws IOException {
+        final SimpleFeatureType schema = features.getSchema();
+        final String typeName = schema.getTypeName();
+        final File file = new File(basedir, typeName + "." + FileFormat.gpkg.name());
+        try {
+            write(file, schema);
+            createSpatialIndex(file, typeName);
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Failed generation of " + schema.getName(), e);
+            throw e;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Generated file: " + file.getAbsolutePath());
+        }
+        return Collections.singletonList(file);
+    }
+
+    private void write(File file, SimpleFeatureType schema) throws IOException {
+        Map<String, Serializable> params = new HashMap<>();
+        params.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        params.put(GeoPkgDataStoreFactory.DATABASE.key, file.getAbsolutePath());
+        params.put(JDBCDataStoreFactory.BATCH_INSERT_SIZE.key, BATCH_SIZE);
+
+        JDBCDataStore dataStore = new GeoPkgDataStoreFactory().createDataStore(params);
+        try {
+            dataStore.createSchema(schema);
+            try (Transaction tx = new DefaultTransaction("extraction")) {
+                try (FeatureWriter<SimpleFeatureType, SimpleFeature> writer = dataStore
+                        .getFeatureWriterAppend(schema.getTypeName(), tx);
+                        SimpleFeatureIterator it = features.features()) {
+                    while (it.hasNext()) {
+                        SimpleFeature source = it.next();
+                        SimpleFeature target = writer.next();
+                        target.setAttributes(source.getAttributes());
+                        writer.write();
+                    }
+                }
+                // the writer flushed its pending batch when closed
+                tx.commit();
+            }
+        } finally {
+            dataStore.dispose();
+        }
+    }
+
+    /**
+     * Creating the index once the table is filled avoids maintaining the R-tree
+     * on every insert.
+     */
+    private void createSpatialIndex(File file, String typeName) throws IOException {
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            FeatureEntry entry = geopkg.feature(typeName);
+            if (entry != null && entry.getGeometryColumn() != null && !geopkg.hasSpatialIndex(entry)) {
+                geopkg.createSpatialIndex(entry);
+            }
+        } finally {
+            geopkg.close();
+        }
+    }
+}
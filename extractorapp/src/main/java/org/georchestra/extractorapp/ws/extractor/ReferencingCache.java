@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.Envelope;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Keeps the decoded {@link CoordinateReferenceSystem}s and the
+ * {@link MathTransform}s between them, shared by all the extractions.
+ * <p>
+ * Every layer request decodes its projection and bounding box SRS, and logging
+ * an extraction transforms the bounding box of every layer to WGS84. GeoTools
+ * caches the authority lookups but still parses the code and searches the
+ * transformation path on every call.
+ */
+public final class ReferencingCache {
+
+    private static final int NUMBER_OF_POINTS = 5;
+
+    private static final Cache<String, CoordinateReferenceSystem> CRS_CACHE = CacheBuilder.newBuilder()//
+            .maximumSize(500)//
+            .build();
+
+    private static final Cache<List<CoordinateReferenceSystem>, MathTransform> TRANSFORM_CACHE = CacheBuilder
+            .newBuilder()//
+            .maximumSize(500)//
+            .build();
+
+    private ReferencingCache() {
+        // a utility class is not intended to be instantiated
+    }
+
+    /**
+     * Same as {@link CRS#decode(String)}.
+     */
+    public static CoordinateReferenceSystem decode(String code) throws FactoryException {
+        try {
+            return CRS_CACHE.get(code, () -> CRS.decode(code));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), FactoryException.class);
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Same as {@link CRS#findMathTransform(CoordinateReferenceSystem,
+     * CoordinateReferenceSystem, boolean)}, lenient.
+     */
+    public static MathTransform findMathTransform(CoordinateReferenceSystem source,
+            CoordinateReferenceSystem target) throws FactoryException {
+        try {
+            return TRANSFORM_CACHE.get(Arrays.asList(source, target), () -> CRS.findMathTransform(source, target, true));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), FactoryException.class);
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Transforms the envelope the way {@link ReferencedEnvelope#transform} does,
+     * with a cached math transform.
+     */
+    public static ReferencedEnvelope transform(ReferencedEnvelope envelope, CoordinateReferenceSystem target)
+            throws FactoryException, TransformException {
+        CoordinateReferenceSystem source = envelope.getCoordinateReferenceSystem();
+        if (source == null || CRS.equalsIgnoreMetadata(source, target)) {
+            return new ReferencedEnvelope(envelope, target);
+        }
+        MathTransform transform = findMathTransform(source, target);
+        Envelope transformed = JTS.transform(envelope, null, transform, NUMBER_OF_POINTS);
+        return new ReferencedEnvelope(transformed, target);
+    }
+}
@@ -7,6 +7,7 @@ import javax.servlet.ServletContext;
 
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.georchestra.extractorapp.ws.Email;
+import org.georchestra.extractorapp.ws.extractor.wcs.RasterPipeline;
 
 public class RequestConfiguration {
 
@@ -34,6 +35,16 @@ public class RequestConfiguration {
     public final String strRequest;
     public final String userAgent;
 
+    // optional, set once the configuration is created
+    private WfsDataStoreCache wfsDataStoreCache;
+    private int wfsTilesPerSide = 1;
+    private int wfsPageConcurrency = 1;
+    private int wcsTileSize = 0;
+    private int wcsTileConcurrency = 1;
+    private RasterPipeline rasterPipeline;
+    private SharedHttpClient httpClient;
+    private WcsPermissionCache wcsPermissionCache;
+
     public RequestConfiguration(List<ExtractorLayerRequest> requests, UUID requestUuid, Email email,
             ServletContext servletContext, boolean testing, String username, String roles, String org,
             UsernamePasswordCredentials adminCredentials, String secureHost, String extractionFolderPrefix,
@@ -59,6 +70,90 @@ public class RequestConfiguration {
         this.userAgent = userAgent;
     }
 
+    public WfsDataStoreCache getWfsDataStoreCache() {
+        return wfsDataStoreCache;
+    }
+
+    /**
+     * @param wfsDataStoreCache shares the WFS data stores, null to create one per
+     *                          layer
+     */
+    public void setWfsDataStoreCache(WfsDataStoreCache wfsDataStoreCache) {
+        this.wfsDataStoreCache = wfsDataStoreCache;
+    }
+
+    public int getWfsTilesPerSide() {
+        return wfsTilesPerSide;
+    }
+
+    public int getWfsPageConcurrency() {
+        return wfsPageConcurrency;
+    }
+
+    /**
+     * @param tilesPerSide number of tiles along each axis of the bbox for paged
+     *                     WFS downloads, 1 (the default) to disable
+     * @param concurrency  number of pages downloaded at the same time
+     */
+    public void setWfsPaging(int tilesPerSide, int concurrency) {
+        this.wfsTilesPerSide = tilesPerSide;
+        this.wfsPageConcurrency = concurrency;
+    }
+
+    public int getWcsTileSize() {
+        return wcsTileSize;
+    }
+
+    public int getWcsTileConcurrency() {
+        return wcsTileConcurrency;
+    }
+
+    /**
+     * @param tileSize    width and height in pixels of the tiles of tiled WCS
+     *                    downloads, 0 (the default) to disable
+     * @param concurrency number of tiles downloaded at the same time
+     */
+    public void setWcsTiling(int tileSize, int concurrency) {
+        this.wcsTileSize = tileSize;
+        this.wcsTileConcurrency = concurrency;
+    }
+
+    public RasterPipeline getRasterPipeline() {
+        return rasterPipeline;
+    }
+
+    /**
+     * @param rasterPipeline in-process coverage reprojection, null (the default)
+     *                       to use GDAL or GeoTools operations
+     */
+    public void setRasterPipeline(RasterPipeline rasterPipeline) {
+        this.rasterPipeline = rasterPipeline;
+    }
+
+    public SharedHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * @param httpClient client of the outbound requests, null (the default) to use
+     *                   the default one
+     */
+    public void setHttpClient(SharedHttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    public WcsPermissionCache getWcsPermissionCache() {
+        return wcsPermissionCache;
+    }
+
+    /**
+     * @param wcsPermissionCache layers allowed by the WCS servers, null (the
+     *                           default) to check every time
+     */
+    public void setWcsPermissionCache(WcsPermissionCache wcsPermissionCache) {
+        this.wcsPermissionCache = wcsPermissionCache;
+    }
+
     public void setThreadLocal() {
         instance.set(this);
     }
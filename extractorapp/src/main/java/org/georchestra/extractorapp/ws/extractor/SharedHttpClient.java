@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The HTTP client used by the extractors for their own requests to the OGC
+ * services and the catalog (capabilities, DescribeCoverage, GetCoverage, ISO
+ * metadata...).
+ * <p>
+ * A single client is shared by all the extractions, so that its connections are
+ * pooled and kept alive between requests to the same server instead of opening
+ * a new TCP (and TLS) connection every time. The number of connections is
+ * bounded globally and per route. Responses are requested with gzip/deflate
+ * content encoding and decompressed transparently.
+ * <p>
+ * The credentials, impersonation headers and user agent being request specific,
+ * they must be set on the request or its {@link HttpClientContext}, never on the
+ * client.
+ */
+public class SharedHttpClient {
+
+    private static final Log LOG = LogFactory.getLog(SharedHttpClient.class.getPackage().getName());
+
+    private static SharedHttpClient defaultInstance;
+
+    private int maxTotal = 50;
+    private int maxPerRoute = 10;
+    private long keepAlive = 30;
+    private int connectTimeout = 30000;
+    private int socketTimeout = 300000;
+    private String userAgent;
+
+    private PoolingHttpClientConnectionManager connectionManager;
+    private CloseableHttpClient client;
+    private RequestConfig requestConfig;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong openedConnections = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity(2000);
+
+        ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response,
+                    context);
+            long max = TimeUnit.SECONDS.toMillis(keepAlive);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, max) : max;
+        };
+        // a connection which served a single request so far has just been opened.
+        // The connection of a response without body (304, HEAD...) is already
+        // released, it is not counted.
+        HttpResponseInterceptor metrics = (response, context) -> {
+            requests.incrementAndGet();
+            HttpConnection connection = HttpClientContext.adapt(context).getConnection();
+            if (connection != null && connection.isOpen() && connection.getMetrics().getRequestCount() <= 1) {
+                openedConnections.incrementAndGet();
+            }
+        };
+        requestConfig = RequestConfig.custom()//
+                .setConnectTimeout(connectTimeout)//
+                .setConnectionRequestTimeout(connectTimeout)//
+                .setSocketTimeout(socketTimeout)//
+                .build();
+
+        client = HttpClients.custom()//
+                .setConnectionManager(connectionManager)//
+                .setKeepAliveStrategy(keepAliveStrategy)//
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))//
+                .setDefaultRequestConfig(requestConfig)//
+                .setUserAgent(userAgent)//
+                // the client is shared between the users, who must not share cookies
+                .disableCookieManagement()//
+                .addInterceptorLast(metrics)//
+                .evictExpiredConnections()//
+                .evictIdleConnections(keepAlive, TimeUnit.SECONDS)//
+                .build();
+    }
+
+    /**
+     * The client shared by the extractions which were not given one, e.g. in
+     * tests, created with the default settings.
+     */
+    public static synchronized SharedHttpClient getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new SharedHttpClient();
+            defaultInstance.init();
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @return the client, which must not be closed by the callers. The content of
+     *         the responses must be consumed or closed for their connection to be
+     *         returned to the pool.
+     */
+    public CloseableHttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return the default configuration of the requests, with another socket
+     *         timeout
+     */
+    public RequestConfig requestConfig(int socketTimeout) {
+        return RequestConfig.copy(requestConfig).setSocketTimeout(socketTimeout).build();
+    }
+
+    /**
+     * Executes the request and returns the response body, the connection being
+     * returned to the pool in any case.
+     */
+    public String getAsString(HttpHost host, HttpUriRequest request, HttpClientContext context) throws IOException {
+        try (CloseableHttpResponse response = client.execute(host, request, context)) {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? "" : EntityUtils.toString(entity, StandardCharsets.UTF_8);
+        }
+    }
+
+    @PreDestroy
+    public void dispose() {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close the HTTP connections", e);
+            }
+        }
+    }
+
+    public JSONObject statsAsJson() throws JSONException {
+        PoolStats total = connectionManager.getTotalStats();
+        JSONObject json = new JSONObject();
+        json.put("maxTotal", total.getMax());
+        json.put("maxPerRoute", maxPerRoute);
+        json.put("leased", total.getLeased());
+        json.put("available", total.getAvailable());
+        json.put("pending", total.getPending());
+        json.put("requestCount", requests.get());
+        json.put("openedConnections", openedConnections.get());
+        long count = requests.get();
+        json.put("reuseRatio", count == 0 ? 0d : (double) (count - openedConnections.get()) / count);
+        JSONArray routes = new JSONArray();
+        for (HttpRoute route : connectionManager.getRoutes()) {
+            PoolStats stats = connectionManager.getStats(route);
+            JSONObject jsonRoute = new JSONObject();
+            jsonRoute.put("route", route.getTargetHost().toURI());
+            jsonRoute.put("leased", stats.getLeased());
+            jsonRoute.put("available", stats.getAvailable());
+            jsonRoute.put("pending", stats.getPending());
+            routes.put(jsonRoute);
+        }
+        json.put("routes", routes);
+        return json;
+    }
+
+    /**
+     * Maximum number of connections, all servers included. Defaults to 50.
+     */
+    public void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+
+    /**
+     * Maximum number of connections to a given server. Defaults to 10.
+     */
+    public void setMaxPerRoute(int maxPerRoute) {
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    /**
+     * Number of seconds an idle connection is kept open, unless the server asks
+     * for less. Defaults to 30.
+     */
+    public void setKeepAlive(long keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Timeout in milliseconds to connect, or to wait for a pooled connection.
+     * Defaults to 30000.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Default maximum inactivity in milliseconds while waiting for data, the
+     * requests may override it. Defaults to 300000.
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Default user agent, the requests may override it.
+     */
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+    }
+}
@@ -4,20 +4,19 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.regex.Pattern;
+import java.net.URLEncoder;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.georchestra.extractorapp.ws.extractor.wcs.WcsCoverageReader;
 import org.georchestra.extractorapp.ws.extractor.wcs.WcsFormat;
 import org.georchestra.extractorapp.ws.extractor.wcs.WcsReaderRequest;
 import org.georchestra.extractorapp.ws.extractor.wcs.WcsReaderRequestFactory;
-import org.geotools.referencing.CRS;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.TransformException;
@@ -32,11 +31,16 @@ public class WcsExtractor {
     private final File _basedir;
     private final WcsFormat _format;
     private RequestConfiguration requestConfig;
+    private final SharedHttpClient httpClient;
+    private final WcsPermissionCache permissionCache;
 
     public WcsExtractor(File requestBaseDir, RequestConfiguration requestConfig) {
         this._basedir = requestBaseDir;
         this._format = new WcsFormat(requestConfig.maxCoverageExtractionSize);
         this.requestConfig = requestConfig;
+        this.httpClient = requestConfig.getHttpClient() != null ? requestConfig.getHttpClient()
+                : SharedHttpClient.getDefault();
+        this.permissionCache = requestConfig.getWcsPermissionCache();
     }
 
     protected static final Log LOG = LogFactory.getLog(WcsExtractor.class.getPackage().getName());
@@ -44,17 +48,70 @@ public class WcsExtractor {
     public void checkPermission(ExtractorLayerRequest request, String secureHost, String username, String roles)
             throws MalformedURLException, IOException {
         URL capabilitiesURL = request.capabilitiesURL("WMS", null);
+        final boolean secured = username != null && (secureHost.equalsIgnoreCase(request._url.getHost())
+                || "127.0.0.1".equalsIgnoreCase(request._url.getHost())
+                || "localhost".equalsIgnoreCase(request._url.getHost()));
+        final String queriedLayer = request._layerName;
+
+        WcsPermissionCache.Key key = new WcsPermissionCache.Key(capabilitiesURL.toExternalForm(),
+                secured ? username : null, secured ? roles : null);
+        if (permissionCache != null) {
+            WcsPermissionCache.Entry entry = permissionCache.getFresh(key);
+            if (entry != null && entry.allows(queriedLayer)) {
+                LOG.debug(getClass().getSimpleName() + ".checkPermission - " + queriedLayer + " allowed by cache");
+                request.setSourceVersion(entry.updateSequence);
+                return;
+            }
+        }
+
+        String updateSequence = permissionCache == null ? null : permissionCache.getUpdateSequence(key);
+        WcsPermissionCache.Scan scan = fetchCapabilities(capabilitiesURL, updateSequence, queriedLayer, secured,
+                username, roles);
+        boolean permitted = scan.found;
+        String sourceVersion = scan.updateSequence;
+        if (permissionCache != null) {
+            WcsPermissionCache.Entry entry = permissionCache.update(key, scan);
+            if (scan.currentUpdateSequence) {
+                if (entry == null) {
+                    // evicted meanwhile
+                    scan = fetchCapabilities(capabilitiesURL, null, queriedLayer, secured, username, roles);
+                    permissionCache.update(key, scan);
+                    permitted = scan.found;
+                    sourceVersion = scan.updateSequence;
+                } else {
+                    permitted = entry.allows(queriedLayer);
+                    sourceVersion = entry.updateSequence;
+                }
+            }
+        }
 
-        final HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
-        httpClientBuilder.setUserAgent(requestConfig.userAgent);
+        if (!permitted) {
+            throw new SecurityException("User does not have sufficient privileges to access the Layer: " + queriedLayer
+                    + " (" + capabilitiesURL + ")");
+        }
+        request.setSourceVersion(sourceVersion);
+    }
 
+    /**
+     * Streams the capabilities, only reading them up to the queried layer unless
+     * they are to be cached.
+     *
+     * @param updateSequence of the capabilities already known, if any
+     */
+    private WcsPermissionCache.Scan fetchCapabilities(URL capabilitiesURL, String updateSequence,
+            String queriedLayer, boolean secured, String username, String roles) throws IOException {
+        URL url = capabilitiesURL;
+        if (updateSequence != null) {
+            url = new URL(capabilitiesURL.toExternalForm() + "&UPDATESEQUENCE="
+                    + URLEncoder.encode(updateSequence, "UTF-8"));
+        }
         HttpClientContext localContext = HttpClientContext.create();
-        final HttpHost httpHost = new HttpHost(capabilitiesURL.getHost(), capabilitiesURL.getPort(),
-                capabilitiesURL.getProtocol());
-        HttpGet get = new HttpGet(capabilitiesURL.toExternalForm());
-        if (username != null && (secureHost.equalsIgnoreCase(request._url.getHost())
-                || "127.0.0.1".equalsIgnoreCase(request._url.getHost())
-                || "localhost".equalsIgnoreCase(request._url.getHost()))) {
+        final HttpHost httpHost = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
+        HttpGet get = new HttpGet(url.toExternalForm());
+        if (requestConfig.userAgent != null) {
+            get.setHeader(HttpHeaders.USER_AGENT, requestConfig.userAgent);
+        }
+        if (secured) {
             LOG.debug(getClass().getSimpleName()
                     + ".checkPermission - Secured Server: adding username header and role headers to "
                     + "request for checkPermission");
@@ -64,48 +121,18 @@ public class WcsExtractor {
             String extractorAppUsername = requestConfig.adminCredentials.getUserName();
             String extractorAppPassword = requestConfig.adminCredentials.getPassword();
 
-            WfsExtractor.enablePreemptiveBasicAuth(capabilitiesURL, httpClientBuilder, localContext, httpHost,
-                    extractorAppUsername, extractorAppPassword);
+            WfsExtractor.enablePreemptiveBasicAuth(url, localContext, httpHost, extractorAppUsername,
+                    extractorAppPassword);
 
         } else {
             LOG.debug(getClass().getSimpleName() + "checkPermission - Non Secured Server");
         }
 
-        final CloseableHttpClient httpclient = httpClientBuilder.build();
-        String capabilities = FileUtils
-                .asString(httpclient.execute(httpHost, get, localContext).getEntity().getContent());
-
-        String queriedLayer = request._layerName;
-
-        boolean permitted = isLayerPresent(capabilities, queriedLayer);
-
-        if (!permitted) {
-            throw new SecurityException("User does not have sufficient privileges to access the Layer: " + queriedLayer
-                    + ". " + "\n\nCapabilities:  " + capabilities);
+        try (CloseableHttpResponse response = httpClient.getClient().execute(httpHost, get, localContext)) {
+            return WcsPermissionCache.scan(response.getEntity().getContent(), queriedLayer, permissionCache != null);
         }
     }
 
-    /**
-     * Checks if the user has access to the requested layer
-     *
-     * @param getCapabilitiesDocument the GetCapabilities response of the remote
-     *                                server
-     * @return true if the current user has access, else false.
-     */
-    private boolean isLayerPresent(String getCapabilitiesDocument, String layerName) {
-        // if the layer name is prefixed, then remove it, the regexp should take care of
-        // it.
-        String queriedLayer = layerName;
-        if (queriedLayer.contains(":")) {
-            String[] tmpLayer = queriedLayer.split(":");
-            queriedLayer = tmpLayer[tmpLayer.length - 1];
-        }
-
-        Pattern regex = Pattern.compile(
-                "(?m)<Layer[^>]*>(\\\\n|\\s)*<Name>\\s*([\\w_0-9-]*:)?" + Pattern.quote(queriedLayer) + "\\s*</Name>");
-        return regex.matcher(getCapabilitiesDocument).find();
-    }
-
     /**
      * Creates a directory where the layer is extracted.
      * 
@@ -122,10 +149,13 @@ public class WcsExtractor {
         }
 
         WcsCoverageReader reader = _format.getReader(request._url);
+        reader.setTiling(requestConfig.getWcsTileSize(), requestConfig.getWcsTileConcurrency());
+        reader.setRasterPipeline(requestConfig.getRasterPipeline());
+        reader.setHttpClient(httpClient);
 
         File basedir = request.createContainingDir(_basedir);
 
-        CoordinateReferenceSystem requestCRS = CRS.decode(request._epsg);
+        CoordinateReferenceSystem requestCRS = ReferencingCache.decode(request._epsg);
         String username;
         String password;
         // HACK I want unrestricted access to layers.
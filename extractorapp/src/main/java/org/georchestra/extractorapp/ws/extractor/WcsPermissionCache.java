@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers the layers a user is allowed to extract from a server, as listed
+ * in the capabilities the server returned for that user, so that the
+ * permission check of a layer is a lookup in a set most of the time.
+ * <p>
+ * A cached set is trusted for {@link #setTimeToLive(long) timeToLive} minutes
+ * after the capabilities were read, then they are read again as a whole: the
+ * servers (e.g. GeoServer) do not change the {@code updateSequence} of their
+ * capabilities when their security rules change, so a revoked permission is
+ * only noticed once the set expires. When the requested layer is not in the
+ * set, the capabilities are requested again with the {@code UPDATESEQUENCE} of
+ * the cached ones: the server then answers with a tiny
+ * {@code CurrentUpdateSequence} exception if nothing changed. Capabilities
+ * without {@code updateSequence} are never cached.
+ * <p>
+ * The capabilities are parsed as a stream (WMS {@code Layer/Name}, WCS 1.0
+ * {@code CoverageOfferingBrief/name} and WCS 1.1 {@code CoverageSummary/Identifier}),
+ * they are never loaded in memory as a whole.
+ */
+public class WcsPermissionCache {
+
+    private static final Log LOG = LogFactory.getLog(WcsPermissionCache.class.getPackage().getName());
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+    static {
+        // capabilities may declare a DTD, which must not be downloaded
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+    }
+
+    private long timeToLive = 5;
+    private long maxSize = 500;
+
+    private Cache<Key, Entry> cache;
+
+    @PostConstruct
+    public void init() {
+        this.cache = CacheBuilder.newBuilder()//
+                .maximumSize(maxSize)//
+                .expireAfterWrite(timeToLive, TimeUnit.MINUTES)//
+                .recordStats()//
+                .build();
+    }
+
+    /**
+     * @return the cached layers of the server for the user, null if they are
+     *         not cached or expired
+     */
+    Entry getFresh(Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * @return the update sequence of the capabilities cached for the key, or null
+     */
+    String getUpdateSequence(Key key) {
+        Entry entry = cache.getIfPresent(key);
+        return entry == null ? null : entry.updateSequence;
+    }
+
+    /**
+     * Updates the cache with the result of a capabilities request.
+     *
+     * @return the layers the user is allowed to extract, null if unknown
+     */
+    Entry update(Key key, Scan scan) {
+        if (scan.currentUpdateSequence) {
+            // does not extend the entry, the permissions may have changed anyway
+            return cache.getIfPresent(key);
+        }
+        if (scan.updateSequence == null || !scan.complete || scan.error) {
+            cache.invalidate(key);
+            return null;
+        }
+        LOG.debug("Caching the " + scan.layers.size() + " layers listed for " + key + " (updateSequence "
+                + scan.updateSequence + ")");
+        Entry entry = new Entry(scan.updateSequence, scan.layers);
+        cache.put(key, entry);
+        return entry;
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    public JSONObject statsAsJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("size", cache.size());
+        json.put("maxSize", maxSize);
+        json.put("timeToLive", timeToLive);
+        json.put("hitCount", cache.stats().hitCount());
+        json.put("missCount", cache.stats().missCount());
+        return json;
+    }
+
+    /**
+     * Number of minutes the layers listed by a server are trusted before reading
+     * its capabilities again, that is the longest a revoked permission may still
+     * be granted. Defaults to 5.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Maximum number of (server, user) pairs cached. Defaults to 500.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Strips the workspace prefix, the capabilities may list the layer with or
+     * without it.
+     */
+    static String localName(String layerName) {
+        String name = layerName.trim();
+        int colon = name.lastIndexOf(':');
+        return colon < 0 ? name : name.substring(colon + 1);
+    }
+
+    /**
+     * Streams the capabilities document.
+     *
+     * @param layerName the layer looked for
+     * @param complete  whether the whole document must be read to collect all the
+     *                  layers, otherwise the parsing stops at the first occurrence
+     *                  of the layer
+     */
+    static Scan scan(InputStream in, String layerName, boolean complete) throws IOException {
+        try {
+            return scan(XML_INPUT_FACTORY.createXMLStreamReader(in), layerName, complete);
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse the capabilities", e);
+        }
+    }
+
+    static Scan scan(Reader in, String layerName, boolean complete) throws IOException {
+        try {
+            return scan(XML_INPUT_FACTORY.createXMLStreamReader(in), layerName, complete);
+        } catch (XMLStreamException e) {
+            throw new IOException("Unable to parse the capabilities", e);
+        }
+    }
+
+    private static Scan scan(XMLStreamReader reader, String layerName, boolean complete) throws XMLStreamException {
+        final String wanted = localName(layerName);
+        Scan scan = new Scan();
+        Deque<String> elements = new ArrayDeque<String>();
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    if (event == XMLStreamConstants.END_ELEMENT) {
+                        elements.pop();
+                    }
+                    continue;
+                }
+                String element = reader.getLocalName();
+                String parent = elements.peek();
+                elements.push(element);
+                if (parent == null) {
+                    scan.updateSequence = reader.getAttributeValue(null, "updateSequence");
+                    scan.error = element.endsWith("ExceptionReport");
+                    // not worth reading further if it cannot be cached
+                    complete &= scan.updateSequence != null;
+                } else if (scan.error && ("ServiceException".equals(element) || "Exception".equals(element))) {
+                    String code = reader.getAttributeValue(null, "code");
+                    if (code == null) {
+                        code = reader.getAttributeValue(null, "exceptionCode");
+                    }
+                    if ("CurrentUpdateSequence".equals(code)) {
+                        scan.currentUpdateSequence = true;
+                        scan.error = false;
+                        return scan;
+                    }
+                } else if (("Name".equals(element) && "Layer".equals(parent))
+                        || ("name".equals(element) && "CoverageOfferingBrief".equals(parent))
+                        || ("Identifier".equals(element) && "CoverageSummary".equals(parent))) {
+                    String name = localName(reader.getElementText());
+                    // getElementText consumed the end tag
+                    elements.pop();
+                    scan.layers.add(name);
+                    if (name.equals(wanted)) {
+                        scan.found = true;
+                        if (!complete) {
+                            return scan;
+                        }
+                    }
+                }
+            }
+            scan.complete = true;
+            return scan;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * What a capabilities document told about the layers.
+     */
+    static class Scan {
+        String updateSequence;
+        final Set<String> layers = new HashSet<String>();
+        boolean found;
+        boolean complete;
+        boolean currentUpdateSequence;
+        /** the server answered with an exception report */
+        boolean error;
+    }
+
+    static class Entry {
+        final String updateSequence;
+        final Set<String> layers;
+
+        Entry(String updateSequence, Set<String> layers) {
+            this.updateSequence = updateSequence;
+            this.layers = Collections.unmodifiableSet(layers);
+        }
+
+        boolean allows(String layerName) {
+            return layers.contains(localName(layerName));
+        }
+    }
+
+    /**
+     * The capabilities depend on the user and roles the request impersonates.
+     */
+    static class Key {
+        private final String url;
+        private final String username;
+        private final String roles;
+
+        Key(String url, String username, String roles) {
+            this.url = url;
+            this.username = username;
+            this.roles = roles;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return url.equals(k.url) && Objects.equals(username, k.username) && Objects.equals(roles, k.roles);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, username, roles);
+        }
+
+        @Override
+        public String toString() {
+            return username == null ? url : username + "@" + url;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataStoreFinder;
+import org.geotools.data.wfs.WFSDataStoreFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Keeps the WFS {@link DataStore}s used by the {@link WfsExtractor} alive
+ * between extractions.
+ * <p>
+ * Creating a WFS datastore downloads and parses the server capabilities, and
+ * every feature type schema is parsed again from a DescribeFeatureType request
+ * the first time it is used. Both are kept by the datastore itself, so reusing
+ * the datastore for a given (server URL, credentials) pair serves them from
+ * memory.
+ * <p>
+ * Datastores are leased: a datastore evicted from the cache (because of the
+ * TTL, the maximum size or {@link #dispose()}) is only disposed of once the
+ * last extraction using it has released it.
+ */
+public class WfsDataStoreCache {
+
+    private static final Log LOG = LogFactory.getLog(WfsDataStoreCache.class.getPackage().getName());
+
+    private long timeToLive = 10;
+    private long maxSize = 50;
+
+    private Cache<Key, Entry> cache;
+
+    @PostConstruct
+    public void init() {
+        RemovalListener<Key, Entry> onRemoval = notification -> {
+            LOG.debug("Evicting WFS datastore for " + notification.getKey() + " (" + notification.getCause() + ")");
+            notification.getValue().evict();
+        };
+        this.cache = CacheBuilder.newBuilder()//
+                .maximumSize(maxSize)//
+                .expireAfterWrite(timeToLive, TimeUnit.MINUTES)//
+                .removalListener(onRemoval)//
+                .recordStats()//
+                .build();
+    }
+
+    /**
+     * Returns a leased datastore for the given WFS connection parameters,
+     * connecting to the server only if no usable datastore is cached. The caller
+     * must {@link Lease#release() release} the lease once done with it.
+     */
+    public Lease acquire(Map<String, Serializable> params) throws IOException {
+        final Key key = new Key(params);
+        while (true) {
+            Entry entry;
+            try {
+                entry = cache.get(key, () -> new Entry(connect(params)));
+            } catch (ExecutionException e) {
+                Throwables.propagateIfPossible(e.getCause(), IOException.class);
+                throw new IOException(e.getCause());
+            } catch (UncheckedExecutionException e) {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw e;
+            }
+            if (entry.lease()) {
+                return new Lease(entry);
+            }
+            // evicted between lookup and lease, try again with a fresh one
+            cache.asMap().remove(key, entry);
+        }
+    }
+
+    /**
+     * Wraps a datastore that is not shared through the cache, it is disposed of as
+     * soon as the lease is released.
+     */
+    public static Lease unshared(DataStore dataStore) {
+        Entry entry = new Entry(dataStore);
+        entry.lease();
+        entry.evict();
+        return new Lease(entry);
+    }
+
+    static DataStore connect(Map<String, Serializable> params) throws IOException {
+        DataStore dataStore = DataStoreFinder.getDataStore(new HashMap<>(params));
+        if (dataStore == null) {
+            throw new IllegalStateException("Unable to connect to WFS " + params.get(WFSDataStoreFactory.URL.key));
+        }
+        return dataStore;
+    }
+
+    /**
+     * Evicts every cached datastore, disposing of the ones not in use.
+     */
+    @PreDestroy
+    public void dispose() {
+        if (cache != null) {
+            cache.invalidateAll();
+            cache.cleanUp();
+        }
+    }
+
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    public JSONObject statsAsJson() throws JSONException {
+        CacheStats stats = getStats();
+        JSONObject json = new JSONObject();
+        json.put("size", size());
+        json.put("maxSize", maxSize);
+        json.put("timeToLive", timeToLive);
+        json.put("hitCount", stats.hitCount());
+        json.put("missCount", stats.missCount());
+        json.put("hitRatio", stats.hitRate());
+        json.put("evictionCount", stats.evictionCount());
+        json.put("averageLoadPenalty", stats.averageLoadPenalty());
+        return json;
+    }
+
+    /**
+     * Number of minutes a datastore (and thus the capabilities it parsed) is kept
+     * before reconnecting to the server. Defaults to 10.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Maximum number of cached datastores. Defaults to 50.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * A datastore borrowed from the cache.
+     */
+    public static class Lease {
+        private final Entry entry;
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public DataStore getDataStore() {
+            return entry.dataStore;
+        }
+
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                entry.release();
+            }
+        }
+    }
+
+    private static class Entry {
+        private final DataStore dataStore;
+        private int leases;
+        private boolean evicted;
+        private boolean disposed;
+
+        Entry(DataStore dataStore) {
+            this.dataStore = dataStore;
+        }
+
+        synchronized boolean lease() {
+            if (evicted) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        synchronized void release() {
+            leases--;
+            disposeIfUnused();
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            disposeIfUnused();
+        }
+
+        private void disposeIfUnused() {
+            if (evicted && leases == 0 && !disposed) {
+                disposed = true;
+                dataStore.dispose();
+            }
+        }
+    }
+
+    /**
+     * Identifies a WFS connection by its capabilities URL and credentials.
+     * {@link URL#equals} is not used on purpose since it resolves host names.
+     */
+    private static class Key {
+        private final String url;
+        private final Object username;
+        private final Object password;
+
+        Key(Map<String, Serializable> params) {
+            Object urlParam = params.get(WFSDataStoreFactory.URL.key);
+            this.url = urlParam instanceof URL ? ((URL) urlParam).toExternalForm() : String.valueOf(urlParam);
+            this.username = params.get(WFSDataStoreFactory.USERNAME.key);
+            this.password = params.get(WFSDataStoreFactory.PASSWORD.key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return url.equals(k.url) && Objects.equals(username, k.username) && Objects.equals(password, k.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, username, password);
+        }
+
+        @Override
+        public String toString() {
+            return username == null ? url : username + "@" + url;
+        }
+    }
+}
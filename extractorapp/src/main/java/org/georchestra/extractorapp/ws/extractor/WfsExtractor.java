@@ -12,10 +12,12 @@ import java.net.URL;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
@@ -26,10 +28,7 @@ import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.geotools.data.DataStore;
-import org.geotools.data.DataStoreFinder;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -68,13 +67,22 @@ public class WfsExtractor {
 
     private static final FilterFactory2 FILTER_FACTORY = CommonFactoryFinder
             .getFilterFactory2(GeoTools.getDefaultHints());
-    private static final Set<String> SUPPORTED_FORMATS = ImmutableSet.of("shp", "mif", "tab", "kml");
+    private static final Set<String> SUPPORTED_FORMATS = ImmutableSet.of("shp", "mif", "tab", "kml", "gpkg");
+
+    /** the updateSequence attribute of the capabilities root element */
+    private static final Pattern UPDATE_SEQUENCE = Pattern
+            .compile("<(?:\\w+:)?WFS_Capabilities\\b[^>]*\\supdateSequence\\s*=\\s*[\"']([^\"']*)[\"']");
 
     private final File _basedir;
     private final String _adminUsername;
     private final String _adminPassword;
     private final String _secureHost;
     private String userAgent;
+    private final WfsDataStoreCache _dataStoreCache;
+    private SharedHttpClient _httpClient = SharedHttpClient.getDefault();
+    private int _tilesPerSide = 1;
+    private int _pageConcurrency = 1;
+    private File _checkpointDir;
 
     /**
      *
@@ -94,25 +102,69 @@ public class WfsExtractor {
      * @param secureHost
      */
     public WfsExtractor(File basedir, String adminUsername, String adminPassword, String secureHost, String userAgent) {
+        this(basedir, adminUsername, adminPassword, secureHost, userAgent, null);
+    }
+
+    /**
+     *
+     * @param basedir        the directory that the extracted files will be written
+     *                       in
+     * @param adminUsername  username that give admin access to geoserver
+     * @param adminPassword  password the the admin user
+     * @param secureHost
+     * @param dataStoreCache cache of the WFS datastores shared between
+     *                       extractions, if {@code null} a new datastore is
+     *                       created for each extraction
+     */
+    public WfsExtractor(File basedir, String adminUsername, String adminPassword, String secureHost, String userAgent,
+            WfsDataStoreCache dataStoreCache) {
         this._basedir = basedir;
         this._adminPassword = adminPassword;
         this._adminUsername = adminUsername;
         this._secureHost = secureHost;
         this.userAgent = userAgent;
+        this._dataStoreCache = dataStoreCache;
+    }
+
+    /**
+     * Enables the paged download of the layers: the bounding box is split in
+     * {@code tilesPerSide * tilesPerSide} tiles, each one being fetched with its
+     * own GetFeature request and checkpointed into {@code checkpointDir} so that a
+     * new attempt resumes from the pages already downloaded.
+     *
+     * @param tilesPerSide  number of tiles along each axis, 1 disables paging
+     * @param concurrency   maximum number of pages fetched at the same time
+     * @param checkpointDir directory kept between the attempts of a layer
+     *                      extraction
+     */
+    public void setPaging(int tilesPerSide, int concurrency, File checkpointDir) {
+        this._tilesPerSide = tilesPerSide;
+        this._pageConcurrency = concurrency;
+        this._checkpointDir = checkpointDir;
+    }
+
+    /**
+     * @param httpClient the client the capabilities are fetched with, shared
+     *                   between extractions
+     */
+    public void setHttpClient(SharedHttpClient httpClient) {
+        if (httpClient != null) {
+            this._httpClient = httpClient;
+        }
     }
 
     public void checkPermission(ExtractorLayerRequest request, String secureHost, String username, String roles)
             throws IOException {
         URL capabilitiesURL = request.capabilitiesURL("WFS", "1.0.0");
 
-        final HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
-        httpClientBuilder.setUserAgent(this.userAgent);
-
         HttpClientContext localContext = HttpClientContext.create();
         final HttpHost httpHost = new HttpHost(capabilitiesURL.getHost(), capabilitiesURL.getPort(),
                 capabilitiesURL.getProtocol());
 
         HttpGet get = new HttpGet(capabilitiesURL.toExternalForm());
+        if (this.userAgent != null) {
+            get.setHeader(HttpHeaders.USER_AGENT, this.userAgent);
+        }
         if (username != null && (secureHost.equalsIgnoreCase(request._url.getHost())
                 || "127.0.0.1".equalsIgnoreCase(request._url.getHost())
                 || "localhost".equalsIgnoreCase(request._url.getHost()))) {
@@ -121,17 +173,14 @@ public class WfsExtractor {
 
             addImpersonateUserHeaders(username, roles, get);
 
-            enablePreemptiveBasicAuth(capabilitiesURL, httpClientBuilder, localContext, httpHost, _adminUsername,
-                    _adminPassword);
+            enablePreemptiveBasicAuth(capabilitiesURL, localContext, httpHost, _adminUsername, _adminPassword);
         } else {
             // use a user agent that does *not* trigger basic auth on remote server
-            httpClientBuilder.setUserAgent("Apache-HttpClient");
+            get.setHeader(HttpHeaders.USER_AGENT, "Apache-HttpClient");
             LOG.debug("WfsExtractor.checkPermission - Non Secured Server");
         }
 
-        final CloseableHttpClient httpclient = httpClientBuilder.build();
-        String capabilities = FileUtils
-                .asString(httpclient.execute(httpHost, get, localContext).getEntity().getContent());
+        String capabilities = _httpClient.getAsString(httpHost, get, localContext);
         Pattern regex = Pattern.compile("(?m)<FeatureType[^>]*>(\\\\n|\\s)*<Name>\\s*(\\w*:)?"
                 + Pattern.quote(request._layerName) + "\\s*</Name>");
         boolean permitted = regex.matcher(capabilities).find();
@@ -140,6 +189,8 @@ public class WfsExtractor {
             throw new SecurityException("User does not have sufficient privileges to access the Layer: "
                     + request._layerName + ". \n\nCapabilities:  " + capabilities);
         }
+        Matcher updateSequence = UPDATE_SEQUENCE.matcher(capabilities);
+        request.setSourceVersion(updateSequence.find() ? updateSequence.group(1) : null);
     }
 
     public static void addImpersonateUserHeaders(String username, String roles, HttpGet get) {
@@ -148,12 +199,16 @@ public class WfsExtractor {
             get.addHeader("imp-roles", roles);
     }
 
-    public static void enablePreemptiveBasicAuth(URL capabilitiesURL, HttpClientBuilder httpClientBuilder,
-            HttpClientContext localContext, HttpHost httpHost, String adminUsername, String adminPassword) {
+    /**
+     * Sets the credentials in the context rather than on the client, which is
+     * shared between the users.
+     */
+    public static void enablePreemptiveBasicAuth(URL capabilitiesURL, HttpClientContext localContext,
+            HttpHost httpHost, String adminUsername, String adminPassword) {
         CredentialsProvider credsProvider = new BasicCredentialsProvider();
         credsProvider.setCredentials(new AuthScope(capabilitiesURL.getHost(), capabilitiesURL.getPort()),
                 new UsernamePasswordCredentials(adminUsername, adminPassword));
-        httpClientBuilder.setDefaultCredentialsProvider(credsProvider);
+        localContext.setCredentialsProvider(credsProvider);
 
         AuthCache authCache = new BasicAuthCache();
         // Generate BASIC scheme object and add it to the local
@@ -180,9 +235,9 @@ public class WfsExtractor {
 
         final File basedir = request.createContainingDir(_basedir);
 
-        // TODO: dispose datastore
-        DataStore sourceDs = resolveDataStore(request);
+        WfsDataStoreCache.Lease lease = resolveDataStore(request);
         try {
+            DataStore sourceDs = lease.getDataStore();
             SimpleFeatureSource featureSource = resolveFeatureSource(sourceDs, request);
             SimpleFeatureCollection features = getFeatures(request, featureSource);
 
@@ -193,7 +248,7 @@ public class WfsExtractor {
             featuresWriter.generateFiles();
             bboxWriter.generateFiles();
         } finally {
-            sourceDs.dispose();
+            lease.release();
         }
         return basedir;
     }
@@ -204,6 +259,8 @@ public class WfsExtractor {
             return new ShpFeatureWriter(basedir, features);
         case "kml":
             return new KMLFeatureWriter(basedir, features);
+        case "gpkg":
+            return new GeoPackageFeatureWriter(basedir, features);
         default:
             throw new IllegalStateException("Shouldn't happen, aldready checked format is in SUPPORTED_FORMATS");
         }
@@ -250,27 +307,22 @@ public class WfsExtractor {
         return featureSource;
     }
 
-    private DataStore resolveDataStore(ExtractorLayerRequest request) throws IOException {
+    private WfsDataStoreCache.Lease resolveDataStore(ExtractorLayerRequest request) throws IOException {
         final Map<String, Serializable> params = buildWFSConnectionParameters(request);
 
         String requestedTypeName = request.getWFSName();
-        DataStore sourceDs = null;
-        // prefixed typeName
-        if (requestedTypeName.contains(":")) {
-            sourceDs = DataStoreFinder.getDataStore(params);
-        } else {
+        if (!requestedTypeName.contains(":")) {
             // Not prefixed one (mapserver ?)
             // Recreating the datastore forcing wfs 1.1.0, so that (presuming
             // the remote server is actually powered by MapServer), we would
             // have a typename prefixed with the same convention as before.
             params.put(WFSDataStoreFactory.URL.key, request.capabilitiesURL("WFS", "1.1.0"));
             // params.put(WFSDataStoreFactory.WFS_STRATEGY.key, "mapserver");
-            sourceDs = DataStoreFinder.getDataStore(params);
         }
-        if (sourceDs == null) {
-            throw new IllegalStateException("Unable to connect to WFS " + params.get(WFSDataStoreFactory.URL.key));
+        if (_dataStoreCache != null) {
+            return _dataStoreCache.acquire(params);
         }
-        return sourceDs;
+        return WfsDataStoreCache.unshared(WfsDataStoreCache.connect(params));
     }
 
     private Map<String, Serializable> buildWFSConnectionParameters(ExtractorLayerRequest request) {
@@ -303,8 +355,16 @@ public class WfsExtractor {
     private SimpleFeatureCollection getFeatures(ExtractorLayerRequest request, SimpleFeatureSource featureSource)
             throws IOException, TransformException, FactoryException {
 
-        Query query = createQuery(request, featureSource.getSchema());
-        SimpleFeatureCollection features = featureSource.getFeatures(query);
+        final SimpleFeatureType schema = featureSource.getSchema();
+        Query query = createQuery(request, schema);
+        SimpleFeatureCollection features;
+        if (_tilesPerSide > 1 && _checkpointDir != null && schema.getGeometryDescriptor() != null) {
+            ReferencedEnvelope bbox = nativeBbox(request, schema.getCoordinateReferenceSystem());
+            features = new WfsPagedDownload(featureSource, query, bbox, _tilesPerSide, _pageConcurrency,
+                    _checkpointDir).download();
+        } else {
+            features = featureSource.getFeatures(query);
+        }
 
         CoordinateReferenceSystem returnedCrs = features.getSchema().getCoordinateReferenceSystem();
         CoordinateReferenceSystem targetCrs = request._projection;
@@ -335,12 +395,7 @@ public class WfsExtractor {
             final CoordinateReferenceSystem nativeCrs = schema.getCoordinateReferenceSystem();
             GeometryDescriptor defGeom = schema.getGeometryDescriptor();
             PropertyName propertyName = FILTER_FACTORY.property(defGeom.getLocalName());
-            ReferencedEnvelope bbox = request._bbox;
-            // bbox may not be in the same projection as the data so it sometimes necessary
-            // to reproject the request BBOX
-            if (!CRS.equalsIgnoreMetadata(nativeCrs, bbox.getCoordinateReferenceSystem())) {
-                bbox = bbox.transform(nativeCrs, true, 10);
-            }
+            ReferencedEnvelope bbox = nativeBbox(request, nativeCrs);
             Polygon bboxGeom = JTS.toGeometry(bbox);
             filter = FILTER_FACTORY.intersects(propertyName, FILTER_FACTORY.literal(bboxGeom));
             properties = schema.getDescriptors().stream()//
@@ -354,4 +409,15 @@ public class WfsExtractor {
 
         return query;
     }
+
+    private ReferencedEnvelope nativeBbox(ExtractorLayerRequest request, CoordinateReferenceSystem nativeCrs)
+            throws TransformException, FactoryException {
+        ReferencedEnvelope bbox = request._bbox;
+        // bbox may not be in the same projection as the data so it sometimes necessary
+        // to reproject the request BBOX
+        if (!CRS.equalsIgnoreMetadata(nativeCrs, bbox.getCoordinateReferenceSystem())) {
+            bbox = bbox.transform(nativeCrs, true, 10);
+        }
+        return bbox;
+    }
 }
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.factory.GeoTools;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.filter.FilterFactory2;
+
+/**
+ * Downloads the features of a WFS layer by splitting the requested bounding
+ * box into tiles, each tile being fetched with its own GetFeature request.
+ * <p>
+ * Every completed tile is spooled to a page file in the checkpoint directory,
+ * so that a new attempt after a failure only downloads the missing tiles.
+ * Tiles are fetched concurrently, within the configured limit.
+ * <p>
+ * Spatial tiling is used rather than {@code startIndex}/{@code count} paging
+ * since the extractor talks WFS 1.0.0 to the servers. Features crossing a tile
+ * border are returned once per tile they intersect, such duplicates are removed
+ * by feature id when reading the pages back.
+ */
+class WfsPagedDownload {
+
+    private static final Log LOG = LogFactory.getLog(WfsPagedDownload.class.getPackage().getName());
+
+    private static final FilterFactory2 FILTER_FACTORY = CommonFactoryFinder
+            .getFilterFactory2(GeoTools.getDefaultHints());
+
+    private static final String PAGE_EXT = ".page";
+    private static final String PARTIAL_EXT = ".part";
+
+    private final SimpleFeatureSource featureSource;
+    private final Query query;
+    private final ReferencedEnvelope bbox;
+    private final int tilesPerSide;
+    private final int concurrency;
+    private final File checkpointDir;
+
+    /**
+     * @param featureSource the layer to download
+     * @param query         the query for the whole bounding box, its filter is
+     *                      replaced by one intersecting each tile
+     * @param bbox          the requested bounding box, in the native CRS of the
+     *                      layer
+     * @param tilesPerSide  number of tiles along each axis of the bounding box
+     * @param concurrency   maximum number of tiles fetched at the same time
+     * @param checkpointDir where the completed pages are kept between attempts
+     */
+    WfsPagedDownload(SimpleFeatureSource featureSource, Query query, ReferencedEnvelope bbox, int tilesPerSide,
+            int concurrency, File checkpointDir) {
+        this.featureSource = featureSource;
+        this.query = query;
+        this.bbox = bbox;
+        this.tilesPerSide = tilesPerSide;
+        this.concurrency = concurrency;
+        this.checkpointDir = new File(checkpointDir, tilesPerSide + "x" + tilesPerSide);
+    }
+
+    /**
+     * Fetches the tiles that are not already checkpointed.
+     *
+     * @return the features of all the tiles, read back from the page files
+     */
+    public SimpleFeatureCollection download() throws IOException {
+        if (!checkpointDir.exists() && !checkpointDir.mkdirs()) {
+            throw new IOException("Unable to create " + checkpointDir);
+        }
+        final List<Page> pages = split();
+        final SimpleFeatureType schema = featureSource.getFeatures(pageQuery(pages.get(0))).getSchema();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency), r -> {
+            Thread thread = new Thread(r);
+            thread.setName("Extractorapp-wfs-page-" + thread.getId());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> fetches = new ArrayList<>();
+            int resumed = 0;
+            for (Page page : pages) {
+                if (page.file.exists()) {
+                    resumed++;
+                } else {
+                    fetches.add(executor.submit(() -> {
+                        fetch(page);
+                        return null;
+                    }));
+                }
+            }
+            LOG.info("Downloading " + fetches.size() + " pages of " + query.getTypeName() + " (" + resumed
+                    + " pages already downloaded)");
+            for (Future<?> fetch : fetches) {
+                fetch.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to download a page of " + query.getTypeName(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + query.getTypeName(), e);
+        } finally {
+            executor.shutdownNow();
+        }
+        return new PagedFeatureCollection(schema, pages);
+    }
+
+    private List<Page> split() {
+        List<Page> pages = new ArrayList<>(tilesPerSide * tilesPerSide);
+        final double width = bbox.getWidth() / tilesPerSide;
+        final double height = bbox.getHeight() / tilesPerSide;
+        for (int row = 0; row < tilesPerSide; row++) {
+            for (int col = 0; col < tilesPerSide; col++) {
+                double minx = bbox.getMinX() + col * width;
+                double miny = bbox.getMinY() + row * height;
+                // use the bbox bounds for the last tiles to avoid rounding gaps
+                double maxx = col == tilesPerSide - 1 ? bbox.getMaxX() : minx + width;
+                double maxy = row == tilesPerSide - 1 ? bbox.getMaxY() : miny + height;
+                ReferencedEnvelope tile = new ReferencedEnvelope(minx, maxx, miny, maxy,
+                        bbox.getCoordinateReferenceSystem());
+                pages.add(new Page(tile, new File(checkpointDir, "page-" + row + "-" + col + PAGE_EXT)));
+            }
+        }
+        return pages;
+    }
+
+    private Query pageQuery(Page page) {
+        GeometryDescriptor geom = featureSource.getSchema().getGeometryDescriptor();
+        Query pageQuery = new Query(query);
+        pageQuery.setFilter(FILTER_FACTORY.intersects(FILTER_FACTORY.property(geom.getLocalName()),
+                FILTER_FACTORY.literal(JTS.toGeometry(page.tile))));
+        return pageQuery;
+    }
+
+    /**
+     * Downloads one page into a partial file and renames it once complete, the
+     * presence of the page file is the checkpoint.
+     */
+    private void fetch(Page page) throws IOException {
+        File partial = new File(page.file.getPath() + PARTIAL_EXT);
+        int count = 0;
+        try (SimpleFeatureIterator it = featureSource.getFeatures(pageQuery(page)).features();
+                ObjectOutputStream out = new ObjectOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(partial), 64 * 1024))) {
+            WKBWriter wkbWriter = new WKBWriter(3);
+            while (it.hasNext()) {
+                writeFeature(out, wkbWriter, it.next());
+                count++;
+            }
+            out.writeBoolean(false);
+        }
+        if (!partial.renameTo(page.file)) {
+            throw new IOException("Unable to checkpoint " + page.file);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Downloaded " + count + " features into " + page.file);
+        }
+    }
+
+    private static void writeFeature(ObjectOutputStream out, WKBWriter wkbWriter, SimpleFeature feature)
+            throws IOException {
+        out.writeBoolean(true);
+        out.writeUTF(feature.getID());
+        for (Object value : feature.getAttributes()) {
+            if (value instanceof Geometry) {
+                byte[] wkb = wkbWriter.write((Geometry) value);
+                out.writeInt(wkb.length);
+                out.write(wkb);
+            } else {
+                out.writeInt(-1);
+                out.writeObject(value);
+            }
+        }
+        // don't keep back references to the previous features
+        out.reset();
+    }
+
+    private static class Page {
+        final ReferencedEnvelope tile;
+        final File file;
+
+        Page(ReferencedEnvelope tile, File file) {
+            this.tile = tile;
+            this.file = file;
+        }
+
+        /**
+         * Whether the envelope lies strictly inside the tile, in which case no other
+         * tile can return the same feature.
+         */
+        boolean owns(Envelope envelope) {
+            return envelope != null && !envelope.isNull() && envelope.getMinX() > tile.getMinX()
+                    && envelope.getMaxX() < tile.getMaxX() && envelope.getMinY() > tile.getMinY()
+                    && envelope.getMaxY() < tile.getMaxY();
+        }
+    }
+
+    /**
+     * Streams the features of the page files, in tile order.
+     */
+    private static class PagedFeatureCollection extends BaseSimpleFeatureCollection {
+        private final List<Page> pages;
+
+        PagedFeatureCollection(SimpleFeatureType schema, List<Page> pages) {
+            super(schema);
+            this.pages = pages;
+        }
+
+        @Override
+        public SimpleFeatureIterator features() {
+            return new PagedFeatureIterator(getSchema(), pages.iterator());
+        }
+    }
+
+    private static class PagedFeatureIterator implements SimpleFeatureIterator {
+        private final SimpleFeatureType schema;
+        private final Iterator<Page> pages;
+        private final WKBReader wkbReader = new WKBReader();
+        /** ids of the features found on tile borders, the only ones that can repeat */
+        private final Set<String> sharedIds = new HashSet<>();
+
+        private Page page;
+        private ObjectInputStream in;
+        private SimpleFeature next;
+
+        PagedFeatureIterator(SimpleFeatureType schema, Iterator<Page> pages) {
+            this.schema = schema;
+            this.pages = pages;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    if (in == null) {
+                        if (!pages.hasNext()) {
+                            return false;
+                        }
+                        page = pages.next();
+                        in = new ObjectInputStream(
+                                new BufferedInputStream(new FileInputStream(page.file), 64 * 1024));
+                    }
+                    SimpleFeature feature = readFeature();
+                    if (feature == null) {
+                        in.close();
+                        in = null;
+                    } else if (isFirstOccurrence(feature)) {
+                        next = feature;
+                    }
+                }
+                return true;
+            } catch (IOException | ClassNotFoundException | ParseException e) {
+                throw new IllegalStateException("Unable to read page " + page.file, e);
+            }
+        }
+
+        private boolean isFirstOccurrence(SimpleFeature feature) {
+            Geometry geom = (Geometry) feature.getDefaultGeometry();
+            if (geom != null && page.owns(geom.getEnvelopeInternal())) {
+                return true;
+            }
+            return sharedIds.add(feature.getID());
+        }
+
+        private SimpleFeature readFeature() throws IOException, ClassNotFoundException, ParseException {
+            if (!in.readBoolean()) {
+                return null;
+            }
+            String fid = in.readUTF();
+            List<AttributeDescriptor> descriptors = schema.getAttributeDescriptors();
+            Object[] values = new Object[descriptors.size()];
+            for (int i = 0; i < values.length; i++) {
+                int wkbLength = in.readInt();
+                if (wkbLength < 0) {
+                    values[i] = in.readObject();
+                } else {
+                    byte[] wkb = new byte[wkbLength];
+                    in.readFully(wkb);
+                    values[i] = wkbReader.read(wkb);
+                }
+            }
+            return SimpleFeatureBuilder.build(schema, values, fid);
+        }
+
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature feature = next;
+            next = null;
+            return feature;
+        }
+
+        @Override
+        public void close() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    LOG.warn("Unable to close page " + page.file, e);
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -21,21 +21,21 @@ package org.georchestra.extractorapp.ws.extractor.csw;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
 import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
-import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.georchestra.extractorapp.ws.extractor.SharedHttpClient;
 import org.georchestra.extractorapp.ws.extractor.WfsExtractor;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Properties;
 import java.util.regex.Pattern;
 
@@ -60,6 +60,8 @@ public class CSWExtractor {
     private String _secureHost;
     private String _adminUserName;
     private String userAgent;
+    private SharedHttpClient httpClient = SharedHttpClient.getDefault();
+    private MetadataHarvester harvester;
 
     /**
      * CSWExtractor
@@ -78,6 +80,24 @@ public class CSWExtractor {
         this.userAgent = userAgent;
     }
 
+    /**
+     * @param httpClient the client the metadata are fetched with, shared between
+     *                   extractions
+     */
+    public void setHttpClient(SharedHttpClient httpClient) {
+        if (httpClient != null) {
+            this.httpClient = httpClient;
+        }
+    }
+
+    /**
+     * @param harvester keeps the metadata between extractions, the metadata is
+     *                  fetched again every time if null
+     */
+    public void setMetadataHarvester(MetadataHarvester harvester) {
+        this.harvester = harvester;
+    }
+
     /**
      * checks the permissions to access to the CSW
      * 
@@ -89,17 +109,16 @@ public class CSWExtractor {
      */
     public void checkPermission(ExtractorLayerRequest request, String username, String roles) throws IOException {
 
-        InputStream content = null;
         boolean isMetadata = false;
         try {
-            final HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
-            httpClientBuilder.setUserAgent(this.userAgent);
-
             HttpClientContext localContext = HttpClientContext.create();
             final HttpHost httpHost = new HttpHost(request._isoMetadataURL.getHost(),
                     request._isoMetadataURL.getPort());
 
             HttpGet get = new HttpGet(request._isoMetadataURL.toURI());
+            if (this.userAgent != null) {
+                get.setHeader(HttpHeaders.USER_AGENT, this.userAgent);
+            }
 
             if (username != null && (_secureHost.equalsIgnoreCase(request._isoMetadataURL.getHost())
                     || "127.0.0.1".equalsIgnoreCase(request._isoMetadataURL.getHost())
@@ -108,8 +127,8 @@ public class CSWExtractor {
                         + ".checkPermission - Secured Server: adding username header and role headers to request for checkPermission");
                 WfsExtractor.addImpersonateUserHeaders(username, roles, get);
 
-                WfsExtractor.enablePreemptiveBasicAuth(request._isoMetadataURL, httpClientBuilder, localContext,
-                        httpHost, _adminUserName, _adminPassword);
+                WfsExtractor.enablePreemptiveBasicAuth(request._isoMetadataURL, localContext, httpHost,
+                        _adminUserName, _adminPassword);
 
             } else {
                 LOG.debug("WcsExtractor.checkPermission - Non Secured Server");
@@ -117,10 +136,7 @@ public class CSWExtractor {
 
             // checks whether it is a metadata
 
-            final CloseableHttpClient httpclient = httpClientBuilder.build();
-            content = httpclient.execute(httpHost, get, localContext).getEntity().getContent();
-
-            String metadata = FileUtils.asString(content);
+            String metadata = httpClient.getAsString(httpHost, get, localContext);
             Pattern regex = Pattern.compile("<(gmd:)?MD_Metadata*");
 
             isMetadata = regex.matcher(metadata).find();
@@ -128,11 +144,6 @@ public class CSWExtractor {
         } catch (Exception e) {
 
             throw new IOException(e);
-
-        } finally {
-
-            if (content != null)
-                content.close();
         }
 
         if (!isMetadata) {
@@ -163,9 +174,14 @@ public class CSWExtractor {
             LOG.debug("Non Secured Server");
         }
 
-        MetadataEntity metadata = MetadataEntity.create(cswRequest);
+        MetadataEntity metadata = MetadataEntity.create(cswRequest, httpClient);
 
-        metadata.save(this._basedir.getAbsolutePath() + File.separatorChar + "metadata.xml");
+        final String fileName = this._basedir.getAbsolutePath() + File.separatorChar + "metadata.xml";
+        if (harvester == null) {
+            metadata.save(fileName);
+        } else {
+            Files.write(Paths.get(fileName), harvester.fetch(metadata));
+        }
 
     }
 
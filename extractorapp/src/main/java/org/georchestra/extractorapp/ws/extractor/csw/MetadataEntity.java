@@ -24,18 +24,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.URISyntaxException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.georchestra.extractorapp.ws.extractor.SharedHttpClient;
 
 /**
  * This class is responsible to maintain the metadata values in a file.
@@ -48,15 +55,18 @@ final class MetadataEntity {
     protected static final Log LOG = LogFactory.getLog(MetadataEntity.class.getPackage().getName());
 
     private CSWRequest request;
+    private SharedHttpClient httpclient;
 
     /**
      * a new instance of {@link MetadataEntity}.
      * 
      * @param cswRequest where the metadata is available
+     * @param httpclient the shared client the metadata is fetched with
      */
-    private MetadataEntity(CSWRequest cswRequest) {
+    private MetadataEntity(CSWRequest cswRequest, SharedHttpClient httpclient) {
 
         this.request = cswRequest;
+        this.httpclient = httpclient;
     }
 
     /**
@@ -64,10 +74,11 @@ final class MetadataEntity {
      * from the Catalog service specified in the request parameter.
      * 
      * @param cswRequest where the metadata is available
+     * @param httpclient the shared client the metadata is fetched with
      */
-    public static MetadataEntity create(final CSWRequest cswRequest) {
+    public static MetadataEntity create(final CSWRequest cswRequest, final SharedHttpClient httpclient) {
 
-        return new MetadataEntity(cswRequest);
+        return new MetadataEntity(cswRequest, httpclient);
 
     }
 
@@ -86,25 +97,8 @@ final class MetadataEntity {
         try {
             writer = new PrintWriter(fileName, "UTF-8");
 
-            HttpGet get = new HttpGet(this.request.buildURI());
-            CloseableHttpClient httpclient = HttpClients.createDefault();
-            HttpClientContext localContext = HttpClientContext.create();
-
-            // if credentials are actually provided, use them to configure
-            // the HttpClient object.
-            try {
-                if (this.request.getUser() != null && request.getPassword() != null) {
-                    Credentials credentials = new UsernamePasswordCredentials(request.getUser(), request.getPassword());
-                    AuthScope authScope = new AuthScope(get.getURI().getHost(), get.getURI().getPort());
-                    CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-                    credentialsProvider.setCredentials(authScope, credentials);
-                    localContext.setCredentialsProvider(credentialsProvider);
-                }
-            } catch (Exception e) {
-                LOG.error("Unable to set basic-auth on http client to get the Metadata remotely, trying without ...",
-                        e);
-            }
-            content = httpclient.execute(get, localContext).getEntity().getContent();
+            HttpGet get = createRequest();
+            content = httpclient.getClient().execute(get, createContext(get)).getEntity().getContent();
             reader = new BufferedReader(new InputStreamReader(content));
 
             String line = reader.readLine();
@@ -135,4 +129,86 @@ final class MetadataEntity {
         }
     }
 
+    /**
+     * Retrieves the metadata, revalidating the given record with a conditional
+     * request if it has an ETag or a Last-Modified date.
+     * 
+     * @param cached the record previously retrieved from the same URL, may be
+     *               null
+     * @return the cached record if the catalog answered it was not modified, the
+     *         retrieved one otherwise
+     * @throws IOException
+     */
+    MetadataHarvester.Record fetch(final MetadataHarvester.Record cached) throws IOException {
+        final HttpGet get;
+        try {
+            get = createRequest();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (cached != null) {
+            if (cached.etag != null) {
+                get.setHeader(HttpHeaders.IF_NONE_MATCH, cached.etag);
+            }
+            if (cached.lastModified != null) {
+                get.setHeader(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+            }
+        }
+        try (CloseableHttpResponse response = httpclient.getClient().execute(get, createContext(get))) {
+            final int status = response.getStatusLine().getStatusCode();
+            final HttpEntity entity = response.getEntity();
+            if (status == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                EntityUtils.consume(entity);
+                return cached;
+            }
+            byte[] body = entity == null ? new byte[0] : EntityUtils.toByteArray(entity);
+            if (status != HttpStatus.SC_OK) {
+                // never cached
+                return new MetadataHarvester.Record(body, null, null);
+            }
+            return new MetadataHarvester.Record(body, headerValue(response, HttpHeaders.ETAG),
+                    headerValue(response, HttpHeaders.LAST_MODIFIED));
+        }
+    }
+
+    /**
+     * Identifies the metadata by its URL and the user it is retrieved as.
+     */
+    String cacheKey() {
+        String url = this.request.getUrl().toExternalForm();
+        return this.request.getUser() == null ? url : this.request.getUser() + "@" + url;
+    }
+
+    private static String headerValue(HttpResponse response, String name) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? null : header.getValue();
+    }
+
+    private HttpGet createRequest() throws URISyntaxException {
+        HttpGet get = new HttpGet(this.request.buildURI());
+        if (this.request.getTimeout() != null) {
+            get.setConfig(httpclient.requestConfig(this.request.getTimeout()));
+        }
+        return get;
+    }
+
+    private HttpClientContext createContext(HttpGet get) {
+        HttpClientContext localContext = HttpClientContext.create();
+
+        // if credentials are actually provided, use them to configure
+        // the request context.
+        try {
+            if (this.request.getUser() != null && request.getPassword() != null) {
+                Credentials credentials = new UsernamePasswordCredentials(request.getUser(), request.getPassword());
+                AuthScope authScope = new AuthScope(get.getURI().getHost(), get.getURI().getPort());
+                CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+                credentialsProvider.setCredentials(authScope, credentials);
+                localContext.setCredentialsProvider(credentialsProvider);
+            }
+        } catch (Exception e) {
+            LOG.error("Unable to set basic-auth on http client to get the Metadata remotely, trying without ...", e);
+        }
+        return localContext;
+    }
+
 }
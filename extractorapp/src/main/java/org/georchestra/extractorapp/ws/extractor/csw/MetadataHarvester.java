@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.csw;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Retrieves the ISO metadata of the extracted layers.
+ * <p>
+ * The metadata are fetched by a small pool of threads shared by all the
+ * extractions, so that an extraction fetches the metadata of its layers while
+ * it extracts their data instead of one after the other.
+ * <p>
+ * The records are kept in memory by URL along with their ETag and Last-Modified
+ * headers, and revalidated with a conditional request: a catalog answering 304
+ * Not Modified does not send the same document again. The records served
+ * without any of these headers are not kept.
+ */
+public class MetadataHarvester {
+
+    private static final Log LOG = LogFactory.getLog(MetadataHarvester.class.getPackage().getName());
+
+    private static final long MEGABYTE = 1024 * 1024;
+
+    private int threads = 4;
+    private long maxSize = 16;
+
+    private ExecutorService executor;
+    private Cache<String, Record> records;
+
+    private final AtomicLong notModifiedCount = new AtomicLong();
+    private final AtomicLong fetchedCount = new AtomicLong();
+
+    /**
+     * A metadata document and the headers it can be revalidated with.
+     */
+    static final class Record {
+        final byte[] body;
+        final String etag;
+        final String lastModified;
+
+        Record(byte[] body, String etag, String lastModified) {
+            this.body = body;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        boolean isCacheable() {
+            return etag != null || lastModified != null;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r);
+            thread.setName("Extractorapp-metadata-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = Executors.newFixedThreadPool(threads, threadFactory);
+        records = CacheBuilder.newBuilder()//
+                .maximumWeight(maxSize * MEGABYTE)//
+                .weigher((String key, Record record) -> record.body.length)//
+                .build();
+    }
+
+    /**
+     * Runs the metadata retrieval in the pool.
+     */
+    public Future<?> submit(Runnable retrieval) {
+        return executor.submit(retrieval);
+    }
+
+    /**
+     * @return the metadata document, from the cache if the catalog says it did
+     *         not change
+     */
+    byte[] fetch(MetadataEntity metadata) throws IOException {
+        final String key = metadata.cacheKey();
+        final Record cached = records.getIfPresent(key);
+        final Record record = metadata.fetch(cached);
+        if (record == cached) {
+            notModifiedCount.incrementAndGet();
+            LOG.debug("Metadata not modified: " + key);
+        } else {
+            fetchedCount.incrementAndGet();
+            if (record.isCacheable()) {
+                records.put(key, record);
+            } else {
+                records.invalidate(key);
+            }
+        }
+        return record.body;
+    }
+
+    @PreDestroy
+    public void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    public JSONObject statsAsJson() throws JSONException {
+        long size = 0;
+        for (Record record : records.asMap().values()) {
+            size += record.body.length;
+        }
+        long notModified = notModifiedCount.get();
+        long total = notModified + fetchedCount.get();
+        JSONObject json = new JSONObject();
+        json.put("records", records.size());
+        json.put("size", size);
+        json.put("maxSize", maxSize * MEGABYTE);
+        json.put("threads", threads);
+        json.put("notModifiedCount", notModified);
+        json.put("fetchedCount", fetchedCount.get());
+        json.put("notModifiedRatio", total == 0 ? 0d : (double) notModified / total);
+        return json;
+    }
+
+    /**
+     * Number of metadata retrieved concurrently, all extractions included.
+     * Defaults to 4.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Maximum size of the cached records, in megabytes. Defaults to 16.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
+import org.georchestra.extractorapp.ws.extractor.ReferencingCache;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Records the extractions and their layers in the {@code extractor_log} and
+ * {@code extractor_layer_log} tables.
+ * <p>
+ * Each method issues a constant number of statements whatever the number of
+ * layers (up to {@value #MAX_ROWS}): the layers are inserted with a single
+ * multi-row insert, the failed ones are recorded as they fail, and the status
+ * of the others set by a single update when the extraction completes.
+ */
+public class ExtractionLogDao {
+
+    private static final String LOG_TABLE = "extractorapp.extractor_log";
+    private static final String LAYER_LOG_TABLE = "extractorapp.extractor_layer_log";
+
+    /** rows per insert, keeps the statement under the bind parameters limit */
+    private static final int MAX_ROWS = 1000;
+
+    private final DataSource dataSource;
+
+    public ExtractionLogDao(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Inserts the extraction and its layers, setting the
+     * {@link ExtractorLayerRequest#setDbLogId(Long) id} of each layer request.
+     *
+     * @return the id of the extraction log
+     */
+    public long insert(String username, String roles, String org, String requestId,
+            List<ExtractorLayerRequest> layers) throws SQLException, FactoryException, TransformException {
+
+        final String logSql = "INSERT INTO " + LOG_TABLE + " (username, " + // 1
+                "roles, " + // 2
+                "org, " + // 3
+                "request_id) " + // 4
+                "VALUES (?, ?, ?, ?) RETURNING id";
+
+        // computed before opening the connection
+        final List<ReferencedEnvelope> bboxes = new ArrayList<>(layers.size());
+        final CoordinateReferenceSystem wgs84 = ReferencingCache.decode("EPSG:4326");
+        for (ExtractorLayerRequest layer : layers) {
+            bboxes.add(ReferencingCache.transform(layer._bbox, wgs84));
+        }
+
+        try (Connection c = dataSource.getConnection()) {
+            c.setAutoCommit(false);
+            try {
+                final long logId;
+                try (PreparedStatement pst = c.prepareStatement(logSql)) {
+                    pst.setString(1, username == null ? "" : username);
+                    pst.setArray(2, c.createArrayOf("varchar",
+                            roles == null ? new String[0] : roles.split("\\s*;\\s*")));
+                    pst.setString(3, org == null ? "" : org);
+                    pst.setString(4, requestId);
+                    logId = single(pst);
+                }
+                for (int from = 0; from < layers.size(); from += MAX_ROWS) {
+                    int to = Math.min(layers.size(), from + MAX_ROWS);
+                    List<ExtractorLayerRequest> chunk = layers.subList(from, to);
+                    List<Long> layerIds = insertLayers(c, logId, chunk, bboxes.subList(from, to));
+                    for (int i = 0; i < chunk.size(); i++) {
+                        chunk.get(i).setDbLogId(layerIds.get(i));
+                    }
+                }
+                c.commit();
+                return logId;
+            } catch (SQLException | RuntimeException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * The ids of a serial column are allocated in the order of the VALUES rows,
+     * sorting them gives back the id of each layer.
+     */
+    private List<Long> insertLayers(Connection c, long logId, List<ExtractorLayerRequest> layers,
+            List<ReferencedEnvelope> bboxes) throws SQLException {
+        final String row = "(?, ?, ?, ?, ST_SetSRID(ST_MakeBox2D(ST_Point(?, ?), ST_Point(?, ?)), 4326), ?, ?, ?)";
+        StringBuilder sql = new StringBuilder("INSERT INTO " + LAYER_LOG_TABLE + " (extractor_log_id, " + // 1
+                "projection, " + // 2
+                "resolution, " + // 3
+                "format, " + // 4
+                "bbox, " + // 5, 6, 7, 8
+                "owstype, " + // 9
+                "owsurl, " + // 10
+                "layer_name) " + // 11
+                "VALUES ");
+        for (int i = 0; i < layers.size(); i++) {
+            sql.append(i == 0 ? row : ", " + row);
+        }
+        sql.append(" RETURNING id");
+
+        try (PreparedStatement pst = c.prepareStatement(sql.toString())) {
+            int p = 0;
+            for (int i = 0; i < layers.size(); i++) {
+                ExtractorLayerRequest layer = layers.get(i);
+                ReferencedEnvelope bbox = bboxes.get(i);
+                pst.setLong(++p, logId);
+                pst.setString(++p, layer._epsg);
+                pst.setDouble(++p, layer._resolution);
+                pst.setString(++p, layer._format);
+                pst.setDouble(++p, bbox.getMinX());
+                pst.setDouble(++p, bbox.getMinY());
+                pst.setDouble(++p, bbox.getMaxX());
+                pst.setDouble(++p, bbox.getMaxY());
+                pst.setString(++p, layer._owsType.toString());
+                pst.setString(++p, layer._url.toString());
+                pst.setString(++p, layer._layerName);
+            }
+            List<Long> ids = new ArrayList<>(layers.size());
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getLong(1));
+                }
+            }
+            if (ids.size() != layers.size()) {
+                throw new SQLException("Failed to insert new stats");
+            }
+            Collections.sort(ids);
+            return ids;
+        }
+    }
+
+    /**
+     * Records the layer as failed, at once so that it is not lost if the
+     * extraction never completes.
+     */
+    public void fail(long layerLogId) throws SQLException {
+        final String sql = "UPDATE " + LAYER_LOG_TABLE + " SET is_successful = FALSE WHERE id = ?";
+
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setLong(1, layerLogId);
+            pst.executeUpdate();
+        }
+    }
+
+    /**
+     * Sets the layers of the extraction not recorded as failed as successful,
+     * and the duration of the extraction, in a single statement.
+     */
+    public void complete(long logId) throws SQLException {
+        final String sql = "WITH layers AS (UPDATE " + LAYER_LOG_TABLE + " SET is_successful = TRUE " //
+                + "WHERE extractor_log_id = ? AND is_successful IS NULL) " // 1
+                + "UPDATE " + LOG_TABLE + " SET duration = NOW() - creation_date WHERE id = ?"; // 2
+
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setLong(1, logId);
+            pst.setLong(2, logId);
+            pst.executeUpdate();
+        }
+    }
+
+    private long single(PreparedStatement pst) throws SQLException {
+        try (ResultSet rs = pst.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("Failed to insert new stats");
+            }
+            return rs.getLong(1);
+        }
+    }
+}
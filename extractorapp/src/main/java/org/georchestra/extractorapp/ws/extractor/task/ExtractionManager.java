@@ -20,64 +20,82 @@
 package org.georchestra.extractorapp.ws.extractor.task;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
-import java.util.TreeSet;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Future;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.beans.factory.annotation.Autowired;
+import org.georchestra.extractorapp.ws.extractor.ArchiveIndex;
+import org.georchestra.extractorapp.ws.extractor.csw.MetadataHarvester;
+import org.georchestra.extractorapp.ws.extractor.task.ExtractionQueueStore.QueuedExtraction;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import javax.annotation.PostConstruct;
-
+import javax.annotation.PreDestroy;
+
+/**
+ * Queues and runs the extraction tasks.
+ * <p>
+ * The waiting tasks are ordered by the {@link ExtractionScheduler}, which
+ * shares the workers between the users according to a {@link FairSharePolicy}.
+ * The executor only receives interchangeable dispatch jobs, each one running
+ * the task to start next at the time a worker is available. Changing
+ * the priority of a waiting task, pausing or cancelling it thus only touches
+ * the scheduler, and none of the methods need to lock the whole manager.
+ */
 public class ExtractionManager {
 
     private static final Log LOG = LogFactory.getLog(ExtractionManager.class.getPackage().getName());
 
-    private PriorityThreadPoolExecutor executor;
+    private ThreadPoolExecutor executor;
     private int maxExtractions;
     private int minThreads;
 
-    // ThreadPoolExecutor API says that the internal queue should not be
-    // accessed except for debugging so this
-    // queue is here so that the non-running tasks can be accessed
+    /** the waiting tasks, by priority */
+    private final ExtractionScheduler scheduler = new ExtractionScheduler();
 
-    /** maintains the tasks ready to execute */
-    /** comparison by priorities */
+    /** the running and completed tasks */
+    private final Queue<ExtractionTask> startedTasks = new ConcurrentLinkedQueue<ExtractionTask>();
 
-    private final static int INITIAL_CAPACITY = 20;
-    private Queue<ExtractionTask> readyTaskQueue = new PriorityBlockingQueue<ExtractionTask>(INITIAL_CAPACITY);
-
-    private Collection<ExtractionTask> cancelledTaskQueue = new PriorityBlockingQueue<ExtractionTask>();
+    private final Queue<ExtractionTask> cancelledTaskQueue = new ConcurrentLinkedQueue<ExtractionTask>();
 
     /**
      * maintains the paused tasks. They can be selected by the user in random way
      */
-    private Map<String, ExtractionTask> pausedTasks = Collections
-            .synchronizedMap(new HashMap<String, ExtractionTask>());
+    private final ConcurrentMap<String, ExtractionTask> pausedTasks = new ConcurrentHashMap<String, ExtractionTask>();
+
+    /** persists the queue, optional */
+    private ExtractionQueueStore queueStore;
+    /** reuses the extracted layers, optional */
+    private ExtractionResultCache resultCache;
+    /** indexes the produced archives, optional */
+    private ArchiveIndex archiveIndex;
+    /** fetches the metadata concurrently with the data, optional */
+    private MetadataHarvester metadataHarvester;
+    private Function<QueuedExtraction, ExtractionTask> taskRestorer;
+    private Timer leaseTimer;
 
     @PostConstruct
-    public synchronized void init() {
-        BlockingQueue<Runnable> workQueue = new PriorityBlockingQueue<Runnable>();
+    public void init() {
         ThreadFactory threadFactory = r -> {
             Thread thread = new Thread(r);
             thread.setName("Extractorapp-thread" + System.currentTimeMillis());
             thread.setDaemon(true);
             return thread;
         };
-        executor = new PriorityThreadPoolExecutor(minThreads, maxExtractions, 5, TimeUnit.SECONDS, workQueue,
-                threadFactory);
+        executor = new ThreadPoolExecutor(minThreads, maxExtractions, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
     }
 
     public void setMaxExtractions(int maxExtractions) {
@@ -88,18 +106,146 @@ public class ExtractionManager {
         this.minThreads = minThreads;
     }
 
+    public void setQueueStore(ExtractionQueueStore queueStore) {
+        this.queueStore = queueStore;
+    }
+
+    public void setResultCache(ExtractionResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public ExtractionResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setArchiveIndex(ArchiveIndex archiveIndex) {
+        this.archiveIndex = archiveIndex;
+    }
+
+    public ArchiveIndex getArchiveIndex() {
+        return archiveIndex;
+    }
+
+    public void setMetadataHarvester(MetadataHarvester metadataHarvester) {
+        this.metadataHarvester = metadataHarvester;
+    }
+
+    public MetadataHarvester getMetadataHarvester() {
+        return metadataHarvester;
+    }
+
+    public void setFairSharePolicy(FairSharePolicy fairSharePolicy) {
+        this.scheduler.setPolicy(fairSharePolicy);
+    }
+
+    /**
+     * @return the waiting and running extractions and their queue wait times, per
+     *         user
+     */
+    public JSONObject queueStatsAsJson() throws JSONException {
+        return scheduler.statsAsJson();
+    }
+
+    /**
+     * Re-enqueues the extractions persisted by a previous run of this instance or
+     * orphaned by a dead instance, then periodically renews the leases of the
+     * queued extractions and adopts the new orphans. Does nothing if the queue is
+     * not persisted.
+     *
+     * @param restorer rebuilds the task of a persisted extraction, returns null
+     *                 if it cannot be restored
+     */
+    public void recoverQueue(Function<QueuedExtraction, ExtractionTask> restorer) {
+        if (queueStore == null) {
+            return;
+        }
+        this.taskRestorer = restorer;
+        restore(queueStore.adoptOrphans(true));
+
+        final long period = Math.max(1, queueStore.getLeaseDuration() / 3) * 1000;
+        leaseTimer = new Timer("ExtractionQueueLeases", true);
+        leaseTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                queueStore.renewLeases();
+                List<QueuedExtraction> orphans = queueStore.adoptOrphans(false);
+                if (!orphans.isEmpty()) {
+                    restore(orphans);
+                }
+            }
+        }, period, period);
+    }
+
+    private void restore(List<QueuedExtraction> extractions) {
+        for (QueuedExtraction queued : extractions) {
+            ExtractionTask task = taskRestorer.apply(queued);
+            if (task == null) {
+                queueStore.updateState(queued.uuid.toString(), ExecutionState.CANCELLED);
+                continue;
+            }
+            LOG.info("Restoring extraction " + queued.uuid + " (" + queued.state + ")");
+            task.executionMetadata.setPriority(queued.priority);
+            task.setQueueStore(queueStore);
+            if (queued.state == ExecutionState.PAUSED) {
+                task.executionMetadata.setPaused();
+                this.pausedTasks.put(queued.uuid.toString(), task);
+            } else {
+                schedule(task);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (leaseTimer != null) {
+            leaseTimer.cancel();
+        }
+    }
+
     /**
      * Submits the task taking into account the task priorities.
      * 
      * @param extractor instance of extractor to be submit in queue
      */
-    public synchronized void submit(ExtractionTask extractor) {
+    public void submit(ExtractionTask extractor) {
+        if (queueStore != null) {
+            extractor.setQueueStore(queueStore);
+            queueStore.enqueue(extractor);
+        }
+        schedule(extractor);
+    }
 
-        // creates the waiting task queue ordered by priority task
-        this.readyTaskQueue.offer(extractor);
+    private void schedule(ExtractionTask extractor) {
+        extractor.setResultCache(resultCache);
+        extractor.setArchiveIndex(archiveIndex);
+        extractor.setMetadataHarvester(metadataHarvester);
+        if (scheduler.offer(extractor)) {
+            dispatch();
+        }
+    }
 
-        Future<?> future = executor.submit(extractor);
-        extractor.executionMetadata.setFuture(future);
+    /**
+     * Hands a dispatch job to the executor. Every scheduled task comes with a
+     * dispatch job, a job finding no waiting task simply returns.
+     */
+    private void dispatch() {
+        executor.execute(this::runNext);
+    }
+
+    private void runNext() {
+        ExtractionTask task = scheduler.poll();
+        if (task != null) {
+            startedTasks.add(task);
+            try {
+                task.run();
+            } finally {
+                scheduler.release(task);
+                // the task may have held back others, because of a concurrency cap
+                if (scheduler.size() > 0) {
+                    dispatch();
+                }
+            }
+        }
     }
 
     /**
@@ -108,46 +254,18 @@ public class ExtractionManager {
      * @param id          identification of required id
      * @param newPriority
      */
-    public synchronized void updatePriority(final String id, final ExecutionPriority newPriority) {
-
-        // search in the waiting tasks and updates the priority of the task
-        ExtractionTask foundTask = null;
-        for (ExtractionTask task : this.readyTaskQueue) {
-            if (task.executionMetadata.getState().equals(ExecutionState.WAITING)) {
-                Future<?> future = task.executionMetadata.getFuture();
-                if (!future.isCancelled() && !future.isDone()) {
-                    if (task.equalId(id)) {
-                        foundTask = task;
-                        break;
-                    }
-                }
-            }
-        }
-        if (foundTask != null) {
-            // sets the new priority and reinsert the task
-//			this.readyTaskQueue.remove(foundTask);
-//
-//			foundTask.executionMetadata.setPriority(newPriority);
-//			
-//			this.readyTaskQueue.offer(foundTask);
-
-// XXX the commented lines where replaced by de following, looks like the ClassCastException was solved. Requires more test.
-// the following code throws a ClassCastException: java.util.concurrent.FutureTask cannot be cast to java.lang.Comparable			
-            foundTask.executionMetadata.setPriority(newPriority);
-            ExtractionTask taskCloned = new ExtractionTask(foundTask);
-
-            foundTask.executionMetadata.getFuture().cancel(true);
-            this.executor.remove(foundTask);
-            this.executor.purge();
-            this.readyTaskQueue.remove(foundTask);
-
-            submit(taskCloned);
+    public void updatePriority(final String id, final ExecutionPriority newPriority) {
 
+        if (scheduler.updatePriority(id, newPriority)) {
+            // a worker may have polled while the task was moved
+            dispatch();
+            persistPriority(id, newPriority);
         } else {
             // searches if the task is in the paused queue
             ExtractionTask pausedTask = this.pausedTasks.get(id);
             if (pausedTask != null) {
                 pausedTask.executionMetadata.setPriority(newPriority);
+                persistPriority(id, newPriority);
             }
         }
     }
@@ -159,32 +277,21 @@ public class ExtractionManager {
      * 
      * @param newOrder a list of the task's uuids
      */
-    public synchronized void updateAllPriorities(final List<String> newOrder) {
-        executor.purge();
-        Collection<ExtractionTask> newWaitingTasks = new TreeSet<ExtractionTask>(new Comparator<ExtractionTask>() {
-
-            @Override
-            public int compare(ExtractionTask task1, ExtractionTask task2) {
-                return newOrder.indexOf(task1.executionMetadata.getUuid())
-                        - newOrder.indexOf(task2.executionMetadata.getUuid());
-            }
-
-        });
-        for (ExtractionTask task : this.readyTaskQueue) {
-            if (task.executionMetadata.isWaiting()) {
-                readyTaskQueue.remove(task);
-                if (newOrder.contains(task.executionMetadata.getUuid())) {
-                    newWaitingTasks.add(task);
-                } else {
-                    task.executionMetadata.cancel();
-                    cancelledTaskQueue.add(task);
-                }
+    public void updateAllPriorities(final List<String> newOrder) {
+        List<ExtractionTask> removed = scheduler.reorder(newOrder, ExecutionPriority.MEDIUM);
+        for (ExtractionTask task : removed) {
+            task.executionMetadata.cancel();
+            cancelledTaskQueue.add(task);
+            persistState(task.executionMetadata.getUuid(), ExecutionState.CANCELLED);
+        }
+        for (String uuid : newOrder) {
+            if (scheduler.get(uuid) != null) {
+                persistPriority(uuid, ExecutionPriority.MEDIUM);
             }
         }
-
-        for (ExtractionTask task : newWaitingTasks) {
-            task.executionMetadata.setPriority(ExecutionPriority.MEDIUM);
-            submit(task);
+        // each busy worker may have polled while the tasks were moved
+        for (int i = Math.max(1, executor.getPoolSize()); i > 0; i--) {
+            dispatch();
         }
     }
 
@@ -193,19 +300,13 @@ public class ExtractionManager {
      * 
      * @param uuid
      */
-    public synchronized void removeTask(String uuid) {
-
-        for (ExtractionTask task : this.readyTaskQueue) {
-            if (task.executionMetadata.getPriority().equals(ExecutionState.WAITING)) {
-                if (task.equalId(uuid)) {
-                    task.executionMetadata.cancel();
-                    this.executor.remove(task);
-                    // move from ready to canceled list
-                    readyTaskQueue.remove(task);
-                    this.cancelledTaskQueue.add(task);
-                    break;
-                }
-            }
+    public void removeTask(String uuid) {
+
+        ExtractionTask task = scheduler.remove(uuid);
+        if (task != null) {
+            task.executionMetadata.cancel();
+            this.cancelledTaskQueue.add(task);
+            persistState(uuid, ExecutionState.CANCELLED);
         }
     }
 
@@ -213,9 +314,12 @@ public class ExtractionManager {
      * Gets a deep copy of task queue metadata. The metadata objects are only copies
      * (defensive copy) so no changes will be reflected on the actual tasks
      */
-    public synchronized List<ExecutionMetadata> getTaskQueue() {
+    public List<ExecutionMetadata> getTaskQueue() {
         List<ExecutionMetadata> queue = new ArrayList<ExecutionMetadata>();
-        for (ExtractionTask task : this.readyTaskQueue) {
+        for (ExtractionTask task : this.scheduler.waitingTasks()) {
+            queue.add(new ExecutionMetadata(task.executionMetadata));
+        }
+        for (ExtractionTask task : this.startedTasks) {
             queue.add(new ExecutionMetadata(task.executionMetadata));
         }
         for (ExtractionTask task : this.pausedTasks.values()) {
@@ -234,34 +338,10 @@ public class ExtractionManager {
      * @param uuid identifier of task to find
      * @return the {@link ExtractionTask} it exists, null in other case.
      */
-    public synchronized ExtractionTask findTask(final String uuid) {
-
-        List<ExtractionTask> tasks = queryRunableTask();
-        for (ExtractionTask task : tasks) {
-            if (task.equalId(uuid)) {
-                return task;
-            }
-        }
-        return this.pausedTasks.get(uuid);
-    }
-
-    /**
-     * @return Returns the waiting, paused tasks. That is all runnable tasks.
-     */
-    private List<ExtractionTask> queryRunableTask() {
-
-        List<ExtractionTask> queue = new LinkedList<ExtractionTask>();
-        for (ExtractionTask task : this.readyTaskQueue) {
-            ExecutionState st = task.executionMetadata.getState();
-            if (st.equals(ExecutionState.WAITING)) {
-                queue.add(task);
-            }
-        }
-        for (ExtractionTask pausedTask : this.pausedTasks.values()) {
-            queue.add(pausedTask);
-        }
-        return queue;
+    public ExtractionTask findTask(final String uuid) {
 
+        ExtractionTask task = this.scheduler.get(uuid);
+        return task != null ? task : this.pausedTasks.get(uuid);
     }
 
     /**
@@ -270,7 +350,7 @@ public class ExtractionManager {
      * @param id        Task's identifier
      * @param newStatus the new status
      */
-    public synchronized void updateStatus(final String id, final ExecutionState newStatus) {
+    public void updateStatus(final String id, final ExecutionState newStatus) {
 
         switch (newStatus) {
         case COMPLETED:
@@ -297,21 +377,11 @@ public class ExtractionManager {
      */
     private void cancelTask(final String id) {
 
-        ExtractionTask foundTask = findTask(id);
-
+        ExtractionTask foundTask = this.scheduler.remove(id);
         if (foundTask == null) {
-            return;
+            foundTask = this.pausedTasks.remove(id);
         }
-
-        if (foundTask.executionMetadata.isWaiting()) {
-
-            this.readyTaskQueue.remove(foundTask);
-            this.cancelledTaskQueue.add(foundTask);
-            cancelProcess(foundTask);
-
-        } else if (foundTask.executionMetadata.isPaused()) {
-
-            this.pausedTasks.remove(id);
+        if (foundTask != null) {
             this.cancelledTaskQueue.add(foundTask);
             cancelProcess(foundTask);
         }
@@ -322,12 +392,10 @@ public class ExtractionManager {
      * 
      * @param task
      */
-    private synchronized boolean cancelProcess(final ExtractionTask task) {
+    private void cancelProcess(final ExtractionTask task) {
 
         task.executionMetadata.cancel();
-        boolean wasCanceled = task.executionMetadata.getFuture().cancel(true);
-        this.executor.remove(task); // purge cancelled task
-        return wasCanceled;
+        persistState(task.executionMetadata.getUuid(), ExecutionState.CANCELLED);
     }
 
     /**
@@ -335,41 +403,16 @@ public class ExtractionManager {
      * 
      * @param id task's identifier
      */
-    private synchronized void pauseTask(final String id) {
-
-        ExtractionTask foundTask = null;
-        for (ExtractionTask task : this.readyTaskQueue) {
-            if (task.executionMetadata.getState().equals(ExecutionState.WAITING)) {
-                if (!task.executionMetadata.getFuture().isCancelled() && !task.executionMetadata.getFuture().isDone()) {
-                    if (task.equalId(id)) {
-                        foundTask = task;
-                        break;
-                    }
-                }
-            }
-        }
+    private void pauseTask(final String id) {
+
+        ExtractionTask foundTask = this.scheduler.remove(id);
         if (foundTask == null) {
             return;
         }
-        // moves the found task to the paused task queue
-//		foundTask.executionMetadata.getFuture().cancel(true);
-//		this.executor.remove(foundTask);
-//        this.readyTaskQueue.remove(foundTask);
-//        
-//        foundTask.executionMetadata.setPaused();
-//        this.pausedTasks.put(id, foundTask);
-//        
-//XXX Replaced by the following sentences:        
+        // its dispatch job will run another task, or none
         foundTask.executionMetadata.setPaused();
-        ExtractionTask taskCloned = new ExtractionTask(foundTask);
-
-        foundTask.executionMetadata.getFuture().cancel(true);
-        this.executor.remove(foundTask);
-        this.executor.purge();
-        this.readyTaskQueue.remove(foundTask);
-
-        this.pausedTasks.put(id, taskCloned);
-
+        this.pausedTasks.put(id, foundTask);
+        persistState(id, ExecutionState.PAUSED);
     }
 
     /**
@@ -377,35 +420,38 @@ public class ExtractionManager {
      * 
      * @param id
      */
-    private synchronized void resumeTask(final String id) {
+    private void resumeTask(final String id) {
 
-        ExtractionTask foundTask = this.pausedTasks.get(id);
+        ExtractionTask foundTask = this.pausedTasks.remove(id);
         if (foundTask != null) {
-            this.pausedTasks.remove(id);
             foundTask.executionMetadata.setWaiting();
 
-            submit(foundTask);
+            schedule(foundTask);
+            persistState(id, ExecutionState.WAITING);
         }
     }
 
-    public synchronized void cleanExpiredTasks(long expiry) {
-        ArrayList<ExtractionTask> toRemove = new ArrayList<ExtractionTask>();
-        for (ExtractionTask task : readyTaskQueue) {
-            ExecutionMetadata metadata = task.executionMetadata;
-            if (metadata.isCompleted()
-                    && (metadata.getStateChangeTime().getTime() + expiry) > System.currentTimeMillis()) {
-                toRemove.add(task);
-            }
+    public void cleanExpiredTasks(long expiry) {
+        final long now = System.currentTimeMillis();
+        startedTasks.removeIf(task -> task.executionMetadata.isCompleted()
+                && (task.executionMetadata.getStateChangeTime().getTime() + expiry) > now);
+        cancelledTaskQueue
+                .removeIf(task -> (task.executionMetadata.getStateChangeTime().getTime() + expiry) > now);
+        if (queueStore != null) {
+            queueStore.purge(expiry);
         }
-        readyTaskQueue.removeAll(toRemove);
-        toRemove.clear();
-        for (ExtractionTask task : cancelledTaskQueue) {
-            ExecutionMetadata metadata = task.executionMetadata;
-            if ((metadata.getStateChangeTime().getTime() + expiry) > System.currentTimeMillis()) {
-                toRemove.add(task);
-            }
+    }
+
+    private void persistState(String uuid, ExecutionState state) {
+        if (queueStore != null) {
+            queueStore.updateState(uuid, state);
+        }
+    }
+
+    private void persistPriority(String uuid, ExecutionPriority priority) {
+        if (queueStore != null) {
+            queueStore.updatePriority(uuid, priority);
         }
-        cancelledTaskQueue.removeAll(toRemove);
     }
 
 }
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.ArchiveIndex;
+import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Persists the extraction queue into the {@code extractorapp.extraction_queue}
+ * table, so that the waiting and running extractions survive a restart.
+ * <p>
+ * Every queued extraction is leased by the extractorapp instance holding it in
+ * memory. The instance renews its leases periodically ({@link #renewLeases()});
+ * the extractions whose lease has expired, because their instance died, are
+ * adopted by the first instance calling {@link #adoptOrphans(boolean)}. Several
+ * instances can thus share the same queue.
+ * <p>
+ * Failing to access the database never prevents an extraction from running, the
+ * errors are only logged.
+ */
+public class ExtractionQueueStore {
+
+    private static final Log LOG = LogFactory.getLog(ExtractionQueueStore.class.getPackage().getName());
+
+    private static final String TABLE = "extractorapp.extraction_queue";
+    private static final String ACTIVE_STATES = "('WAITING', 'RUNNING', 'PAUSED')";
+
+    private @Autowired DataSource dataSource;
+
+    private String instanceId;
+    private long leaseDuration = 120;
+
+    /**
+     * A queued extraction as stored in the database.
+     */
+    public static class QueuedExtraction {
+        public final UUID uuid;
+        public final ExecutionState state;
+        public final ExecutionPriority priority;
+        public final String request;
+        public final String username;
+        public final String roles;
+        public final String org;
+        public final Date creationDate;
+
+        QueuedExtraction(ResultSet rs) throws SQLException {
+            this.uuid = UUID.fromString(rs.getString("request_id"));
+            this.state = ExecutionState.valueOf(rs.getString("state"));
+            this.priority = ExecutionPriority.values()[rs.getInt("priority")];
+            this.request = rs.getString("request");
+            this.username = rs.getString("username");
+            this.roles = rs.getString("roles");
+            this.org = rs.getString("org");
+            this.creationDate = rs.getTimestamp("creation_date");
+        }
+    }
+
+    /**
+     * The archive produced by a completed extraction, as recorded with it.
+     */
+    public static class StoredArchive {
+        public final String username;
+        public final long size;
+        public final Date creationDate;
+
+        public StoredArchive(String username, long size, Date creationDate) {
+            this.username = username;
+            this.size = size;
+            this.creationDate = creationDate;
+        }
+    }
+
+    public ExtractionQueueStore() {
+        try {
+            this.instanceId = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            this.instanceId = UUID.randomUUID().toString();
+        }
+    }
+
+    public ExtractionQueueStore(DataSource dataSource) {
+        this();
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Records a newly submitted extraction, leased by this instance.
+     */
+    public void enqueue(ExtractionTask task) {
+        final String sql = "INSERT INTO " + TABLE + " (request_id, " + // 1
+                "state, " + // 2
+                "priority, " + // 3
+                "request, " + // 4
+                "username, " + // 5
+                "roles, " + // 6
+                "org, " + // 7
+                "lease_owner, " + // 8
+                "lease_expiry) " + // 9
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, NOW() + ? * INTERVAL '1 second')";
+        final ExecutionMetadata metadata = task.executionMetadata;
+        final RequestConfiguration requestConfig = task.getRequestConfig();
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setString(1, metadata.getUuid());
+            pst.setString(2, metadata.getState().name());
+            pst.setInt(3, metadata.getPriority().ordinal());
+            pst.setString(4, metadata.getSpec());
+            pst.setString(5, requestConfig.username);
+            pst.setString(6, requestConfig.roles);
+            pst.setString(7, requestConfig.org);
+            pst.setString(8, instanceId);
+            pst.setLong(9, leaseDuration);
+            pst.executeUpdate();
+        } catch (SQLException e) {
+            LOG.error("Unable to persist the extraction " + metadata.getUuid(), e);
+        }
+    }
+
+    /**
+     * Marks the extraction as running, provided this instance still holds its
+     * lease.
+     *
+     * @return false if another instance adopted the extraction meanwhile, true
+     *         otherwise (including when the database is not reachable)
+     */
+    public boolean claim(String uuid) {
+        final String sql = "UPDATE " + TABLE + " SET state = 'RUNNING', state_change_date = NOW() "
+                + "WHERE request_id = ? AND lease_owner = ?";
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setString(1, uuid);
+            pst.setString(2, instanceId);
+            if (pst.executeUpdate() == 0) {
+                return !exists(c, uuid);
+            }
+        } catch (SQLException e) {
+            LOG.error("Unable to claim the extraction " + uuid, e);
+        }
+        return true;
+    }
+
+    private boolean exists(Connection c, String uuid) throws SQLException {
+        try (PreparedStatement pst = c.prepareStatement("SELECT 1 FROM " + TABLE + " WHERE request_id = ?")) {
+            pst.setString(1, uuid);
+            try (ResultSet rs = pst.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    public void updateState(String uuid, ExecutionState state) {
+        final String sql = "UPDATE " + TABLE + " SET state = ?, state_change_date = NOW() WHERE request_id = ?";
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setString(1, state.name());
+            pst.setString(2, uuid);
+            pst.executeUpdate();
+        } catch (SQLException e) {
+            LOG.error("Unable to update the state of the extraction " + uuid, e);
+        }
+    }
+
+    public void updatePriority(String uuid, ExecutionPriority priority) {
+        final String sql = "UPDATE " + TABLE + " SET priority = ? WHERE request_id = ?";
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setInt(1, priority.ordinal());
+            pst.setString(2, uuid);
+            pst.executeUpdate();
+        } catch (SQLException e) {
+            LOG.error("Unable to update the priority of the extraction " + uuid, e);
+        }
+    }
+
+    /**
+     * Records the size and creation time of the archive produced by the
+     * extraction, so that the {@link ArchiveIndex} of any instance knows its owner.
+     */
+    public void recordArchive(String uuid, File archive) {
+        final String sql = "UPDATE " + TABLE + " SET archive_size = ?, archive_date = ? WHERE request_id = ?";
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setLong(1, archive.length());
+            pst.setTimestamp(2, new Timestamp(archive.lastModified()));
+            pst.setString(3, uuid);
+            pst.executeUpdate();
+        } catch (SQLException e) {
+            LOG.error("Unable to record the archive of the extraction " + uuid, e);
+        }
+    }
+
+    /**
+     * Lists the archives recorded with the extractions not purged yet.
+     *
+     * @return the archives by extraction uuid, empty if the database is not
+     *         reachable
+     */
+    public Map<String, StoredArchive> listArchives() {
+        final String sql = "SELECT request_id, username, archive_size, archive_date FROM " + TABLE
+                + " WHERE archive_date IS NOT NULL";
+        Map<String, StoredArchive> archives = new HashMap<>();
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql);
+                ResultSet rs = pst.executeQuery()) {
+            while (rs.next()) {
+                archives.put(rs.getString("request_id"), new StoredArchive(rs.getString("username"),
+                        rs.getLong("archive_size"), rs.getTimestamp("archive_date")));
+            }
+        } catch (SQLException e) {
+            LOG.error("Unable to list the extraction archives", e);
+        }
+        return archives;
+    }
+
+    /**
+     * Extends the leases of all the active extractions held by this instance.
+     */
+    public void renewLeases() {
+        final String sql = "UPDATE " + TABLE + " SET lease_expiry = NOW() + ? * INTERVAL '1 second' "
+                + "WHERE lease_owner = ? AND state IN " + ACTIVE_STATES;
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setLong(1, leaseDuration);
+            pst.setString(2, instanceId);
+            pst.executeUpdate();
+        } catch (SQLException e) {
+            LOG.error("Unable to renew the extraction queue leases", e);
+        }
+    }
+
+    /**
+     * Takes over the active extractions whose lease has expired. The update being
+     * atomic, an orphan extraction is adopted by a single instance.
+     *
+     * @param includeOwn whether the extractions still leased to this instance
+     *                   must be returned too, which is the case at startup since
+     *                   they were held by the previous run of this instance.
+     * @return the adopted extractions, by decreasing priority and submission
+     *         order
+     */
+    public List<QueuedExtraction> adoptOrphans(boolean includeOwn) {
+        final String sql = "UPDATE " + TABLE + " SET lease_owner = ?, "
+                + "lease_expiry = NOW() + ? * INTERVAL '1 second', "
+                // a running extraction was interrupted, it has to start over
+                + "state = CASE state WHEN 'RUNNING' THEN 'WAITING' ELSE state END "
+                + "WHERE state IN " + ACTIVE_STATES + " AND (lease_expiry < NOW()"
+                + (includeOwn ? " OR lease_owner = ?" : "") + ") "
+                + "RETURNING request_id, state, priority, request, username, roles, org, creation_date";
+        List<QueuedExtraction> adopted = new ArrayList<>();
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setString(1, instanceId);
+            pst.setLong(2, leaseDuration);
+            if (includeOwn) {
+                pst.setString(3, instanceId);
+            }
+            try (ResultSet rs = pst.executeQuery()) {
+                while (rs.next()) {
+                    adopted.add(new QueuedExtraction(rs));
+                }
+            }
+        } catch (SQLException e) {
+            LOG.error("Unable to recover the persisted extraction queue", e);
+        }
+        adopted.sort((e1, e2) -> {
+            int cmp = e2.priority.compareTo(e1.priority);
+            return cmp != 0 ? cmp : e1.creationDate.compareTo(e2.creationDate);
+        });
+        return adopted;
+    }
+
+    /**
+     * Deletes the completed and cancelled extractions older than the expiry.
+     *
+     * @param expiry in milliseconds
+     */
+    public void purge(long expiry) {
+        final String sql = "DELETE FROM " + TABLE + " WHERE state IN ('COMPLETED', 'CANCELLED') "
+                + "AND state_change_date < NOW() - ? * INTERVAL '1 second'";
+        try (Connection c = dataSource.getConnection(); PreparedStatement pst = c.prepareStatement(sql)) {
+            pst.setLong(1, expiry / 1000);
+            pst.executeUpdate();
+        } catch (SQLException e) {
+            LOG.error("Unable to purge the extraction queue", e);
+        }
+    }
+
+    /**
+     * Identifies this extractorapp instance among the ones sharing the queue.
+     * Defaults to the host name, it must be stable across restarts for an
+     * instance to recover its own extractions without waiting for their leases to
+     * expire.
+     */
+    public void setInstanceId(String instanceId) {
+        if (instanceId != null && !instanceId.trim().isEmpty()) {
+            this.instanceId = instanceId.trim();
+        }
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * Number of seconds an instance holds its extractions without renewing the
+     * leases. Defaults to 120.
+     */
+    public void setLeaseDuration(long leaseDuration) {
+        this.leaseDuration = leaseDuration;
+    }
+
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
+import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.geotools.referencing.CRS;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+
+/**
+ * Keeps the extracted layers on disk so that a layer requested again with the
+ * same parameters is not downloaded and encoded again.
+ * <p>
+ * An entry is a directory named after the hash of the {@link #key canonical
+ * form} of the layer request (suffixed to tell apart the successive versions),
+ * which includes the version of the source capabilities when the server
+ * advertises one. Identical requests running concurrently share the same
+ * computation. The entries are evicted once older than the time to live, or by
+ * least recent use when the cache exceeds its disk quota; an entry being copied
+ * into an archive is only deleted once released.
+ * <p>
+ * The permissions are not part of the key: the layers are extracted with the
+ * extractorapp credentials, the caller checks the user may access the layer
+ * before looking it up.
+ */
+public class ExtractionResultCache {
+
+    private static final Log LOG = LogFactory.getLog(ExtractionResultCache.class.getPackage().getName());
+
+    private static final String STAGING_PREFIX = "tmp-";
+
+    private File directory;
+    private long maxSize = 1024;
+    private long timeToLive = 60;
+
+    /** the cached entries, least recently used first */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentMap<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+    private long size;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong sharedCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * Produces the files of a layer, it is run once per key even if the layer is
+     * requested concurrently.
+     */
+    public interface Producer {
+        /**
+         * @param workDir an empty directory to extract the layer into
+         * @return the directory holding the files to cache, inside workDir
+         */
+        File produce(File workDir) throws Exception;
+    }
+
+    /**
+     * Reloads the entries left by a previous run, the least recently used being
+     * the least recently modified.
+     */
+    @PostConstruct
+    public void init() {
+        if (directory == null) {
+            directory = new File(FileUtils.getExtractorStorageDir(), "results-cache");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Unable to create the extraction cache directory " + directory);
+        }
+        File[] files = directory.listFiles();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        synchronized (this) {
+            for (File file : files) {
+                if (file.getName().startsWith(STAGING_PREFIX) || !file.isDirectory()) {
+                    FileUtils.delete(file);
+                    continue;
+                }
+                int dot = file.getName().indexOf('.');
+                String key = dot < 0 ? file.getName() : file.getName().substring(0, dot);
+                Entry entry = new Entry(key, file, sizeOf(file), file.lastModified());
+                Entry previous = entries.put(key, entry);
+                if (previous != null) {
+                    size -= previous.size;
+                    FileUtils.delete(previous.directory);
+                }
+                size += entry.size;
+            }
+            evictOverflow(null);
+        }
+        LOG.info("Extraction cache " + directory + ": " + entries.size() + " entries, " + size + " bytes");
+    }
+
+    /**
+     * Computes the key of the layer request: its parameters in a canonical form
+     * and the version of the source capabilities, if known.
+     */
+    public static String key(ExtractorLayerRequest request) {
+        String canonical = parameters(request) + request.getSourceVersion();
+        return Hashing.sha256().hashString(canonical, StandardCharsets.UTF_8).toString();
+    }
+
+    /**
+     * @return the parameters of the layer request in a canonical form, one per
+     *         line
+     */
+    static String parameters(ExtractorLayerRequest request) {
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(request._owsType).append('\n');
+        canonical.append(request._url.toExternalForm()).append('\n');
+        canonical.append(request._layerName).append('\n');
+        canonical.append(request._namespace).append('\n');
+        canonical.append(request._format.toLowerCase(Locale.ROOT)).append('\n');
+        canonical.append(request._epsg.toUpperCase(Locale.ROOT)).append('\n');
+        canonical.append(CRS.toSRS(request._bbox.getCoordinateReferenceSystem())).append('\n');
+        canonical.append(request._bbox.getMinX()).append(',').append(request._bbox.getMinY()).append(',');
+        canonical.append(request._bbox.getMaxX()).append(',').append(request._bbox.getMaxY()).append('\n');
+        canonical.append(request._resolution).append('\n');
+        return canonical.toString();
+    }
+
+    /**
+     * Returns the cached files for the key, producing them if needed. The caller
+     * must {@link Lease#release() release} the lease once the files are copied.
+     */
+    public Lease acquire(String key, Producer producer) throws IOException {
+        while (true) {
+            Entry cached = lookup(key);
+            if (cached != null) {
+                return new Lease(cached);
+            }
+            CompletableFuture<Entry> computation = new CompletableFuture<>();
+            CompletableFuture<Entry> running = inFlight.putIfAbsent(key, computation);
+            if (running != null) {
+                Entry entry = await(running);
+                if (entry.lease()) {
+                    sharedCount.incrementAndGet();
+                    return new Lease(entry);
+                }
+                // evicted before this thread could lease it, look up again
+                continue;
+            }
+            try {
+                Entry entry = lookup(key);
+                if (entry != null) {
+                    // cached by a computation that ended since the lookup above
+                    computation.complete(entry);
+                    return new Lease(entry);
+                }
+                missCount.incrementAndGet();
+                entry = produce(key, producer);
+                computation.complete(entry);
+                return new Lease(entry);
+            } catch (IOException | RuntimeException e) {
+                computation.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(key, computation);
+            }
+        }
+    }
+
+    /**
+     * @return the fresh entry of the key, leased, or null
+     */
+    private synchronized Entry lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && isExpired(entry)) {
+            remove(entry);
+        } else if (entry != null && entry.lease()) {
+            hitCount.incrementAndGet();
+            entry.directory.setLastModified(System.currentTimeMillis());
+            return entry;
+        }
+        return null;
+    }
+
+    private Entry await(CompletableFuture<Entry> computation) throws IOException {
+        try {
+            return computation.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an identical extraction", e);
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Extracts the layer into a staging directory then moves it in place. The
+     * returned entry is already leased by the calling thread.
+     */
+    private Entry produce(String key, Producer producer) throws IOException {
+        File workDir = new File(directory, STAGING_PREFIX + UUID.randomUUID());
+        if (!workDir.mkdirs()) {
+            throw new IOException("Unable to create " + workDir);
+        }
+        try {
+            File produced;
+            try {
+                produced = producer.produce(workDir);
+            } catch (Exception e) {
+                Throwables.propagateIfPossible(e, IOException.class);
+                throw new IOException(e);
+            }
+            // an expired entry of the same key may still be in use
+            File target = new File(directory, key + "." + Long.toString(System.nanoTime(), 36));
+            FileUtils.moveFile(produced, target);
+
+            Entry entry = new Entry(key, target, sizeOf(target), System.currentTimeMillis());
+            entry.lease();
+            synchronized (this) {
+                Entry previous = entries.put(key, entry);
+                if (previous != null) {
+                    size -= previous.size;
+                    previous.evict();
+                }
+                size += entry.size;
+                evictOverflow(entry);
+            }
+            return entry;
+        } finally {
+            FileUtils.delete(workDir);
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return timeToLive > 0 && entry.created + TimeUnit.MINUTES.toMillis(timeToLive) < System.currentTimeMillis();
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits in its quota.
+     * The entry just added goes last, it is not kept if larger than the quota.
+     */
+    private void evictOverflow(Entry added) {
+        final long quota = maxSize * 1024 * 1024;
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > quota && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry == added) {
+                continue;
+            }
+            it.remove();
+            size -= entry.size;
+            evictionCount.incrementAndGet();
+            entry.evict();
+        }
+        if (size > quota && added != null) {
+            remove(added);
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            size -= entry.size;
+            evictionCount.incrementAndGet();
+            entry.evict();
+        }
+    }
+
+    private static long sizeOf(File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
+    public synchronized JSONObject statsAsJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("directory", directory.getAbsolutePath());
+        json.put("entries", entries.size());
+        json.put("size", size);
+        json.put("maxSize", maxSize * 1024 * 1024);
+        json.put("timeToLive", timeToLive);
+        json.put("hitCount", hitCount.get());
+        json.put("missCount", missCount.get());
+        json.put("sharedCount", sharedCount.get());
+        json.put("evictionCount", evictionCount.get());
+        return json;
+    }
+
+    /**
+     * Directory the entries are stored in. Defaults to {@code results-cache} in
+     * the extractor storage directory.
+     */
+    public void setDirectory(String directory) {
+        if (directory != null && !directory.trim().isEmpty()) {
+            this.directory = new File(directory.trim());
+        }
+    }
+
+    /**
+     * Disk quota of the cache, in megabytes. Defaults to 1024.
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Number of minutes an entry is served from the cache, 0 to keep it until
+     * evicted by the quota. Since the key includes the capabilities
+     * updateSequence, this mostly matters for servers not advertising one.
+     * Defaults to 60.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Cached files borrowed by an extraction.
+     */
+    public static class Lease {
+        private final Entry entry;
+        private boolean released;
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * Copies the cached files into the target directory, hard linking them when
+         * the file system allows it.
+         *
+         * @return the copied files
+         */
+        public List<File> copyTo(File target) throws IOException {
+            List<File> copied = new ArrayList<>();
+            copy(entry.directory, target, copied);
+            return copied;
+        }
+
+        private static void copy(File from, File to, List<File> copied) throws IOException {
+            if (!to.isDirectory() && !to.mkdirs()) {
+                throw new IOException("Unable to create " + to);
+            }
+            for (File file : from.listFiles()) {
+                File target = new File(to, file.getName());
+                if (file.isDirectory()) {
+                    copy(file, target, copied);
+                    continue;
+                }
+                try {
+                    Files.createLink(target.toPath(), file.toPath());
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(file.toPath(), target.toPath());
+                }
+                copied.add(target);
+            }
+        }
+
+        public synchronized void release() {
+            if (!released) {
+                released = true;
+                entry.release();
+            }
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final File directory;
+        private final long size;
+        private final long created;
+        private int leases;
+        private boolean evicted;
+        private boolean deleted;
+
+        Entry(String key, File directory, long size, long created) {
+            this.key = key;
+            this.directory = directory;
+            this.size = size;
+            this.created = created;
+        }
+
+        synchronized boolean lease() {
+            if (evicted) {
+                return false;
+            }
+            leases++;
+            return true;
+        }
+
+        synchronized void release() {
+            leases--;
+            deleteIfUnused();
+        }
+
+        synchronized void evict() {
+            evicted = true;
+            deleteIfUnused();
+        }
+
+        private void deleteIfUnused() {
+            if (evicted && leases == 0 && !deleted) {
+                deleted = true;
+                FileUtils.delete(directory);
+            }
+        }
+    }
+
+    /**
+     * Entries keyed by hash, for the tests.
+     */
+    synchronized Map<String, Long> sizes() {
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        entries.forEach((key, entry) -> sizes.put(key, entry.size));
+        return sizes;
+    }
+}
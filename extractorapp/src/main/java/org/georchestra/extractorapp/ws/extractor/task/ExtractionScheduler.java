@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Orders the waiting extractions by decreasing priority, then shares the
+ * workers between the users according to the {@link FairSharePolicy}, then by
+ * submission order.
+ * <p>
+ * The extractions are kept in a concurrent skip list per user, and indexed by
+ * uuid. An extraction is waiting as long as the index maps its uuid to its
+ * skip list entry: polling, removing or re-prioritizing an extraction first
+ * swaps its index mapping atomically, so that concurrent callers never take the
+ * same extraction twice. Offering, removing and re-prioritizing an extraction
+ * are O(log n) and lock free, reordering the whole queue is O(n log n). Polling
+ * compares the first extraction of every user, it is serialized since it
+ * updates the share of the user served.
+ * <p>
+ * A user is forgotten, along with its queue wait statistics, once it has no
+ * waiting nor running extraction. Offering an extraction and forgetting its
+ * user both go through the mapping of the user, which the concurrent map
+ * updates atomically: a forgotten user never gets an extraction.
+ */
+class ExtractionScheduler {
+
+    private static final String ANONYMOUS = "anonymous";
+
+    private final ConcurrentMap<String, Entry> index = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentMap<String, Tenant> tenants = new ConcurrentHashMap<String, Tenant>();
+    /** running extractions by organization, the idle organizations are left out */
+    private final ConcurrentMap<String, Integer> runningByOrg = new ConcurrentHashMap<String, Integer>();
+
+    private volatile FairSharePolicy policy = new FairSharePolicy();
+
+    /** submission order */
+    private final AtomicLong order = new AtomicLong();
+    /** identifies the entries, so that two of them never compare as equal */
+    private final AtomicLong ids = new AtomicLong();
+
+    private final Object pollLock = new Object();
+    /** start tag of the last extraction polled, guarded by pollLock */
+    private double virtualTime;
+
+    public void setPolicy(FairSharePolicy policy) {
+        this.policy = policy;
+    }
+
+    public FairSharePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Adds a waiting extraction, with the priority of its metadata.
+     *
+     * @return false if the extraction is already waiting
+     */
+    public boolean offer(ExtractionTask task) {
+        final String key = tenantKey(task);
+        final boolean[] added = new boolean[1];
+        // attached while holding the tenant mapping, so that it is not retired
+        // meanwhile
+        tenants.compute(key, (k, tenant) -> {
+            if (tenant == null) {
+                RequestConfiguration requestConfig = task.getRequestConfig();
+                String user = requestConfig.username == null ? ANONYMOUS : requestConfig.username;
+                tenant = new Tenant(key, user, requestConfig.org);
+            }
+            Entry entry = new Entry(task, tenant, task.executionMetadata.getPriority(), order.getAndIncrement(),
+                    System.currentTimeMillis());
+            if (index.putIfAbsent(entry.uuid, entry) == null) {
+                tenant.waiting.incrementAndGet();
+                tenant.queue.add(entry);
+                added[0] = true;
+            }
+            return tenant;
+        });
+        return added[0];
+    }
+
+    /**
+     * Takes the waiting extraction to start next. Once it has run, the
+     * extraction must be {@link #release(ExtractionTask) released}.
+     *
+     * @return null if no extraction is waiting, or if the users with waiting
+     *         extractions have reached their concurrency caps
+     */
+    public ExtractionTask poll() {
+        final FairSharePolicy policy = this.policy;
+        synchronized (pollLock) {
+            while (true) {
+                Entry best = null;
+                double bestStart = 0;
+                for (Tenant tenant : tenants.values()) {
+                    if (!policy.canStart(tenant.running.get(), runningByOrg.getOrDefault(orgKey(tenant.org), 0))) {
+                        continue;
+                    }
+                    Entry head = tenant.head();
+                    if (head == null) {
+                        continue;
+                    }
+                    double start = policy.isEnabled() ? Math.max(virtualTime, tenant.finishTag) : 0;
+                    if (best == null || compare(head, start, best, bestStart) < 0) {
+                        best = head;
+                        bestStart = start;
+                    }
+                }
+                if (best == null) {
+                    return null;
+                }
+                if (!index.remove(best.uuid, best)) {
+                    continue; // removed or moved meanwhile
+                }
+                Tenant tenant = best.tenant;
+                tenant.queue.remove(best);
+                // counted as running before it is not waiting anymore, so that the
+                // tenant never looks idle meanwhile
+                tenant.running.incrementAndGet();
+                tenant.waiting.decrementAndGet();
+                runningByOrg.merge(orgKey(tenant.org), 1, Integer::sum);
+                tenant.waits.record(System.currentTimeMillis() - best.enqueued);
+                if (policy.isEnabled()) {
+                    virtualTime = bestStart;
+                    tenant.finishTag = bestStart + cost(best.task) / policy.weight(tenant.user, tenant.org);
+                }
+                return best.task;
+            }
+        }
+    }
+
+    private static int compare(Entry e1, double start1, Entry e2, double start2) {
+        int cmp = e2.priority.compareTo(e1.priority);
+        if (cmp == 0) {
+            cmp = Double.compare(start1, start2);
+        }
+        return cmp != 0 ? cmp : Long.compare(e1.order, e2.order);
+    }
+
+    /**
+     * An extraction costs one unit of service per requested layer, so that the
+     * users extracting a few layers are served before the bulk extractions.
+     */
+    private static double cost(ExtractionTask task) {
+        List<?> layers = task.getRequestConfig().requests;
+        return layers == null ? 1 : Math.max(1, layers.size());
+    }
+
+    /**
+     * Frees the share of a polled extraction once it has run.
+     */
+    public void release(ExtractionTask task) {
+        Tenant tenant = tenants.get(tenantKey(task));
+        if (tenant != null) {
+            tenant.running.decrementAndGet();
+            runningByOrg.computeIfPresent(orgKey(tenant.org), (k, running) -> running > 1 ? running - 1 : null);
+            retireIfIdle(tenant);
+        }
+    }
+
+    /**
+     * Takes the given extraction out of the queue.
+     *
+     * @return the removed extraction, null if it is not waiting anymore
+     */
+    public ExtractionTask remove(String uuid) {
+        Entry entry = index.remove(uuid);
+        if (entry == null) {
+            return null;
+        }
+        entry.tenant.queue.remove(entry);
+        entry.tenant.waiting.decrementAndGet();
+        retireIfIdle(entry.tenant);
+        return entry.task;
+    }
+
+    /**
+     * Changes the priority of a waiting extraction. The extraction keeps its
+     * submission order among the extractions of the new priority.
+     * <p>
+     * A concurrent {@link #poll()} may miss the extraction while it is moved, the
+     * caller is responsible for polling again afterwards.
+     *
+     * @return false if the extraction is not waiting anymore
+     */
+    public boolean updatePriority(String uuid, ExecutionPriority priority) {
+        while (true) {
+            Entry current = index.get(uuid);
+            if (current == null) {
+                return false;
+            }
+            Entry updated = new Entry(current, priority, current.order);
+            if (index.replace(uuid, current, updated)) {
+                current.tenant.queue.add(updated);
+                current.tenant.queue.remove(current);
+                current.task.executionMetadata.setPriority(priority);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives all the extractions waiting when the method is called the same
+     * priority, and orders them as in {@code newOrder}. The extractions missing
+     * from {@code newOrder} are removed from the queue. When the fair share is
+     * enabled, the new order applies among the extractions of each user.
+     * <p>
+     * As for {@link #updatePriority(String, ExecutionPriority)}, the caller must
+     * poll again once the queue is reordered.
+     *
+     * @return the removed extractions
+     */
+    public List<ExtractionTask> reorder(List<String> newOrder, ExecutionPriority priority) {
+        final long base = order.getAndAdd(newOrder.size());
+        Map<String, Integer> positions = new HashMap<String, Integer>(newOrder.size() * 2);
+        for (int i = 0; i < newOrder.size(); i++) {
+            positions.putIfAbsent(newOrder.get(i), i);
+        }
+        List<ExtractionTask> removed = new ArrayList<ExtractionTask>();
+        for (Entry current : index.values()) {
+            if (current.order >= base) {
+                continue; // submitted during the reordering
+            }
+            Integer position = positions.get(current.uuid);
+            if (position == null) {
+                if (index.remove(current.uuid, current)) {
+                    current.tenant.queue.remove(current);
+                    current.tenant.waiting.decrementAndGet();
+                    retireIfIdle(current.tenant);
+                    removed.add(current.task);
+                }
+            } else {
+                Entry updated = new Entry(current, priority, base + position);
+                if (index.replace(current.uuid, current, updated)) {
+                    current.tenant.queue.add(updated);
+                    current.tenant.queue.remove(current);
+                    current.task.executionMetadata.setPriority(priority);
+                }
+            }
+        }
+        return removed;
+    }
+
+    public ExtractionTask get(String uuid) {
+        Entry entry = index.get(uuid);
+        return entry == null ? null : entry.task;
+    }
+
+    /**
+     * @return a snapshot of the waiting extractions, by priority and submission
+     *         order
+     */
+    public List<ExtractionTask> waitingTasks() {
+        List<Entry> entries = new ArrayList<Entry>(index.values());
+        Collections.sort(entries);
+        List<ExtractionTask> tasks = new ArrayList<ExtractionTask>(entries.size());
+        for (Entry entry : entries) {
+            tasks.add(entry.task);
+        }
+        return tasks;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return the number of waiting and running extractions, and the queue wait
+     *         time percentiles (in milliseconds) of every user
+     */
+    public JSONObject statsAsJson() throws JSONException {
+        Map<Tenant, Integer> waiting = new HashMap<Tenant, Integer>();
+        for (Entry entry : index.values()) {
+            waiting.merge(entry.tenant, 1, Integer::sum);
+        }
+        JSONArray users = new JSONArray();
+        for (Tenant tenant : tenants.values()) {
+            long[] percentiles = tenant.waits.percentiles(50, 90, 99);
+            JSONObject user = new JSONObject();
+            user.put("user", tenant.user);
+            user.put("org", tenant.org);
+            user.put("weight", policy.weight(tenant.user, tenant.org));
+            user.put("waiting", waiting.getOrDefault(tenant, 0));
+            user.put("running", tenant.running.get());
+            user.put("started", tenant.waits.count());
+            user.put("waitP50", percentiles[0]);
+            user.put("waitP90", percentiles[1]);
+            user.put("waitP99", percentiles[2]);
+            users.put(user);
+        }
+        JSONObject json = new JSONObject();
+        json.put("fairShare", policy.isEnabled());
+        json.put("waiting", size());
+        json.put("users", users);
+        return json;
+    }
+
+    private static String orgKey(String org) {
+        return org == null ? "" : org;
+    }
+
+    /**
+     * Forgets the user if it has no waiting nor running extraction. A user coming
+     * back afterwards starts at the current virtual time, as a new one: it gains
+     * at most the cost of its last extraction.
+     */
+    private void retireIfIdle(Tenant tenant) {
+        tenants.computeIfPresent(tenant.key, (k, current) -> current == tenant && tenant.isIdle() ? null : current);
+    }
+
+    private static String tenantKey(ExtractionTask task) {
+        RequestConfiguration requestConfig = task.getRequestConfig();
+        String user = requestConfig.username == null ? ANONYMOUS : requestConfig.username;
+        return requestConfig.org == null ? user : user + "@" + requestConfig.org;
+    }
+
+    /**
+     * The waiting extractions and the share of a user.
+     */
+    private static final class Tenant {
+        final String key;
+        final String user;
+        final String org;
+        final ConcurrentSkipListSet<Entry> queue = new ConcurrentSkipListSet<Entry>();
+        final AtomicInteger running = new AtomicInteger();
+        /** extractions indexed as waiting, updated along with the index */
+        final AtomicInteger waiting = new AtomicInteger();
+        final QueueWaitStats waits = new QueueWaitStats();
+        /** virtual finish time of the last extraction polled, guarded by pollLock */
+        double finishTag;
+
+        Tenant(String key, String user, String org) {
+            this.key = key;
+            this.user = user;
+            this.org = org;
+        }
+
+        /**
+         * Reads the waiting extractions first: a poll counts its extraction as
+         * running before it is not waiting anymore.
+         */
+        boolean isIdle() {
+            return waiting.get() == 0 && running.get() == 0;
+        }
+
+        /**
+         * @return the first waiting extraction, discarding the stale entries
+         */
+        Entry head() {
+            for (Entry entry : queue) {
+                if (entry.isLive()) {
+                    return entry;
+                }
+                queue.remove(entry);
+            }
+            return null;
+        }
+    }
+
+    private final class Entry implements Comparable<Entry> {
+        final ExtractionTask task;
+        final String uuid;
+        final Tenant tenant;
+        final ExecutionPriority priority;
+        final long order;
+        final long enqueued;
+        final long id = ids.getAndIncrement();
+
+        Entry(ExtractionTask task, Tenant tenant, ExecutionPriority priority, long order, long enqueued) {
+            this.task = task;
+            this.uuid = task.executionMetadata.getUuid();
+            this.tenant = tenant;
+            this.priority = priority;
+            this.order = order;
+            this.enqueued = enqueued;
+        }
+
+        Entry(Entry moved, ExecutionPriority priority, long order) {
+            this(moved.task, moved.tenant, priority, order, moved.enqueued);
+        }
+
+        boolean isLive() {
+            return index.get(uuid) == this;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int cmp = other.priority.compareTo(this.priority);
+            if (cmp == 0) {
+                cmp = Long.compare(this.order, other.order);
+            }
+            return cmp != 0 ? cmp : Long.compare(this.id, other.id);
+        }
+    }
+}
@@ -23,23 +23,29 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.ArchiveIndex;
+import org.georchestra.extractorapp.ws.extractor.ArchiveQuotaExceededException;
 import org.georchestra.extractorapp.ws.extractor.ExtractorController;
 import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
 import org.georchestra.extractorapp.ws.extractor.FileUtils;
@@ -48,13 +54,14 @@ import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
 import org.georchestra.extractorapp.ws.extractor.WcsExtractor;
 import org.georchestra.extractorapp.ws.extractor.WfsExtractor;
 import org.georchestra.extractorapp.ws.extractor.csw.CSWExtractor;
-import org.geotools.referencing.CRS;
+import org.georchestra.extractorapp.ws.extractor.csw.MetadataHarvester;
 import org.json.JSONException;
-import org.opengis.geometry.BoundingBox;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.operation.TransformException;
 
+import com.google.common.hash.Hashing;
+
 /**
  * Thread responsible for downloading all the data for a single request and
  * emailing the link for obtaining the data.
@@ -63,18 +70,22 @@ import org.opengis.referencing.operation.TransformException;
  */
 public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
     private static final Log LOG = LogFactory.getLog(ExtractionTask.class.getPackage().getName());
-    private final DataSource datasource;
 
     private static final int EXTRACTION_ATTEMPTS = 3;
     public final ExecutionMetadata executionMetadata;
 
     private RequestConfiguration requestConfig;
+    private final ExtractionLogDao logDao;
     private Long logId;
+    private ExtractionQueueStore queueStore;
+    private ExtractionResultCache resultCache;
+    private ArchiveIndex archiveIndex;
+    private MetadataHarvester metadataHarvester;
 
     public ExtractionTask(RequestConfiguration requestConfig, DataSource datasource)
             throws NoSuchAuthorityCodeException, MalformedURLException, JSONException, FactoryException {
         this.requestConfig = requestConfig;
-        this.datasource = datasource;
+        this.logDao = new ExtractionLogDao(datasource);
         this.executionMetadata = new ExecutionMetadata(this.requestConfig.requestUuid, this.requestConfig.username,
                 new Date(), this.requestConfig.strRequest);
     }
@@ -82,12 +93,21 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
     public ExtractionTask(ExtractionTask toCopy) {
 
         this.requestConfig = toCopy.requestConfig;
-        this.datasource = toCopy.datasource;
+        this.logDao = toCopy.logDao;
         this.executionMetadata = toCopy.executionMetadata;
+        this.queueStore = toCopy.queueStore;
+        this.resultCache = toCopy.resultCache;
+        this.archiveIndex = toCopy.archiveIndex;
+        this.metadataHarvester = toCopy.metadataHarvester;
     }
 
     @Override
     public void run() {
+        if (queueStore != null && !queueStore.claim(executionMetadata.getUuid())) {
+            LOG.info("Extraction " + executionMetadata.getUuid() + " was taken over by another instance, skipping");
+            executionMetadata.cancel();
+            return;
+        }
         executionMetadata.setRunning();
         requestConfig.setThreadLocal();
         this.statSetRunning();
@@ -96,6 +116,7 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
         final File tmpDir = FileUtils.createTempDirectory();
         final File tmpExtractionBundle = mkDirTmpExtractionBundle(tmpDir,
                 requestConfig.extractionFolderPrefix + requestConfig.requestUuid.toString());
+        final Map<ExtractorLayerRequest, Future<?>> pendingMetadata = harvestMetadata(tmpDir);
 
         try {
             long start = System.currentTimeMillis();
@@ -105,33 +126,37 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
             final List<String> successes = new ArrayList<String>();
             final List<String> failures = new ArrayList<String>();
             final List<String> oversized = new ArrayList<String>();
-            for (ExtractorLayerRequest request : requestConfig.requests) {
+            for (int index = 0; index < requestConfig.requests.size(); index++) {
+                ExtractorLayerRequest request = requestConfig.requests.get(index);
 
+                String name = layerName(request);
+                // survives the failed attempts so that paged downloads can resume
+                File checkpointDir = checkpointDir(tmpDir, name, request);
                 int tries = 0;
                 while (tries < EXTRACTION_ATTEMPTS) {
 
                     tries++;
-                    String name = String.format("%s__%s", request._url.getHost(), request._layerName);
                     File layerTmpDir = mkDirTmpExtractionBundle(tmpDir, name);
                     LOG.info("Attempt " + tries + " for extracting layer: " + request._url + " -- "
                             + request._layerName);
 
                     try {
+                        checkPermission(request, layerTmpDir);
                         // extracts the layer in the temporal directory
                         File newDir;
-                        switch (request._owsType) {
-                        case WCS:
-                            newDir = extractWcsLayer(request, layerTmpDir);
-                            break;
-                        case WFS:
-                            newDir = extractWfsLayer(request, layerTmpDir);
-                            break;
-                        default:
-                            throw new IllegalArgumentException(request._owsType + " not supported");
+                        if (resultCache == null) {
+                            newDir = extractLayer(request, layerTmpDir, checkpointDir);
+                        } else {
+                            newDir = extractCachedLayer(request, layerTmpDir, checkpointDir);
                         }
                         // extracts the metadata into the temporal directory
-                        if (request._isoMetadataURL != null && !"".equals(request._isoMetadataURL)) {
-                            extractMetadata(request, newDir);
+                        if (hasMetadata(request)) {
+                            Future<?> pending = pendingMetadata.get(request);
+                            if (pending == null) {
+                                extractMetadata(request, newDir);
+                            } else {
+                                copyHarvestedMetadata(pending, metadataDir(tmpDir, index, name), newDir);
+                            }
                         }
 
                         for (File from : layerTmpDir.listFiles()) {
@@ -168,16 +193,27 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
                         }
                     }
                 }
+                FileUtils.delete(checkpointDir);
             }
 
-            File archive = archiveExtraction(tmpExtractionBundle);
-            long fileSize = archive.length();
-            long end = System.currentTimeMillis();
-
-            String msg = String.format(
-                    "Finished extraction into directory: %s achive is: %s (size : %s bytes) \nExtraction took %s",
-                    tmpExtractionBundle, archive, fileSize, time(start, end));
-            LOG.info(msg);
+            long fileSize;
+            try {
+                File archive = archiveExtraction(tmpExtractionBundle);
+                fileSize = archive.length();
+                long end = System.currentTimeMillis();
+
+                String msg = String.format(
+                        "Finished extraction into directory: %s achive is: %s (size : %s bytes) \nExtraction took %s",
+                        tmpExtractionBundle, archive, fileSize, time(start, end));
+                LOG.info(msg);
+            } catch (ArchiveQuotaExceededException e) {
+                // the archive was deleted, none of the layers can be downloaded
+                LOG.error("Extraction " + requestConfig.requestUuid + " failed: " + e.getMessage());
+                requestConfig.requests.forEach(this::statSetError);
+                failures.addAll(successes);
+                successes.clear();
+                fileSize = 0;
+            }
 
             if (!requestConfig.testing) {
                 try {
@@ -189,10 +225,16 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
                 throw new RuntimeException(Arrays.toString(failures.toArray()));
             }
         } finally {
+            for (Future<?> pending : pendingMetadata.values()) {
+                pending.cancel(true);
+            }
             executionMetadata.setCompleted();
             FileUtils.delete(tmpExtractionBundle);
             FileUtils.delete(tmpDir);
             this.statSetCompleted();
+            if (queueStore != null) {
+                queueStore.updateState(executionMetadata.getUuid(), ExecutionState.COMPLETED);
+            }
         }
     }
 
@@ -241,6 +283,12 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
         }
         try {
             FileUtils.archiveToZip(tmpExtractionBundle, storageFile);
+            if (queueStore != null) {
+                queueStore.recordArchive(executionMetadata.getUuid(), storageFile);
+            }
+            if (archiveIndex != null) {
+                archiveIndex.register(storageFile, requestConfig.username);
+            }
         } catch (IOException e1) {
             handleException(e1);
         }
@@ -318,8 +366,6 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
         WcsExtractor extractor = new WcsExtractor(requestBaseDir, requestConfig);
 
-        extractor.checkPermission(request, requestConfig.secureHost, requestConfig.username, requestConfig.roles);
-
         return extractor.extract(request);
     }
 
@@ -328,6 +374,8 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
      * 
      * @param request
      * @param requestBaseDir
+     * @param checkpointDir  where the pages of a paged download are kept between
+     *                       attempts
      *
      * @return the directory that contain the layers
      *
@@ -335,15 +383,155 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
      * @throws TransformException
      * @throws FactoryException
      */
-    private File extractWfsLayer(ExtractorLayerRequest request, File requestBaseDir)
+    private File extractWfsLayer(ExtractorLayerRequest request, File requestBaseDir, File checkpointDir)
             throws IOException, TransformException, FactoryException {
 
+        WfsExtractor extractor = createWfsExtractor(requestBaseDir);
+        extractor.setPaging(requestConfig.getWfsTilesPerSide(), requestConfig.getWfsPageConcurrency(), checkpointDir);
+
+        return extractor.extract(request);
+    }
+
+    private WfsExtractor createWfsExtractor(File requestBaseDir) {
         WfsExtractor extractor = new WfsExtractor(requestBaseDir, requestConfig.adminCredentials.getUserName(),
-                requestConfig.adminCredentials.getPassword(), requestConfig.secureHost, requestConfig.userAgent);
+                requestConfig.adminCredentials.getPassword(), requestConfig.secureHost, requestConfig.userAgent,
+                requestConfig.getWfsDataStoreCache());
+        extractor.setHttpClient(requestConfig.getHttpClient());
+        return extractor;
+    }
+
+    /**
+     * Checks the user may access the layer. Also records the version of the
+     * source capabilities in the request, if the server advertises one.
+     *
+     * @throws SecurityException if the user is not allowed to access the layer
+     */
+    private void checkPermission(ExtractorLayerRequest request, File requestBaseDir) throws IOException {
+        switch (request._owsType) {
+        case WCS:
+            new WcsExtractor(requestBaseDir, requestConfig).checkPermission(request, requestConfig.secureHost,
+                    requestConfig.username, requestConfig.roles);
+            break;
+        case WFS:
+            createWfsExtractor(requestBaseDir).checkPermission(request, requestConfig.secureHost,
+                    requestConfig.username, requestConfig.roles);
+            break;
+        default:
+            throw new IllegalArgumentException(request._owsType + " not supported");
+        }
+    }
 
-        extractor.checkPermission(request, requestConfig.secureHost, requestConfig.username, requestConfig.roles);
+    private File extractLayer(ExtractorLayerRequest request, File requestBaseDir, File checkpointDir)
+            throws IOException, TransformException, FactoryException {
+        switch (request._owsType) {
+        case WCS:
+            return extractWcsLayer(request, requestBaseDir);
+        case WFS:
+            return extractWfsLayer(request, requestBaseDir, checkpointDir);
+        default:
+            throw new IllegalArgumentException(request._owsType + " not supported");
+        }
+    }
 
-        return extractor.extract(request);
+    /**
+     * Copies the layer from the result cache, extracting it first if it is not
+     * cached yet. The permission must have been checked beforehand.
+     */
+    private File extractCachedLayer(ExtractorLayerRequest request, File requestBaseDir, File checkpointDir)
+            throws IOException {
+        final String key = ExtractionResultCache.key(request);
+        ExtractionResultCache.Lease lease = resultCache.acquire(key,
+                workDir -> extractLayer(request, workDir, checkpointDir));
+        try {
+            File layerDir = request.createContainingDir(requestBaseDir);
+            lease.copyTo(layerDir);
+            return layerDir;
+        } finally {
+            lease.release();
+        }
+    }
+
+    private static String layerName(ExtractorLayerRequest request) {
+        return String.format("%s__%s", request._url.getHost(), request._layerName);
+    }
+
+    /**
+     * Names the directory after all the parameters of the request as well, the
+     * same layer may be requested with another bbox, projection or format.
+     */
+    private static File checkpointDir(File tmpDir, String layerName, ExtractorLayerRequest request) {
+        String parameters = Hashing.sha256()
+                .hashString(ExtractionResultCache.parameters(request), StandardCharsets.UTF_8).toString();
+        return new File(tmpDir, FileUtils.toSafeFileName(layerName) + "-" + parameters.substring(0, 16) + ".pages");
+    }
+
+    /**
+     * @return whether the metadata of the layer is extracted along with it
+     */
+    private static boolean hasMetadata(ExtractorLayerRequest request) {
+        return request._isoMetadataURL != null && !"".equals(request._isoMetadataURL.toExternalForm());
+    }
+
+    /**
+     * @param index of the layer in the request, the same layer name may be
+     *              requested from several services
+     */
+    private static File metadataDir(File tmpDir, int index, String layerName) {
+        return new File(tmpDir, FileUtils.toSafeFileName(layerName) + "-" + index + ".metadata");
+    }
+
+    /**
+     * Starts retrieving the metadata of all the layers in the harvester pool, so
+     * that they are fetched while the data is extracted. Each layer's metadata is
+     * saved in its own directory of the temporal directory.
+     *
+     * @return the pending retrievals by layer, none if there is no harvester
+     */
+    private Map<ExtractorLayerRequest, Future<?>> harvestMetadata(final File tmpDir) {
+        Map<ExtractorLayerRequest, Future<?>> pending = new IdentityHashMap<>();
+        if (metadataHarvester == null) {
+            return pending;
+        }
+        for (int index = 0; index < requestConfig.requests.size(); index++) {
+            final ExtractorLayerRequest request = requestConfig.requests.get(index);
+            if (!hasMetadata(request)) {
+                continue;
+            }
+            final File metadataDir = metadataDir(tmpDir, index, layerName(request));
+            pending.put(request, metadataHarvester.submit(() -> {
+                metadataDir.mkdirs();
+                try {
+                    extractMetadata(request, metadataDir);
+                } catch (IOException e) {
+                    LOG.error("Unable to save the metadata of " + request._layerName, e);
+                }
+            }));
+        }
+        return pending;
+    }
+
+    /**
+     * Waits for the metadata retrieval started by {@link #harvestMetadata} and
+     * copies its result in the layer directory.
+     */
+    private void copyHarvestedMetadata(Future<?> pending, File metadataDir, File layerDirectory)
+            throws IOException {
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the metadata");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        File[] files = metadataDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File from : files) {
+            Files.copy(from.toPath(), new File(layerDirectory, from.getName()).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 
     /**
@@ -363,6 +551,8 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
         CSWExtractor extractor = new CSWExtractor(layerDirectory, adminUserName, adminPassword, cswHost,
                 requestConfig.userAgent);
+        extractor.setHttpClient(requestConfig.getHttpClient());
+        extractor.setMetadataHarvester(metadataHarvester);
 
         try {
             extractor.checkPermission(request, requestConfig.username, requestConfig.roles);
@@ -384,6 +574,40 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 //				other.executionMetadata.getPriority());
     }
 
+    RequestConfiguration getRequestConfig() {
+        return requestConfig;
+    }
+
+    /**
+     * Sets the store the state transitions of the task are recorded in, if the
+     * extraction queue is persisted.
+     */
+    void setQueueStore(ExtractionQueueStore queueStore) {
+        this.queueStore = queueStore;
+    }
+
+    /**
+     * Sets the cache the extracted layers are reused from, if any.
+     */
+    void setResultCache(ExtractionResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Sets the index the produced archive is recorded in, if any.
+     */
+    void setArchiveIndex(ArchiveIndex archiveIndex) {
+        this.archiveIndex = archiveIndex;
+    }
+
+    /**
+     * Sets the harvester fetching the metadata concurrently with the data, if
+     * any.
+     */
+    void setMetadataHarvester(MetadataHarvester metadataHarvester) {
+        this.metadataHarvester = metadataHarvester;
+    }
+
     public boolean equalId(String uuid) {
         return requestConfig.requestUuid.toString().equals(uuid);
     }
@@ -393,122 +617,34 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
      */
 
     private void statSetRunning() {
-
-        final String logInsertSql = "INSERT INTO extractorapp.extractor_log " + "(username, " + // 1
-                "roles, " + // 2
-                "org, " + // 3
-                "request_id) " + // 4
-                "VALUES (?, ?, ?, ?)";
-        final String layerLogSql = "INSERT INTO extractorapp.extractor_layer_log " + "(extractor_log_id, " + // 1
-                "projection, " + // 2
-                "resolution, " + // 3
-                "format, " + // 4
-                "bbox, " + // 5, 6, 7, 8
-                "owstype, " + // 9
-                "owsurl, " + // 10
-                "layer_name) " + // 11
-                "VALUES (?, ?, ?, ?, " + "ST_SetSRID(ST_MakeBox2D(ST_Point(?, ?), ST_Point(? ,?)), 4326), "
-                + "?, ?, ?)";
-
-        try (Connection c = datasource.getConnection()) {
-            c.setAutoCommit(false);
-            try (PreparedStatement logPst = c.prepareStatement(logInsertSql, Statement.RETURN_GENERATED_KEYS);
-                    PreparedStatement layerPst = c.prepareStatement(layerLogSql, Statement.RETURN_GENERATED_KEYS)) {
-
-                logPst.setString(1, this.requestConfig.username == null ? "" : this.requestConfig.username);
-                logPst.setArray(2, c.createArrayOf("varchar", this.requestConfig.roles == null ? new String[0]
-                        : this.requestConfig.roles.split("\\s*;\\s*")));
-                logPst.setString(3, this.requestConfig.org == null ? "" : this.requestConfig.org);
-                logPst.setString(4, this.requestConfig.requestUuid.toString());
-
-                this.logId = this.executeAndGetGeneratedKey(logPst);
-
-                layerPst.setLong(1, this.logId);
-                for (ExtractorLayerRequest layerRequest : this.requestConfig.requests) {
-                    layerPst.setString(2, layerRequest._epsg);
-                    layerPst.setDouble(3, layerRequest._resolution);
-                    layerPst.setString(4, layerRequest._format);
-                    BoundingBox bbox = layerRequest._bbox.toBounds(CRS.decode("EPSG:4326"));
-                    layerPst.setDouble(5, bbox.getMinX());
-                    layerPst.setDouble(6, bbox.getMinY());
-                    layerPst.setDouble(7, bbox.getMaxX());
-                    layerPst.setDouble(8, bbox.getMaxY());
-                    layerPst.setString(9, layerRequest._owsType.toString());
-                    layerPst.setString(10, layerRequest._url.toString());
-                    layerPst.setString(11, layerRequest._layerName);
-
-                    layerRequest.setDbLogId(this.executeAndGetGeneratedKey(layerPst));
-                }
-                c.commit();
-            } catch (SQLException e) {
-                c.rollback();
-                throw e;
-            } finally {
-                c.setAutoCommit(true);
-            }
+        try {
+            this.logId = this.logDao.insert(this.requestConfig.username, this.requestConfig.roles,
+                    this.requestConfig.org, this.requestConfig.requestUuid.toString(), this.requestConfig.requests);
         } catch (Exception e) {
             LOG.error("Unable to log the extraction parameters in database", e);
         }
     }
 
     private void statSetCompleted() {
-
-        final String updateLayerSql = "UPDATE extractorapp.extractor_layer_log " + "SET is_successful = TRUE "
-                + "WHERE extractor_log_id = ? AND is_successful IS NULL";
-
-        final String updateLogSql = "UPDATE extractorapp.extractor_log " + "SET duration = NOW() - creation_date "
-                + "WHERE id = ?";
-
-        try (Connection c = this.datasource.getConnection()) {
-            c.setAutoCommit(false);
-            try (PreparedStatement layerPst = c.prepareStatement(updateLayerSql); //
-                    PreparedStatement logPst = c.prepareStatement(updateLogSql)) {
-
-                layerPst.setLong(1, this.logId);
-                layerPst.executeUpdate();
-
-                // Update duration
-                logPst.setLong(1, this.logId);
-                logPst.executeUpdate();
-                c.commit();
-            } catch (SQLException e) {
-                c.rollback();
-                throw e;
-            } finally {
-                c.setAutoCommit(true);
-            }
+        if (this.logId == null) {
+            return;
+        }
+        try {
+            this.logDao.complete(this.logId);
         } catch (SQLException e) {
             LOG.error("Error occured when trying to set the extraction status to 'completed'", e);
         }
     }
 
     private void statSetError(ExtractorLayerRequest request) {
-        try (Connection c = this.datasource.getConnection();
-                PreparedStatement pst = c.prepareStatement(
-                        "UPDATE extractorapp.extractor_layer_log SET is_successful = FALSE WHERE id = ?")) {
-
-            pst.setLong(1, request.getDbLogId());
-            pst.executeUpdate();
+        if (request.getDbLogId() == null) {
+            return;
+        }
+        try {
+            this.logDao.fail(request.getDbLogId());
         } catch (SQLException e) {
             LOG.error("Error occured when trying to the set extraction status to 'errored'", e);
         }
     }
 
-    private Long executeAndGetGeneratedKey(PreparedStatement pst) throws SQLException {
-
-        int affectedRows = pst.executeUpdate();
-        if (affectedRows == 0) {
-            throw new SQLException("Failed to insert new stats");
-        }
-        ResultSet generatedKeys = pst.getGeneratedKeys();
-        Long logId;
-        if (generatedKeys.next()) {
-            logId = generatedKeys.getLong(1);
-        } else {
-            throw new SQLException("Failed to insert new stats");
-        }
-        generatedKeys.close();
-        return logId;
-    }
-
 }
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Configures how the workers are shared between the users submitting
+ * extractions.
+ * <p>
+ * Among the waiting extractions of the same priority, the
+ * {@link ExtractionScheduler} starts the one of the user who received the
+ * least service relative to their weight (start-time fair queuing, an
+ * extraction costing one unit per layer), so that a user submitting hundreds of
+ * extractions does not delay the others. The weight
+ * of a user is the one configured for them, else the one configured for their
+ * organization, else the default weight.
+ * <p>
+ * The number of extractions running at the same time can also be capped per
+ * user and per organization, 0 meaning no limit.
+ */
+public class FairSharePolicy {
+
+    private boolean enabled = true;
+    private double defaultWeight = 1;
+    private Map<String, Double> userWeights = Collections.emptyMap();
+    private Map<String, Double> orgWeights = Collections.emptyMap();
+    private int maxRunningPerUser = 0;
+    private int maxRunningPerOrg = 0;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public double weight(String user, String org) {
+        Double weight = user == null ? null : userWeights.get(user);
+        if (weight == null && org != null) {
+            weight = orgWeights.get(org);
+        }
+        return weight == null ? defaultWeight : weight.doubleValue();
+    }
+
+    /**
+     * @return whether one more extraction of a user may start, given the number
+     *         of extractions running for them and for their organization
+     */
+    public boolean canStart(int runningForUser, int runningForOrg) {
+        return (maxRunningPerUser <= 0 || runningForUser < maxRunningPerUser)
+                && (maxRunningPerOrg <= 0 || runningForOrg < maxRunningPerOrg);
+    }
+
+    /**
+     * When disabled, the extractions of the same priority are started in
+     * submission order. Defaults to true.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setDefaultWeight(double defaultWeight) {
+        if (defaultWeight <= 0) {
+            throw new IllegalArgumentException("The default weight must be positive: " + defaultWeight);
+        }
+        this.defaultWeight = defaultWeight;
+    }
+
+    /**
+     * @param userWeights comma separated list of {@code user:weight} pairs, e.g.
+     *                    {@code "testadmin:4, batch:0.5"}
+     */
+    public void setUserWeights(String userWeights) {
+        this.userWeights = parseWeights(userWeights);
+    }
+
+    /**
+     * @param orgWeights comma separated list of {@code org:weight} pairs
+     */
+    public void setOrgWeights(String orgWeights) {
+        this.orgWeights = parseWeights(orgWeights);
+    }
+
+    public void setMaxRunningPerUser(int maxRunningPerUser) {
+        this.maxRunningPerUser = maxRunningPerUser;
+    }
+
+    public void setMaxRunningPerOrg(int maxRunningPerOrg) {
+        this.maxRunningPerOrg = maxRunningPerOrg;
+    }
+
+    static Map<String, Double> parseWeights(String weights) {
+        Map<String, Double> parsed = new HashMap<String, Double>();
+        if (weights == null) {
+            return parsed;
+        }
+        for (String pair : weights.split(",")) {
+            if (pair.trim().isEmpty()) {
+                continue;
+            }
+            int sep = pair.lastIndexOf(':');
+            if (sep <= 0) {
+                throw new IllegalArgumentException("Expected name:weight, got '" + pair.trim() + "'");
+            }
+            double weight = Double.parseDouble(pair.substring(sep + 1).trim());
+            if (weight <= 0) {
+                throw new IllegalArgumentException("Weights must be positive: '" + pair.trim() + "'");
+            }
+            parsed.put(pair.substring(0, sep).trim(), weight);
+        }
+        return parsed;
+    }
+}
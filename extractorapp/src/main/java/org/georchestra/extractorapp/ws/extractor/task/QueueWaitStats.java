@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the queue wait times of the last extractions started for a user, and
+ * computes their percentiles.
+ */
+class QueueWaitStats {
+
+    private static final int SAMPLES = 1024;
+
+    private final long[] samples = new long[SAMPLES];
+    private int next;
+    private long count;
+
+    public synchronized void record(long waitMillis) {
+        samples[next] = waitMillis;
+        next = (next + 1) % SAMPLES;
+        count++;
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    /**
+     * @param percentiles between 0 and 100
+     * @return the wait times, in milliseconds, at the given percentiles of the
+     *         last extractions, -1 if none was started yet
+     */
+    public long[] percentiles(double... percentiles) {
+        long[] sorted;
+        synchronized (this) {
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, SAMPLES));
+        }
+        Arrays.sort(sorted);
+        long[] values = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            if (sorted.length == 0) {
+                values[i] = -1;
+            } else {
+                int rank = (int) Math.ceil(percentiles[i] / 100 * sorted.length) - 1;
+                values[i] = sorted[Math.max(0, Math.min(rank, sorted.length - 1))];
+            }
+        }
+        return values;
+    }
+}
@@ -81,6 +81,24 @@ public class TaskControllers implements ServletContextAware {
         return;
     }
 
+    /**
+     * Reports, per user, the number of waiting and running extractions and the
+     * percentiles of the time spent in the queue.
+     */
+    @RequestMapping(value = "/jobs/stats", method = RequestMethod.GET)
+    public void stats(HttpServletResponse response) throws IOException {
+        try {
+            JSONObject ret = extractionManager.queueStatsAsJson();
+            ret.put("status", "success");
+            response.setContentType("application/json");
+            response.setCharacterEncoding("UTF-8");
+            response.getWriter().write(ret.toString());
+        } catch (Exception e) {
+            LOG.error("Exception caught while running '/jobs/stats' controller: ", e);
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+    }
+
     @RequestMapping(value = "/job/change_priority", method = RequestMethod.POST)
     public void results(HttpServletRequest request, HttpServletResponse response) throws IOException {
 
@@ -24,9 +24,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
-import java.net.ProxySelector;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -43,25 +41,24 @@ import org.apache.http.HttpResponse;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.auth.params.AuthPNames;
 import org.apache.http.client.AuthCache;
+import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.AuthSchemes;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.client.params.AuthPolicy;
-import org.apache.http.client.params.ClientPNames;
-import org.apache.http.client.protocol.ClientContext;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.AbstractHttpClient;
 import org.apache.http.impl.client.BasicAuthCache;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
-import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.util.EntityUtils;
 import org.georchestra.extractorapp.ws.ExtractorException;
 import org.georchestra.extractorapp.ws.extractor.FileUtils;
 import org.georchestra.extractorapp.ws.extractor.OversizedCoverageRequestException;
+import org.georchestra.extractorapp.ws.extractor.SharedHttpClient;
 import org.georchestra.extractorapp.ws.extractor.XmlUtils;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
@@ -106,26 +103,39 @@ class BoundWcsRequest extends WcsReaderRequest {
     private Set<String> formats;
     private Set<String> responseCrss, requestCrss, nativeCRSs;
 
-    private HttpClient httpClient = new DefaultHttpClient();
+    private HttpClient httpClient;
+    private RequestConfig requestConfig;
 
     public void setHttpClient(HttpClient c) {
         this.httpClient = c;
     }
 
     BoundWcsRequest(URL wcsUrl, WcsReaderRequest request) {
+        this(wcsUrl, request, SharedHttpClient.getDefault());
+    }
+
+    BoundWcsRequest(URL wcsUrl, WcsReaderRequest request, SharedHttpClient sharedClient) {
         super(request);
         _wcsUrl = wcsUrl;
+        this.httpClient = sharedClient.getClient();
+        this.requestConfig = sharedClient.requestConfig(0);
     }
 
     private BoundWcsRequest(String version, String coverage, ReferencedEnvelope bbox,
             CoordinateReferenceSystem responseCRS, double resx, String format, boolean usePost, boolean remoteReproject,
             boolean useCommandLineGDAL, String username, String password, URL wcsUrl, String capabilities,
-            String describeCoverage) {
+            String describeCoverage, HttpClient httpClient, RequestConfig requestConfig) {
         super(version, coverage, bbox, responseCRS, resx, format, usePost, remoteReproject, useCommandLineGDAL,
                 username, password);
         this._wcsUrl = wcsUrl;
         this._describeCoverage = describeCoverage;
         this._capabilities = capabilities;
+        this.httpClient = httpClient;
+        this.requestConfig = requestConfig;
+    }
+
+    URL getUrl() {
+        return _wcsUrl;
     }
 
     /**
@@ -222,8 +232,11 @@ class BoundWcsRequest extends WcsReaderRequest {
     public String getDescribeCoverage() throws ProtocolException, MalformedURLException, IOException {
         if (_describeCoverage == null) {
             InputStream stream = makeRequest(DESCRIBE_COVERAGE, _wcsUrl, false, 3000);
-
-            _describeCoverage = toString(stream);
+            try {
+                _describeCoverage = toString(stream);
+            } finally {
+                stream.close();
+            }
         }
 
         return _describeCoverage;
@@ -238,8 +251,11 @@ class BoundWcsRequest extends WcsReaderRequest {
     public String getCapabilities() throws ProtocolException, MalformedURLException, IOException {
         if (_capabilities == null) {
             InputStream stream = makeRequest(GET_CAPABILITIES, _wcsUrl, false, 3000);
-
-            _capabilities = toString(stream);
+            try {
+                _capabilities = toString(stream);
+            } finally {
+                stream.close();
+            }
         }
 
         return _capabilities;
@@ -261,7 +277,7 @@ class BoundWcsRequest extends WcsReaderRequest {
     public BoundWcsRequest withFormat(String newFormat) {
         return new BoundWcsRequest(version, coverage, requestBbox, responseCRS, groundResolutionX, newFormat, usePost,
                 remoteReproject, useCommandLineGDAL, username, password, _wcsUrl, this._capabilities,
-                this._describeCoverage);
+                this._describeCoverage, httpClient, requestConfig);
     }
 
     @Override
@@ -269,7 +285,8 @@ class BoundWcsRequest extends WcsReaderRequest {
         try {
             CoordinateReferenceSystem newCrs = CRS.decode(code);
             return new BoundWcsRequest(version, coverage, requestBbox, newCrs, groundResolutionX, format, usePost,
-                    remoteReproject, useCommandLineGDAL, username, password, _wcsUrl, _capabilities, _describeCoverage);
+                    remoteReproject, useCommandLineGDAL, username, password, _wcsUrl, _capabilities, _describeCoverage,
+                    httpClient, requestConfig);
         } catch (FactoryException e) {
             throw new ExtractorException(e);
         }
@@ -320,14 +337,8 @@ class BoundWcsRequest extends WcsReaderRequest {
      */
     private InputStream makeRequest(String request, URL wcsUrl, boolean resolveFormat, int timeout)
             throws IOException, ProtocolException, MalformedURLException {
-        httpClient.getParams().setParameter("http.socket.timeout", new Integer(timeout));
-        httpClient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, true);
-
-        ProxySelectorRoutePlanner routePlanner = new ProxySelectorRoutePlanner(
-                httpClient.getConnectionManager().getSchemeRegistry(), ProxySelector.getDefault());
-        if (httpClient instanceof AbstractHttpClient) {
-            ((AbstractHttpClient) httpClient).setRoutePlanner(routePlanner);
-        }
+        RequestConfig.Builder config = RequestConfig.copy(requestConfig).setSocketTimeout(timeout)
+                .setRedirectsEnabled(true);
         HttpRequestBase httpRequest;
         if (usePost && false) {
             HttpPost httpPost = new HttpPost(request);
@@ -347,13 +358,14 @@ class BoundWcsRequest extends WcsReaderRequest {
             httpRequest = new HttpGet(spec);
         }
 
-        BasicHttpContext localcontext = new BasicHttpContext();
+        // the client is shared, the credentials are bound to the request context
+        HttpClientContext localcontext = HttpClientContext.create();
         if (username != null) {
             AuthScope authScope = new AuthScope(wcsUrl.getHost(), wcsUrl.getPort());
             Credentials credentials = new UsernamePasswordCredentials(username, password);
-
-            if (httpClient instanceof AbstractHttpClient)
-                ((AbstractHttpClient) httpClient).getCredentialsProvider().setCredentials(authScope, credentials);
+            CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
+            credentialsProvider.setCredentials(authScope, credentials);
+            localcontext.setCredentialsProvider(credentialsProvider);
 
             // Create AuthCache instance
             AuthCache authCache = new BasicAuthCache();
@@ -362,19 +374,19 @@ class BoundWcsRequest extends WcsReaderRequest {
             authCache.put(new HttpHost(wcsUrl.getHost(), wcsUrl.getPort(), wcsUrl.getProtocol()), basicAuth);
 
             // Add AuthCache to the execution context
-            localcontext.setAttribute(ClientContext.AUTH_CACHE, authCache);
+            localcontext.setAuthCache(authCache);
 
-            ArrayList<String> authpref = new ArrayList<String>();
-            authpref.add(AuthPolicy.BASIC);
-            authpref.add(AuthPolicy.DIGEST);
-            httpClient.getParams().setParameter(AuthPNames.TARGET_AUTH_PREF, authpref);
+            config.setTargetPreferredAuthSchemes(Arrays.asList(AuthSchemes.BASIC, AuthSchemes.DIGEST));
         }
+        httpRequest.setConfig(config.build());
 
         HttpResponse response = httpClient.execute(httpRequest, localcontext);
         // check for an error response from the server
         int statusCode = response.getStatusLine().getStatusCode();
         LOG.debug("WCS response status : " + statusCode);
         if (statusCode != 200) {
+            // release the connection to the pool
+            EntityUtils.consumeQuietly(response.getEntity());
             throw new ExtractorException(
                     "Error from server while fetching coverage: Response Satus Code not valid -> " + statusCode);
         }
@@ -463,7 +475,8 @@ class BoundWcsRequest extends WcsReaderRequest {
 
     public BoundWcsRequest withRequestBBox(ReferencedEnvelope newBBox) {
         return new BoundWcsRequest(version, coverage, newBBox, responseCRS, groundResolutionX, format, usePost,
-                remoteReproject, useCommandLineGDAL, username, password, _wcsUrl, _capabilities, _describeCoverage);
+                remoteReproject, useCommandLineGDAL, username, password, _wcsUrl, _capabilities, _describeCoverage,
+                httpClient, requestConfig);
     }
 
     public void assertLegalSize(long maxSize) throws IOException {
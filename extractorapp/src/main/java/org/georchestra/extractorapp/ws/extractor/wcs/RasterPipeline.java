@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.wcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.media.jai.Interpolation;
+import javax.media.jai.JAI;
+import javax.media.jai.TileCache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.coverage.processing.Operations;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.referencing.CRS;
+import org.geotools.util.factory.Hints;
+import org.opengis.coverage.Coverage;
+import org.opengis.coverage.grid.GridCoverage;
+import org.opengis.coverage.grid.GridCoverageWriter;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+
+/**
+ * Reprojects and encodes the downloaded coverages in the JVM, instead of
+ * spawning {@code gdalwarp} then {@code gdal_translate}.
+ * <p>
+ * The source coverage is read lazily, the reprojection is a JAI warp evaluated
+ * tile by tile and chained directly into the writer of the target format, so
+ * the raster is written once and only a bounded number of tiles is held in
+ * memory, in a tile cache dedicated to the extractions.
+ * <p>
+ * The pipeline is only used for the {@link #setFormats(String) configured
+ * formats} it is able to encode, none by default, the others are still handed
+ * to the GDAL command line when it is enabled.
+ */
+public class RasterPipeline {
+
+    private static final Log LOG = LogFactory.getLog(RasterPipeline.class.getPackage().getName());
+
+    /** formats with a GeoTools writer */
+    private static final Set<String> ENCODABLE = Collections
+            .unmodifiableSet(new HashSet<String>(Arrays.asList("geotiff", "tif", "tiff", "png", "gif", "jpeg")));
+
+    private static final int OUTPUT_TILE_SIZE = 512;
+
+    private Set<String> formats = Collections.emptySet();
+    private long tileCacheSize = 64;
+    private TileCache tileCache;
+    private Hints hints;
+
+    @PostConstruct
+    public void init() {
+        tileCache = JAI.createTileCache(tileCacheSize * 1024 * 1024);
+        hints = new Hints(Hints.LENIENT_DATUM_SHIFT, Boolean.TRUE);
+        hints.put(JAI.KEY_TILE_CACHE, tileCache);
+    }
+
+    @PreDestroy
+    public void dispose() {
+        if (tileCache != null) {
+            tileCache.flush();
+        }
+    }
+
+    /**
+     * @return whether the coverages requested in the given format are
+     *         transformed by this pipeline
+     */
+    public boolean handles(String format) {
+        return formats.contains(format.toLowerCase()) || (Formats.isGeotiff(format) && formats.contains("geotiff"));
+    }
+
+    /**
+     * Reprojects the source coverage to the response CRS of the target request,
+     * if needed, and writes it in the target format.
+     *
+     * @param sourceFile may be the same as the target file
+     */
+    public void transform(File sourceFile, File file, WcsReaderRequest targetRequest) throws IOException {
+        if (tileCache == null) {
+            init();
+        }
+        LOG.info("using the in-process raster pipeline to transform the coverage");
+        File tmpDir = FileUtils.createTempDirectory();
+        AbstractGridCoverage2DReader reader = CoverageTransformation.lookupFormat(sourceFile).getReader(sourceFile,
+                hints);
+        try {
+            Coverage coverage = reader.read(null);
+            if (!CRS.equalsIgnoreMetadata(targetRequest.responseCRS, coverage.getCoordinateReferenceSystem())) {
+                coverage = new Operations(hints).resample(coverage, targetRequest.responseCRS, null,
+                        Interpolation.getInstance(Interpolation.INTERP_BICUBIC));
+            }
+            // the source may be read off disk while writing, so write aside
+            File tmpFile = new File(tmpDir, file.getName());
+            write((GridCoverage) coverage, tmpFile, targetRequest.format);
+            reader.dispose();
+            reader = null;
+
+            // there may be several files if the format is world+image
+            for (File f : tmpDir.listFiles()) {
+                FileUtils.moveFile(f, new File(file.getParentFile(), f.getName()));
+            }
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+            FileUtils.delete(tmpDir);
+        }
+    }
+
+    private void write(GridCoverage coverage, File file, String format) throws IOException {
+        GridCoverageWriter writer;
+        GeneralParameterValue[] params;
+        if (Formats.isGeotiff(format)) {
+            GeoTiffWriteParams writeParams = new GeoTiffWriteParams();
+            writeParams.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
+            writeParams.setTiling(OUTPUT_TILE_SIZE, OUTPUT_TILE_SIZE);
+            ParameterValue<GeoToolsWriteParams> value = AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.createValue();
+            value.setValue(writeParams);
+            writer = new GeoTiffWriter(file, hints);
+            params = new GeneralParameterValue[] { value };
+        } else {
+            ParameterValue<String> value = WcsParameters.FORMAT.createValue();
+            value.setValue(format);
+            writer = Formats.getFormat(format).getWriter(file, hints);
+            params = new GeneralParameterValue[] { value };
+        }
+        try {
+            writer.write(coverage, params);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * @param formats comma separated list of the formats to transform in the JVM,
+     *                among geotiff, tif, tiff, png, gif and jpeg. Defaults to none,
+     *                the pipeline is then disabled.
+     */
+    public void setFormats(String formats) {
+        Set<String> selected = new HashSet<String>();
+        for (String format : formats.split(",")) {
+            String f = format.trim().toLowerCase();
+            if (f.isEmpty()) {
+                continue;
+            }
+            if (!ENCODABLE.contains(f)) {
+                throw new IllegalArgumentException(f + " cannot be encoded in process, supported: " + ENCODABLE);
+            }
+            selected.add(f);
+        }
+        this.formats = selected;
+    }
+
+    /**
+     * Memory used to cache the raster tiles, in megabytes. Defaults to 64.
+     */
+    public void setTileCacheSize(long tileCacheSize) {
+        this.tileCacheSize = tileCacheSize;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.extractorapp.ws.extractor.wcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.ExtractorException;
+import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.coverage.processing.CoverageProcessor;
+import org.geotools.coverage.processing.Operations;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.util.factory.Hints;
+import org.opengis.coverage.Coverage;
+import org.opengis.coverage.grid.GridCoverage;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValue;
+import org.opengis.parameter.ParameterValueGroup;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Retrieves a coverage as a grid of GeoTIFF tiles downloaded concurrently, then
+ * mosaics and reprojects them into a single tiled GeoTIFF.
+ * <p>
+ * The mosaic and the reprojection are JAI operations evaluated lazily: the
+ * GeoTIFF writer pulls the output tiles one after the other, each one reading
+ * only the parts of the downloaded tiles it covers, so the whole coverage is
+ * never held in memory. Every GetCoverage request being limited to a tile, the
+ * maximum coverage extraction size does not apply.
+ * <p>
+ * The number of tiles downloaded at the same time from a server is limited for
+ * all the extractions together, by the last concurrency configured. The tiles of
+ * all the servers are downloaded by a shared pool of
+ * {@value #DOWNLOAD_THREADS} threads: a retrieval takes the permit of a tile
+ * before submitting its download, so that the threads of the pool never wait
+ * for a busy server.
+ */
+class TiledCoverageRetrieval {
+
+    private static final Log LOG = LogFactory.getLog(TiledCoverageRetrieval.class.getPackage().getName());
+
+    /** size of the tiles of the GeoTIFF written */
+    private static final int OUTPUT_TILE_SIZE = 512;
+
+    /** maximum number of tiles downloaded at the same time from all the servers */
+    static final int DOWNLOAD_THREADS = 16;
+
+    /** download permits by server authority */
+    private static final ConcurrentMap<String, ServerPermits> SERVER_PERMITS = new ConcurrentHashMap<>();
+
+    private static final ThreadPoolExecutor DOWNLOADS;
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        DOWNLOADS = new ThreadPoolExecutor(DOWNLOAD_THREADS, DOWNLOAD_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread thread = new Thread(r);
+                    thread.setName("Extractorapp-wcs-tile-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        DOWNLOADS.allowCoreThreadTimeOut(true);
+    }
+
+    private final int tileSize;
+    private final int concurrency;
+
+    /**
+     * @param tileSize    width and height of the downloaded tiles, in pixels
+     * @param concurrency maximum number of tiles downloaded at the same time
+     *                    from a server
+     */
+    TiledCoverageRetrieval(int tileSize, int concurrency) {
+        this.tileSize = tileSize;
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * @return whether the request covers more than one tile and can be split, that
+     *         is the server accepts bboxes expressed in the response CRS
+     */
+    boolean accepts(BoundWcsRequest request) throws IOException {
+        Set<String> requestCrss = request.getSupportedRequestCRSs();
+        if (!requestCrss.isEmpty() && !requestCrss.contains(request.getResponseEpsgCode())) {
+            return false;
+        }
+        ReferencedEnvelope bbox = responseBbox(request);
+        double span = tileSize * request.crsResolution();
+        return bbox.getWidth() > span || bbox.getHeight() > span;
+    }
+
+    /**
+     * Downloads the tiles of the request and writes their mosaic to the given
+     * GeoTIFF file, in the CRS of the target request.
+     */
+    void retrieve(BoundWcsRequest request, WcsReaderRequest target, File file) throws IOException {
+        final ReferencedEnvelope bbox = responseBbox(request);
+        final CoordinateReferenceSystem crs = request.responseCRS;
+        final double span = tileSize * request.crsResolution();
+        final int cols = (int) Math.ceil(bbox.getWidth() / span);
+        final int rows = (int) Math.ceil(bbox.getHeight() / span);
+        LOG.info("Downloading coverage " + request.coverage + " as " + cols + "x" + rows + " tiles");
+
+        final Semaphore permits = permits(request.getUrl().getAuthority(), concurrency);
+        File tilesDir = FileUtils.createTempDirectory();
+        List<TileDownload> downloads = new ArrayList<TileDownload>();
+        try {
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < cols; col++) {
+                    double minx = bbox.getMinX() + col * span;
+                    double maxy = bbox.getMaxY() - row * span;
+                    ReferencedEnvelope tileBbox = new ReferencedEnvelope(minx, Math.min(minx + span, bbox.getMaxX()),
+                            Math.max(maxy - span, bbox.getMinY()), maxy, crs);
+                    BoundWcsRequest tileRequest = request.withRequestBBox(tileBbox);
+                    File tileFile = new File(tilesDir, "tile-" + row + "-" + col + ".tif");
+                    permits.acquire();
+                    TileDownload download = new TileDownload(tileRequest, tileFile, permits);
+                    downloads.add(download);
+                    download.future = DOWNLOADS.submit(download);
+                }
+            }
+            List<File> tiles = new ArrayList<File>();
+            for (TileDownload download : downloads) {
+                tiles.add(download.future.get());
+            }
+            mosaic(tiles, target.responseCRS, file);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExtractorException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new ExtractorException(e);
+        } finally {
+            for (TileDownload download : downloads) {
+                download.cancel();
+            }
+            FileUtils.delete(tilesDir);
+        }
+    }
+
+    /**
+     * Downloads a tile, once its permit is taken. The permit is released by the
+     * download, or by the retrieval if it cancels the download before it starts.
+     */
+    private static final class TileDownload implements Callable<File> {
+        private final BoundWcsRequest request;
+        private final File file;
+        private final Semaphore permits;
+        /** set by the one releasing the permit */
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        Future<File> future;
+
+        TileDownload(BoundWcsRequest request, File file, Semaphore permits) {
+            this.request = request;
+            this.file = file;
+            this.permits = permits;
+        }
+
+        @Override
+        public File call() throws IOException {
+            if (!claimed.compareAndSet(false, true)) {
+                throw new CancellationException();
+            }
+            try {
+                InputStream in = request.getCoverage();
+                try {
+                    WcsCoverageReader.writeToFile(file, in);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+                return file;
+            } finally {
+                permits.release();
+            }
+        }
+
+        void cancel() {
+            if (future != null) {
+                future.cancel(true);
+            }
+            if (claimed.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Permits of a server, their number follows the configured concurrency.
+     */
+    static final class ServerPermits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private int limit;
+
+        ServerPermits() {
+            super(0);
+        }
+
+        synchronized void resize(int newLimit) {
+            if (newLimit > limit) {
+                release(newLimit - limit);
+            } else if (newLimit < limit) {
+                // the permits in use are given back but not available anymore
+                reducePermits(limit - newLimit);
+            }
+            limit = newLimit;
+        }
+    }
+
+    private void mosaic(List<File> tiles, CoordinateReferenceSystem targetCrs, File file) throws IOException {
+        List<GeoTiffReader> readers = new ArrayList<GeoTiffReader>();
+        GeoTiffWriter writer = null;
+        try {
+            List<GridCoverage2D> coverages = new ArrayList<GridCoverage2D>();
+            for (File tile : tiles) {
+                GeoTiffReader reader = new GeoTiffReader(tile);
+                readers.add(reader);
+                coverages.add(reader.read(null));
+            }
+            CoverageProcessor processor = CoverageProcessor.getInstance();
+            ParameterValueGroup params = processor.getOperation("Mosaic").getParameters();
+            params.parameter("Sources").setValue(coverages);
+            Coverage output = processor.doOperation(params);
+
+            if (!CRS.equalsIgnoreMetadata(targetCrs, output.getCoordinateReferenceSystem())) {
+                Operations operations = new Operations(new Hints(Hints.LENIENT_DATUM_SHIFT, Boolean.TRUE));
+                output = operations.resample(output, targetCrs);
+            }
+
+            GeoTiffWriteParams writeParams = new GeoTiffWriteParams();
+            writeParams.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
+            writeParams.setTiling(OUTPUT_TILE_SIZE, OUTPUT_TILE_SIZE);
+            ParameterValue<GeoToolsWriteParams> writeParamsValue = AbstractGridFormat.GEOTOOLS_WRITE_PARAMS
+                    .createValue();
+            writeParamsValue.setValue(writeParams);
+
+            writer = new GeoTiffWriter(file);
+            writer.write((GridCoverage) output, new GeneralParameterValue[] { writeParamsValue });
+        } finally {
+            if (writer != null) {
+                writer.dispose();
+            }
+            for (GeoTiffReader reader : readers) {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the permits of the server, shared by all the retrievals and
+     *         resized to the given concurrency
+     */
+    static Semaphore permits(String authority, int concurrency) {
+        ServerPermits permits = SERVER_PERMITS.computeIfAbsent(authority, k -> new ServerPermits());
+        permits.resize(concurrency);
+        return permits;
+    }
+
+    private static ReferencedEnvelope responseBbox(BoundWcsRequest request) throws IOException {
+        try {
+            return request.requestBbox.transform(request.responseCRS, true, 10);
+        } catch (Exception e) {
+            throw new ExtractorException(e);
+        }
+    }
+}
@@ -51,6 +51,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.georchestra.extractorapp.ws.ExtractorException;
 import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.georchestra.extractorapp.ws.extractor.SharedHttpClient;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
@@ -109,6 +110,9 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
 
     private final URL _wcsUrl;
     private final long _maxCoverageExtractionSize;
+    private TiledCoverageRetrieval _tiling;
+    private RasterPipeline _rasterPipeline;
+    private SharedHttpClient _httpClient = SharedHttpClient.getDefault();
 
     /**
      * @param url     The url of the service <strong>WITH OUT</strong> the query
@@ -119,6 +123,37 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
         _maxCoverageExtractionSize = maxSize;
     }
 
+    /**
+     * Downloads the coverages extracted as GeoTIFF by tiles, instead of a single
+     * GetCoverage request.
+     *
+     * @param tileSize    width and height of the tiles in pixels, 0 disables the
+     *                    tiled mode
+     * @param concurrency maximum number of tiles downloaded at the same time from
+     *                    the server
+     * @see TiledCoverageRetrieval
+     */
+    public void setTiling(int tileSize, int concurrency) {
+        _tiling = tileSize > 0 ? new TiledCoverageRetrieval(tileSize, concurrency) : null;
+    }
+
+    /**
+     * Transforms the coverages in process, for the formats the pipeline handles,
+     * rather than with GDAL or the default GeoTools operations.
+     *
+     * @param rasterPipeline may be null
+     */
+    public void setRasterPipeline(RasterPipeline rasterPipeline) {
+        _rasterPipeline = rasterPipeline;
+    }
+
+    /**
+     * @param httpClient the client the requests to the WCS are made with
+     */
+    public void setHttpClient(SharedHttpClient httpClient) {
+        _httpClient = httpClient;
+    }
+
     @Override
     public WcsFormat getFormat() {
         return new WcsFormat(_maxCoverageExtractionSize);
@@ -185,6 +220,12 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
 
         try {
             WcsReaderRequest request = WcsReaderRequestFactory.create(parameters);
+            if (_tiling != null && Formats.isGeotiff(request.format)) {
+                File file = tiledRead(request, containingDirectory, baseFilename);
+                if (file != null) {
+                    return file;
+                }
+            }
             if (request.remoteReproject) {
                 return remoteReproject(request, containingDirectory, baseFilename);
             } else {
@@ -202,7 +243,7 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
             throws NoSuchAuthorityCodeException, FactoryException, IOException {
         InputStream input = null;
         try {
-            BoundWcsRequest requestNegotiatedFormat = negotiateFormat(request.bind(_wcsUrl));
+            BoundWcsRequest requestNegotiatedFormat = negotiateFormat(request.bind(_wcsUrl, _httpClient));
             BoundWcsRequest requestNegotiatedFormatCrs = negotiateRequestCRS(requestNegotiatedFormat);
             BoundWcsRequest requestNegotiatedFormatCrs2 = negotiateResponseCRS(requestNegotiatedFormatCrs);
             requestNegotiatedFormatCrs2.assertLegalSize(_maxCoverageExtractionSize);
@@ -226,12 +267,38 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
         }
     }
 
+    /**
+     * @return the GeoTIFF file, or null if the coverage is not worth or cannot be
+     *         downloaded by tiles
+     */
+    private File tiledRead(WcsReaderRequest request, File containingDirectory, String baseFilename)
+            throws NoSuchAuthorityCodeException, FactoryException, IOException {
+        BoundWcsRequest bound = request.bind(_wcsUrl, _httpClient);
+        Set<String> formats = bound.getSupportedFormats();
+        if (!formats.isEmpty() && !formats.contains("geotiff")) {
+            return null;
+        }
+        BoundWcsRequest tiledRequest = bound.withFormat("geotiff");
+        if (request.remoteReproject || tiledRequest.getNativeCRSs().isEmpty()) {
+            tiledRequest = negotiateResponseCRS(tiledRequest);
+        } else {
+            tiledRequest = tiledRequest.withCRS(tiledRequest.getNativeCRSs().iterator().next());
+        }
+        if (!_tiling.accepts(tiledRequest)) {
+            return null;
+        }
+        File file = new File(containingDirectory, baseFilename + "." + request.fileExtension());
+        LOG.debug("Writing tiled GridCoverage obtained from " + _wcsUrl + " to file " + file);
+        _tiling.retrieve(tiledRequest, request, file);
+        return file;
+    }
+
     private File localReproject(WcsReaderRequest request, File containingDirectory, String baseFilename)
             throws NoSuchAuthorityCodeException, FactoryException, IOException {
         InputStream input = null;
         File tmpFile = null;
         try {
-            BoundWcsRequest geotiffRequest = request.bind(_wcsUrl).withFormat("geotiff");
+            BoundWcsRequest geotiffRequest = request.bind(_wcsUrl, _httpClient).withFormat("geotiff");
             BoundWcsRequest requestNativeFormat = geotiffRequest
                     .withCRS(geotiffRequest.getNativeCRSs().iterator().next());
             requestNativeFormat.assertLegalSize(_maxCoverageExtractionSize);
@@ -268,7 +335,9 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
             } catch (FactoryException e) {
                 LOG.info("Need to reproject coverage from " + actual.getName() + " to " + original.getName());
             }
-            if (targetRequest.useCommandLineGDAL) {
+            if (_rasterPipeline != null && _rasterPipeline.handles(targetRequest.format)) {
+                _rasterPipeline.transform(sourceFile, file, targetRequest);
+            } else if (targetRequest.useCommandLineGDAL) {
                 GDALCommandLine.gdalTransformation(sourceFile, file, executedRequest, targetRequest);
             } else {
                 geotoolsTranformation(sourceFile, file, targetRequest, original);
@@ -276,7 +345,9 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
 
             LOG.info("Coverage reprojection/transformation complete");
         } else if (handleFormatTranform) {
-            if (targetRequest.useCommandLineGDAL) {
+            if (_rasterPipeline != null && _rasterPipeline.handles(targetRequest.format)) {
+                _rasterPipeline.transform(sourceFile, file, targetRequest);
+            } else if (targetRequest.useCommandLineGDAL) {
                 GDALCommandLine.gdalTransformation(sourceFile, file, executedRequest, targetRequest);
             } else {
                 // we need to re-implement convertFormat so it can handle non-world+image
@@ -403,7 +474,7 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
      * @param in
      * @throws IOException
      */
-    private void writeToFile(File file, InputStream in) throws IOException {
+    static void writeToFile(File file, InputStream in) throws IOException {
         FileOutputStream fout = new FileOutputStream(file);
         try {
             ReadableByteChannel channel = Channels.newChannel(in);
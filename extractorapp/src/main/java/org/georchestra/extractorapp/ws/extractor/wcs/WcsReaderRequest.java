@@ -44,6 +44,7 @@ import java.io.IOException;
 import java.net.URL;
 
 import org.georchestra.extractorapp.ws.ExtractorException;
+import org.georchestra.extractorapp.ws.extractor.SharedHttpClient;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.parameter.ParameterGroup;
 import org.geotools.referencing.GeodeticCalculator;
@@ -256,6 +257,13 @@ public class WcsReaderRequest {
         return new BoundWcsRequest(wcsUrl, this);
     }
 
+    /**
+     * @param httpClient the client the requests to the WCS are made with
+     */
+    public BoundWcsRequest bind(URL wcsUrl, SharedHttpClient httpClient) {
+        return new BoundWcsRequest(wcsUrl, this, httpClient);
+    }
+
     /*
      * ------------------- Package level support methods
      * ----------------------------------------
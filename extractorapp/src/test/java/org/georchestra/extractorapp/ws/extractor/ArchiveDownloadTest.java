@@ -0,0 +1,176 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class ArchiveDownloadTest {
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    private File archive;
+    private byte[] content;
+    private ArchiveDownload download;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        archive = tmp.newFile("uuid-extraction.zip");
+        Files.write(archive.toPath(), content);
+        download = new ArchiveDownload(archive, "application/zip", "extraction-uuid.zip");
+    }
+
+    @Test
+    public void testFullDownload() throws Exception {
+        MockHttpServletResponse response = send(new MockHttpServletRequest("GET", "/package"));
+
+        assertEquals(200, response.getStatus());
+        assertEquals("bytes", response.getHeader("Accept-Ranges"));
+        assertEquals(ArchiveDownload.etag(archive), response.getHeader("ETag"));
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void testHead() throws Exception {
+        MockHttpServletResponse response = send(new MockHttpServletRequest("HEAD", "/package"));
+
+        assertEquals(200, response.getStatus());
+        assertEquals("1000", response.getHeader("Content-Length"));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void testSingleRange() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/package");
+        request.addHeader("Range", "bytes=950-");
+        MockHttpServletResponse response = send(request);
+
+        assertEquals(206, response.getStatus());
+        assertEquals("bytes 950-999/1000", response.getHeader("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 950, 1000), response.getContentAsByteArray());
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/package");
+        request.addHeader("Range", "bytes=0-9, -10");
+        MockHttpServletResponse response = send(request);
+
+        assertEquals(206, response.getStatus());
+        assertTrue(response.getContentType().startsWith("multipart/byteranges; boundary="));
+        String body = new String(response.getContentAsByteArray(), StandardCharsets.ISO_8859_1);
+        assertTrue(body.contains("Content-Range: bytes 0-9/1000\r\n\r\n"
+                + new String(Arrays.copyOfRange(content, 0, 10), StandardCharsets.ISO_8859_1) + "\r\n--"));
+        assertTrue(body.contains("Content-Range: bytes 990-999/1000\r\n\r\n"
+                + new String(Arrays.copyOfRange(content, 990, 1000), StandardCharsets.ISO_8859_1) + "\r\n--"));
+        assertEquals(response.getContentAsByteArray().length, Integer.parseInt(response.getHeader("Content-Length")));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/package");
+        request.addHeader("Range", "bytes=1000-2000");
+        MockHttpServletResponse response = send(request);
+
+        assertEquals(416, response.getStatus());
+        assertEquals("bytes */1000", response.getHeader("Content-Range"));
+    }
+
+    @Test
+    public void testIfRangeWithOutdatedETagSendsWholeArchive() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/package");
+        request.addHeader("Range", "bytes=500-");
+        request.addHeader("If-Range", "\"outdated\"");
+        MockHttpServletResponse response = send(request);
+
+        assertEquals(200, response.getStatus());
+        assertArrayEquals(content, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void testIfRangeWithCurrentETag() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/package");
+        request.addHeader("Range", "bytes=500-");
+        request.addHeader("If-Range", ArchiveDownload.etag(archive));
+        MockHttpServletResponse response = send(request);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(500, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/package");
+        request.addHeader("If-None-Match", ArchiveDownload.etag(archive));
+        assertEquals(304, send(request).getStatus());
+
+        request = new MockHttpServletRequest("GET", "/package");
+        request.addHeader("If-Modified-Since", new Date(archive.lastModified() + 1000));
+        assertEquals(304, send(request).getStatus());
+    }
+
+    @Test
+    public void testPreconditionFailed() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/package");
+        request.addHeader("If-Match", "\"outdated\"");
+        assertEquals(412, send(request).getStatus());
+    }
+
+    @Test
+    public void testContainerSendfile() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/package");
+        request.setAttribute(ArchiveDownload.SENDFILE_SUPPORT, Boolean.TRUE);
+        request.addHeader("Range", "bytes=100-199");
+        MockHttpServletResponse response = send(request);
+
+        assertEquals(206, response.getStatus());
+        assertEquals(archive.getCanonicalPath(), request.getAttribute(ArchiveDownload.SENDFILE_FILENAME));
+        assertEquals(100L, request.getAttribute(ArchiveDownload.SENDFILE_START));
+        assertEquals(200L, request.getAttribute(ArchiveDownload.SENDFILE_END));
+        assertEquals(0, response.getContentAsByteArray().length);
+    }
+
+    @Test
+    public void testParseRanges() {
+        assertRanges("bytes=0-99", 1000, new long[] { 0, 99 });
+        assertRanges("bytes=-100", 1000, new long[] { 900, 999 });
+        assertRanges("bytes=900-5000", 1000, new long[] { 900, 999 });
+        assertRanges("bytes=50-60,0-9,5-20", 1000, new long[] { 0, 20 }, new long[] { 50, 60 });
+        assertRanges("bytes=1000-", 1000);
+        assertNull(ArchiveDownload.parseRanges("bytes=100-50", 1000));
+        assertNull(ArchiveDownload.parseRanges("items=0-1", 1000));
+        assertNull(ArchiveDownload.parseRanges("bytes=a-b", 1000));
+    }
+
+    private void assertRanges(String header, long length, long[]... expected) {
+        List<long[]> ranges = ArchiveDownload.parseRanges(header, length);
+        assertEquals(expected.length, ranges.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], ranges.get(i));
+        }
+    }
+
+    private MockHttpServletResponse send(MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        download.send(request, response);
+        return response;
+    }
+}
@@ -0,0 +1,176 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.georchestra.extractorapp.ws.extractor.task.ExtractionQueueStore;
+import org.georchestra.extractorapp.ws.extractor.task.ExtractionQueueStore.StoredArchive;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+public class ArchiveIndexTest {
+
+    private static final long DAYS = 24 * 60 * 60 * 1000;
+    private static final int MEGABYTE = 1024 * 1024;
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    private String storageDirProp;
+    private ArchiveIndex index;
+
+    @Before
+    public void setUp() throws IOException {
+        storageDirProp = System.getProperty("extractor.storage.dir");
+        System.setProperty("extractor.storage.dir", tmp.newFolder("storage").getAbsolutePath());
+        index = new ArchiveIndex();
+    }
+
+    @After
+    public void tearDown() {
+        if (storageDirProp != null) {
+            System.setProperty("extractor.storage.dir", storageDirProp);
+        } else {
+            System.clearProperty("extractor.storage.dir");
+        }
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        File old = archive("old", 10, System.currentTimeMillis() - 11 * DAYS);
+        File recent = archive("recent", 10, System.currentTimeMillis() - DAYS);
+        index.register(old, "user1");
+        index.register(recent, "user1");
+
+        index.expire(10 * DAYS);
+
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        assertEquals(10, index.getUserSize("user1"));
+    }
+
+    @Test
+    public void testUserQuotaEvictsLeastRecentlyUsed() throws Exception {
+        index.setMaxUserSize(1);
+        File first = register("first", MEGABYTE / 2, "user1");
+        File second = register("second", MEGABYTE / 2, "user1");
+        File other = register("other", MEGABYTE / 2, "user2");
+        // first was downloaded since, second becomes the least recently used
+        index.touch(first.getName());
+
+        File third = register("third", MEGABYTE / 2, "user1");
+
+        assertTrue(first.exists());
+        assertFalse(second.exists());
+        assertTrue(third.exists());
+        assertTrue(other.exists());
+        assertEquals(MEGABYTE, index.getUserSize("user1"));
+    }
+
+    @Test
+    public void testGlobalQuota() throws Exception {
+        index.setMaxSize(1);
+        File first = register("first", MEGABYTE / 2, "user1");
+        File second = register("second", MEGABYTE / 2, "user2");
+        File third = register("third", MEGABYTE / 2, "user3");
+
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+        assertTrue(third.exists());
+        assertEquals(MEGABYTE, index.getTotalSize());
+    }
+
+    @Test
+    public void testArchiveOverQuotaOnItsOwn() throws Exception {
+        index.setMaxUserSize(1);
+        File small = register("small", MEGABYTE / 2, "user1");
+        File large = archive("large", 2 * MEGABYTE, System.currentTimeMillis());
+        try {
+            index.register(large, "user1");
+            fail("ArchiveQuotaExceededException expected");
+        } catch (ArchiveQuotaExceededException e) {
+            // expected
+        }
+
+        assertFalse(large.exists());
+        assertTrue(small.exists());
+        assertEquals(MEGABYTE / 2, index.getUserSize("user1"));
+    }
+
+    @Test
+    public void testScanReadsOwnersFromQueue() throws Exception {
+        long created = System.currentTimeMillis() - 11 * DAYS;
+        File stored = archive("stored", 10, System.currentTimeMillis());
+        File replaced = archive("replaced", 20, System.currentTimeMillis());
+        ExtractionQueueStore queueStore = Mockito.mock(ExtractionQueueStore.class);
+        Map<String, StoredArchive> archives = new HashMap<>();
+        archives.put("stored", new StoredArchive("user1", 10, new Date(created)));
+        archives.put("replaced", new StoredArchive("user2", 30, new Date(created)));
+        Mockito.when(queueStore.listArchives()).thenReturn(archives);
+        index.setQueueStore(queueStore);
+
+        index.scan();
+
+        assertEquals(10, index.getUserSize("user1"));
+        assertEquals(0, index.getUserSize("user2"));
+        assertEquals(20, index.getUserSize(ArchiveIndex.UNKNOWN_OWNER));
+
+        // the recorded creation time is used for the expiry
+        index.expire(10 * DAYS);
+        assertFalse(stored.exists());
+        assertTrue(replaced.exists());
+    }
+
+    @Test
+    public void testScanFindsArchivesWrittenByOtherMeans() throws Exception {
+        File external = archive("external", 10, System.currentTimeMillis() - 11 * DAYS);
+        File registered = archive("registered", 20, System.currentTimeMillis());
+        index.register(registered, "user1");
+        assertEquals(30, index.getTotalSize());
+
+        registered.delete();
+        index.scan();
+        assertEquals(10, index.getTotalSize());
+
+        index.expire(10 * DAYS);
+        assertFalse(external.exists());
+        assertEquals(0, index.getTotalSize());
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        index.register(archive("a", 10, System.currentTimeMillis()), "user1");
+        archive("b", 5, System.currentTimeMillis());
+        index.scan();
+
+        assertEquals(2, index.statsAsJson().getInt("archives"));
+        assertEquals(15, index.statsAsJson().getLong("size"));
+        assertEquals(10, index.statsAsJson().getJSONObject("users").getLong("user1"));
+        assertEquals(5, index.statsAsJson().getJSONObject("users").getLong("unknown"));
+    }
+
+    private File register(String uuid, int size, String owner) throws IOException {
+        File file = archive(uuid, size, System.currentTimeMillis());
+        index.register(file, owner);
+        return file;
+    }
+
+    private File archive(String uuid, int size, long lastModified) throws IOException {
+        File file = FileUtils.storageFile(uuid + ExtractorController.EXTRACTION_ZIP_EXT);
+        Files.write(file.toPath(), new byte[size]);
+        file.setLastModified(lastModified);
+        return file;
+    }
+}
@@ -0,0 +1,166 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.DataStore;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.SchemaException;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.JTSFactoryFinder;
+import org.geotools.geopkg.FeatureEntry;
+import org.geotools.geopkg.GeoPackage;
+import org.geotools.geopkg.GeoPkgDataStoreFactory;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class GeoPackageFeatureWriterTest {
+
+    private static final Log LOG = LogFactory.getLog(GeoPackageFeatureWriterTest.class.getPackage().getName());
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    public @Test void testWritesAllFeaturesInOneFile() throws Exception {
+        // more than one insert batch
+        SimpleFeatureCollection features = buildPoints(GeoPackageFeatureWriter.BATCH_SIZE * 2 + 10);
+
+        List<File> files = new GeoPackageFeatureWriter(tmp.getRoot(), features).generateFiles();
+
+        assertEquals(1, files.size());
+        File file = files.get(0);
+        assertEquals("Points.gpkg", file.getName());
+
+        DataStore ds = openGeoPackage(file);
+        try {
+            SimpleFeatureSource source = ds.getFeatureSource("Points");
+            assertEquals(features.size(), source.getCount(Query.ALL));
+            SimpleFeatureType schema = source.getSchema();
+            assertNotNull(schema.getDescriptor("name"));
+            assertEquals(Point.class, schema.getGeometryDescriptor().getType().getBinding());
+        } finally {
+            ds.dispose();
+        }
+    }
+
+    public @Test void testCreatesSpatialIndex() throws Exception {
+        SimpleFeatureCollection features = buildPoints(10);
+
+        File file = new GeoPackageFeatureWriter(tmp.getRoot(), features).generateFiles().get(0);
+
+        GeoPackage geopkg = new GeoPackage(file);
+        try {
+            FeatureEntry entry = geopkg.feature("Points");
+            assertNotNull(entry);
+            assertTrue(geopkg.hasSpatialIndex(entry));
+        } finally {
+            geopkg.close();
+        }
+    }
+
+    public @Test void testEmptyCollection() throws Exception {
+        SimpleFeatureCollection features = buildPoints(0);
+
+        File file = new GeoPackageFeatureWriter(tmp.getRoot(), features).generateFiles().get(0);
+
+        DataStore ds = openGeoPackage(file);
+        try {
+            assertEquals(0, ds.getFeatureSource("Points").getCount(Query.ALL));
+        } finally {
+            ds.dispose();
+        }
+    }
+
+    /**
+     * Compares the write throughput and the zipped size of the vector formats.
+     * Only runs when the {@code featureWriter.benchmark} system property gives
+     * the number of features to write, e.g. {@code -DfeatureWriter.benchmark=1000000}.
+     */
+    public @Test void benchmarkFormats() throws Exception {
+        String count = System.getProperty("featureWriter.benchmark");
+        Assume.assumeTrue("No benchmark size given", count != null);
+        SimpleFeatureCollection features = buildPoints(Integer.parseInt(count));
+
+        for (FileFormat format : FileFormat.values()) {
+            File basedir = tmp.newFolder(format.name());
+            long start = System.nanoTime();
+            List<File> files;
+            switch (format) {
+            case shp:
+                files = new ShpFeatureWriter(basedir, features).generateFiles();
+                break;
+            case kml:
+                files = new KMLFeatureWriter(basedir, features).generateFiles();
+                break;
+            default:
+                files = new GeoPackageFeatureWriter(basedir, features).generateFiles();
+            }
+            long millis = (System.nanoTime() - start) / 1000000;
+            long size = files.stream().mapToLong(File::length).sum();
+            long zipped = zip(files, new File(tmp.getRoot(), format.name() + ".zip")).length();
+            LOG.info(String.format("%-5s %8d ms %10.0f features/s %12d bytes %12d zipped", format, millis,
+                    features.size() * 1000d / Math.max(1, millis), size, zipped));
+        }
+    }
+
+    private File zip(List<File> files, File target) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(target))) {
+            for (File file : files) {
+                out.putNextEntry(new ZipEntry(file.getName()));
+                try (InputStream in = new FileInputStream(file)) {
+                    IOUtils.copy(in, out);
+                }
+                out.closeEntry();
+            }
+        }
+        return target;
+    }
+
+    private DataStore openGeoPackage(File file) throws IOException {
+        Map<String, Serializable> params = new HashMap<>();
+        params.put(GeoPkgDataStoreFactory.DBTYPE.key, "geopkg");
+        params.put(GeoPkgDataStoreFactory.DATABASE.key, file.getAbsolutePath());
+        return new GeoPkgDataStoreFactory().createDataStore(params);
+    }
+
+    private SimpleFeatureCollection buildPoints(int count) throws SchemaException {
+        SimpleFeatureType schema = DataUtilities.createType("Points", "geom:Point:srid=4326,name:String,value:Double");
+        ListFeatureCollection list = new ListFeatureCollection(schema);
+        GeometryFactory gf = JTSFactoryFinder.getGeometryFactory();
+        SimpleFeatureBuilder b = new SimpleFeatureBuilder(schema);
+        for (int i = 0; i < count; i++) {
+            b.add(gf.createPoint(new Coordinate(-180 + (i % 3600) / 10d, -90 + (i / 3600 % 1800) / 10d)));
+            b.add("feature " + i);
+            b.add(i / 7d);
+            SimpleFeature f = b.buildFeature("Points." + i);
+            list.add(f);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,49 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.junit.Test;
+import org.opengis.referencing.NoSuchAuthorityCodeException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+public class ReferencingCacheTest {
+
+    @Test
+    public void testDecode() throws Exception {
+        CoordinateReferenceSystem crs = ReferencingCache.decode("EPSG:2154");
+        assertSame(crs, ReferencingCache.decode("EPSG:2154"));
+        assertEquals(CRS.decode("EPSG:2154"), crs);
+    }
+
+    @Test(expected = NoSuchAuthorityCodeException.class)
+    public void testDecodeUnknownCode() throws Exception {
+        ReferencingCache.decode("EPSG:999999");
+    }
+
+    @Test
+    public void testFindMathTransform() throws Exception {
+        CoordinateReferenceSystem source = ReferencingCache.decode("EPSG:2154");
+        CoordinateReferenceSystem target = ReferencingCache.decode("EPSG:4326");
+        assertSame(ReferencingCache.findMathTransform(source, target),
+                ReferencingCache.findMathTransform(source, target));
+    }
+
+    @Test
+    public void testTransformMatchesReferencedEnvelope() throws Exception {
+        ReferencedEnvelope bbox = new ReferencedEnvelope(500000, 800000, 6870000, 7110000,
+                ReferencingCache.decode("EPSG:2154"));
+        CoordinateReferenceSystem wgs84 = ReferencingCache.decode("EPSG:4326");
+
+        ReferencedEnvelope expected = bbox.transform(wgs84, true);
+        ReferencedEnvelope actual = ReferencingCache.transform(bbox, wgs84);
+
+        assertEquals(expected.getMinX(), actual.getMinX(), 1e-9);
+        assertEquals(expected.getMinY(), actual.getMinY(), 1e-9);
+        assertEquals(expected.getMaxX(), actual.getMaxX(), 1e-9);
+        assertEquals(expected.getMaxY(), actual.getMaxY(), 1e-9);
+        assertSame(wgs84, actual.getCoordinateReferenceSystem());
+    }
+}
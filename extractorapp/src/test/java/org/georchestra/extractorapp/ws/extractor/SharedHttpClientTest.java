@@ -0,0 +1,89 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class SharedHttpClientTest extends AbstractTestWithServer {
+
+    private SharedHttpClient client;
+
+    @Before
+    public void setUp() {
+        client = new SharedHttpClient();
+        client.setMaxPerRoute(2);
+        client.setUserAgent("test-agent");
+        client.init();
+    }
+
+    @After
+    public void tearDown() {
+        client.dispose();
+    }
+
+    @Override
+    protected void configureContext(HttpServer server) {
+        server.createContext("/echo", httpExchange -> respond(httpExchange,
+                httpExchange.getRequestHeaders().getFirst("User-Agent").getBytes("UTF-8")));
+        server.createContext("/gzip", httpExchange -> {
+            String acceptEncoding = httpExchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (acceptEncoding == null || !acceptEncoding.contains("gzip")) {
+                respond(httpExchange, "plain".getBytes("UTF-8"));
+                return;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write("compressed".getBytes("UTF-8"));
+            }
+            httpExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            respond(httpExchange, out.toByteArray());
+        });
+    }
+
+    private void respond(HttpExchange httpExchange, byte[] body) throws IOException {
+        httpExchange.sendResponseHeaders(200, body.length);
+        httpExchange.getResponseBody().write(body);
+        httpExchange.close();
+    }
+
+    private HttpHost host() {
+        return new HttpHost("localhost", getServerPort());
+    }
+
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            assertEquals("test-agent", client.getAsString(host(), new HttpGet("/echo"), HttpClientContext.create()));
+        }
+        JSONObject stats = client.statsAsJson();
+        assertEquals(10, stats.getLong("requestCount"));
+        assertEquals(1, stats.getLong("openedConnections"));
+        assertEquals(0, stats.getInt("leased"));
+        assertEquals(1, stats.getJSONArray("routes").length());
+    }
+
+    @Test
+    public void testRequestUserAgent() throws Exception {
+        HttpGet get = new HttpGet("/echo");
+        get.setHeader("User-Agent", "Apache-HttpClient");
+        assertEquals("Apache-HttpClient", client.getAsString(host(), get, HttpClientContext.create()));
+    }
+
+    @Test
+    public void testGzipIsNegotiated() throws Exception {
+        assertEquals("compressed", client.getAsString(host(), new HttpGet("/gzip"), HttpClientContext.create()));
+    }
+}
@@ -3,17 +3,29 @@ package org.georchestra.extractorapp.ws.extractor;
 import static java.lang.String.valueOf;
 import static org.junit.Assert.*;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Method;
+import java.io.StringReader;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
 import org.georchestra.extractorapp.ws.ExtractorException;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -22,10 +34,10 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.opengis.coverage.grid.GridEnvelope;
 import org.opengis.referencing.FactoryException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
-import org.springframework.util.ReflectionUtils;
 
 import com.google.common.io.Files;
 import com.sun.net.httpserver.Headers;
@@ -68,48 +80,70 @@ public class WcsExtractorTest extends AbstractTestWithServer {
     }
 
     @Test
-    public void testisLayerPresent() throws IOException {
+    public void testCheckPermission_Cached() throws Exception {
+        final List<String> queries = new ArrayList<String>();
+        setServerContext("/geoserver/wcs", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange httpExchange) throws IOException {
+                String query = httpExchange.getRequestURI().getQuery();
+                queries.add(query);
+                if (query.contains("UPDATESEQUENCE=89")) {
+                    writeResponse(httpExchange, ("<ServiceExceptionReport version=\"1.1.1\">"
+                            + "<ServiceException code=\"CurrentUpdateSequence\"/></ServiceExceptionReport>")
+                                    .getBytes("UTF-8"));
+                } else {
+                    respondWith1_0_0CapabiltiesDocument(httpExchange);
+                }
+            }
+        });
+        WcsPermissionCache cache = new WcsPermissionCache();
+        cache.init();
+        RequestConfiguration requestConfig = createRequestConfiguration(null, null, 0, cache);
+        WcsExtractor wcsExtractor = new WcsExtractor(testDir.getRoot(), requestConfig);
+
+        wcsExtractor.checkPermission(createLayerRequestObject("nurc:Arc_Sample", "geotiff"), "localhost", null, null);
+        assertEquals(1, queries.size());
+
+        // served from the cache
+        wcsExtractor.checkPermission(createLayerRequestObject("Arc_Sample", "geotiff"), "localhost", null, null);
+        assertEquals(1, queries.size());
+
+        // unknown layers are checked against the update sequence of the cached capabilities
+        try {
+            wcsExtractor.checkPermission(createLayerRequestObject("nurc:unknown", "geotiff"), "localhost", null,
+                    null);
+            fail("SecurityException expected");
+        } catch (SecurityException e) {
+            // expected
+        }
+        assertEquals(2, queries.size());
+        assertTrue(queries.get(1), queries.get(1).contains("UPDATESEQUENCE=89"));
+    }
+
+    @Test
+    public void testCapabilitiesScanFindsLayer() throws IOException {
         final String ilpGetCap = "<WMS_Capabilities><Capability><Layer><Name>prefixed:MY_LAYER</Name></Layer></Capability></WMS_Capabilities>";
         final String ilpGetCapNoPrefix = "<WMS_Capabilities>" + "  <Capability>" + "    <Layer>\n"
                 + "      <Name>MY_LAYER</Name>\n" + "    </Layer>" + "  </Capability>" + "</WMS_Capabilities>";
 
-        RequestConfiguration requestConfig = createRequestConfiguration(null, null);
-        WcsExtractor wcsExtractor = new WcsExtractor(testDir.getRoot(), requestConfig);
-        Class[] params = { String.class, String.class };
-
-        Method ilpm = ReflectionUtils.findMethod(WcsExtractor.class, "isLayerPresent", params);
-        ilpm.setAccessible(true);
-
         // Testing with a GetCapabilities containing a prefix
-        String[] p1 = { ilpGetCap, "prefixed:MY_LAYER" };
-        String[] p2 = { ilpGetCap, "MY_LAYER" };
-        String[] p3 = { ilpGetCap, "NOT_EXISTING" };
-        String[] p4 = { ilpGetCap, "prefixed:NOT_EXISTING" };
-
-        assertTrue("Expected true, got false (prefixed:MY_LAYER)",
-                Boolean.parseBoolean(ReflectionUtils.invokeMethod(ilpm, wcsExtractor, p1).toString()));
-        assertTrue("Expected true, got false (MY_LAYER)",
-                Boolean.parseBoolean(ReflectionUtils.invokeMethod(ilpm, wcsExtractor, p2).toString()));
-        assertFalse("Expected false, got true (NOT_EXISTING)",
-                Boolean.parseBoolean(ReflectionUtils.invokeMethod(ilpm, wcsExtractor, p3).toString()));
+        assertTrue("Expected true, got false (prefixed:MY_LAYER)", isLayerPresent(ilpGetCap, "prefixed:MY_LAYER"));
+        assertTrue("Expected true, got false (MY_LAYER)", isLayerPresent(ilpGetCap, "MY_LAYER"));
+        assertFalse("Expected false, got true (NOT_EXISTING)", isLayerPresent(ilpGetCap, "NOT_EXISTING"));
         assertFalse("Expected false, got true (prefixed:NOT_EXISTING)",
-                Boolean.parseBoolean(ReflectionUtils.invokeMethod(ilpm, wcsExtractor, p4).toString()));
+                isLayerPresent(ilpGetCap, "prefixed:NOT_EXISTING"));
 
         // Testing with a GetCapabilities containing no prefix
-        String[] p5 = { ilpGetCapNoPrefix, "prefixed:MY_LAYER" };
-        String[] p6 = { ilpGetCapNoPrefix, "MY_LAYER" };
-        String[] p7 = { ilpGetCapNoPrefix, "NOT_EXISTING" };
-        String[] p8 = { ilpGetCapNoPrefix, "prefixed:NOT_EXISTING" };
-
         assertTrue("Expected true, got false (prefixed:MY_LAYER)",
-                Boolean.parseBoolean(ReflectionUtils.invokeMethod(ilpm, wcsExtractor, p5).toString()));
-        assertTrue("Expected true, got false (MY_LAYER)",
-                Boolean.parseBoolean(ReflectionUtils.invokeMethod(ilpm, wcsExtractor, p6).toString()));
-        assertFalse("Expected false, got true (NOT_EXISTING)",
-                Boolean.parseBoolean(ReflectionUtils.invokeMethod(ilpm, wcsExtractor, p7).toString()));
+                isLayerPresent(ilpGetCapNoPrefix, "prefixed:MY_LAYER"));
+        assertTrue("Expected true, got false (MY_LAYER)", isLayerPresent(ilpGetCapNoPrefix, "MY_LAYER"));
+        assertFalse("Expected false, got true (NOT_EXISTING)", isLayerPresent(ilpGetCapNoPrefix, "NOT_EXISTING"));
         assertFalse("Expected false, got true (prefixed:NOT_EXISTING)",
-                Boolean.parseBoolean(ReflectionUtils.invokeMethod(ilpm, wcsExtractor, p8).toString()));
+                isLayerPresent(ilpGetCapNoPrefix, "prefixed:NOT_EXISTING"));
+    }
 
+    private boolean isLayerPresent(String getCapabilitiesDocument, String layerName) throws IOException {
+        return WcsPermissionCache.scan(new StringReader(getCapabilitiesDocument), layerName, false).found;
     }
 
     @Test
@@ -197,13 +231,96 @@ public class WcsExtractorTest extends AbstractTestWithServer {
         }
     }
 
+    @Test
+    public void testExtract_TiledGeotiff() throws Exception {
+        final AtomicInteger getCoverageRequests = new AtomicInteger();
+        setServerContext("/geoserver/wcs", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange httpExchange) throws IOException {
+                final String query = httpExchange.getRequestURI().getQuery().toUpperCase();
+                if (query.contains("REQUEST=DESCRIBECOVERAGE")) {
+                    respondWith1_0_0DescribeCoverageDocument(httpExchange);
+                } else if (query.contains("REQUEST=GETCOVERAGE")) {
+                    getCoverageRequests.incrementAndGet();
+                    respondWithGeneratedGeotiff(httpExchange);
+                } else {
+                    sendError(httpExchange, 404, "Not a recognized request: " + httpExchange.getRequestURI());
+                }
+            }
+        });
+        RequestConfiguration requestConfig = createRequestConfiguration(null, null, 2048);
+        WcsExtractor wcsExtractor = new WcsExtractor(testDir.getRoot(), requestConfig);
+
+        // 45 degrees at 1000m ~= 5000 pixels, that is 3x3 tiles
+        ExtractorLayerRequest request = createLayerRequestObject("nurc:Arc_Sample", "geotiff");
+        final File extract = wcsExtractor.extract(request);
+
+        assertEquals(9, getCoverageRequests.get());
+        final File[] files = extract.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName(), files[0].getName().endsWith(".tif"));
+
+        GeoTiffReader reader = new GeoTiffReader(files[0]);
+        try {
+            GridEnvelope range = reader.getOriginalGridRange();
+            assertTrue(range.getSpan(0) > 2 * 2048);
+            assertEquals(range.getSpan(0), range.getSpan(1), 2);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    /**
+     * Responds with a GeoTIFF covering the requested BBOX at the requested
+     * resolution.
+     */
+    private void respondWithGeneratedGeotiff(HttpExchange httpExchange) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for (String param : httpExchange.getRequestURI().getQuery().split("&")) {
+            String[] keyValue = param.split("=", 2);
+            params.put(keyValue[0].toUpperCase(), keyValue.length > 1 ? keyValue[1] : "");
+        }
+        String[] bbox = params.get("BBOX").split(",");
+        double minx = Double.parseDouble(bbox[0]), miny = Double.parseDouble(bbox[1]);
+        double maxx = Double.parseDouble(bbox[2]), maxy = Double.parseDouble(bbox[3]);
+        double res = Double.parseDouble(params.get("RESX"));
+        int width = (int) Math.max(1, Math.round((maxx - minx) / res));
+        int height = (int) Math.max(1, Math.round((maxy - miny) / res));
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        ReferencedEnvelope envelope = new ReferencedEnvelope(minx, maxx, miny, maxy, DefaultGeographicCRS.WGS84);
+        GridCoverage2D coverage = new GridCoverageFactory().create("tile", image, envelope);
+        File tile = testDir.newFile();
+        GeoTiffWriter writer = new GeoTiffWriter(tile);
+        try {
+            writer.write(coverage, null);
+        } finally {
+            writer.dispose();
+        }
+        byte[] response = java.nio.file.Files.readAllBytes(tile.toPath());
+        writeResponse(httpExchange, response);
+    }
+
     public RequestConfiguration createRequestConfiguration(String extractorappUsername, String extractorappPassword) {
+        return createRequestConfiguration(extractorappUsername, extractorappPassword, 0);
+    }
+
+    public RequestConfiguration createRequestConfiguration(String extractorappUsername, String extractorappPassword,
+            int wcsTileSize) {
+        return createRequestConfiguration(extractorappUsername, extractorappPassword, wcsTileSize, null);
+    }
+
+    public RequestConfiguration createRequestConfiguration(String extractorappUsername, String extractorappPassword,
+            int wcsTileSize, WcsPermissionCache permissionCache) {
         UsernamePasswordCredentials adminCredentials = null;
         if (extractorappUsername != null) {
             adminCredentials = new UsernamePasswordCredentials(extractorappUsername, extractorappPassword);
         }
-        return new RequestConfiguration(null, null, null, null, true, null, null, null, adminCredentials, "localhost",
-                this.testDir.getRoot().toString(), 10000000, true, false, null, null);
+        RequestConfiguration requestConfig = new RequestConfiguration(null, null, null, null, true, null, null, null,
+                adminCredentials, "localhost", this.testDir.getRoot().toString(), 10000000, true, false, null, null);
+        requestConfig.setWcsTiling(wcsTileSize, 2);
+        requestConfig.setWcsPermissionCache(permissionCache);
+        return requestConfig;
     }
 
     @Override
@@ -48,6 +48,8 @@ public class WfsExtractor1_0_0Test extends AbstractTestWithServer {
     private WFSDataStoreFactory factory;
     private boolean usesVersion1_0_0;
     private boolean serverWasCalled = false;
+    private int capabilitiesRequests = 0;
+    private int getFeatureRequests = 0;
 
     @Before
     public void before() throws IOException {
@@ -64,10 +66,12 @@ public class WfsExtractor1_0_0Test extends AbstractTestWithServer {
                 serverWasCalled = true;
                 usesVersion1_0_0 &= query.contains("VERSION=1.0.0");
                 if (query.contains("REQUEST=GETCAPABILITIES")) {
+                    capabilitiesRequests++;
                     respondWith1_0_0CapabiltiesDocument(httpExchange);
                 } else if (query.contains("REQUEST=DESCRIBEFEATURETYPE")) {
                     respondWith1_0_0DescribeFeatureDocument(httpExchange);
                 } else if (query.contains("REQUEST=GETFEATURE")) {
+                    getFeatureRequests++;
                     respondWith1_0_0GetFeatureDocument(httpExchange);
                 } else {
                     sendError(httpExchange, 404, "Not a recognized request: " + httpExchange.getRequestURI());
@@ -171,6 +175,51 @@ public class WfsExtractor1_0_0Test extends AbstractTestWithServer {
         assertTrue(bounds.contains(calculateBounds(data.getFeatureSource())));
     }
 
+    @Test
+    public void testExtract_ReusesCachedDataStore() throws Exception {
+        WfsDataStoreCache cache = new WfsDataStoreCache();
+        cache.init();
+        try {
+            ExtractorLayerRequest request = createLayerRequestObject("sf:archsites");
+
+            new WfsExtractor(testDir.newFolder("first"), "", "", "localhost", null, cache).extract(request);
+            final int requestsAfterFirstExtraction = capabilitiesRequests;
+            final File extract = new WfsExtractor(testDir.newFolder("second"), "", "", "localhost", null, cache)
+                    .extract(request);
+
+            assertEquals(requestsAfterFirstExtraction, capabilitiesRequests);
+            assertEquals(1, cache.size());
+            assertEquals(1, cache.getStats().hitCount());
+            assertEquals(12, extract.listFiles().length);
+        } finally {
+            cache.dispose();
+        }
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testExtract_PagedDownloadResumesFromCheckpoints() throws Exception {
+        File checkpointDir = testDir.newFolder("checkpoints");
+        ExtractorLayerRequest request = createLayerRequestObject("sf:archsites");
+
+        WfsExtractor wfsExtractor = new WfsExtractor(testDir.newFolder("first"));
+        wfsExtractor.setPaging(2, 2, checkpointDir);
+        wfsExtractor.extract(request);
+
+        assertEquals(4, getFeatureRequests);
+        File[] pages = new File(checkpointDir, "2x2").listFiles();
+        assertEquals(4, pages.length);
+        assertTrue(Arrays.stream(pages).allMatch(f -> f.getName().endsWith(".page")));
+
+        // every page is checkpointed, a new attempt doesn't download anything
+        wfsExtractor = new WfsExtractor(testDir.newFolder("second"));
+        wfsExtractor.setPaging(2, 2, checkpointDir);
+        File extract = wfsExtractor.extract(request);
+
+        assertEquals(4, getFeatureRequests);
+        assertBoundingPolygon(extract);
+    }
+
     @Test
     public void testExtract_1_0_0_KmlOutput() throws Exception {
 
@@ -23,6 +23,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -111,6 +112,45 @@ public class CSWExtractorTest extends AbstractTestWithServer {
         assertTrue(metadata.contains("<gmd:MD_Metadata"));
     }
 
+    @Test
+    public void testExtractRevalidatesCachedMetadata() throws Exception {
+        final String etag = "\"v1\"";
+        final AtomicInteger notModified = new AtomicInteger();
+        setServerContext(CONTEXT, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange httpExchange) throws IOException {
+                if (etag.equals(httpExchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModified.incrementAndGet();
+                    httpExchange.sendResponseHeaders(304, -1);
+                    httpExchange.close();
+                    return;
+                }
+                httpExchange.getResponseHeaders().set("ETag", etag);
+                respondWithMetadataDocument(httpExchange);
+            }
+        });
+        MetadataHarvester harvester = new MetadataHarvester();
+        harvester.init();
+        try {
+            final URL url = createExtractionRequest(MD_UUID)._isoMetadataURL;
+            File first = folder.newFolder("first");
+            File second = folder.newFolder("second");
+            for (File dir : new File[] { first, second }) {
+                CSWExtractor extractor = new CSWExtractor(dir, null, null, "localhost", null);
+                extractor.setMetadataHarvester(harvester);
+                extractor.extract(url);
+            }
+
+            assertEquals(1, notModified.get());
+            assertEquals(1, harvester.statsAsJson().getLong("notModifiedCount"));
+            final String metadata = Files.toString(new File(second, "metadata.xml"), Charset.forName("UTF-8"));
+            assertTrue(metadata.contains("<gmd:MD_Metadata"));
+            assertEquals(metadata, Files.toString(new File(first, "metadata.xml"), Charset.forName("UTF-8")));
+        } finally {
+            harvester.dispose();
+        }
+    }
+
     private void respondWithMetadataDocument(HttpExchange httpExchange) throws IOException {
         byte[] response = TestResourceUtils.getResourceAsBytes(CSWExtractorTest.class,
                 "/csw/csw-GetById-18664427-9cd0-4acc-928c-e4071b828206.xml");
@@ -0,0 +1,201 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExtractionResultCacheTest {
+
+    public @Rule TemporaryFolder tmp = new TemporaryFolder();
+
+    private ExtractionResultCache cache;
+
+    private AtomicInteger produced = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        cache = new ExtractionResultCache();
+        cache.setDirectory(tmp.newFolder("cache").getAbsolutePath());
+        cache.init();
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        ExtractorLayerRequest request = layerRequest("shp", "[-4,47,-3,48]");
+        String key = ExtractionResultCache.key(request);
+
+        assertEquals(key, ExtractionResultCache.key(layerRequest("SHP", "[-4,47,-3,48]")));
+        assertNotEquals(key, ExtractionResultCache.key(layerRequest("kml", "[-4,47,-3,48]")));
+        assertNotEquals(key, ExtractionResultCache.key(layerRequest("shp", "[-4,47,-3,48.5]")));
+
+        request.setSourceVersion("42");
+        assertNotEquals(key, ExtractionResultCache.key(request));
+    }
+
+    @Test
+    public void testReusesCachedResult() throws Exception {
+        File first = copy("key1", 10);
+        File second = copy("key1", 10);
+
+        assertEquals(1, produced.get());
+        assertEquals(content(first), content(second));
+        assertEquals(1, cache.statsAsJson().getLong("hitCount"));
+    }
+
+    @Test
+    public void testSharesConcurrentComputation() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<File>> copies = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                copies.add(executor.submit(() -> {
+                    ExtractionResultCache.Lease lease = cache.acquire("key", workDir -> {
+                        started.countDown();
+                        release.await(10, TimeUnit.SECONDS);
+                        return produce(workDir, 10);
+                    });
+                    try {
+                        File target = tmp.newFolder();
+                        lease.copyTo(target);
+                        return target;
+                    } finally {
+                        lease.release();
+                    }
+                }));
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            // lets the other requests queue on the running computation
+            Thread.sleep(200);
+            release.countDown();
+            for (Future<File> copy : copies) {
+                assertEquals(10, content(copy.get()).length);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, produced.get());
+        JSONObject stats = cache.statsAsJson();
+        assertEquals(1, stats.getLong("missCount"));
+        assertEquals(3, stats.getLong("sharedCount") + stats.getLong("hitCount"));
+    }
+
+    @Test
+    public void testFailureIsNotCached() throws Exception {
+        try {
+            cache.acquire("key", workDir -> {
+                throw new IOException("unreachable server");
+            });
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertEquals("unreachable server", e.getMessage());
+        }
+        copy("key", 10);
+        assertEquals(1, produced.get());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        cache.setMaxSize(1);
+        final int size = 400 * 1024;
+        copy("key1", size);
+        copy("key2", size);
+        copy("key1", size);
+        // exceeds the quota, key2 is the least recently used
+        copy("key3", size);
+
+        assertEquals(3, produced.get());
+        assertTrue(cache.sizes().containsKey("key1"));
+        assertFalse(cache.sizes().containsKey("key2"));
+        assertTrue(cache.sizes().containsKey("key3"));
+        assertEquals(1, cache.statsAsJson().getLong("evictionCount"));
+    }
+
+    @Test
+    public void testEvictedEntryKeptWhileLeased() throws Exception {
+        cache.setMaxSize(1);
+        ExtractionResultCache.Lease lease = cache.acquire("key1", workDir -> produce(workDir, 700 * 1024));
+        try {
+            copy("key2", 700 * 1024);
+            assertFalse(cache.sizes().containsKey("key1"));
+
+            File target = tmp.newFolder();
+            lease.copyTo(target);
+            assertEquals(700 * 1024, content(target).length);
+        } finally {
+            lease.release();
+        }
+        assertEquals(1, new File(tmp.getRoot(), "cache").listFiles().length);
+    }
+
+    @Test
+    public void testReloadsEntries() throws Exception {
+        copy("key1", 10);
+
+        ExtractionResultCache reloaded = new ExtractionResultCache();
+        reloaded.setDirectory(new File(tmp.getRoot(), "cache").getAbsolutePath());
+        reloaded.init();
+
+        assertEquals(Long.valueOf(10), reloaded.sizes().get("key1"));
+    }
+
+    private File copy(String key, int size) throws Exception {
+        ExtractionResultCache.Lease lease = cache.acquire(key, workDir -> produce(workDir, size));
+        try {
+            File target = tmp.newFolder();
+            lease.copyTo(target);
+            return target;
+        } finally {
+            lease.release();
+        }
+    }
+
+    private File produce(File workDir, int size) throws IOException {
+        produced.incrementAndGet();
+        File layerDir = new File(workDir, "layer");
+        layerDir.mkdirs();
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) produced.get();
+        }
+        Files.write(new File(layerDir, "layer.shp").toPath(), data);
+        return layerDir;
+    }
+
+    private byte[] content(File dir) throws IOException {
+        return Files.readAllBytes(new File(dir, "layer.shp").toPath());
+    }
+
+    private ExtractorLayerRequest layerRequest(String format, String bbox) throws Exception {
+        JSONObject configJson = new JSONObject("{\"emails\":[\"test@example.com\"],"
+                + "\"globalProperties\":{\"projection\":\"EPSG:4326\",\"resolution\":null,"
+                + "\"rasterFormat\":\"geotiff\",\"vectorFormat\":\"shp\","
+                + "\"bbox\":{\"srs\":\"EPSG:4326\",\"value\":[-5,46,-2,49]}},"
+                + "\"layers\":[{\"format\":\"" + format + "\",\"bbox\":{\"srs\":\"EPSG:4326\",\"value\":" + bbox
+                + "},\"owsUrl\":\"http://localhost/geoserver/wfs\",\"owsType\":\"WFS\",\"layerName\":\"ns:layer\"}]}");
+        return new ExtractorLayerRequest(configJson.getJSONArray("layers").getJSONObject(0),
+                configJson.getJSONObject("globalProperties"), configJson.getJSONArray("emails"));
+    }
+}
@@ -0,0 +1,270 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
+import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class ExtractionSchedulerTest {
+
+    private static ExtractionTask newTask(ExecutionPriority priority) throws Exception {
+        return newTask(priority, null, null);
+    }
+
+    private static ExtractionTask newTask(ExecutionPriority priority, String user, String org) throws Exception {
+        RequestConfiguration rc = new RequestConfiguration(new ArrayList<ExtractorLayerRequest>(), UUID.randomUUID(),
+                null, null, true, user, null, org, null, "localhost", null, 10000000, true, false, null, null);
+        ExtractionTask task = new ExtractionTask(rc, null);
+        task.executionMetadata.setPriority(priority);
+        return task;
+    }
+
+    private static String uuid(ExtractionTask task) {
+        return task.executionMetadata.getUuid();
+    }
+
+    @Test
+    public void testPollByPriorityThenSubmissionOrder() throws Exception {
+        ExtractionScheduler scheduler = new ExtractionScheduler();
+        ExtractionTask low = newTask(ExecutionPriority.LOW);
+        ExtractionTask medium1 = newTask(ExecutionPriority.MEDIUM);
+        ExtractionTask high = newTask(ExecutionPriority.HIGH);
+        ExtractionTask medium2 = newTask(ExecutionPriority.MEDIUM);
+        for (ExtractionTask task : new ExtractionTask[] { low, medium1, high, medium2 }) {
+            assertTrue(scheduler.offer(task));
+        }
+        assertFalse("a task is queued once", scheduler.offer(high));
+
+        assertSame(high, scheduler.poll());
+        assertSame(medium1, scheduler.poll());
+        assertSame(medium2, scheduler.poll());
+        assertSame(low, scheduler.poll());
+        assertNull(scheduler.poll());
+    }
+
+    @Test
+    public void testUpdatePriorityInPlace() throws Exception {
+        ExtractionScheduler scheduler = new ExtractionScheduler();
+        ExtractionTask first = newTask(ExecutionPriority.LOW);
+        ExtractionTask second = newTask(ExecutionPriority.MEDIUM);
+        ExtractionTask third = newTask(ExecutionPriority.MEDIUM);
+        scheduler.offer(first);
+        scheduler.offer(second);
+        scheduler.offer(third);
+
+        assertTrue(scheduler.updatePriority(uuid(first), ExecutionPriority.MEDIUM));
+        assertEquals(ExecutionPriority.MEDIUM, first.executionMetadata.getPriority());
+        assertEquals(3, scheduler.size());
+
+        // keeps its submission order among the MEDIUM tasks
+        assertSame(first, scheduler.poll());
+        assertFalse(scheduler.updatePriority(uuid(first), ExecutionPriority.HIGH));
+        assertTrue(scheduler.updatePriority(uuid(third), ExecutionPriority.HIGH));
+        assertSame(third, scheduler.poll());
+        assertSame(second, scheduler.remove(uuid(second)));
+        assertNull(scheduler.poll());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void testFairShareBetweenUsers() throws Exception {
+        ExtractionScheduler scheduler = new ExtractionScheduler();
+        List<ExtractionTask> bulk = new ArrayList<ExtractionTask>();
+        for (int i = 0; i < 10; i++) {
+            ExtractionTask task = newTask(ExecutionPriority.MEDIUM, "bulk", "org1");
+            bulk.add(task);
+            scheduler.offer(task);
+        }
+        assertSame(bulk.get(0), scheduler.poll());
+        assertSame(bulk.get(1), scheduler.poll());
+
+        ExtractionTask single = newTask(ExecutionPriority.MEDIUM, "single", "org2");
+        scheduler.offer(single);
+        assertSame("the newcomer does not wait for the backlog", single, scheduler.poll());
+        assertSame(bulk.get(2), scheduler.poll());
+
+        // priorities still come first
+        ExtractionTask urgent = newTask(ExecutionPriority.HIGH, "bulk", "org1");
+        scheduler.offer(urgent);
+        scheduler.offer(newTask(ExecutionPriority.MEDIUM, "single", "org2"));
+        assertSame(urgent, scheduler.poll());
+    }
+
+    @Test
+    public void testWeights() throws Exception {
+        ExtractionScheduler scheduler = new ExtractionScheduler();
+        FairSharePolicy policy = new FairSharePolicy();
+        policy.setUserWeights("heavy:3");
+        scheduler.setPolicy(policy);
+        for (int i = 0; i < 20; i++) {
+            scheduler.offer(newTask(ExecutionPriority.MEDIUM, "heavy", null));
+            scheduler.offer(newTask(ExecutionPriority.MEDIUM, "light", null));
+        }
+        int heavy = 0;
+        for (int i = 0; i < 20; i++) {
+            if ("heavy".equals(scheduler.poll().getRequestConfig().username)) {
+                heavy++;
+            }
+        }
+        assertEquals(15, heavy);
+    }
+
+    @Test
+    public void testConcurrencyCaps() throws Exception {
+        ExtractionScheduler scheduler = new ExtractionScheduler();
+        FairSharePolicy policy = new FairSharePolicy();
+        policy.setMaxRunningPerUser(2);
+        policy.setMaxRunningPerOrg(3);
+        scheduler.setPolicy(policy);
+        for (int i = 0; i < 3; i++) {
+            scheduler.offer(newTask(ExecutionPriority.MEDIUM, "user1", "org1"));
+            scheduler.offer(newTask(ExecutionPriority.MEDIUM, "user2", "org1"));
+        }
+        ExtractionTask first = scheduler.poll();
+        assertNotNull(first);
+        assertNotNull(scheduler.poll());
+        assertNotNull(scheduler.poll());
+        assertNull("org1 runs 3 extractions", scheduler.poll());
+
+        scheduler.release(first);
+        ExtractionTask next = scheduler.poll();
+        assertNotNull(next);
+        assertNull(scheduler.poll());
+        assertEquals(2, scheduler.size());
+
+        JSONObject stats = scheduler.statsAsJson();
+        assertEquals(2, stats.getInt("waiting"));
+        assertEquals(2, stats.getJSONArray("users").length());
+    }
+
+    @Test
+    public void testIdleUsersAreForgotten() throws Exception {
+        ExtractionScheduler scheduler = new ExtractionScheduler();
+        ExtractionTask polled = newTask(ExecutionPriority.MEDIUM, "user1", "org1");
+        ExtractionTask removed = newTask(ExecutionPriority.MEDIUM, "user2", "org1");
+        scheduler.offer(polled);
+        scheduler.offer(removed);
+        assertSame(polled, scheduler.poll());
+        assertEquals(2, scheduler.statsAsJson().getJSONArray("users").length());
+
+        scheduler.remove(uuid(removed));
+        assertEquals("user1 still runs an extraction", 1, scheduler.statsAsJson().getJSONArray("users").length());
+
+        scheduler.release(polled);
+        assertEquals(0, scheduler.statsAsJson().getJSONArray("users").length());
+
+        // a user coming back is served again
+        ExtractionTask next = newTask(ExecutionPriority.MEDIUM, "user1", "org1");
+        assertTrue(scheduler.offer(next));
+        assertSame(next, scheduler.poll());
+    }
+
+    @Test
+    public void testQueueWaitPercentiles() {
+        QueueWaitStats stats = new QueueWaitStats();
+        assertEquals(-1, stats.percentiles(50)[0]);
+        for (int i = 1; i <= 100; i++) {
+            stats.record(i);
+        }
+        long[] percentiles = stats.percentiles(50, 90, 99);
+        assertEquals(50, percentiles[0]);
+        assertEquals(90, percentiles[1]);
+        assertEquals(99, percentiles[2]);
+    }
+
+    @Test(timeout = 20000)
+    public void testReorderThousandsOfTasks() throws Exception {
+        final int count = 5000;
+        ExtractionScheduler scheduler = new ExtractionScheduler();
+        List<String> newOrder = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            ExtractionTask task = newTask(ExecutionPriority.values()[i % 3]);
+            scheduler.offer(task);
+            if (i % 10 != 0) {
+                newOrder.add(uuid(task));
+            }
+        }
+        Collections.shuffle(newOrder, new Random(42));
+
+        List<ExtractionTask> removed = scheduler.reorder(newOrder, ExecutionPriority.MEDIUM);
+
+        assertEquals(count / 10, removed.size());
+        assertEquals(newOrder.size(), scheduler.size());
+        List<ExtractionTask> waiting = scheduler.waitingTasks();
+        for (int i = 0; i < newOrder.size(); i++) {
+            assertEquals(newOrder.get(i), uuid(waiting.get(i)));
+            assertEquals(ExecutionPriority.MEDIUM, waiting.get(i).executionMetadata.getPriority());
+        }
+        for (String expected : newOrder) {
+            assertEquals(expected, uuid(scheduler.poll()));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentSubmitPollAndReprioritize() throws Exception {
+        final int producers = 4;
+        final int tasksPerProducer = 2000;
+        final ExtractionScheduler scheduler = new ExtractionScheduler();
+        final List<ExtractionTask> tasks = new ArrayList<ExtractionTask>();
+        for (int i = 0; i < producers * tasksPerProducer; i++) {
+            tasks.add(newTask(ExecutionPriority.values()[i % 3]));
+        }
+        final Set<String> polled = ConcurrentHashMap.newKeySet();
+        final AtomicInteger duplicates = new AtomicInteger();
+        final CountDownLatch produced = new CountDownLatch(producers);
+        ExecutorService pool = Executors.newFixedThreadPool(producers * 2 + 1);
+
+        for (int p = 0; p < producers; p++) {
+            final int offset = p * tasksPerProducer;
+            pool.execute(() -> {
+                for (int i = 0; i < tasksPerProducer; i++) {
+                    scheduler.offer(tasks.get(offset + i));
+                }
+                produced.countDown();
+            });
+        }
+        pool.execute(() -> {
+            Random random = new Random(7);
+            while (produced.getCount() > 0) {
+                ExtractionTask task = tasks.get(random.nextInt(tasks.size()));
+                scheduler.updatePriority(uuid(task), ExecutionPriority.values()[random.nextInt(3)]);
+            }
+        });
+        for (int c = 0; c < producers; c++) {
+            pool.execute(() -> {
+                while (produced.getCount() > 0 || scheduler.size() > 0) {
+                    ExtractionTask task = scheduler.poll();
+                    if (task != null && !polled.add(uuid(task))) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(50, TimeUnit.SECONDS));
+
+        assertEquals(0, duplicates.get());
+        assertEquals(tasks.size(), polled.size());
+        assertEquals(0, scheduler.size());
+    }
+}
@@ -1,5 +1,8 @@
 package org.georchestra.extractorapp.ws.extractor.task;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
@@ -9,6 +12,7 @@ import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
@@ -75,4 +79,50 @@ public class ExtractionTaskTest {
         int afterCount = getLayerLogCount(dataSource.getConnection());
         assertTrue("Expected to have saved at least one record in DB", afterCount > this.beforeCount);
     }
+
+    @Test
+    public void testStatsRecordLayersInBatch() throws Exception {
+        assumeTrue("No postgresql available for this test", this.pgAvailable);
+        File testDir = tempFolder.newFolder();
+        List<ExtractorLayerRequest> layers = ExtractorLayerRequest.parseJson("{\"emails\":[\"test@example.com\"],"
+                + "\"globalProperties\":{\"projection\":\"EPSG:2154\",\"resolution\":10,"
+                + "\"rasterFormat\":\"geotiff\",\"vectorFormat\":\"shp\","
+                + "\"bbox\":{\"srs\":\"EPSG:2154\",\"value\":[500000,6870000,800000,7110000]}},\"layers\":["
+                + "{\"owsUrl\":\"http://localhost/geoserver/wfs\",\"owsType\":\"WFS\",\"layerName\":\"ns:first\"},"
+                + "{\"owsUrl\":\"http://localhost/geoserver/wcs\",\"owsType\":\"WCS\",\"layerName\":\"ns:second\"}]}");
+        RequestConfiguration rc = new RequestConfiguration(layers, UUID.randomUUID(), null, null, true, "user",
+                "ROLE_USER", "org", null, "localhost", testDir.toString(), 10000000, true, false, null, null);
+        ExtractionTask et = new ExtractionTask(rc, this.dataSource);
+
+        invoke(et, "statSetRunning");
+        assertNotNull(layers.get(0).getDbLogId());
+        assertNotNull(layers.get(1).getDbLogId());
+        assertTrue(layers.get(0).getDbLogId() < layers.get(1).getDbLogId());
+
+        invoke(et, "statSetError", layers.get(1));
+        // recorded at once, in case the extraction never completes
+        try (Connection c = dataSource.getConnection(); Statement s = c.createStatement();
+                ResultSet r = s.executeQuery("SELECT is_successful FROM extractorapp.extractor_layer_log WHERE id = "
+                        + layers.get(1).getDbLogId())) {
+            assertTrue(r.next());
+            assertFalse(r.getBoolean(1));
+            assertFalse(r.wasNull());
+        }
+        invoke(et, "statSetCompleted");
+
+        try (Connection c = dataSource.getConnection(); Statement s = c.createStatement();
+                ResultSet r = s.executeQuery("SELECT layer_name, is_successful FROM extractorapp.extractor_layer_log "
+                        + "WHERE id IN (" + layers.get(0).getDbLogId() + ", " + layers.get(1).getDbLogId() + ")")) {
+            while (r.next()) {
+                assertEquals("ns:first".equals(r.getString(1)), r.getBoolean(2));
+            }
+        }
+    }
+
+    private void invoke(ExtractionTask et, String name, Object... args) {
+        Method m = ReflectionUtils.findMethod(et.getClass(), name, args.length == 0 ? new Class<?>[0]
+                : new Class<?>[] { ExtractorLayerRequest.class });
+        m.setAccessible(true);
+        ReflectionUtils.invokeMethod(m, et, args);
+    }
 }
@@ -0,0 +1,190 @@
+package org.georchestra.extractorapp.ws.extractor.wcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.imageio.ImageIO;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.gce.geotiff.GeoTiffReader;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+public class RasterPipelineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RasterPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        pipeline = new RasterPipeline();
+        pipeline.setTileCacheSize(16);
+        pipeline.init();
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.dispose();
+    }
+
+    /**
+     * A 4326 coverage over France, which can be projected to Lambert 93
+     */
+    private File sampleGeotiff(int size) throws IOException {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_GRAY);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                image.getRaster().setSample(x, y, 0, (x + y) % 256);
+            }
+        }
+        ReferencedEnvelope envelope = new ReferencedEnvelope(-4, 8, 42, 51, DefaultGeographicCRS.WGS84);
+        GridCoverage2D coverage = new GridCoverageFactory().create("sample", image, envelope);
+        File file = folder.newFile("sample.tif");
+        GeoTiffWriter writer = new GeoTiffWriter(file);
+        try {
+            writer.write(coverage, null);
+        } finally {
+            writer.dispose();
+        }
+        return file;
+    }
+
+    private static WcsReaderRequest request(CoordinateReferenceSystem responseCRS, String format, boolean gdal)
+            throws Exception {
+        return WcsReaderRequestFactory.create(WcsReaderRequest.DEFAULT_VERSION, "sample", -4, 42, 8, 51,
+                CRS.decode("EPSG:4326"), responseCRS, 0.01, format, false, false, gdal, "dummy", "dummy");
+    }
+
+    @Test
+    public void testHandles() {
+        assertFalse(pipeline.handles("geotiff"));
+
+        pipeline.setFormats("geotiff,tif,tiff,png,gif,jpeg");
+        assertTrue(pipeline.handles("geotiff"));
+        assertTrue(pipeline.handles("PNG"));
+        assertFalse(pipeline.handles("ecw"));
+
+        pipeline.setFormats("png, jpeg");
+        assertFalse(pipeline.handles("geotiff"));
+        assertTrue(pipeline.handles("jpeg"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedFormat() {
+        pipeline.setFormats("geotiff,jp2ecw");
+    }
+
+    @Test
+    public void testReprojectGeotiff() throws Exception {
+        File source = sampleGeotiff(256);
+        File target = new File(folder.getRoot(), "out.tif");
+        CoordinateReferenceSystem lambert93 = CRS.decode("EPSG:2154");
+
+        pipeline.transform(source, target, request(lambert93, "geotiff", false));
+
+        GeoTiffReader reader = new GeoTiffReader(target);
+        try {
+            GridCoverage2D coverage = reader.read(null);
+            assertTrue(CRS.equalsIgnoreMetadata(lambert93, coverage.getCoordinateReferenceSystem()));
+            assertTrue(coverage.getGridGeometry().getGridRange2D().width > 0);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    public void testReprojectInPlace() throws Exception {
+        File source = sampleGeotiff(128);
+        CoordinateReferenceSystem mercator = CRS.decode("EPSG:3857");
+
+        pipeline.transform(source, source, request(mercator, "geotiff", false));
+
+        GeoTiffReader reader = new GeoTiffReader(source);
+        try {
+            assertTrue(CRS.equalsIgnoreMetadata(mercator, reader.getCoordinateReferenceSystem()));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    @Test
+    public void testEncodePng() throws Exception {
+        File source = sampleGeotiff(128);
+        File target = new File(folder.getRoot(), "out.png");
+
+        pipeline.transform(source, target, request(DefaultGeographicCRS.WGS84, "png", false));
+
+        BufferedImage image = ImageIO.read(target);
+        assertNotNull(image);
+        assertEquals(128, image.getWidth());
+    }
+
+    /**
+     * Compares the in-process pipeline with the GDAL command line on a real
+     * coverage. Only runs when the {@code rasterPipeline.benchmark} system
+     * property points to a EPSG:4326 GeoTIFF and gdalwarp is on the PATH.
+     * <p>
+     * The CPU time is the one of the JVM, the GDAL child processes are not
+     * accounted for.
+     */
+    @Test
+    public void benchmarkAgainstGdal() throws Exception {
+        String sample = System.getProperty("rasterPipeline.benchmark");
+        Assume.assumeTrue("No benchmark coverage given", sample != null);
+        try {
+            Runtime.getRuntime().exec("gdalwarp --help-general").destroy();
+        } catch (IOException e) {
+            Assume.assumeNoException("Benchmark aborted because gdalwarp is not on PATH", e);
+        }
+        File source = new File(sample);
+        GeoTiffReader reader = new GeoTiffReader(source);
+        ReferencedEnvelope bounds = new ReferencedEnvelope(reader.getOriginalEnvelope());
+        reader.dispose();
+        WcsReaderRequest executed = WcsReaderRequestFactory.create(WcsReaderRequest.DEFAULT_VERSION, "sample",
+                bounds.getMinX(), bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY(), CRS.decode("EPSG:4326"),
+                CRS.decode("EPSG:4326"), 0.01, "geotiff", false, false, true, "dummy", "dummy");
+        WcsReaderRequest target = executed.withCRS("EPSG:2154");
+
+        File gdalOut = new File(folder.newFolder(), "gdal.tif");
+        long[] gdal = measure(() -> GDALCommandLine.gdalTransformation(source, gdalOut, executed, target));
+        File pipelineOut = new File(folder.newFolder(), "pipeline.tif");
+        long[] inProcess = measure(() -> pipeline.transform(source, pipelineOut, target));
+
+        System.out.printf("gdal:     wall %d ms, jvm cpu %d ms, %d bytes%n", gdal[0], gdal[1], gdalOut.length());
+        System.out.printf("pipeline: wall %d ms, jvm cpu %d ms, %d bytes%n", inProcess[0], inProcess[1],
+                pipelineOut.length());
+        assertTrue(pipelineOut.length() > 0);
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    private static long[] measure(Step step) throws Exception {
+        com.sun.management.OperatingSystemMXBean os = (com.sun.management.OperatingSystemMXBean) ManagementFactory
+                .getOperatingSystemMXBean();
+        long cpu = os.getProcessCpuTime();
+        long start = System.nanoTime();
+        step.run();
+        return new long[] { (System.nanoTime() - start) / 1000000, (os.getProcessCpuTime() - cpu) / 1000000 };
+    }
+}
@@ -0,0 +1,29 @@
+package org.georchestra.extractorapp.ws.extractor.wcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Semaphore;
+
+import org.junit.Test;
+
+public class TiledCoverageRetrievalTest {
+
+    @Test
+    public void testPermitsByServer() throws Exception {
+        Semaphore permits = TiledCoverageRetrieval.permits("wcs.example.org", 2);
+        assertSame(permits, TiledCoverageRetrieval.permits("wcs.example.org", 2));
+        assertNotSame(permits, TiledCoverageRetrieval.permits("other.example.org", 2));
+        assertEquals(2, permits.availablePermits());
+
+        // another concurrency resizes the permits of the server
+        permits.acquire();
+        assertSame(permits, TiledCoverageRetrieval.permits("wcs.example.org", 4));
+        assertEquals(3, permits.availablePermits());
+        assertSame(permits, TiledCoverageRetrieval.permits("wcs.example.org", 1));
+        assertEquals(0, permits.availablePermits());
+        permits.release();
+        assertEquals(1, permits.availablePermits());
+    }
+}
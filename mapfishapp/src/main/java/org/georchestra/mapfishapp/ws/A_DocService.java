@@ -19,32 +19,56 @@
 
 package org.georchestra.mapfishapp.ws;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Iterator;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
 import javax.xml.validation.Validator;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.jdom.Document;
@@ -75,6 +99,16 @@ public abstract class A_DocService {
      */
     protected static final String DOC_PREFIX = "geodoc";
 
+    /**
+     * Compression of the stored contents
+     */
+    private static final String COMPRESSION_GZIP = "gzip";
+
+    /**
+     * StAX property of the JDK implementation reporting the CDATA sections
+     */
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
     /**
      * File extension.
      */
@@ -94,6 +128,16 @@ public abstract class A_DocService {
         this.pgPool = pgPool;
     }
 
+    /**
+     * Counts the accesses to the loaded files, they are counted synchronously if
+     * not set.
+     */
+    private GeodocAccessCounter accessCounter;
+
+    public void setAccessCounter(GeodocAccessCounter accessCounter) {
+        this.accessCounter = accessCounter;
+    }
+
     /**
      * MIME type.
      */
@@ -153,11 +197,27 @@ public abstract class A_DocService {
     }
 
     private String indentData(String data) throws JDOMException, IOException {
+        return formatData(data, Format.getPrettyFormat());
+    }
+
+    /**
+     * Removes the indentation of an XML document, as
+     * {@link #transform(File, OutputStream)} does, so that the documents only
+     * differing by their layout share the same stored content whichever way they
+     * are saved.
+     */
+    private String canonicalizeData(String data) throws XMLStreamException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        canonicalizeXml(xmlInputFactory().createXMLEventReader(new StringReader(data)), out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private String formatData(String data, Format format) throws JDOMException, IOException {
         SAXBuilder sb = new SAXBuilder();
         sb.setExpandEntities(false);
         Document doc = sb.build(new StringReader(data));
         XMLOutputter xop = new XMLOutputter();
-        xop.setFormat(Format.getPrettyFormat());
+        xop.setFormat(format);
         return xop.outputString(doc);
     }
 
@@ -174,9 +234,10 @@ public abstract class A_DocService {
 
         _content = data;
 
-        // Tries to indent the document before saving it
+        // Tries to canonicalize the document before saving it, it is indented when
+        // read instead (see getIndentedContent)
         try {
-            _content = indentData(data);
+            _content = canonicalizeData(data);
 
         } catch (Exception e1) {
             // actually give up (if malformed, or if another issue
@@ -189,34 +250,213 @@ public abstract class A_DocService {
 
         // compute md5: not on data, because it would not be unique across users, but on
         // a random string
-        String hash = null;
+        String hash = randomHash(_content);
+
+        // the content is stored once, whatever the number of documents sharing it
+        byte[] content = _content.getBytes(StandardCharsets.UTF_8);
+        String contentHash;
+        try {
+            contentHash = hex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        // extract the fields listed by listFiles once for all, null if the document
+        // cannot be parsed
+        JSONObject entries = extractEntries(new ByteArrayInputStream(content));
+
+        insertDocument(username, hash, contentHash, content.length,
+                (st, index) -> st.setBytes(index, compress(content)), entries);
+        return DOC_PREFIX + hash + _fileExtension;
+    }
+
+    /**
+     * Store the data read from the given stream, without holding the whole
+     * document in memory: the data is spooled to a temporary file, then
+     * {@link #transform transformed} and compressed into another one, which is
+     * streamed to the database.
+     *
+     * @param data     raw data to be stored, it is not closed
+     * @param username the current user name or empty string if anonymous
+     * @return file name
+     * @throws DocServiceException
+     * @throws IOException         if the data cannot be read, or the temporary
+     *                             files written
+     */
+    public String saveData(final InputStream data, final String username) throws DocServiceException, IOException {
+        File tempDir = new File(_tempDirectory);
+        File raw = File.createTempFile("upload", ".tmp", tempDir);
+        File staged = File.createTempFile("upload", ".gz", tempDir);
+        try {
+            try (OutputStream out = new FileOutputStream(raw)) {
+                IOUtils.copy(data, out);
+            }
+
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            // the hash and size are the ones of the uncompressed content
+            long contentSize;
+            try (CountingOutputStream out = new CountingOutputStream(new DigestOutputStream(
+                    new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(staged))), digest))) {
+                transform(raw, out);
+                out.flush();
+                contentSize = out.getByteCount();
+            }
+            if (contentSize > Integer.MAX_VALUE || staged.length() > Integer.MAX_VALUE) {
+                throw new DocServiceException("File is too big", HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            }
+            String contentHash = hex(digest.digest());
+            String hash = randomHash(contentHash);
+
+            JSONObject entries;
+            try (InputStream in = new GZIPInputStream(new FileInputStream(staged))) {
+                entries = extractEntries(in);
+            }
+
+            try (InputStream compressed = new FileInputStream(staged)) {
+                insertDocument(username, hash, contentHash, (int) contentSize,
+                        (st, index) -> st.setBinaryStream(index, compressed, (int) staged.length()), entries);
+            }
+            return DOC_PREFIX + hash + _fileExtension;
+        } finally {
+            Files.deleteIfExists(raw.toPath());
+            Files.deleteIfExists(staged.toPath());
+        }
+    }
+
+    /**
+     * Sets the compressed content parameter of the statement storing it.
+     */
+    @FunctionalInterface
+    private interface ContentBinder {
+        void bind(PreparedStatement st, int index) throws SQLException;
+    }
+
+    /**
+     * Returns the md5 hash identifying a new document, the given seed is salted
+     * with a random number since the same content can be saved several times.
+     */
+    private String randomHash(String seed) {
         try {
-            // hash = MD5(_content);
             Random r = new Random();
             Double d = r.nextDouble();
-            hash = MD5(_content + d.toString());
+            return MD5(seed + d.toString());
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e);
         }
+    }
 
+    /**
+     * @return the fields listed by listFiles, null if the document cannot be
+     *         parsed
+     */
+    private JSONObject extractEntries(InputStream content) {
+        try {
+            return extractsStandardSpecificEntries(content);
+        } catch (Exception e) {
+            LOG.warn("Unable to parse the document, it will not be listed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void insertDocument(String username, String hash, String contentHash, int contentSize,
+            ContentBinder content, JSONObject entries) {
         // extract standard
         String standard = _fileExtension.substring(1);
 
         // write data to Db
         try (Connection connection = pgPool.getConnection()) {
-            String sql = "INSERT INTO mapfishapp.geodocs (username, standard, raw_file_content, file_hash) VALUES (?,?,?,?);";
-            try (PreparedStatement st = connection.prepareStatement(sql)) {
-                st.setString(1, username);
-                st.setString(2, standard);
-                st.setString(3, _content);
-                st.setString(4, hash);
-                st.executeUpdate();
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                saveContent(connection, contentHash, contentSize, content);
+                String sql = "INSERT INTO mapfishapp.geodocs (username, standard, content_hash, file_hash, "
+                        + "title, abstract, keywords, srs, bbox, layer_count, file_size, metadata_extracted) "
+                        + "VALUES (?,?,?,?,?,?,?,?,?,?,?,?);";
+                try (PreparedStatement st = connection.prepareStatement(sql)) {
+                    st.setString(1, username);
+                    st.setString(2, standard);
+                    st.setString(3, contentHash);
+                    st.setString(4, hash);
+                    setEntries(connection, st, 5, entries);
+                    st.setInt(11, contentSize);
+                    st.setBoolean(12, entries != null);
+                    st.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
             }
         } catch (SQLException e) {
             LOG.error(e);
             throw new RuntimeException(e);
         }
-        return DOC_PREFIX + hash + _fileExtension;
+    }
+
+    /**
+     * Stores the compressed content, unless it is already stored. Either way, the
+     * content row is locked until the transaction ends, so that it cannot be
+     * removed by a concurrent deleteFile before the document referencing it is
+     * inserted.
+     */
+    private void saveContent(Connection connection, String contentHash, int contentSize, ContentBinder content)
+            throws SQLException {
+        String sql = "UPDATE mapfishapp.geodoc_contents SET last_saved = now() WHERE content_hash = ?;";
+        try (PreparedStatement st = connection.prepareStatement(sql)) {
+            st.setString(1, contentHash);
+            if (st.executeUpdate() > 0) {
+                return;
+            }
+        }
+        sql = "INSERT INTO mapfishapp.geodoc_contents (content_hash, compression, content, content_size) "
+                + "VALUES (?,?,?,?) ON CONFLICT (content_hash) DO UPDATE SET last_saved = now();";
+        try (PreparedStatement st = connection.prepareStatement(sql)) {
+            st.setString(1, contentHash);
+            st.setString(2, COMPRESSION_GZIP);
+            content.bind(st, 3);
+            st.setInt(4, contentSize);
+            st.executeUpdate();
+        }
+    }
+
+    /**
+     * Sets the title, abstract, keywords, srs, bbox and layer_count parameters
+     * from the fields extracted from the document.
+     *
+     * @param first   index of the title parameter
+     * @param entries as returned by extractsStandardSpecificEntries, may be null
+     */
+    private void setEntries(Connection connection, PreparedStatement st, int first, JSONObject entries)
+            throws SQLException {
+        JSONObject e = entries == null ? new JSONObject() : entries;
+        st.setString(first, e.optString("title", null));
+        st.setString(first + 1, e.optString("abstract", null));
+        st.setArray(first + 2, toSqlArray(connection, "text", e.optJSONArray("keywords")));
+        st.setString(first + 3, e.optString("srs", null));
+        st.setArray(first + 4, toSqlArray(connection, "float8", e.optJSONArray("bbox")));
+        if (e.has("layer_count")) {
+            st.setInt(first + 5, e.optInt("layer_count"));
+        } else {
+            st.setNull(first + 5, Types.INTEGER);
+        }
+    }
+
+    private Array toSqlArray(Connection connection, String type, JSONArray values) throws SQLException {
+        if (values == null) {
+            return null;
+        }
+        Object[] elements = new Object[values.length()];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = "text".equals(type) ? values.optString(i) : values.optDouble(i);
+        }
+        return connection.createArrayOf(type, elements);
     }
 
     /**
@@ -227,20 +467,15 @@ public abstract class A_DocService {
      * @throws DocServiceException
      */
     public void loadFile(final String fileName) throws DocServiceException {
-        // check first if data exists somewhere (db / file)
-        try {
-            if (!isFileExist(fileName)) {
-                throw new DocServiceException("Requested file does not exist.", HttpServletResponse.SC_NOT_FOUND);
-            }
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        // load file content, if it exists somewhere (db / file)
+        String content = loadContent(fileName);
+        if (content == null) {
+            throw new DocServiceException("Requested file does not exist.", HttpServletResponse.SC_NOT_FOUND);
         }
 
         // default, file name will be the one generated by OS
         _name = fileName;
-
-        // load file content
-        _content = loadContent(fileName);
+        _content = content;
 
         // actions to take after loading the content
         postLoad();
@@ -248,24 +483,31 @@ public abstract class A_DocService {
 
     /**
      * Return a JSON array with decriptions of all files for specified standard.
-     * Descriptions may include some specific fields based on standard.
+     * Descriptions may include some specific fields based on standard. These fields
+     * are extracted when the file is saved, the files are not read.
      * 
      * @param username username to filter geodoc.
      * @return a JSON array with following keys : hash, created_at, last_access,
-     *         access_count and maybe other keys based on standard
+     *         access_count, file_size and maybe other keys based on standard
      * @throws Exception if problems occurs when retrieving data from database
      */
     public JSONArray listFiles(String username) throws Exception {
         JSONArray res = new JSONArray();
 
         try (Connection connection = pgPool.getConnection()) {
-            String sql = "SELECT file_hash, created_at, last_access, access_count, raw_file_content "
-                    + "FROM mapfishapp.geodocs " + "WHERE standard = ? AND username = ? " + "ORDER BY created_at DESC";
+            String sql = "SELECT file_hash, created_at, last_access, access_count, title, abstract, keywords, srs, "
+                    + "bbox, layer_count, file_size, metadata_extracted FROM mapfishapp.geodocs "
+                    + "WHERE standard = ? AND username = ? " + "ORDER BY created_at DESC";
             try (PreparedStatement st = connection.prepareStatement(sql)) {
                 st.setString(1, _fileExtension.substring(1));
                 st.setString(2, username);
                 try (ResultSet rs = st.executeQuery()) {
                     while (rs.next()) {
+                        if (Boolean.FALSE.equals(rs.getObject("metadata_extracted"))) {
+                            LOG.debug("The document [hash: " + rs.getString("file_hash")
+                                    + "] could not be parsed. Skipping.");
+                            continue;
+                        }
                         JSONObject entry = new JSONObject();
 
                         // Add common fields, all standards have these fields
@@ -273,22 +515,15 @@ public abstract class A_DocService {
                         entry.put("created_at", rs.getString("created_at"));
                         entry.put("last_access", rs.getString("last_access"));
                         entry.put("access_count", rs.getString("access_count"));
-
-                        // Add standard specific fields
-                        JSONObject standardSpecificEntry;
-                        try {
-                            standardSpecificEntry = this
-                                    .extractsStandardSpecificEntries(rs.getBinaryStream("raw_file_content"));
-                        } catch (Exception e) {
-                            LOG.error("Unable to parse the document [hash: " + rs.getString("file_hash")
-                                    + "]. Skipping.");
-                            continue;
-                        }
-                        Iterator<String> it = standardSpecificEntry.keys();
-                        while (it.hasNext()) {
-                            String field = it.next();
-                            entry.put(field, standardSpecificEntry.get(field));
-                        }
+                        putInt(entry, "file_size", rs);
+
+                        // Add standard specific fields, the ones extracted from the document
+                        entry.putOpt("title", rs.getString("title"));
+                        entry.putOpt("abstract", rs.getString("abstract"));
+                        putArray(entry, "keywords", rs);
+                        entry.putOpt("srs", rs.getString("srs"));
+                        putArray(entry, "bbox", rs);
+                        putInt(entry, "layer_count", rs);
                         res.put(entry);
                     }
                 }
@@ -299,23 +534,57 @@ public abstract class A_DocService {
         return res;
     }
 
+    private static void putInt(JSONObject entry, String column, ResultSet rs) throws Exception {
+        int value = rs.getInt(column);
+        if (!rs.wasNull()) {
+            entry.put(column, value);
+        }
+    }
+
+    private static void putArray(JSONObject entry, String column, ResultSet rs) throws Exception {
+        Array array = rs.getArray(column);
+        if (array != null) {
+            entry.put(column, new JSONArray(Arrays.asList((Object[]) array.getArray())));
+        }
+    }
+
     public void deleteFile(String filename, String username) throws Exception {
         try (Connection connection = pgPool.getConnection()) {
-            String sql = "DELETE FROM mapfishapp.geodocs WHERE file_hash = ? AND username = ?";
+            String sql = "DELETE FROM mapfishapp.geodocs WHERE file_hash = ? AND username = ? RETURNING content_hash";
+            String contentHash = null;
             try (PreparedStatement st = connection.prepareStatement(sql)) {
                 st.setString(1, filename);
                 st.setString(2, username);
 
-                if (st.executeUpdate() != 1) {
-                    throw new SQLException(
-                            "Unable to find record with file_hash : " + filename + " and username : " + username);
+                try (ResultSet rs = st.executeQuery()) {
+                    if (!rs.next()) {
+                        throw new SQLException(
+                                "Unable to find record with file_hash : " + filename + " and username : " + username);
+                    }
+                    contentHash = rs.getString(1);
                 }
             }
+            deleteContent(connection, contentHash);
         } catch (SQLException e) {
             LOG.error(e);
         }
     }
 
+    /**
+     * Deletes the content if no other document references it anymore.
+     */
+    private void deleteContent(Connection connection, String contentHash) {
+        String sql = "DELETE FROM mapfishapp.geodoc_contents c WHERE content_hash = ? "
+                + "AND NOT EXISTS (SELECT 1 FROM mapfishapp.geodocs d WHERE d.content_hash = c.content_hash);";
+        try (PreparedStatement st = connection.prepareStatement(sql)) {
+            st.setString(1, contentHash);
+            st.executeUpdate();
+        } catch (SQLException e) {
+            // the content was referenced again meanwhile, which the foreign key caught
+            LOG.debug("Content " + contentHash + " not deleted: " + e.getMessage());
+        }
+    }
+
     /*
      * ========================Accessor
      * Methods====================================================
@@ -342,6 +611,21 @@ public abstract class A_DocService {
         return _content;
     }
 
+    /**
+     * Get the file content, indented if it is an XML document. Should be called
+     * once loadFile has been called.
+     * 
+     * @return String file content
+     */
+    public String getIndentedContent() {
+        try {
+            return indentData(getContent());
+        } catch (JDOMException | IOException e) {
+            // not XML
+            return getContent();
+        }
+    }
+
     /**
      * Get the file name (contains file extension). Should be called once loadFile
      * has been called.
@@ -362,13 +646,110 @@ public abstract class A_DocService {
 
     /**
      * Must be override to take actions before the data are saved. <br />
-     * Examples: valid data format or integrity, interpret or transform data.
+     * Examples: valid data format or integrity, interpret or transform data. <br />
+     * Only called when saving a string, see {@link #transform} for the streamed
+     * data.
      * 
      * @throws DocServiceException
      */
     protected void preSave() throws DocServiceException {
     }
 
+    /**
+     * Writes the content to be stored from the raw data saved through
+     * {@link #saveData(InputStream, String)}. Can be overridden to interpret or
+     * transform the data, without loading it whole in memory. <br />
+     * By default XML documents are stored without indentation, as with
+     * {@link #saveData(String, String)}, and the other ones as is.
+     *
+     * @param data the raw data, can be read several times
+     * @param out  receives the content to be stored, it must not be closed
+     * @throws DocServiceException
+     * @throws IOException
+     */
+    protected void transform(File data, OutputStream out) throws DocServiceException, IOException {
+        // checks the document first, since it cannot be written as is once
+        // partially written canonicalized
+        try (InputStream in = new FileInputStream(data)) {
+            canonicalizeXml(xmlInputFactory().createXMLEventReader(in), new NullOutputStream());
+        } catch (XMLStreamException e) {
+            Files.copy(data.toPath(), out);
+            return;
+        }
+        try (InputStream in = new FileInputStream(data)) {
+            canonicalizeXml(xmlInputFactory().createXMLEventReader(in), out);
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Copies the XML document, encoded in UTF-8 and without the whitespace only
+     * text between the elements (the indentation), one event at a time. The text
+     * between two tags may be reported in several events (e.g. around entity
+     * references), it is only dropped if it is whitespace as a whole, and never if
+     * it contains a CDATA section.
+     */
+    private static void canonicalizeXml(XMLEventReader reader, OutputStream out) throws XMLStreamException {
+        XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+        XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+        // the whitespace only events of the current text, which are only buffered
+        // until the text proves not to be whitespace, keeping the memory bounded
+        List<XMLEvent> whitespace = new ArrayList<>();
+        boolean inText = false;
+        try {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                int type = event.getEventType();
+                if (type == XMLEvent.CHARACTERS || type == XMLEvent.SPACE || type == XMLEvent.CDATA) {
+                    if (inText) {
+                        writer.add(event);
+                    } else if (!event.asCharacters().isCData() && event.asCharacters().isWhiteSpace()) {
+                        whitespace.add(event);
+                    } else {
+                        for (XMLEvent pending : whitespace) {
+                            writer.add(pending);
+                        }
+                        whitespace.clear();
+                        writer.add(event);
+                        inText = true;
+                    }
+                    continue;
+                }
+                // the text ends with the next tag (or comment...), it is dropped if it
+                // is whitespace only
+                whitespace.clear();
+                inText = false;
+                switch (type) {
+                case XMLEvent.START_DOCUMENT:
+                    writer.add(eventFactory.createStartDocument("UTF-8", "1.0"));
+                    break;
+                case XMLEvent.DTD:
+                case XMLEvent.ENTITY_REFERENCE:
+                    // entities are not expanded
+                    throw new XMLStreamException("DTDs are not supported");
+                default:
+                    writer.add(event);
+                }
+            }
+            writer.flush();
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    private static XMLInputFactory xmlInputFactory() {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        // keeps the CDATA sections (e.g. KML descriptions) as is
+        if (inputFactory.isPropertySupported(REPORT_CDATA)) {
+            inputFactory.setProperty(REPORT_CDATA, true);
+        }
+        return inputFactory;
+    }
+
     /**
      * Must be override to take actions once the file is load in memory <br />
      * Examples: parse the file to get the real file name
@@ -434,6 +815,37 @@ public abstract class A_DocService {
      * DocService=========================================
      */
 
+    /**
+     * Returns the hex encoding of the given digest
+     */
+    private static String hex(final byte[] digest) {
+        StringBuilder hashString = new StringBuilder(2 * digest.length);
+        for (byte b : digest) {
+            hashString.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hashString.toString();
+    }
+
+    private static byte[] compress(final byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static String decompress(final String compression, final byte[] content) throws IOException {
+        if (COMPRESSION_GZIP.equals(compression)) {
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(content))) {
+                return IOUtils.toString(in, StandardCharsets.UTF_8);
+            }
+        }
+        // contents migrated from raw_file_content are not compressed
+        return new String(content, StandardCharsets.UTF_8);
+    }
+
     /**
      * Returns a md5 hash from a given string
      * 
@@ -463,92 +875,77 @@ public abstract class A_DocService {
     }
 
     /**
-     * Check that data exists in db under provided hash
+     * Check that the file exists in the plain old "file" storage
      * 
-     * @param fileName eg geodoc1694e3cc580768d5125816b574915e97.wmc or
-     *                 geodoc\d{19}.wmc
+     * @param fileName eg geodoc\d{19}.wmc
      * @return true: exists, false: not exists
      */
-    private boolean isFileExist(final String fileName) throws SQLException, RuntimeException {
-        // test fileName to know if file is stored in db or file.
-        if (fileName.length() == 4 + 32 + DOC_PREFIX.length()) {
-            // newest database storage
-            int count = 0;
-            try (Connection connection = pgPool.getConnection()) {
-                String sql = "SELECT count(*)::integer from mapfishapp.geodocs WHERE file_hash = ?;";
-                try (PreparedStatement st = connection.prepareStatement(sql)) {
-                    st.setString(1, fileName.substring(DOC_PREFIX.length(), DOC_PREFIX.length() + 32));
-                    try (ResultSet rs = st.executeQuery()) {
-                        if (rs.next()) {
-                            count = rs.getInt(1);
-                        }
-                    }
-                }
-            } catch (SQLException e) {
-                LOG.error(e);
-                throw new RuntimeException(e);
-            }
+    private boolean isFileExist(final String fileName) throws RuntimeException {
+        // file was stored previously in a known place
+        File dir = new File(_tempDirectory);
 
-            return count > 0;
-
-        } else { // plain old "file" storage
+        if (!dir.exists()) {
+            throw new RuntimeException(_tempDirectory + " directory not found");
+        }
 
-            // file was stored previously in a known place
-            File dir = new File(_tempDirectory);
+        // prepare filter to get the right file
+        FilenameFilter filter = new FilenameFilter() {
+            public boolean accept(File dir, String name) {
 
-            if (!dir.exists()) {
-                throw new RuntimeException(_tempDirectory + " directory not found");
+                return fileName.equals(name);
             }
+        };
 
-            // prepare filter to get the right file
-            FilenameFilter filter = new FilenameFilter() {
-                public boolean accept(File dir, String name) {
+        // get file thanks to the previous filter
+        String[] fileList = dir.list(filter);
 
-                    return fileName.equals(name);
-                }
-            };
-
-            // get file thanks to the previous filter
-            String[] fileList = dir.list(filter);
-
-            return fileList.length == 1;
-        }
+        return fileList.length == 1;
     }
 
     /**
      * Get file content of the given file stored in DIR_PATH
      * 
      * @param fileName file name
-     * @return file content
+     * @return file content, null if the file does not exist
      */
     private String loadContent(final String fileName) {
-        String content = "";
+        String content = null;
         // test fileName to know if the file is stored in db or file.
         if (fileName.length() == 4 + 32 + DOC_PREFIX.length()) {
             String hash = fileName.substring(DOC_PREFIX.length(), DOC_PREFIX.length() + 32);
             // newest database storage
             try (Connection connection = pgPool.getConnection()) {
-                String sql = "SELECT raw_file_content from mapfishapp.geodocs WHERE file_hash = ?;";
+                String sql = "SELECT c.compression, c.content FROM mapfishapp.geodocs d "
+                        + "JOIN mapfishapp.geodoc_contents c ON c.content_hash = d.content_hash WHERE d.file_hash = ?;";
                 try (PreparedStatement st = connection.prepareStatement(sql)) {
                     st.setString(1, hash);
                     try (ResultSet rs = st.executeQuery()) {
-                        if (rs.next()) {
-                            content = rs.getString(1);
+                        if (!rs.next()) {
+                            return null;
                         }
+                        content = decompress(rs.getString(1), rs.getBytes(2));
                     }
                 }
-                sql = "UPDATE mapfishapp.geodocs set last_access = now() , access_count = access_count + 1 WHERE file_hash = ?;";
-                try (PreparedStatement st = connection.prepareStatement(sql)) {
-                    // now that we have loaded the content, update the metadata fields
-                    st.setString(1, hash);
-                    st.executeUpdate();
+                // now that we have loaded the content, update the metadata fields
+                if (accessCounter != null) {
+                    accessCounter.increment(hash);
+                } else {
+                    sql = "UPDATE mapfishapp.geodocs set last_access = now() , access_count = access_count + 1 WHERE file_hash = ?;";
+                    try (PreparedStatement st = connection.prepareStatement(sql)) {
+                        st.setString(1, hash);
+                        st.executeUpdate();
+                    }
                 }
-            } catch (SQLException e) {
+            } catch (SQLException | IOException e) {
                 LOG.error(e);
                 throw new RuntimeException(e);
             }
         } else {
             // plain old "file" storage
+            if (!isFileExist(fileName)) {
+                return null;
+            }
+            content = "";
             File file = new File(_tempDirectory + File.separatorChar + fileName);
 
             FileInputStream fis = null;
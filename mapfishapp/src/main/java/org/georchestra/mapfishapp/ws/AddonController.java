@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.HashMap;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -48,8 +49,14 @@ public class AddonController implements ServletContextAware {
     @Autowired
     private GeorchestraConfiguration georchestraConfiguration;
 
+    @Autowired(required = false)
+    private DatadirWatcher datadirWatcher;
+
     private ServletContext context;
 
+    private final DatadirCache<JSONArray> addons = new DatadirCache<>(this::loadAddonsSpec,
+            json -> json.toString(4).getBytes());
+
     private static final Log LOG = LogFactory.getLog(AddonController.class.getPackage().getName());
 
     /**
@@ -74,10 +81,20 @@ public class AddonController implements ServletContextAware {
      */
     @RequestMapping(value = "/addons")
     public void getAddons(HttpServletRequest request, HttpServletResponse response) throws Exception {
-        response.setContentType("application/json; charset=utf-8");
-        JSONArray jsAddons = constructAddonsSpec();
+        addons.get(datadirWatcher).write(request, response, "application/json; charset=utf-8");
+    }
 
-        response.getOutputStream().write(jsAddons.toString(4).getBytes());
+    /**
+     * Reads the addons specifications at startup, so that the first viewer loaded
+     * does not wait for it.
+     */
+    @PostConstruct
+    public void init() {
+        try {
+            constructAddonsSpec();
+        } catch (Exception e) {
+            LOG.error("Unable to index the addons", e);
+        }
     }
 
     @RequestMapping(value = "/addons/**")
@@ -199,13 +216,15 @@ public class AddonController implements ServletContextAware {
         return context.getRealPath("/app/addons");
     }
 
-    private JSONArray buildAddonSpecs(String path) {
+    private JSONArray buildAddonSpecs(String path, DatadirCache.Watcher watcher) {
         JSONArray addons = new JSONArray();
+        watcher.watch(new File(path));
         String[] files = new File(path).list(DirectoryFileFilter.INSTANCE);
         if (files == null) {
             return addons;
         }
         for (int i = 0; i < files.length; i++) {
+            watcher.watch(new File(path, files[i]));
             File curConfig = new File(
                     String.format("%s%s%s%s%s", path, File.separator, files[i], File.separator, "config.json"));
 
@@ -243,22 +262,29 @@ public class AddonController implements ServletContextAware {
      * addons, before scanning (if activated and available) the addons from the
      * datadir.
      *
+     * The specifications are kept in memory until one of the addons directories
+     * changes.
+     *
      * @return a JSON array with the addons specifications.
-     * @throws JSONException
+     * @throws Exception
      */
-    public JSONArray constructAddonsSpec() throws JSONException {
+    public JSONArray constructAddonsSpec() throws Exception {
+        return addons.get(datadirWatcher).getDocument();
+    }
+
+    private JSONArray loadAddonsSpec(DatadirCache.Watcher watcher) throws JSONException {
         JSONArray addons = new JSONArray();
 
         // First, looks up the addons in the webapp dir
         String path1 = getMfappOfficialAddonsPath();
-        addons = buildAddonSpecs(path1);
+        addons = buildAddonSpecs(path1, watcher);
 
         String path2 = getMfappAddonPath();
 
         JSONArray addons2 = new JSONArray();
 
         if (path2 != null) {
-            addons2 = buildAddonSpecs(path2);
+            addons2 = buildAddonSpecs(path2, watcher);
         }
 
         HashMap<String, JSONObject> instanceAddon = new HashMap<String, JSONObject>();
@@ -303,11 +329,17 @@ public class AddonController implements ServletContextAware {
      */
     public void setGeorchestraConfiguration(GeorchestraConfiguration gc) {
         georchestraConfiguration = gc;
+        addons.invalidate();
+    }
+
+    public void setDatadirWatcher(DatadirWatcher datadirWatcher) {
+        this.datadirWatcher = datadirWatcher;
     }
 
     @Override
     public void setServletContext(ServletContext servletContext) {
         this.context = servletContext;
+        addons.invalidate();
     }
 
 }
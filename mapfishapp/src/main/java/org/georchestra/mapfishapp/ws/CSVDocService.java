@@ -19,13 +19,29 @@
 
 package org.georchestra.mapfishapp.ws;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
 import javax.servlet.http.HttpServletResponse;
 import javax.sql.DataSource;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ContentHandler;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 /**
  * This service handles the storage and the loading of a csv file on a temporary
@@ -57,6 +73,24 @@ public class CSVDocService extends A_DocService {
         _content = JSONtoCSV(_content);
     }
 
+    /**
+     * Convert the streamed content in JSON format to CSV, one value at a time
+     * 
+     * @throws DocServiceException
+     */
+    @Override
+    protected void transform(File data, OutputStream out) throws DocServiceException, IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        // the columns may come after the records, the JSON object is read twice
+        for (String field : new String[] { COLUMNS_FIELD, RECORDS_FIELD }) {
+            try (Reader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(data), StandardCharsets.UTF_8))) {
+                JSONtoCSV(reader, field, writer);
+            }
+        }
+        writer.flush();
+    }
+
     /**
      * Convert content in JSON format to CSV
      * 
@@ -65,53 +99,235 @@ public class CSVDocService extends A_DocService {
      * @throws DocServiceException
      */
     private String JSONtoCSV(String jsonData) throws DocServiceException {
-        StringBuilder sBuilder = new StringBuilder();
+        StringWriter csv = new StringWriter();
         try {
+            JSONtoCSV(new StringReader(jsonData), COLUMNS_FIELD, csv);
+            JSONtoCSV(new StringReader(jsonData), RECORDS_FIELD, csv);
+        } catch (IOException e) {
+            // not thrown by string readers and writers
+            throw new IllegalStateException(e);
+        }
+        return csv.toString();
+    }
 
-            // create JSON Object from data
-            JSONTokener tokener = new JSONTokener(jsonData);
-            JSONObject jObj = new JSONObject(tokener);
+    /**
+     * Writes the CSV lines of one of the fields of the JSON object: the header
+     * line for the columns, the other lines for the records.
+     */
+    private void JSONtoCSV(Reader json, String field, Writer csv) throws DocServiceException, IOException {
+        CSVWriter handler = new CSVWriter(field, csv);
+        try {
+            new JSONParser().parse(json, handler);
+        } catch (ParseException e) {
+            throw new DocServiceException(e.toString(), HttpServletResponse.SC_BAD_REQUEST);
+        }
+        if (handler.error == null && !handler.found) {
+            handler.error = "JSONObject[\"" + field + "\"] not found.";
+        }
+        if (handler.error != null) {
+            throw new DocServiceException(handler.error, HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
 
-            // get columns name
-            JSONArray cols = jObj.getJSONArray(COLUMNS_FIELD); // if wrong value provided error is catched
-            for (int i = 0; i < cols.length(); i++) {
-                sBuilder.append(cols.get(i));
-                if (i < cols.length() - 1) {
-                    sBuilder.append(CSV_SEP);
-                }
+    /**
+     * Writes the values of the columns array, or of the arrays of the records
+     * array, as CSV lines. The values which are themselves objects or arrays are
+     * written as JSON.
+     */
+    private static class CSVWriter implements ContentHandler {
+
+        private final String field;
+
+        private final Writer csv;
+
+        /** number of values (object or arrays) including the current one */
+        private int level;
+
+        /** level of the arrays holding the CSV values */
+        private final int rowLevel;
+
+        /** entry of the root object being read */
+        private String key;
+
+        private boolean found;
+
+        private boolean firstValue;
+
+        /** JSON text of the object or array value being read */
+        private StringBuilder structured;
+
+        /** whether the value is the first one of the enclosing structured value */
+        private final Deque<Boolean> structuredFirst = new ArrayDeque<>();
+
+        private boolean afterKey;
+
+        private String error;
+
+        CSVWriter(String field, Writer csv) {
+            this.field = field;
+            this.csv = csv;
+            this.rowLevel = COLUMNS_FIELD.equals(field) ? 2 : 3;
+        }
+
+        private boolean inField() {
+            return field.equals(key);
+        }
+
+        private boolean fail(String message) {
+            error = message;
+            return false;
+        }
+
+        /**
+         * Called before any value, primitive or not
+         */
+        private boolean checkValue(boolean array) {
+            if (level == 0) {
+                return array ? fail("A JSONObject text must begin with '{'") : true;
+            }
+            if (!inField() || level > rowLevel) {
+                return true;
+            }
+            if (level == 1) {
+                found = true;
+                return array ? true : fail("JSONObject[\"" + field + "\"] is not a JSONArray.");
             }
+            if (level == 2 && rowLevel == 3) {
+                return array ? true : fail(RECORDS_FIELD + " must be arrays");
+            }
+            return true;
+        }
 
-            // add newline
-            sBuilder.append("\r\n");
+        private void separator() throws IOException {
+            if (firstValue) {
+                firstValue = false;
+            } else {
+                csv.write(CSV_SEP);
+            }
+        }
 
-            // get records
-            JSONArray records = jObj.getJSONArray(RECORDS_FIELD); // if wrong value provided error is catched
-            for (int recordIndex = 0; recordIndex < records.length(); recordIndex++) {
-                // values must be arrays
-                if (!(records.get(recordIndex) instanceof JSONArray)) {
-                    throw new DocServiceException(RECORDS_FIELD + " must be arrays",
-                            HttpServletResponse.SC_BAD_REQUEST);
+        private void beforeStructured() {
+            if (afterKey) {
+                afterKey = false;
+            } else if (!structuredFirst.isEmpty()) {
+                if (!structuredFirst.pop()) {
+                    structured.append(',');
                 }
+                structuredFirst.push(false);
+            }
+        }
 
-                // extract values
-                JSONArray array = (JSONArray) records.get(recordIndex);
-                for (int arrayIndex = 0; arrayIndex < array.length(); arrayIndex++) {
-                    sBuilder.append(array.get(arrayIndex));
+        private boolean start(boolean array) throws IOException {
+            if (!checkValue(array)) {
+                return false;
+            }
+            if (inField()) {
+                if (level == rowLevel - 1) {
+                    // a new line
+                    firstValue = true;
+                } else if (level == rowLevel) {
+                    separator();
+                    structured = new StringBuilder();
+                }
+                if (structured != null) {
+                    beforeStructured();
+                    structured.append(array ? '[' : '{');
+                    structuredFirst.push(true);
+                }
+            }
+            level++;
+            return true;
+        }
 
-                    // add separator except for the last value
-                    if (arrayIndex < array.length() - 1) {
-                        sBuilder.append(CSV_SEP);
-                    }
+        private boolean end(boolean array) throws IOException {
+            level--;
+            if (structured != null) {
+                structured.append(array ? ']' : '}');
+                structuredFirst.pop();
+                if (structuredFirst.isEmpty()) {
+                    csv.write(structured.toString());
+                    structured = null;
                 }
+            } else if (inField() && level == rowLevel - 1) {
+                csv.write("\r\n");
+            }
+            return true;
+        }
+
+        @Override
+        public void startJSON() {
+        }
+
+        @Override
+        public void endJSON() {
+        }
+
+        @Override
+        public boolean startObject() throws IOException {
+            return start(false);
+        }
+
+        @Override
+        public boolean endObject() throws IOException {
+            return end(false);
+        }
 
-                // add newline
-                sBuilder.append("\r\n");
+        @Override
+        public boolean startArray() throws IOException {
+            return start(true);
+        }
+
+        @Override
+        public boolean endArray() throws IOException {
+            return end(true);
+        }
+
+        @Override
+        public boolean startObjectEntry(String name) {
+            if (level == 1) {
+                key = name;
+            } else if (structured != null) {
+                beforeStructured();
+                structured.append(JSONValue.toJSONString(name)).append(':');
+                afterKey = true;
             }
-        } catch (JSONException jExc) {
-            throw new DocServiceException(jExc.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
+            return true;
         }
 
-        return sBuilder.toString();
-    }
+        @Override
+        public boolean endObjectEntry() {
+            if (level == 1) {
+                boolean done = inField();
+                key = null;
+                // the other entries are not needed
+                return !done;
+            }
+            return true;
+        }
 
+        @Override
+        public boolean primitive(Object value) throws IOException {
+            if (level == 0) {
+                return fail("A JSONObject text must begin with '{'");
+            }
+            if (!inField()) {
+                return true;
+            }
+            if (level == 1) {
+                found = true;
+                return fail("JSONObject[\"" + field + "\"] is not a JSONArray.");
+            }
+            if (level == 2 && rowLevel == 3) {
+                return fail(RECORDS_FIELD + " must be arrays");
+            }
+            if (structured != null) {
+                beforeStructured();
+                structured.append(JSONValue.toJSONString(value));
+            } else if (level == rowLevel) {
+                separator();
+                csv.write(String.valueOf(value));
+            }
+            return true;
+        }
+    }
 }
@@ -27,6 +27,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -72,6 +73,12 @@ public class ContextController implements ServletContextAware {
     @Autowired
     public GeorchestraConfiguration georchestraConfiguration;
 
+    @Autowired(required = false)
+    private DatadirWatcher datadirWatcher;
+
+    private final DatadirCache<JSONArray> contexts = new DatadirCache<>(this::loadContexts,
+            json -> json.toString(4).getBytes());
+
     /**
      * Setter for the geOrchestraConfiguration bean, used mainly for testing
      * purposes.
@@ -80,6 +87,24 @@ public class ContextController implements ServletContextAware {
      */
     public void setGeorchestraConfiguration(GeorchestraConfiguration georchestraConfiguration) {
         this.georchestraConfiguration = georchestraConfiguration;
+        contexts.invalidate();
+    }
+
+    public void setDatadirWatcher(DatadirWatcher datadirWatcher) {
+        this.datadirWatcher = datadirWatcher;
+    }
+
+    /**
+     * Parses the contexts at startup, so that the first viewer loaded does not
+     * wait for it.
+     */
+    @PostConstruct
+    public void init() {
+        try {
+            getContexts();
+        } catch (Exception e) {
+            LOG.error("Unable to index the contexts", e);
+        }
     }
 
     private JSONObject getContextInfo(File f) throws Exception {
@@ -258,22 +283,31 @@ public class ContextController implements ServletContextAware {
 
     @RequestMapping(value = "/contexts")
     public void getContexts(HttpServletRequest request, HttpServletResponse response) throws Exception {
-        response.setContentType("application/json");
-
-        response.getOutputStream().write(getContexts().toString(4).getBytes());
+        contexts.get(datadirWatcher).write(request, response, "application/json");
     }
 
+    /**
+     * Returns the contexts, parsed once and then kept in memory until the
+     * contexts directory changes.
+     */
     public JSONArray getContexts() throws Exception {
+        return contexts.get(datadirWatcher).getDocument();
+    }
+
+    private JSONArray loadContexts(DatadirCache.Watcher watcher) throws Exception {
         JSONArray ret = new JSONArray();
         String ctxDir = guessContextDirectory();
 
         if (ctxDir != null) {
             File ctxCtxPath = new File(ctxDir, "contexts");
+            watcher.watch(ctxCtxPath);
             if (!ctxCtxPath.isDirectory()) {
                 LOG.error("No context sub-directory found in \"" + ctxDir
                         + "\". Returning an empty array of contexts. Please check your setup.");
                 return ret;
             }
+            // thumbnails are looked up there
+            watcher.watch(new File(ctxCtxPath, "images"));
             List<File> wmcscol = (List<File>) FileUtils.listFiles(new File(ctxDir, "contexts"), new String[] { "wmc" },
                     false);
             Collections.sort(wmcscol, new Comparator<File>() {
@@ -341,6 +375,7 @@ public class ContextController implements ServletContextAware {
     @Override
     public void setServletContext(ServletContext servletContext) {
         this.context = servletContext;
+        contexts.invalidate();
     }
 
 }
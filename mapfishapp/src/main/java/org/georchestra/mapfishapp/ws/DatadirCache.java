@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.mapfishapp.ws;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Keeps in memory a document computed from datadir files, until one of the
+ * directories it was read from changes.
+ * <p>
+ * The document is served with a strong ETag, so that the clients revalidating
+ * it get a 304 response as long as it did not change.
+ *
+ * @param <T> the type of the document
+ */
+public class DatadirCache<T> {
+
+    /**
+     * Reads the document from the datadir.
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        /**
+         * @param watcher to be given every directory read, before reading it
+         */
+        T load(Watcher watcher) throws Exception;
+    }
+
+    /**
+     * Serializes the document into the response body.
+     */
+    @FunctionalInterface
+    public interface Serializer<T> {
+        byte[] serialize(T document) throws Exception;
+    }
+
+    /**
+     * Registers the directories a {@link Loader} reads.
+     */
+    @FunctionalInterface
+    public interface Watcher {
+        void watch(File directory);
+    }
+
+    private final Loader<T> loader;
+
+    private final Serializer<T> serializer;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile Entry<T> current;
+
+    /** a single instance, so that it is registered once per directory */
+    private final Runnable invalidator = this::invalidate;
+
+    private final Object loading = new Object();
+
+    public DatadirCache(Loader<T> loader, Serializer<T> serializer) {
+        this.loader = loader;
+        this.serializer = serializer;
+    }
+
+    /**
+     * Returns the cached document, loading it if a watched directory changed
+     * since. The concurrent calls wait for a single thread to load it. The
+     * document is loaded on every call if the directories cannot be watched (no
+     * or disabled watcher).
+     */
+    public Entry<T> get(DatadirWatcher datadirWatcher) throws Exception {
+        Entry<T> entry = current;
+        if (entry != null) {
+            return entry;
+        }
+        if (datadirWatcher == null || !datadirWatcher.isEnabled()) {
+            return load(null);
+        }
+        synchronized (loading) {
+            entry = current;
+            return entry != null ? entry : load(datadirWatcher);
+        }
+    }
+
+    private Entry<T> load(DatadirWatcher datadirWatcher) throws Exception {
+        final long loadedGeneration = generation.get();
+        final boolean[] watched = { datadirWatcher != null };
+        T document = loader.load(directory -> {
+            if (watched[0]) {
+                watched[0] = datadirWatcher.watch(directory, invalidator);
+            }
+        });
+        Entry<T> entry = new Entry<>(document, document == null ? null : serializer.serialize(document));
+        if (watched[0]) {
+            synchronized (this) {
+                // a change during the loading may not be reflected by the document
+                if (generation.get() == loadedGeneration) {
+                    current = entry;
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Forgets the cached document, the next call to {@link #get} loads it again.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            generation.incrementAndGet();
+            current = null;
+        }
+    }
+
+    /**
+     * A loaded document, along with its serialized form.
+     */
+    public static class Entry<T> {
+        private final T document;
+        private final byte[] bytes;
+        private final String etag;
+
+        Entry(T document, byte[] bytes) {
+            this.document = document;
+            this.bytes = bytes;
+            this.etag = bytes == null ? null : '"' + Hashing.sha256().hashBytes(bytes).toString() + '"';
+        }
+
+        /**
+         * @return the document, null if the loader did not find it
+         */
+        public T getDocument() {
+            return document;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        /**
+         * Writes the serialized document, or a 304 response if the client already
+         * has it.
+         */
+        public void write(HttpServletRequest request, HttpServletResponse response, String contentType)
+                throws IOException {
+            response.setContentType(contentType);
+            response.setHeader("ETag", etag);
+            // the clients have to revalidate, the datadir may change at any time
+            response.setHeader("Cache-Control", "no-cache");
+            if (matches(request.getHeader("If-None-Match"))) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            response.getOutputStream().write(bytes);
+        }
+
+        private boolean matches(String ifNoneMatch) {
+            if (ifNoneMatch == null) {
+                return false;
+            }
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                // If-None-Match uses the weak comparison
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if (candidate.equals("*") || candidate.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
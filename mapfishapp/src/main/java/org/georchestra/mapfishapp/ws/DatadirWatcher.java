@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.mapfishapp.ws;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Watches the datadir directories read by the {@link DatadirCache}s, and
+ * notifies them as soon as a file is created, modified or removed in one of
+ * these directories.
+ * <p>
+ * A directory that does not exist yet is watched through its closest existing
+ * parent, so that its creation is noticed too.
+ * <p>
+ * The notifications rely on the {@link WatchService} of the platform, which
+ * misses the changes made from another host on network filesystems. Watching
+ * can thus be disabled, the caches then read the datadir on every request.
+ */
+public class DatadirWatcher {
+
+    private static final Log LOG = LogFactory.getLog(DatadirWatcher.class.getPackage().getName());
+
+    private boolean enabled = true;
+
+    private WatchService watchService;
+
+    private Thread thread;
+
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+
+    private final Map<WatchKey, Set<Runnable>> listeners = new HashMap<>();
+
+    /**
+     * Calls the listener on the next change in the directory.
+     *
+     * @return false if the directory cannot be watched, in which case the caller
+     *         must not rely on being notified
+     */
+    public synchronized boolean watch(File directory, Runnable listener) {
+        if (!enabled || directory == null) {
+            return false;
+        }
+        File dir = directory.getAbsoluteFile();
+        while (dir != null && !dir.isDirectory()) {
+            dir = dir.getParentFile();
+        }
+        if (dir == null) {
+            return false;
+        }
+        try {
+            if (watchService == null) {
+                start();
+            }
+            Path path = dir.toPath();
+            WatchKey key = keys.get(path);
+            if (key == null || !key.isValid()) {
+                key = path.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                keys.put(path, key);
+            }
+            listeners.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(listener);
+            return true;
+        } catch (IOException | ClosedWatchServiceException e) {
+            LOG.warn("Unable to watch " + dir + ", its content will not be cached", e);
+            return false;
+        }
+    }
+
+    private void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this::run, "Mapfishapp-datadir-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        final WatchService service;
+        synchronized (this) {
+            service = watchService;
+        }
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            // the events themselves do not matter, the listeners reload the whole
+            // directory
+            key.pollEvents();
+            List<Runnable> notified;
+            synchronized (this) {
+                Set<Runnable> registered = listeners.remove(key);
+                notified = registered == null ? new ArrayList<>() : new ArrayList<>(registered);
+                if (!key.reset()) {
+                    // the directory was removed
+                    keys.values().remove(key);
+                }
+            }
+            for (Runnable listener : notified) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Error notifying a datadir change", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops watching the datadir.
+     */
+    @PreDestroy
+    public synchronized void dispose() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                LOG.warn("Unable to close the datadir watch service", e);
+            }
+            thread.interrupt();
+            watchService = null;
+            thread = null;
+            keys.clear();
+            listeners.clear();
+        }
+    }
+
+    /**
+     * Whether the datadir is watched, and thus its content cached. Defaults to
+     * true.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+}
@@ -42,6 +42,7 @@ import org.georchestra.commons.configuration.GeorchestraConfiguration;
 import org.georchestra.commons.security.SecurityHeaders;
 import org.georchestra.mapfishapp.ws.classif.ClassifierCommand;
 import org.georchestra.mapfishapp.ws.classif.SLDClassifier;
+import org.georchestra.mapfishapp.ws.classif.WFSDataStoreCache;
 import org.geotools.data.wfs.WFSDataStoreFactory;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -98,6 +99,14 @@ public class DocController {
     @Autowired
     private DataSource connectionPool;
 
+    /** counts the accesses to the documents, synchronously if not set */
+    @Autowired(required = false)
+    private GeodocAccessCounter accessCounter;
+
+    public void setAccessCounter(GeodocAccessCounter accessCounter) {
+        this.accessCounter = accessCounter;
+    }
+
     /**
      * variable name that has to be used on client side
      */
@@ -169,8 +178,22 @@ public class DocController {
 
     private WFSDataStoreFactory factory = new WFSDataStoreFactory();
 
-    public void setWFSDataStoreFactory(WFSDataStoreFactory fac) {
+    /**
+     * WFS datastores kept between two classifications, lazily created from
+     * {@link #factory}
+     */
+    private WFSDataStoreCache wfsDataStores;
+
+    public synchronized void setWFSDataStoreFactory(WFSDataStoreFactory fac) {
         factory = fac;
+        wfsDataStores = null;
+    }
+
+    private synchronized WFSDataStoreCache getWFSDataStores() {
+        if (wfsDataStores == null) {
+            wfsDataStores = new WFSDataStoreCache(factory);
+        }
+        return wfsDataStores;
     }
 
     /**
@@ -453,7 +476,7 @@ public class DocController {
         try {
             // classification based on client request in json
             SLDClassifier c = new SLDClassifier(credentials, new ClassifierCommand(getBodyFromRequest(request)),
-                    factory);
+                    getWFSDataStores());
 
             // save SLD content under a file
             SLDDocService service = new SLDDocService(this.docTempDir, this.connectionPool);
@@ -484,7 +507,7 @@ public class DocController {
             HttpServletResponse response) {
         try {
 
-            String fileContent;
+            InputStream fileContent;
 
             if (request instanceof MultipartHttpServletRequest) {
                 // the request is a MultipartHttpServletRequest => one upload occurred
@@ -510,18 +533,23 @@ public class DocController {
                 }
 
                 // get file content
-                fileContent = new String(file.getBytes());
+                fileContent = file.getInputStream();
 
             } else {
                 // service has been called normally: RESTful style
 
-                // extract body from the client request, it should contain the file content
-                fileContent = getBodyFromRequest(request);
+                // the body of the client request contains the file content
+                fileContent = request.getInputStream();
             }
 
-            // let the specific service handles the storage on the server
-            // get back the file name under which it is saved
-            String fileName = docService.saveData(fileContent, SecurityHeaders.decode(request.getHeader(SEC_USERNAME)));
+            // let the specific service handles the storage on the server, streaming the
+            // content. Get back the file name under which it is saved
+            String fileName;
+            try {
+                fileName = docService.saveData(fileContent, SecurityHeaders.decode(request.getHeader(SEC_USERNAME)));
+            } finally {
+                fileContent.close();
+            }
 
             // send back to client the url path to retrieve this file later on
             response.setStatus(HttpServletResponse.SC_CREATED); // 201 created, new resource created
@@ -537,6 +565,7 @@ public class DocController {
             sendErrorToClient(response, e.getErrorCode(), e.getMessage());
             LOG.error("Error occured while storing an uploaded file", e);
         } catch (IOException e) {
+            sendErrorToClient(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "");
             LOG.error("I/O exception encountered while storing an uploaded file", e);
         }
     }
@@ -544,8 +573,10 @@ public class DocController {
     /**
      *
      * @param docService Any service implementing A_DocService
-     * @param request    no parameter. The parameter has to be provided REST style:
-     *                   SERVICE_URL/{filename}
+     * @param request    the file name has to be provided REST style:
+     *                   SERVICE_URL/{filename}. The optional pretty=true parameter
+     *                   indents XML documents, which are stored without
+     *                   indentation.
      * @param response   contains the file content
      */
     private void getFile(A_DocService docService, HttpServletRequest request, HttpServletResponse response) {
@@ -561,6 +592,7 @@ public class DocController {
             }
 
             // let the specific service retrieve the file stored on the server
+            docService.setAccessCounter(accessCounter);
             docService.loadFile(fileName);
 
             // send back the file content
@@ -575,7 +607,11 @@ public class DocController {
             // Documents like CSV may contain sensitive information => private
             // but we want it to be be fast => cached by proxies => public
             PrintWriter out = response.getWriter();
-            out.println(docService.getContent());
+            if (Boolean.parseBoolean(request.getParameter("pretty"))) {
+                out.println(docService.getIndentedContent());
+            } else {
+                out.println(docService.getContent());
+            }
         } catch (DocServiceException docExc) {
             sendErrorToClient(response, docExc.getErrorCode(), docExc.toString());
             LOG.error("Error occured while storing an uploaded file", docExc);
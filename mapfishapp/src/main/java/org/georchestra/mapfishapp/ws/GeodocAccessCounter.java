@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.mapfishapp.ws;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Counts the geodoc accesses in memory and saves them periodically, so that
+ * loading a geodoc does not update (and lock) its row: a map shared on a
+ * public site is loaded by many users at the same time.
+ * <p>
+ * The access_count and last_access columns thus lag behind by up to the flush
+ * interval. The accesses of an instance that is killed before flushing are
+ * lost.
+ */
+public class GeodocAccessCounter {
+
+    private static final Log LOG = LogFactory.getLog(GeodocAccessCounter.class.getPackage().getName());
+
+    private @Autowired DataSource dataSource;
+
+    private long flushInterval = 30;
+
+    private final ConcurrentMap<String, Access> pending = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Mapfishapp-geodoc-access");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Saves the pending accesses before shutting down.
+     */
+    @PreDestroy
+    public void dispose() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+        flush();
+    }
+
+    /**
+     * Records an access to the geodoc.
+     *
+     * @param fileHash the file_hash of the geodoc
+     */
+    public void increment(String fileHash) {
+        pending.merge(fileHash, new Access(1, System.currentTimeMillis()), Access::add);
+    }
+
+    /**
+     * Adds the pending accesses to the counters of the geodocs, in a single batch.
+     * If the database is not reachable, they are kept for the next flush.
+     *
+     * @return the number of geodocs updated
+     */
+    public synchronized int flush() {
+        if (pending.isEmpty()) {
+            return 0;
+        }
+        // the rows are updated in the same order by every mapfishapp instance, so
+        // that concurrent flushes cannot deadlock
+        List<String> fileHashes = new ArrayList<>(pending.keySet());
+        Collections.sort(fileHashes);
+        Map<String, Access> accesses = new LinkedHashMap<>();
+        for (String fileHash : fileHashes) {
+            Access access = pending.remove(fileHash);
+            if (access != null) {
+                accesses.put(fileHash, access);
+            }
+        }
+
+        final String sql = "UPDATE mapfishapp.geodocs SET access_count = access_count + ?, "
+                + "last_access = greatest(last_access, ?) WHERE file_hash = ?;";
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (PreparedStatement st = connection.prepareStatement(sql)) {
+                for (Map.Entry<String, Access> e : accesses.entrySet()) {
+                    st.setInt(1, e.getValue().count);
+                    st.setTimestamp(2, new Timestamp(e.getValue().lastAccess));
+                    st.setString(3, e.getKey());
+                    st.addBatch();
+                }
+                st.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        } catch (SQLException e) {
+            LOG.error("Unable to save the geodoc accesses, retrying later", e);
+            accesses.forEach((fileHash, access) -> pending.merge(fileHash, access, Access::add));
+            return 0;
+        }
+        return accesses.size();
+    }
+
+    /**
+     * Number of geodocs accessed since the last flush.
+     */
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Number of seconds between two flushes. Defaults to 30.
+     */
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    private static final class Access {
+        private final int count;
+        private final long lastAccess;
+
+        Access(int count, long lastAccess) {
+            this.count = count;
+            this.lastAccess = lastAccess;
+        }
+
+        Access add(Access other) {
+            return new Access(count + other.count, Math.max(lastAccess, other.lastAccess));
+        }
+    }
+}
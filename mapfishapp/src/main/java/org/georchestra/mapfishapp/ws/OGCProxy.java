@@ -19,27 +19,28 @@
 
 package org.georchestra.mapfishapp.ws;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.stereotype.Controller;
@@ -57,6 +58,10 @@ import org.springframework.web.bind.annotation.RequestParam;
  * Can be accessed via .../ogcproxy/* depending on the url mapping defined in
  * web.xml and ws-servlet.xml <br />
  * OGCProxy is a Spring Controller. <br />
+ * The connections to the remote hosts are not closed after use, they are kept
+ * alive and reused by the JVM (see the http.keepAlive and http.maxConnections
+ * system properties). Responses are requested compressed and forwarded
+ * compressed to the clients which accept it. <br />
  *
  * @author yoann.buch@gmail.com
  */
@@ -71,6 +76,25 @@ public class OGCProxy {
     private String[] _allowedHosts = {};
 
     private static final Log LOG = LogFactory.getLog(OGCProxy.class.getPackage().getName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of (possibly compressed) bytes read ahead to find the charset
+     * of the response
+     */
+    private static final int SNIFF_LIMIT = 16 * 1024;
+
+    /**
+     * Maximum number of bytes read from a rejected response to keep its connection
+     * alive, the connection is closed beyond
+     */
+    private static final int DISCARD_LIMIT = BUFFER_SIZE;
+
+    /**
+     * Copy buffers, one per request thread
+     */
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
     /**
      * List of valid content types
      */
@@ -191,30 +215,39 @@ public class OGCProxy {
             // set doOutput to true if we are POSTing
             if (requestMethod.equalsIgnoreCase("POST")) {
                 connectionWithFinalHost.setDoOutput(true);
+                // stream the body instead of buffering it in memory
+                if (request.getContentLength() >= 0) {
+                    connectionWithFinalHost.setFixedLengthStreamingMode(request.getContentLength());
+                } else {
+                    connectionWithFinalHost.setChunkedStreamingMode(BUFFER_SIZE);
+                }
             }
 
             // copy headers from client's request to request that will be send to the final
             // host
             copyHeadersToConnection(request, connectionWithFinalHost);
-            connectionWithFinalHost.setRequestProperty("Accept-Encoding", "");
+            // the response is decompressed here if the client does not support it
+            connectionWithFinalHost.setRequestProperty("Accept-Encoding", "gzip, deflate");
 
             // connect to remote host
             // interactions with the resource are enabled now
             connectionWithFinalHost.connect();
 
+            final byte[] buf = BUFFERS.get();
             if (requestMethod.equalsIgnoreCase("POST")) {
                 ServletInputStream in = request.getInputStream();
-                OutputStream out = connectionWithFinalHost.getOutputStream();
-                byte[] buf = new byte[1024]; // read maximum 1024 bytes
-                int len; // number of bytes read from the stream
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
+                try (OutputStream out = connectionWithFinalHost.getOutputStream()) {
+                    int len; // number of bytes read from the stream
+                    while ((len = in.read(buf)) > 0) {
+                        out.write(buf, 0, len);
+                    }
                 }
             }
 
-            // get content type
+            // get content type, only the headers are checked
             String contentType = connectionWithFinalHost.getContentType();
             if (contentType == null) {
+                discardResponse(connectionWithFinalHost, buf);
                 response.sendError(HttpServletResponse.SC_FORBIDDEN,
                         "Host url has been validated by proxy but content type given by remote host is null");
                 return;
@@ -222,6 +255,7 @@ public class OGCProxy {
 
             // content type has to be valid
             if (!isContentTypeValid(contentType)) {
+                discardResponse(connectionWithFinalHost, buf);
                 if (connectionWithFinalHost.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
                     // content type was not valid because page was not found (text/html)
                     response.sendError(HttpServletResponse.SC_NOT_FOUND, "Remote host answered with 404 not found");
@@ -247,98 +281,194 @@ public class OGCProxy {
              *
              * A. The content type provides a charset: Nothing special, just send back the
              * stream to the client B. There is no charset provided: The encoding has to be
-             * extracted from the file. The file is read in ASCII, which is common to many
-             * charsets, like that the encoding located in the first not can be retrieved.
-             * Once the charset is found, the content-type header is overridden and the
-             * charset is appended.
+             * extracted from the file. The beginning of the file is read in ASCII, which is
+             * common to many charsets, like that the encoding located in the first node
+             * can be retrieved. The stream is then rewound, the content-type header is
+             * overridden and the charset is appended.
              *
-             * /!\ Special case: whenever data are compressed in gzip/deflate the stream has
-             * to be uncompressed and compressed
+             * Data compressed in gzip/deflate are sent as is to the clients accepting the
+             * encoding, and uncompressed for the others. In case B the beginning of the
+             * file is uncompressed to find the encoding before rewinding the compressed
+             * stream.
              */
 
-            boolean isCharsetKnown = connectionWithFinalHost.getContentType().toLowerCase().contains("charset");
+            boolean isCharsetKnown = contentType.toLowerCase().contains("charset");
             String contentEncoding = getContentEncoding(connectionWithFinalHost.getHeaderFields());
-
-            // copy headers from the remote server's response to the response to send to the
-            // client
-            if (isCharsetKnown) {
-                copyHeadersFromConnectionToResponse(response, connectionWithFinalHost);
-            } else {
-                // copy everything except Content-Type header
-                // because we need to concatenate the charset later
-                copyHeadersFromConnectionToResponse(response, connectionWithFinalHost, new String[] { "Content-Type" });
-            }
-
-            InputStream streamFromServer = null;
-            OutputStream streamToClient = null;
-            if (contentEncoding == null || isCharsetKnown) {
-                // A simple stream can do the job for data that is not in content encoded
-                // but also for data content encoded with a known charset
-                streamFromServer = connectionWithFinalHost.getInputStream();
-                streamToClient = response.getOutputStream();
-            } else if ("gzip".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // the charset is unknown and the data are compressed in gzip
-                // we add the gzip wrapper to be able to read/write the stream content
-                streamFromServer = new GZIPInputStream(connectionWithFinalHost.getInputStream());
-                streamToClient = new GZIPOutputStream(response.getOutputStream());
-            } else if ("deflate".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // same but with deflate
-                streamFromServer = new DeflaterInputStream(connectionWithFinalHost.getInputStream());
-                streamToClient = new DeflaterOutputStream(response.getOutputStream());
-            } else {
+            if (contentEncoding != null && !"gzip".equals(contentEncoding) && !"deflate".equals(contentEncoding)) {
                 throw new UnsupportedOperationException(
                         "Please handle the stream when it is encoded in " + contentEncoding);
             }
+            boolean passThrough = contentEncoding == null || acceptsEncoding(request, contentEncoding);
 
-            byte[] buf = new byte[1024]; // read maximum 1024 bytes
-            int len; // number of bytes read from the stream
-            boolean first = true; // helps to find the encoding once and only once
-            String s = ""; // piece of file that should contain the encoding
-            while ((len = streamFromServer.read(buf)) > 0) {
-
-                if (first && !isCharsetKnown) {
+            try (InputStream streamFromServer = new BufferedInputStream(connectionWithFinalHost.getInputStream(),
+                    SNIFF_LIMIT)) {
+                String charset = null;
+                if (!isCharsetKnown) {
                     // charset is unknown try to find it in the file content
-                    for (int i = 0; i < len; i++) {
-                        s += (char) buf[i]; // get the beginning of the file as ASCII
+                    streamFromServer.mark(SNIFF_LIMIT);
+                    // the decoder is closed without closing the stream it reads
+                    try (InputStream header = decode(new CloseShieldInputStream(streamFromServer), contentEncoding,
+                            512)) {
+                        charset = getCharset(readHeader(header, buf));
                     }
-
-                    // s has to be long enough to contain the encoding
-                    if (s.length() > 200) {
-                        String charset = getCharset(s); // extract charset
-
-                        if (charset == null) {
-                            // the charset cannot be found, IE users must be warned
-                            // that the request cannot be fulfilled, nothing good would happen otherwise
-                            if (request.getHeader("User-Agent").toLowerCase().contains("msie")) {
-                                response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
-                                        "Charset of the response is unknown");
-                                streamFromServer.close();
-                                connectionWithFinalHost.disconnect();
-                                streamToClient.close();
-                                return;
-                            }
-                        } else {
-                            // override content-type header and add the charset found
-                            response.addHeader("Content-Type",
-                                    connectionWithFinalHost.getContentType() + ";charset=" + charset);
-                            first = false; // we found the encoding, don't try to do it again
-                        }
+                    streamFromServer.reset();
+
+                    // the charset cannot be found, IE users must be warned
+                    // that the request cannot be fulfilled, nothing good would happen otherwise
+                    String userAgent = request.getHeader("User-Agent");
+                    if (charset == null && userAgent != null && userAgent.toLowerCase().contains("msie")) {
+                        discard(connectionWithFinalHost, streamFromServer, buf);
+                        response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
+                                "Charset of the response is unknown");
+                        return;
                     }
                 }
 
+                // copy headers from the remote server's response to the response to send to
+                // the client, except the Content-Type header if we need to concatenate the
+                // charset, and the encoding if the content is sent uncompressed
+                List<String> ignoreList = new ArrayList<String>();
+                if (!isCharsetKnown) {
+                    ignoreList.add("Content-Type");
+                }
+                if (!passThrough) {
+                    ignoreList.add("Content-Encoding");
+                    ignoreList.add("Content-Length");
+                }
+                copyHeadersFromConnectionToResponse(response, connectionWithFinalHost,
+                        ignoreList.toArray(new String[ignoreList.size()]));
+                if (!isCharsetKnown) {
+                    // override content-type header and add the charset found
+                    response.addHeader("Content-Type",
+                            charset == null ? contentType : contentType + ";charset=" + charset);
+                }
+                if (contentEncoding != null && !variesOnAcceptEncoding(response)) {
+                    // whether the content is sent compressed depends on the client
+                    response.addHeader("Vary", "Accept-Encoding");
+                }
+
                 // for everyone, the stream is just forwarded to the client
-                streamToClient.write(buf, 0, len);
+                try (InputStream in = passThrough ? streamFromServer
+                        : decode(streamFromServer, contentEncoding, BUFFER_SIZE)) {
+                    OutputStream streamToClient = response.getOutputStream();
+                    int len; // number of bytes read from the stream
+                    while ((len = in.read(buf)) > 0) {
+                        streamToClient.write(buf, 0, len);
+                    }
+                    streamToClient.flush();
+                }
             }
-
-            streamFromServer.close();
-            connectionWithFinalHost.disconnect();
-            streamToClient.close();
+            // the connection is not disconnected, so that it is kept alive and reused for
+            // the next requests to the same host
         } catch (IOException e) {
             // connection problem with the host
             LOG.error(String.format("I/O exception occured while proxyfying to %s", sURL), e);
         }
     }
 
+    /**
+     * Reads the beginning of a file as ASCII, long enough to contain the encoding
+     * attribute of an xml header.
+     * 
+     * @param in  the stream to read, left partially consumed
+     * @param buf buffer to read with
+     * @return the beginning of the file
+     */
+    private String readHeader(InputStream in, byte[] buf) throws IOException {
+        StringBuilder header = new StringBuilder();
+        int len;
+        while (header.length() <= 200 && (len = in.read(buf, 0, Math.min(buf.length, 1024))) > 0) {
+            for (int i = 0; i < len; i++) {
+                header.append((char) buf[i]); // get the beginning of the file as ASCII
+            }
+        }
+        return header.toString();
+    }
+
+    /**
+     * The returned stream owns its inflater, closing it frees the native memory.
+     * 
+     * @param contentEncoding gzip, deflate or null
+     * @param size            of the reads from the compressed gzip stream
+     * @return the uncompressed stream
+     */
+    private InputStream decode(InputStream in, String contentEncoding, int size) throws IOException {
+        if ("gzip".equals(contentEncoding)) {
+            return new GZIPInputStream(in, size);
+        } else if ("deflate".equals(contentEncoding)) {
+            return new InflaterInputStream(in);
+        }
+        return in;
+    }
+
+    /**
+     * Discards the body of a response which is not forwarded to the client.
+     */
+    private void discardResponse(HttpURLConnection connection, byte[] buf) {
+        InputStream in;
+        try {
+            in = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream()
+                    : connection.getInputStream();
+        } catch (IOException e) {
+            connection.disconnect();
+            return;
+        }
+        if (in != null) {
+            discard(connection, in, buf);
+        }
+    }
+
+    /**
+     * Reads what is left of a response and closes it, so that its connection is
+     * kept alive and reused. The connection is closed instead if more than
+     * {@link #DISCARD_LIMIT} bytes are left.
+     */
+    private void discard(HttpURLConnection connection, InputStream in, byte[] buf) {
+        try (InputStream body = in) {
+            long left = DISCARD_LIMIT;
+            int len;
+            while ((len = body.read(buf)) > 0) {
+                left -= len;
+                if (left < 0) {
+                    connection.disconnect();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Determine if the client accepts the given content encoding, according to
+     * its Accept-Encoding header
+     * 
+     * @param contentEncoding gzip or deflate
+     */
+    protected boolean acceptsEncoding(HttpServletRequest request, String contentEncoding) {
+        for (Enumeration<String> headers = request.getHeaders("Accept-Encoding"); headers != null
+                && headers.hasMoreElements();) {
+            for (String coding : headers.nextElement().split(",")) {
+                String[] params = coding.trim().split(";");
+                String name = params[0].trim();
+                if (!contentEncoding.equalsIgnoreCase(name) && !"*".equals(name)) {
+                    continue;
+                }
+                boolean refused = false;
+                for (int i = 1; i < params.length; i++) {
+                    String param = params[i].trim().replace(" ", "");
+                    if (param.matches("q=0(\\.0*)?")) {
+                        refused = true;
+                    }
+                }
+                if (!refused) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Extract the encoding from a string which is the header node of an xml file
      * 
@@ -365,6 +495,20 @@ public class OGCProxy {
         return charset;
     }
 
+    /**
+     * @return true if the Vary headers copied from the remote host already list
+     *         Accept-Encoding, or all the headers
+     */
+    private boolean variesOnAcceptEncoding(HttpServletResponse response) {
+        for (String vary : response.getHeaders("Vary")) {
+            String lower = vary.toLowerCase();
+            if (lower.contains("accept-encoding") || lower.contains("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Gets the encoding of the content sent by the remote host: extracts the
      * content-encoding header
@@ -23,18 +23,18 @@ import static org.springframework.http.MediaType.APPLICATION_JSON;
 import static org.springframework.http.MediaType.TEXT_HTML;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.net.URL;
-import java.nio.file.Files;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
@@ -54,6 +54,7 @@ import org.georchestra.commons.configuration.GeorchestraConfiguration;
 import org.georchestra.mapfishapp.ws.upload.FileDescriptor;
 import org.georchestra.mapfishapp.ws.upload.UnsupportedGeofileFormatException;
 import org.georchestra.mapfishapp.ws.upload.UpLoadFileManagement;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.referencing.CRS;
@@ -63,6 +64,7 @@ import org.json.JSONException;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.TransformException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
@@ -125,6 +127,7 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
     private String responseCharset;
     private File tempDirectory;
     private String docTempDir = "/tmp";
+    private int coordinatePrecision = 15;
 
     // for test purposes only
     private boolean allowFileProtocol;
@@ -275,6 +278,14 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
         this.responseCharset = responseCharset;
     }
 
+    /**
+     * Number of decimals of the coordinates of the returned features. Defaults to
+     * 15.
+     */
+    public void setCoordinatePrecision(int coordinatePrecision) {
+        this.coordinatePrecision = coordinatePrecision;
+    }
+
     /**
      * Returns the set of file formats which this service can manage.
      *
@@ -314,6 +325,12 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
      * as a json object. If an CRS is provided the resultant features will be
      * projected to that CRS before.
      * <p>
+     * If a resolution (the size of a screen pixel, in units of the CRS) is
+     * provided, the geometries are simplified and their coordinates rounded
+     * without visible change at that resolution. The response is gzip compressed
+     * if the client accepts it.
+     * </p>
+     * <p>
      * The file is maintained in a temporal store that will be cleaned when the
      * response has be done.
      * </p>
@@ -325,6 +342,7 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
             HttpServletResponse response, //
             @RequestParam(name = "url", required = true) URL url, //
             @RequestParam(name = "srs", required = false) String targetSRS, //
+            @RequestParam(name = "resolution", required = false) Double resolution, //
             @RequestHeader HttpHeaders requestHeaders) throws Exception {
 
         LOG.debug(String.format("toGeoJsonFromURL(%s, %s)", url, targetSRS));
@@ -343,7 +361,8 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
                 UpLoadFileManagement fileManagement = UpLoadFileManagement.create();
                 fileManagement.setWorkDirectory(workDirectory);
                 fileManagement.setFileDescriptor(fileDescriptor);
-                transformAndSend(fileManagement, targetSRS, response, forceResponseType);
+                transformAndSend(fileManagement, targetSRS, resolution, requestHeaders, response,
+                        forceResponseType);
             } else {
                 writeErrorResponse(response, Status.unsupportedFormat, forceResponseType);
                 return;
@@ -367,6 +386,12 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
      * returned as a json object. If an CRS is provided the resultant features will
      * be projected to that CRS before.
      * <p>
+     * If a resolution (the size of a screen pixel, in units of the CRS) is
+     * provided, the geometries are simplified and their coordinates rounded
+     * without visible change at that resolution. The response is gzip compressed
+     * if the client accepts it.
+     * </p>
+     * <p>
      * The file is maintained in a temporal store that will be cleaned when the
      * response has be done.
      * </p>
@@ -379,6 +404,7 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
             HttpServletResponse response, //
             @RequestParam(name = "geofile", required = true) MultipartFile geofile,
             @RequestParam(name = "srs", required = false) String targetSRS, //
+            @RequestParam(name = "resolution", required = false) Double resolution, //
             @RequestHeader HttpHeaders requestHeaders) throws Exception {
 
         LOG.debug(String.format("toGeoJsonFromMultipart(%s, %s)", geofile.getOriginalFilename(), targetSRS));
@@ -401,7 +427,7 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
             fileManagement.setFileDescriptor(currentFile);
             fileManagement.save(geofile);
 
-            transformAndSend(fileManagement, targetSRS, response, forceResponseType);
+            transformAndSend(fileManagement, targetSRS, resolution, requestHeaders, response, forceResponseType);
         } finally {
             cleanTemporalDirectory(workDirectory);
         }
@@ -450,7 +476,8 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
     }
 
     private void transformAndSend(UpLoadFileManagement fileManagement, @Nullable String targetSRS,
-            HttpServletResponse response, MediaType forceResponseType) {
+            @Nullable Double resolution, @Nullable HttpHeaders requestHeaders, HttpServletResponse response,
+            MediaType forceResponseType) {
 
         // processes the uploaded || downloaded file
         Status st = Status.ready;
@@ -481,8 +508,47 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
             return;
         }
 
+        if (resolution != null) {
+            if (!(resolution > 0)) {
+                writeErrorResponse(response, Status.ioError, "resolution must be positive",
+                        HttpStatus.BAD_REQUEST.value(), forceResponseType);
+                return;
+            }
+            // simplified and quantized output, the changes stay below a pixel
+            fileManagement.setSimplificationTolerance(resolution / 2);
+            fileManagement.setCoordinatePrecision(precisionForResolution(resolution));
+        } else {
+            fileManagement.setCoordinatePrecision(this.coordinatePrecision);
+        }
+
         // retrieves the feature collection and write the response
-        writeOKResponse(response, fileManagement, crs, forceResponseType);
+        writeOKResponse(response, fileManagement, crs, forceResponseType, acceptsGzip(requestHeaders));
+    }
+
+    /**
+     * @return the number of decimals needed to write the coordinates with a tenth
+     *         of the resolution, at most {@link #coordinatePrecision}
+     */
+    int precisionForResolution(double resolution) {
+        int decimals = (int) Math.ceil(-Math.log10(resolution / 10));
+        return Math.max(0, Math.min(this.coordinatePrecision, decimals));
+    }
+
+    private boolean acceptsGzip(@Nullable HttpHeaders requestHeaders) {
+        if (requestHeaders == null) {
+            return false;
+        }
+        for (String acceptEncoding : requestHeaders.getOrDefault(HttpHeaders.ACCEPT_ENCODING,
+                Collections.emptyList())) {
+            for (String coding : acceptEncoding.split(",")) {
+                String[] params = coding.trim().split(";");
+                if ("gzip".equalsIgnoreCase(params[0].trim())
+                        && !(params.length > 1 && params[1].trim().matches("q=0(\\.0*)?"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     private @Nullable CoordinateReferenceSystem parseCRS(String targetSRS) throws IOException {
@@ -577,32 +643,23 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
      *
      * "{\"success\": \"true\", \"geojson\":" + jsonFeatures+"}"
      * </p>
+     * The features are streamed to the response while they are read, an error
+     * occurring once the response is committed can only be logged.
      *
      * @param response
      * @param fileManagement
      * @param crs
      * @param forceResponseType
+     * @param gzip              whether the response is gzip compressed
      *
      * @throws Exception
      */
     private void writeOKResponse(final HttpServletResponse response, final UpLoadFileManagement fileManagement,
-            final CoordinateReferenceSystem crs, MediaType forceResponseType) {
-
-        final File tmpJsonFile = new File(fileManagement.getWorkDirectory(), "tmpresponse.json");
-        try (Writer writer = new FileWriter(tmpJsonFile)) {
-            // builds the following response:
-            // "{\"success\": \"true\", \"geojson\":" + jsonFeatures+"}");
-            writer.write("{\"success\": \"true\", \"geojson\":");
-
-            fileManagement.writeFeatureCollectionAsJSON(writer, crs);
+            final CoordinateReferenceSystem crs, MediaType forceResponseType, boolean gzip) {
 
-            writer.write("}");
-            writer.flush();
-        } catch (OutOfMemoryError unlikely) {
-            LOG.error(unlikely);
-            writeErrorResponse(response, Status.outOfMemoryError, buildOutOfMemoryErrorMessage(),
-                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, forceResponseType);
-            return;
+        final SimpleFeatureCollection features;
+        try {
+            features = fileManagement.getFeatureCollection(crs);
         } catch (IOException e) {
             LOG.error(e);
             writeErrorResponse(response, Status.ioError, e.getMessage(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -619,17 +676,62 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
                     HttpServletResponse.SC_INTERNAL_SERVER_ERROR, forceResponseType);
             return;
         }
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("RESPONSE: OK");
-        }
+
         response.setCharacterEncoding(responseCharset);
         response.setContentType(forceResponseType.toString());
         response.setStatus(HttpServletResponse.SC_OK);
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
         try {
-            Files.copy(tmpJsonFile.toPath(), response.getOutputStream());
-        } catch (IOException streamClosedByClient) {
-            LOG.trace(streamClosedByClient);
+            GZIPOutputStream gzipStream = null;
+            Writer writer;
+            if (gzip) {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+                gzipStream = new GZIPOutputStream(response.getOutputStream(), 8192);
+                writer = new OutputStreamWriter(gzipStream, responseCharset);
+            } else {
+                writer = response.getWriter();
+            }
+            // builds the following response:
+            // "{\"success\": \"true\", \"geojson\":" + jsonFeatures+"}");
+            writer.write("{\"success\": \"true\", \"geojson\":");
+
+            fileManagement.writeFeaturesAsJSON(writer, features);
+
+            writer.write("}");
+            writer.flush();
+            if (gzipStream != null) {
+                gzipStream.finish();
+            }
+        } catch (OutOfMemoryError unlikely) {
+            LOG.error(unlikely);
+            writeStreamingErrorResponse(response, Status.outOfMemoryError, buildOutOfMemoryErrorMessage(),
+                    HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, forceResponseType);
+            return;
+        } catch (IOException | RuntimeException e) {
+            LOG.error(e);
+            Status st = e.getCause() instanceof TransformException ? Status.projectionError : Status.ioError;
+            writeStreamingErrorResponse(response, st, e.getMessage(), HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                    forceResponseType);
+            return;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("RESPONSE: OK");
+        }
+    }
+
+    /**
+     * Replaces the partially written features by the error message, unless they
+     * have already been sent to the client (or the client is gone)
+     */
+    private void writeStreamingErrorResponse(HttpServletResponse response, final Status st,
+            final String errorDetail, final int responseStatusError, MediaType forceResponseType) {
+        if (response.isCommitted()) {
+            LOG.warn("The response was already sent, unable to report the error: " + errorDetail);
+            return;
         }
+        // also drops the gzip content encoding
+        response.reset();
+        writeErrorResponse(response, st, errorDetail, responseStatusError, forceResponseType);
     }
 
     /**
@@ -166,6 +166,11 @@ public class WMCDocService extends A_DocService {
             res.put("srs", srs);
         }
 
+        // Count layers
+        Double layerCount = (Double) xPath.evaluate("count(/ViewContext/LayerList/Layer)",
+                document.getDocumentElement(), XPathConstants.NUMBER);
+        res.put("layer_count", layerCount.intValue());
+
         return res;
     }
 
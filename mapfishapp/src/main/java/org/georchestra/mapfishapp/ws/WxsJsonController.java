@@ -2,13 +2,18 @@ package org.georchestra.mapfishapp.ws;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
+import javax.annotation.PostConstruct;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.georchestra.commons.configuration.GeorchestraConfiguration;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
@@ -22,6 +27,8 @@ import org.springframework.web.context.ServletContextAware;
  *
  * - wms.servers.json - wfs.servers.json - wmts.servers.json
  *
+ * The files are kept in memory until the directory hosting them changes.
+ *
  * @author pmauduit
  *
  */
@@ -31,23 +38,50 @@ public class WxsJsonController implements ServletContextAware {
     @Autowired
     private GeorchestraConfiguration georConfig;
 
+    @Autowired(required = false)
+    private DatadirWatcher datadirWatcher;
+
     private ServletContext context;
 
+    private static final Log LOG = LogFactory.getLog(WxsJsonController.class.getPackage().getName());
+
+    private final Map<String, DatadirCache<byte[]>> serverLists = new HashMap<>();
+
+    public WxsJsonController() {
+        for (String proto : new String[] { "wms", "wmts", "wfs" }) {
+            serverLists.put(proto, new DatadirCache<>(watcher -> loadServerList(proto, watcher), json -> json));
+        }
+    }
+
     // used for testing
     public void setGeorchestraConfiguration(GeorchestraConfiguration georConfig) {
         this.georConfig = georConfig;
+        serverLists.values().forEach(DatadirCache::invalidate);
+    }
+
+    public void setDatadirWatcher(DatadirWatcher datadirWatcher) {
+        this.datadirWatcher = datadirWatcher;
+    }
+
+    /**
+     * Reads the server lists at startup, so that the first viewer loaded does not
+     * wait for it.
+     */
+    @PostConstruct
+    public void init() {
+        for (DatadirCache<byte[]> serverList : serverLists.values()) {
+            try {
+                serverList.get(datadirWatcher);
+            } catch (Exception e) {
+                LOG.error("Unable to index the server lists", e);
+            }
+        }
     }
 
     @RequestMapping(value = "/{wxs}.servers.json")
     public void wxsServerJson(@PathVariable("wxs") String proto, HttpServletRequest request,
             HttpServletResponse response) throws IOException {
 
-        String contextDir = "";
-        if ((georConfig == null) || (!georConfig.activated())) {
-            contextDir = context.getRealPath("/");
-        } else
-            contextDir = georConfig.getContextDataDir();
-
         if ((StringUtils.isEmpty(proto)) || ((!"wms".equalsIgnoreCase(proto)) && (!"wmts".equalsIgnoreCase(proto))
                 && (!"wfs".equalsIgnoreCase(proto)))) {
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
@@ -55,22 +89,45 @@ public class WxsJsonController implements ServletContextAware {
             return;
         }
 
-        String wxsJsonPath = String.format("%s/%s.servers.json", contextDir, proto.toLowerCase());
-        File wxsJsonF = new File(wxsJsonPath);
+        DatadirCache.Entry<byte[]> wxsJson;
+        try {
+            wxsJson = serverLists.get(proto.toLowerCase()).get(datadirWatcher);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
 
-        if (!wxsJsonF.exists()) {
+        if (wxsJson.getDocument() == null) {
             response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-            response.getOutputStream().write(String.format("file not found: \"%s\"", wxsJsonF.getName()).getBytes());
+            response.getOutputStream()
+                    .write(String.format("file not found: \"%s.servers.json\"", proto.toLowerCase()).getBytes());
             return;
         }
-        byte[] wxsJson = FileUtils.readFileToByteArray(wxsJsonF);
-        response.setContentType("application/json; charset=utf-8");
-        response.getOutputStream().write(wxsJson);
+        wxsJson.write(request, response, "application/json; charset=utf-8");
         return;
     }
 
+    private byte[] loadServerList(String proto, DatadirCache.Watcher watcher) throws IOException {
+        String contextDir = "";
+        if ((georConfig == null) || (!georConfig.activated())) {
+            contextDir = context.getRealPath("/");
+        } else
+            contextDir = georConfig.getContextDataDir();
+
+        String wxsJsonPath = String.format("%s/%s.servers.json", contextDir, proto);
+        File wxsJsonF = new File(wxsJsonPath);
+        watcher.watch(wxsJsonF.getParentFile());
+
+        if (!wxsJsonF.exists()) {
+            return null;
+        }
+        return FileUtils.readFileToByteArray(wxsJsonF);
+    }
+
     @Override
     public void setServletContext(ServletContext servletContext) {
         this.context = servletContext;
+        serverLists.values().forEach(DatadirCache::invalidate);
     }
 }
@@ -19,23 +19,62 @@
 
 package org.georchestra.mapfishapp.ws.buffer;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.geojson.geom.GeometryJSON;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.io.InputStreamInStream;
 import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
 import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.operation.union.UnaryUnionOp;
+import org.opengis.feature.simple.SimpleFeature;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 @Controller
 public class BufferController {
 
+    private static final Log LOG = LogFactory.getLog(BufferController.class.getPackage().getName());
+
+    /** maximum number of quadrant segments of the batch buffers */
+    static final int MAX_QUADRANT_SEGMENTS = 64;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private ExecutorService executor;
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
     @RequestMapping(value = "/buffer/{bufferValue}", method = RequestMethod.POST, produces = "application/json")
     @ResponseBody
     public String computeBuffer(@PathVariable double bufferValue, @RequestBody String wktgeom,
@@ -56,4 +95,242 @@ public class BufferController {
 
         return js.toString();
     }
+
+    /**
+     * Computes the buffers of a batch of geometries, in parallel.
+     * <p>
+     * The request body is either a GeoJSON feature collection, or a WKB geometry
+     * (with the {@code application/octet-stream} content type) whose members are
+     * buffered one by one if it is a geometry collection. The response is a
+     * GeoJSON feature collection of the buffers, in the order and with the ids of
+     * the input features (the positions of the WKB geometries), streamed while
+     * they are computed. With
+     * {@code union=true}, it holds a single feature, the union of the buffers.
+     * </p>
+     *
+     * @param bufferValue      buffer distance
+     * @param quadrantSegments number of segments used to approximate a quarter
+     *                         circle, 8 by default
+     * @param union            whether the union of the buffers is returned
+     */
+    @RequestMapping(value = "/buffer/{bufferValue}/batch", method = RequestMethod.POST, produces = "application/json")
+    public void computeBuffers(@PathVariable double bufferValue,
+            @RequestParam(name = "quadrantSegments", defaultValue = "8") int quadrantSegments,
+            @RequestParam(name = "union", defaultValue = "false") boolean union, HttpServletRequest request,
+            HttpServletResponse response) throws IOException, JSONException {
+
+        if (quadrantSegments < 1 || quadrantSegments > MAX_QUADRANT_SEGMENTS) {
+            writeError(response, "quadrantSegments must be between 1 and " + MAX_QUADRANT_SEGMENTS);
+            return;
+        }
+
+        final GeometryJSON gjson = new GeometryJSON(15);
+        final Deque<Future<Geometry>> pending = new ArrayDeque<>();
+        final Deque<String> ids = new ArrayDeque<>();
+        final List<Geometry> buffers = new ArrayList<>();
+        Writer writer = null;
+        try (Input input = open(request)) {
+            ExecutorService executor = getExecutor();
+            // bounds the number of geometries held in memory
+            int window = 4 * parallelism;
+            while (input.hasNext()) {
+                final Geometry geometry = input.next();
+                if (!union) {
+                    ids.add(input.id());
+                }
+                pending.add(executor.submit(() -> geometry.buffer(bufferValue, quadrantSegments)));
+                if (pending.size() >= window) {
+                    if (union) {
+                        buffers.add(pending.poll().get());
+                    } else {
+                        writer = writeFeature(writer, response, gjson, ids.poll(), pending.poll().get());
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                if (union) {
+                    buffers.add(pending.poll().get());
+                } else {
+                    writer = writeFeature(writer, response, gjson, ids.poll(), pending.poll().get());
+                }
+            }
+            if (union && !buffers.isEmpty()) {
+                // cascaded union of the polygons
+                writer = writeFeature(writer, response, gjson, "union", UnaryUnionOp.union(buffers));
+            }
+            if (writer == null) {
+                writer = startCollection(response);
+            }
+            writer.write("]}");
+            writer.flush();
+        } catch (ParseException | ExecutionException | RuntimeException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            LOG.info("Unable to compute the buffers: " + cause.getMessage());
+            if (response.isCommitted()) {
+                // the client will get an invalid feature collection
+                return;
+            }
+            response.reset();
+            writeError(response, String.valueOf(cause.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            for (Future<Geometry> f : pending) {
+                f.cancel(false);
+            }
+        }
+    }
+
+    private Writer startCollection(HttpServletResponse response) throws IOException {
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType("application/json");
+        Writer writer = response.getWriter();
+        writer.write("{\"type\":\"FeatureCollection\",\"features\":[");
+        return writer;
+    }
+
+    private Writer writeFeature(Writer writer, HttpServletResponse response, GeometryJSON gjson, String id,
+            Geometry buffer) throws IOException {
+        if (writer == null) {
+            writer = startCollection(response);
+        } else {
+            writer.write(',');
+        }
+        writer.write("{\"type\":\"Feature\"");
+        if (id != null) {
+            writer.write(",\"id\":");
+            writer.write(JSONObject.quote(id));
+        }
+        writer.write(",\"geometry\":");
+        writer.write(gjson.toString(buffer));
+        writer.write(",\"properties\":{}}");
+        return writer;
+    }
+
+    private void writeError(HttpServletResponse response, String message) throws IOException, JSONException {
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        response.setCharacterEncoding("UTF-8");
+        response.setContentType("application/json");
+        response.getWriter().write(new JSONObject().put("error", message).toString());
+    }
+
+    private Input open(HttpServletRequest request) throws IOException, ParseException {
+        String contentType = request.getContentType();
+        if (contentType != null && contentType.startsWith("application/octet-stream")) {
+            return new WKBInput(request.getInputStream());
+        }
+        return new GeoJSONInput(request.getInputStream());
+    }
+
+    /**
+     * Geometries to buffer, read from the request body
+     */
+    private static interface Input extends Iterator<Geometry>, AutoCloseable {
+        /**
+         * @return the id of the last geometry returned by {@link #next()}
+         */
+        String id();
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private static class GeoJSONInput implements Input {
+        private final FeatureIterator<SimpleFeature> features;
+        private String id;
+
+        GeoJSONInput(InputStream in) throws IOException {
+            this.features = new FeatureJSON().streamFeatureCollection(in);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return features.hasNext();
+        }
+
+        @Override
+        public Geometry next() {
+            SimpleFeature feature = features.next();
+            Geometry geometry = (Geometry) feature.getDefaultGeometry();
+            if (geometry == null) {
+                throw new IllegalArgumentException("Feature " + feature.getID() + " has no geometry");
+            }
+            id = feature.getID();
+            return geometry;
+        }
+
+        @Override
+        public String id() {
+            return id;
+        }
+
+        @Override
+        public void close() {
+            features.close();
+        }
+    }
+
+    private static class WKBInput implements Input {
+        private final Geometry geometry;
+        private final boolean split;
+        private int index;
+
+        WKBInput(InputStream in) throws IOException, ParseException {
+            this.geometry = new WKBReader().read(new InputStreamInStream(in));
+            // multi geometries are buffered as a whole
+            this.split = geometry.getClass() == GeometryCollection.class;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < (split ? geometry.getNumGeometries() : 1);
+        }
+
+        @Override
+        public Geometry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Geometry next = split ? geometry.getGeometryN(index) : geometry;
+            index++;
+            return next;
+        }
+
+        @Override
+        public String id() {
+            return String.valueOf(index - 1);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(parallelism, r -> {
+                Thread t = new Thread(r, "Mapfishapp-buffer-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Number of threads computing the batch buffers, defaults to the number of
+     * processors.
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @PreDestroy
+    public synchronized void dispose() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
 }
@@ -54,6 +54,7 @@ public class ClassifierCommand {
     private static final String JSON_MAXSIZE = "max_size";
     private static final String JSON_CLASSCOUNT = "class_count";
     private static final String JSON_PALETTEID = "palette";
+    private static final String JSON_METHOD = "method";
 
     /**
      * Type of classification
@@ -62,6 +63,13 @@ public class ClassifierCommand {
         CHOROPLETHS, PROP_SYMBOLS, UNIQUE_VALUES
     };
 
+    /**
+     * Method of classification on continuous values
+     */
+    public enum E_ClassifMethod {
+        QUANTILE, EQUAL_INTERVAL, JENKS
+    };
+
     public enum E_SymbolType {
         POINT, LINE, POLYGON
     };
@@ -71,6 +79,7 @@ public class ClassifierCommand {
     private String _propertyName;
     private E_ClassifType _classifType;
     private E_SymbolType _symbolType;
+    private E_ClassifMethod _classifMethod = E_ClassifMethod.QUANTILE;
 
     private Color _firstColor;
     private Color _lastColor;
@@ -161,6 +170,11 @@ public class ClassifierCommand {
             } else if (_classifType == E_ClassifType.UNIQUE_VALUES) {
                 _paletteID = jsonRequest.getInt(JSON_PALETTEID);
             }
+
+            // optional classification method on continuous values, quantile by default
+            if (_classifType != E_ClassifType.UNIQUE_VALUES && jsonRequest.has(JSON_METHOD)) {
+                setClassifMethod(jsonRequest.getString(JSON_METHOD));
+            }
         } catch (MalformedURLException e) {
             throw new DocServiceException(e.getMessage(), HttpServletResponse.SC_BAD_REQUEST);
         } catch (JSONException e) {
@@ -188,6 +202,22 @@ public class ClassifierCommand {
         }
     }
 
+    /**
+     * Determine if the method requested by the user is known
+     * 
+     * @param method method requested by the customer
+     * @throws DocServiceException
+     */
+    private void setClassifMethod(final String method) throws DocServiceException {
+        for (E_ClassifMethod e_method : E_ClassifMethod.values()) {
+            if (e_method.toString().equalsIgnoreCase(method)) {
+                _classifMethod = e_method;
+                return;
+            }
+        }
+        throw new DocServiceException("Unknown classification method:" + method, HttpServletResponse.SC_BAD_REQUEST);
+    }
+
     /**
      * Determine if the type requested by the user is known
      * 
@@ -246,6 +276,16 @@ public class ClassifierCommand {
         return _classifType;
     }
 
+    /**
+     * Get the classification method, on continuous values (quantile, equal
+     * interval or jenks natural breaks)
+     * 
+     * @return E_ClassifMethod, classification method
+     */
+    public E_ClassifMethod getClassifMethod() {
+        return _classifMethod;
+    }
+
     /**
      * Get the symbol type
      * 
@@ -22,14 +22,19 @@ package org.georchestra.mapfishapp.ws.classif;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
+import org.georchestra.mapfishapp.ws.classif.ClassifierCommand.E_ClassifMethod;
+import org.georchestra.mapfishapp.ws.classif.ValueSketch.Bin;
 import org.geotools.factory.CommonFactoryFinder;
 import org.opengis.filter.FilterFactory2;
 
 /**
  * Provides Filter objects from continuous values. These SLD filters corresponds
  * to the PropertyIsBetween tags from the SLD specifications. It can be
- * therefore added to any Rule.
+ * therefore added to any Rule. <br />
+ * The values are classified from a {@link ValueSketch}, the intervals are made
+ * of whole bins so that a value never belongs to two classes.
  * 
  * @author yoann.buch@gmail.com
  *
@@ -121,65 +126,188 @@ public class ContinuousFilterFactory implements I_FilterFactory {
      * @param propertyName property name corresponding to the WFS request
      */
     public ContinuousFilterFactory(final ArrayList<Double> values, final int classCount, final String propertyName) {
+        this(toSketch(values), classCount, propertyName, E_ClassifMethod.QUANTILE);
+    }
+
+    /**
+     * Classifies values given the number of classes and the classification
+     * method. <br />
+     * There may be less intervals than classes, when there are not enough distinct
+     * values.
+     * 
+     * @param values       values to classify
+     * @param classCount   number of classes
+     * @param propertyName property name corresponding to the WFS request
+     * @param method       classification method
+     */
+    public ContinuousFilterFactory(final ValueSketch values, final int classCount, final String propertyName,
+            final E_ClassifMethod method) {
 
         if (values == null) {
             throw new IllegalArgumentException("values cannot be null");
         }
-        if (values.size() == 0) {
+        if (values.isEmpty()) {
             throw new IllegalArgumentException("values cannot be empty");
         }
 
         _propertyName = propertyName;
 
         // classify
-        doQuantile(values, classCount);
+        switch (method) {
+        case EQUAL_INTERVAL:
+            doEqualInterval(values.getBins(), classCount);
+            break;
+        case JENKS:
+            doJenks(values.getBins(), classCount);
+            break;
+        default:
+            doQuantile(values.getBins(), values.getCount(), classCount);
+        }
+    }
+
+    private static ValueSketch toSketch(final List<Double> values) {
+        if (values == null) {
+            return null;
+        }
+        ValueSketch sketch = new ValueSketch(Math.max(2, values.size()));
+        for (Double value : values) {
+            sketch.add(value);
+        }
+        return sketch;
     }
 
     /**
      * Execute Quantile classification on the values. Store computed intervals for
      * further use. <br />
-     * Values that are the same MUST belong to the same class
+     * Values that are the same MUST belong to the same class, they always are in
+     * the same bin
      * 
-     * @param values     values to classify
+     * @param bins       values to classify
+     * @param count      number of values
      * @param classCount number of classes
      */
-    private void doQuantile(ArrayList<Double> values, int classCount) {
-        // sort values
-        Collections.sort(values);
-
+    private void doQuantile(List<Bin> bins, long count, int classCount) {
         // get number of values that a class should have in average
-        double dIntervalSize = (double) values.size() / classCount;
-        int intervalSize = (int) Math.ceil(dIntervalSize); // ceil value to be sure to include all the values
+        double dIntervalSize = (double) count / classCount;
+        long intervalSize = (long) Math.ceil(dIntervalSize); // ceil value to be sure to include all the values
 
-        // assign values to different intervals
+        // assign bins to different intervals
         int currentIndex = 0;
-        while (currentIndex < values.size()) {
+        long remaining = count;
+        while (currentIndex < bins.size()) {
             int leftIndex = currentIndex;
-            int rightIndex;
-            if (currentIndex + intervalSize < values.size()) {
-                // class must contain as many values as space available in a class
-                rightIndex = currentIndex + intervalSize - 1;
-
-                // add any further value that is equal to the last value
-                while ((rightIndex + 1 < values.size())
-                        && (values.get(rightIndex).equals(values.get(rightIndex + 1)))) {
-                    // even though the value should belong to the next class, it is added because
-                    // the same value is already present in this one
-                    rightIndex++;
+            if (remaining > intervalSize) {
+                // class must contain as many values as space available in a class, and
+                // the whole last bin: even though some of its values should belong to the
+                // next class, they are added because the same value is already present in
+                // this one
+                long classSize = 0;
+                while (classSize < intervalSize) {
+                    classSize += bins.get(currentIndex++).getCount();
                 }
+                remaining -= classSize;
             } else {
                 // less values than space available in a class
                 // let's add the rest
-                rightIndex = values.size() - 1;
+                currentIndex = bins.size();
             }
 
             // store this interval
-            Interval interval = new Interval(values.get(leftIndex), values.get(rightIndex));
-            _intervals.add(interval);
+            _intervals.add(new Interval(bins.get(leftIndex).getLower(), bins.get(currentIndex - 1).getUpper()));
+        }
+    }
 
-            // push cursor further away along the values
-            currentIndex = rightIndex + 1;
+    /**
+     * Execute Equal Interval classification on the values: the range of values is
+     * split into intervals of the same width, each bin belongs to the interval of
+     * its mean. The empty intervals are skipped.
+     * 
+     * @param bins       values to classify
+     * @param classCount number of classes
+     */
+    private void doEqualInterval(List<Bin> bins, int classCount) {
+        double min = bins.get(0).getLower();
+        double width = (bins.get(bins.size() - 1).getUpper() - min) / classCount;
+
+        int leftIndex = 0;
+        int currentClass = classOf(bins.get(0), min, width, classCount);
+        for (int i = 1; i < bins.size(); i++) {
+            int binClass = classOf(bins.get(i), min, width, classCount);
+            if (binClass != currentClass) {
+                _intervals.add(new Interval(bins.get(leftIndex).getLower(), bins.get(i - 1).getUpper()));
+                leftIndex = i;
+                currentClass = binClass;
+            }
         }
+        _intervals.add(new Interval(bins.get(leftIndex).getLower(), bins.get(bins.size() - 1).getUpper()));
+    }
+
+    private static int classOf(Bin bin, double min, double width, int classCount) {
+        if (width == 0) {
+            return 0;
+        }
+        return Math.min(classCount - 1, (int) ((bin.getMean() - min) / width));
+    }
+
+    /**
+     * Execute Jenks natural breaks classification on the values: the bins are
+     * grouped so that the sum of the squared deviations from the class means is
+     * minimal (Fisher's exact algorithm, weighted by the number of values of the
+     * bins).
+     * 
+     * @param bins       values to classify
+     * @param classCount number of classes
+     */
+    private void doJenks(List<Bin> bins, int classCount) {
+        int n = bins.size();
+        int k = Math.min(classCount, n);
+
+        // prefix sums of the weights, weighted values and weighted squared values
+        double[] w = new double[n + 1], wx = new double[n + 1], wxx = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            Bin bin = bins.get(i);
+            double mean = bin.getMean();
+            w[i + 1] = w[i] + bin.getCount();
+            wx[i + 1] = wx[i] + bin.getCount() * mean;
+            wxx[i + 1] = wxx[i] + bin.getCount() * mean * mean;
+        }
+
+        // cost[c][j]: minimal deviation of the bins 0..j split into c + 1 classes,
+        // start[c][j]: first bin of the last class
+        double[][] cost = new double[k][n];
+        int[][] start = new int[k][n];
+        for (int j = 0; j < n; j++) {
+            cost[0][j] = deviation(w, wx, wxx, 0, j);
+        }
+        for (int c = 1; c < k; c++) {
+            for (int j = c; j < n; j++) {
+                cost[c][j] = Double.POSITIVE_INFINITY;
+                for (int i = c; i <= j; i++) {
+                    double d = cost[c - 1][i - 1] + deviation(w, wx, wxx, i, j);
+                    if (d < cost[c][j]) {
+                        cost[c][j] = d;
+                        start[c][j] = i;
+                    }
+                }
+            }
+        }
+
+        int end = n - 1;
+        for (int c = k - 1; c >= 0; c--) {
+            int first = c == 0 ? 0 : start[c][end];
+            _intervals.add(new Interval(bins.get(first).getLower(), bins.get(end).getUpper()));
+            end = first - 1;
+        }
+        Collections.reverse(_intervals);
+    }
+
+    /**
+     * @return sum of the squared deviations of the bins i..j from their mean
+     */
+    private static double deviation(double[] w, double[] wx, double[] wxx, int i, int j) {
+        double weight = w[j + 1] - w[i];
+        double sum = wx[j + 1] - wx[i];
+        return Math.max(0, wxx[j + 1] - wxx[i] - sum * sum / weight);
     }
 
     /**
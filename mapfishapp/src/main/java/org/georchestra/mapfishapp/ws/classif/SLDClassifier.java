@@ -27,7 +27,6 @@ import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -47,6 +46,7 @@ import org.georchestra.mapfishapp.ws.DocServiceException;
 import org.georchestra.mapfishapp.ws.classif.ClassifierCommand.E_ClassifType;
 import org.geotools.data.DataSourceException;
 import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
 import org.geotools.data.wfs.WFSDataStore;
 import org.geotools.data.wfs.WFSDataStoreFactory;
 import org.geotools.factory.CommonFactoryFinder;
@@ -62,6 +62,7 @@ import org.geotools.styling.Symbolizer;
 import org.geotools.xml.styling.SLDTransformer;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
 
 /**
  * Provides automatic styling by generating a SLD file given a parameterizable
@@ -82,14 +83,10 @@ public class SLDClassifier {
     private StyledLayerDescriptor _sld = null;
     private Map<String, UsernamePasswordCredentials> _credentials;
 
-    private WFSDataStoreFactory _factory = new WFSDataStoreFactory();
+    private WFSDataStoreCache _dataStores;
 
     private static final Log LOG = LogFactory.getLog(SLDClassifier.class.getPackage().getName());
 
-    public void setWFSDataStoreFactory(WFSDataStoreFactory f) {
-        _factory = f;
-    }
-
     /**
      * This classifier can only be requested by a ClassifierCommand given the wide
      * range of cases and different parameters. The SLD is directly generated and be
@@ -101,6 +98,16 @@ public class SLDClassifier {
      */
     public SLDClassifier(Map<String, UsernamePasswordCredentials> credentials, final ClassifierCommand command,
             WFSDataStoreFactory fac) throws DocServiceException {
+        this(credentials, command, new WFSDataStoreCache(fac == null ? new WFSDataStoreFactory() : fac));
+    }
+
+    /**
+     * Same as {@link #SLDClassifier(Map, ClassifierCommand, WFSDataStoreFactory)},
+     * reusing the WFS datastores (and the capabilities and schemas they parsed)
+     * kept by the given cache.
+     */
+    public SLDClassifier(Map<String, UsernamePasswordCredentials> credentials, final ClassifierCommand command,
+            WFSDataStoreCache dataStores) throws DocServiceException {
         this._credentials = credentials;
 
         // wfs-ng specific: If we do not have the prefix URL, then we need to
@@ -111,9 +118,7 @@ public class SLDClassifier {
 
         _wfsngTypeName = command.getFeatureTypeName();
         _command = command;
-        if (fac != null) {
-            _factory = fac;
-        }
+        _dataStores = dataStores;
 
         // start directly the classification
         doClassification();
@@ -140,8 +145,9 @@ public class SLDClassifier {
     }
 
     /**
-     * Upload all the features from the WFS and then prepare the factories to
-     * fulfill the different type of classifications and displays
+     * Stream the classified property of all the features from the WFS and then
+     * prepare the factories to fulfill the different type of classifications and
+     * displays
      *
      * @throws DocServiceException
      */
@@ -153,16 +159,19 @@ public class SLDClassifier {
 
             // check if property name exists
             SimpleFeatureType ft = wfs.getSchema(_wfsngTypeName);
-            int index = ft.indexOf(_command.getPropertyName());
-            if (index == -1) {
+            AttributeDescriptor attribute = ft.getDescriptor(_command.getPropertyName());
+            if (attribute == null) {
                 throw new DocServiceException(
                         _command.getPropertyName() + " is not an attribute of " + _command.getFeatureTypeName(),
                         HttpServletResponse.SC_BAD_REQUEST);
             }
+            Class<?> dataType = attribute.getType().getBinding();
 
-            // Load all the features
+            // Load the classified property of all the features, without their geometry
             FeatureSource<SimpleFeatureType, SimpleFeature> source = wfs.getFeatureSource(_wfsngTypeName);
-            FeatureCollection<SimpleFeatureType, SimpleFeature> featuresCollection = source.getFeatures();
+            Query query = new Query(_wfsngTypeName, org.opengis.filter.Filter.INCLUDE,
+                    new String[] { _command.getPropertyName() });
+            FeatureCollection<SimpleFeatureType, SimpleFeature> featuresCollection = source.getFeatures(query);
 
             // We need a display (Symbolizers) and a value (Filters) fatories to generate a
             // SLD file
@@ -176,7 +185,7 @@ public class SLDClassifier {
                 // Classification on continuous values. Sorting is needed to classify:
                 // Double values are mandatory (for now)
 
-                if (getDataType(wfs) == String.class) {
+                if (dataType == String.class) {
                     // choropleths and prop symbols use quantile classification
                     // therefore classify on string type has no purpose
                     throw new DocServiceException("Classification on continous values (" + _command.getClassifType()
@@ -184,20 +193,24 @@ public class SLDClassifier {
                             + " Therefore no classification on contiuous values can be done."
                             + " It needs be a meaningful comparable type (numerical, date...)."
                             + " Use unique values classification instead.", HttpServletResponse.SC_BAD_REQUEST);
-                } else if ((getDataType(wfs) != Double.class) && (getDataType(wfs) != Float.class)
-                        && (getDataType(wfs) != Integer.class) && (getDataType(wfs) != Long.class)
-                        && (getDataType(wfs) != Short.class)) {
+                } else if ((dataType != Double.class) && (dataType != Float.class) && (dataType != Integer.class)
+                        && (dataType != Long.class) && (dataType != Short.class)) {
                     // for now, only double, float, integer, and short types are supported
                     // FIXME deal with others numerical types, dates...
                     // they all must be comparable type as sorting is required for classification
                     throw new DocServiceException(
-                            "Classification on " + getDataType(wfs).getName() + " type is not supported.",
+                            "Classification on " + dataType.getName() + " type is not supported.",
                             HttpServletResponse.SC_NOT_IMPLEMENTED);
                 }
 
                 // get values to classify
-                ArrayList<Double> values = getDoubleValues(featuresCollection.features(), _command.getPropertyName());
-                filterFact = new ContinuousFilterFactory(values, _command.getClassCount(), _command.getPropertyName());
+                ValueSketch values = getDoubleValues(featuresCollection.features(), _command.getPropertyName());
+                if (values.isEmpty()) {
+                    throw new DocServiceException("Attribute " + _command.getPropertyName() + " has no value.",
+                            HttpServletResponse.SC_BAD_REQUEST);
+                }
+                filterFact = new ContinuousFilterFactory(values, _command.getClassCount(), _command.getPropertyName(),
+                        _command.getClassifMethod());
 
                 if (_command.getClassifType() == E_ClassifType.CHOROPLETHS) {
                     switch (_command.getSymbolType()) {
@@ -329,27 +342,6 @@ public class SLDClassifier {
         return fts;
     }
 
-    /**
-     * Get the data type of the command attribute
-     *
-     * @param wfs datastore
-     * @return data type as Class
-     */
-    private Class<?> getDataType(WFSDataStore wfs) {
-        SimpleFeatureType schema;
-        Class<?> clazz = null;
-        try {
-            schema = wfs.getSchema(_wfsngTypeName); // get schema
-            clazz = schema.getType(_command.getPropertyName()).getBinding(); // get data type as Class
-        } catch (IOException e) {
-            LOG.error("Unable to get the WFS schema", e);
-        }
-        if (clazz == null) {
-            throw new RuntimeException("Should never happen, we need to know what type is the attribute of");
-        }
-        return clazz;
-    }
-
     /**
      * Gives a connection to a remote WFS
      *
@@ -391,7 +383,7 @@ public class SLDClassifier {
             // TODO : configurable ?
             m.put(WFSDataStoreFactory.MAXFEATURES.key, 2000);
             m.put(WFSDataStoreFactory.LENIENT.key, Boolean.TRUE);
-            wfs = _factory.createDataStore(m);
+            wfs = _dataStores.get(m);
         } catch (SocketTimeoutException e) {
             throw new DocServiceException("WFS is unavailable", HttpServletResponse.SC_GATEWAY_TIMEOUT);
         } catch (DataSourceException e) {
@@ -435,22 +427,25 @@ public class SLDClassifier {
      * @param features     Iterator to access all the Features from the WFS request
      * @param propertyName Property Name. Property from which values has to be
      *                     extracted
-     * @return List of Double values
+     * @return Double values, summarized in bounded memory
      */
-    private ArrayList<Double> getDoubleValues(final FeatureIterator<SimpleFeature> features,
-            final String propertyName) {
-        ArrayList<Double> values = new ArrayList<Double>();
+    private ValueSketch getDoubleValues(final FeatureIterator<SimpleFeature> features, final String propertyName) {
+        ValueSketch values = new ValueSketch();
 
-        while (features.hasNext()) {
-            SimpleFeature feature = features.next();
-            if (feature.getProperty(_command.getPropertyName()).getValue() == null) {
-                continue;
-            }
-            String val = feature.getProperty(_command.getPropertyName()).getValue().toString();
-            if (!val.trim().isEmpty()) { // don't take into account attributes that are empty, it would corrupt the sld
-                // file
-                values.add(Double.parseDouble(val));
+        try {
+            while (features.hasNext()) {
+                SimpleFeature feature = features.next();
+                if (feature.getProperty(_command.getPropertyName()).getValue() == null) {
+                    continue;
+                }
+                String val = feature.getProperty(_command.getPropertyName()).getValue().toString();
+                if (!val.trim().isEmpty()) { // don't take into account attributes that are empty, it would corrupt the
+                    // sld file
+                    values.add(Double.parseDouble(val));
+                }
             }
+        } finally {
+            features.close();
         }
 
         return values;
@@ -472,18 +467,22 @@ public class SLDClassifier {
             final String propertyName) {
         Set<String> values = new HashSet<String>();
 
-        while (features.hasNext()) {
-            SimpleFeature feature = features.next();
-            String val;
-            if (feature.getProperty(_command.getPropertyName()).getValue() == null) {
-                continue;
-            } else {
-                val = feature.getProperty(_command.getPropertyName()).getValue().toString();
-            }
-            if (!val.trim().isEmpty()) { // don't take into account attributes that are empty, it would corrupt the sld
-                // file
-                values.add(val);
+        try {
+            while (features.hasNext()) {
+                SimpleFeature feature = features.next();
+                String val;
+                if (feature.getProperty(_command.getPropertyName()).getValue() == null) {
+                    continue;
+                } else {
+                    val = feature.getProperty(_command.getPropertyName()).getValue().toString();
+                }
+                if (!val.trim().isEmpty()) { // don't take into account attributes that are empty, it would corrupt the
+                    // sld file
+                    values.add(val);
+                }
             }
+        } finally {
+            features.close();
         }
         return values;
     }
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.mapfishapp.ws.classif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Summarizes the values to classify in bounded memory, so that they can be read
+ * from the WFS as a stream whatever the number of features. <br />
+ * Values are kept as sorted and disjoint bins, each bin counting the values
+ * between its lower and upper values. As long as there are less distinct values
+ * than the capacity, each bin holds a single value and the classifications are
+ * exact. Beyond, neighbour bins are merged: the class boundaries are
+ * approximated, but they are still values of the data set and a value never
+ * belongs to two classes.
+ */
+public class ValueSketch {
+
+    public static final int DEFAULT_CAPACITY = 2048;
+
+    private final int _capacity;
+
+    /** values added since the last merge */
+    private final double[] _buffer;
+    private int _buffered;
+
+    private List<Bin> _bins = new ArrayList<Bin>();
+    private long _count;
+
+    /**
+     * Values between lower and upper values, both inclusive
+     */
+    public static final class Bin {
+        private final double _lower;
+        private final double _upper;
+        private final long _count;
+        private final double _sum;
+
+        Bin(double lower, double upper, long count, double sum) {
+            _lower = lower;
+            _upper = upper;
+            _count = count;
+            _sum = sum;
+        }
+
+        Bin merge(Bin other) {
+            return new Bin(Math.min(_lower, other._lower), Math.max(_upper, other._upper), _count + other._count,
+                    _sum + other._sum);
+        }
+
+        public double getLower() {
+            return _lower;
+        }
+
+        public double getUpper() {
+            return _upper;
+        }
+
+        public long getCount() {
+            return _count;
+        }
+
+        /**
+         * @return mean of the values of the bin
+         */
+        public double getMean() {
+            return _sum / _count;
+        }
+
+        public String toString() {
+            return "[" + _lower + ";" + _upper + "]x" + _count;
+        }
+    }
+
+    public ValueSketch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of bins
+     */
+    public ValueSketch(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        _capacity = capacity;
+        _buffer = new double[capacity];
+    }
+
+    /**
+     * Adds a value, NaN is ignored
+     */
+    public void add(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        _buffer[_buffered++] = value;
+        _count++;
+        if (_buffered == _buffer.length) {
+            mergeBuffer();
+        }
+    }
+
+    /**
+     * @return number of values added
+     */
+    public long getCount() {
+        return _count;
+    }
+
+    public boolean isEmpty() {
+        return _count == 0;
+    }
+
+    /**
+     * @return bins sorted by value
+     */
+    public List<Bin> getBins() {
+        mergeBuffer();
+        return Collections.unmodifiableList(_bins);
+    }
+
+    /**
+     * Merges the buffered values into the bins, merging the bins if needed
+     */
+    private void mergeBuffer() {
+        if (_buffered == 0) {
+            return;
+        }
+        Arrays.sort(_buffer, 0, _buffered);
+        List<Bin> merged = new ArrayList<Bin>(_bins.size() + _buffered);
+        int i = 0, j = 0;
+        while (i < _bins.size() || j < _buffered) {
+            Bin next;
+            if (j == _buffered || (i < _bins.size() && _bins.get(i).getLower() <= _buffer[j])) {
+                next = _bins.get(i++);
+            } else {
+                double value = _buffer[j++];
+                next = new Bin(value, value, 1, value);
+            }
+            int last = merged.size() - 1;
+            if (last >= 0 && next.getLower() <= merged.get(last).getUpper()) {
+                // same value, or inside a merged bin
+                merged.set(last, merged.get(last).merge(next));
+            } else {
+                merged.add(next);
+            }
+        }
+        _buffered = 0;
+        _bins = merged.size() > _capacity ? compress(merged) : merged;
+    }
+
+    /**
+     * Merges neighbour bins, so that each bin holds at most twice the average
+     * number of values of capacity / 2 bins. Since two neighbour bins hold more
+     * than that, there are at most capacity bins left.
+     */
+    private List<Bin> compress(List<Bin> bins) {
+        long maxCount = (long) Math.ceil((double) _count / (_capacity / 2));
+        List<Bin> compressed = new ArrayList<Bin>(_capacity);
+        Bin current = bins.get(0);
+        for (int i = 1; i < bins.size(); i++) {
+            Bin next = bins.get(i);
+            if (current.getCount() + next.getCount() <= maxCount) {
+                current = current.merge(next);
+            } else {
+                compressed.add(current);
+                current = next;
+            }
+        }
+        compressed.add(current);
+        return compressed;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.mapfishapp.ws.classif;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.wfs.WFSDataStore;
+import org.geotools.data.wfs.WFSDataStoreFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Keeps the WFS datastores used by the {@link SLDClassifier} between
+ * classifications, per server URL and credentials: the datastore keeps the
+ * parsed capabilities and feature type schemas, so that they are only requested
+ * once. <br />
+ * The evicted datastores are not disposed of, since they may still be in use and
+ * they hold no connection between two requests.
+ */
+public class WFSDataStoreCache {
+
+    private final WFSDataStoreFactory _factory;
+
+    private final Cache<Key, WFSDataStore> _cache;
+
+    public WFSDataStoreCache(WFSDataStoreFactory factory) {
+        this(factory, 10, 50);
+    }
+
+    /**
+     * @param factory    creates the datastores
+     * @param timeToLive number of minutes a datastore is kept
+     * @param maxSize    maximum number of datastores kept
+     */
+    public WFSDataStoreCache(WFSDataStoreFactory factory, long timeToLive, long maxSize) {
+        _factory = factory;
+        _cache = CacheBuilder.newBuilder()//
+                .maximumSize(maxSize)//
+                .expireAfterWrite(timeToLive, TimeUnit.MINUTES)//
+                .build();
+    }
+
+    /**
+     * Returns the datastore for the given connection parameters, connecting to the
+     * server only if it is not cached.
+     */
+    public WFSDataStore get(final Map<String, Serializable> params) throws IOException {
+        try {
+            return _cache.get(new Key(params), () -> _factory.createDataStore(params));
+        } catch (ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    /**
+     * Identifies a WFS connection by its capabilities URL and credentials.
+     * {@link URL#equals} is not used on purpose since it resolves host names.
+     */
+    private static class Key {
+        private final String url;
+        private final Object username;
+        private final Object password;
+
+        Key(Map<String, Serializable> params) {
+            Object urlParam = params.get(WFSDataStoreFactory.URL.key);
+            this.url = urlParam instanceof URL ? ((URL) urlParam).toExternalForm() : String.valueOf(urlParam);
+            this.username = params.get(WFSDataStoreFactory.USERNAME.key);
+            this.password = params.get(WFSDataStoreFactory.PASSWORD.key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return url.equals(k.url) && Objects.equals(username, k.username) && Objects.equals(password, k.password);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, username, password);
+        }
+    }
+}
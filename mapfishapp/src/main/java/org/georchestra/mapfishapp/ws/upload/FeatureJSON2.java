@@ -45,6 +45,7 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONStreamAware;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.simplify.TopologyPreservingSimplifier;
 import org.opengis.feature.Property;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -70,13 +71,28 @@ final class FeatureJSON2 extends FeatureJSON {
 
     private GeometryJSON gjson;
 
+    private double simplificationTolerance;
+
     public FeatureJSON2() {
         this(new GeometryJSON());
     }
 
     public FeatureJSON2(GeometryJSON gjson) {
+        this(gjson, 0);
+    }
+
+    /**
+     * @param gjson                   encodes the geometries, with its number of
+     *                                decimals
+     * @param simplificationTolerance if positive, the lines and polygons are
+     *                                simplified with this distance tolerance
+     *                                (preserving their topology) before being
+     *                                encoded
+     */
+    public FeatureJSON2(GeometryJSON gjson, double simplificationTolerance) {
         super(gjson);
         this.gjson = gjson;
+        this.simplificationTolerance = simplificationTolerance;
     }
 
     /**
@@ -92,9 +108,11 @@ final class FeatureJSON2 extends FeatureJSON {
         Preconditions.checkArgument(features instanceof SimpleFeatureCollection);
         LinkedHashMap<String, Object> obj = new LinkedHashMap<String, Object>();
         obj.put("type", "FeatureCollection");
-        final ReferencedEnvelope bounds = features.getBounds();
+        // computing the bounds may read the whole collection, which is then read
+        // again to be encoded
+        final ReferencedEnvelope bounds = isEncodeFeatureCollectionBounds() ? features.getBounds() : null;
 
-        if (bounds != null && isEncodeFeatureCollectionBounds()) {
+        if (bounds != null) {
             obj.put("bbox", new JSONStreamAware() {
                 public void writeJSONString(Writer out) throws IOException {
                     JSONArray.writeJSONString(
@@ -228,6 +246,9 @@ final class FeatureJSON2 extends FeatureJSON {
 
         private void writeGeometry(JSONWriter writer) throws JSONException {
             Geometry geometry = (Geometry) feature.getDefaultGeometry();
+            if (geometry != null && simplificationTolerance > 0 && geometry.getDimension() > 0) {
+                geometry = TopologyPreservingSimplifier.simplify(geometry, simplificationTolerance);
+            }
             // note: this is still too much for streaming, gjson.toString(geometry) builds a
             // Map and then converts to String
             String value = geometry == null ? null : FeatureJSON2.this.gjson.toString(geometry);
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2009 by the geOrchestra PSC
+ *
+ * This file is part of geOrchestra.
+ *
+ * geOrchestra is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free
+ * Software Foundation, either version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * geOrchestra is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for
+ * more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * geOrchestra.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.georchestra.mapfishapp.ws.upload;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Streams the features of a GeoJSON file, so that they are parsed once while
+ * being written and never held in memory.
+ * <p>
+ * The schema is inferred from the first features of the file: it holds the
+ * properties of all of them, in case the file contains mixed type features.
+ * Properties only found further in the file are ignored. The features are
+ * reprojected on the fly when a target CRS is given, EPSG:4326 is assumed when
+ * the file does not declare its CRS.
+ * </p>
+ */
+final class GeoJSONFeatureCollection extends BaseSimpleFeatureCollection {
+
+    private static final Log LOG = LogFactory.getLog(GeoJSONFeatureCollection.class.getPackage().getName());
+
+    private final File file;
+
+    private final @Nullable MathTransform transform;
+
+    /**
+     * @param file       the GeoJSON file
+     * @param targetCRS  if not null, the CRS the features are reprojected to
+     * @param sampleSize number of features the schema is inferred from
+     */
+    GeoJSONFeatureCollection(File file, @Nullable CoordinateReferenceSystem targetCRS, int sampleSize)
+            throws IOException, FactoryException {
+        this(file, targetCRS, inferSchema(file, sampleSize));
+    }
+
+    private GeoJSONFeatureCollection(File file, @Nullable CoordinateReferenceSystem targetCRS,
+            SimpleFeatureType sourceSchema) throws FactoryException {
+        super(targetCRS == null ? sourceSchema : SimpleFeatureTypeBuilder.retype(sourceSchema, targetCRS));
+        this.file = file;
+        CoordinateReferenceSystem sourceCRS = sourceSchema.getCoordinateReferenceSystem();
+        if (targetCRS != null && !CRS.equalsIgnoreMetadata(sourceCRS, targetCRS)) {
+            this.transform = CRS.findMathTransform(sourceCRS, targetCRS, true);
+        } else {
+            this.transform = null;
+        }
+    }
+
+    /**
+     * Builds a schema with the properties of the first features of the file
+     */
+    private static SimpleFeatureType inferSchema(File file, int sampleSize) throws IOException, FactoryException {
+        Map<String, Class<?>> bindings = new LinkedHashMap<>();
+        String geometryName = "geometry";
+        CoordinateReferenceSystem crs = null;
+
+        try (Reader reader = open(file)) {
+            FeatureIterator<SimpleFeature> features = new FeatureJSON().streamFeatureCollection(reader);
+            try {
+                for (int i = 0; i < sampleSize && features.hasNext(); i++) {
+                    SimpleFeatureType type = features.next().getFeatureType();
+                    if (crs == null) {
+                        crs = type.getCoordinateReferenceSystem();
+                    }
+                    GeometryDescriptor geometry = type.getGeometryDescriptor();
+                    if (geometry != null) {
+                        geometryName = geometry.getLocalName();
+                    }
+                    for (AttributeDescriptor att : type.getAttributeDescriptors()) {
+                        Class<?> binding = att instanceof GeometryDescriptor ? Geometry.class
+                                : att.getType().getBinding();
+                        bindings.merge(att.getLocalName(), binding, GeoJSONFeatureCollection::commonBinding);
+                    }
+                }
+            } finally {
+                features.close();
+            }
+        }
+
+        SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+        builder.setName("features");
+        builder.setCRS(crs == null ? CRS.decode("EPSG:4326") : crs);
+        builder.add(geometryName, Geometry.class);
+        for (Map.Entry<String, Class<?>> binding : bindings.entrySet()) {
+            if (!binding.getKey().equals(geometryName)) {
+                builder.add(binding.getKey(), binding.getValue());
+            }
+        }
+        builder.setDefaultGeometry(geometryName);
+        return builder.buildFeatureType();
+    }
+
+    /**
+     * @return the binding of a property whose values have both types, the
+     *         properties with null values have the Object type
+     */
+    private static Class<?> commonBinding(Class<?> b1, Class<?> b2) {
+        if (b1.isAssignableFrom(b2)) {
+            return b1 == Object.class ? b2 : b1;
+        }
+        if (b2.isAssignableFrom(b1)) {
+            return b2 == Object.class ? b1 : b2;
+        }
+        if (Number.class.isAssignableFrom(b1) && Number.class.isAssignableFrom(b2)) {
+            return Double.class;
+        }
+        return Object.class;
+    }
+
+    private static Reader open(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public SimpleFeatureIterator features() {
+        try {
+            return new Iterator(open(file));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read " + file.getName(), e);
+        }
+    }
+
+    private class Iterator implements SimpleFeatureIterator {
+
+        private final Reader reader;
+
+        private final FeatureIterator<SimpleFeature> features;
+
+        private final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(getSchema());
+
+        private final Set<String> ignored = new LinkedHashSet<>();
+
+        Iterator(Reader reader) throws IOException {
+            this.reader = reader;
+            try {
+                this.features = new FeatureJSON().streamFeatureCollection(reader);
+            } catch (IOException | RuntimeException e) {
+                reader.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return features.hasNext();
+        }
+
+        @Override
+        public SimpleFeature next() throws NoSuchElementException {
+            SimpleFeature source = features.next();
+            SimpleFeatureType schema = getSchema();
+            for (AttributeDescriptor att : source.getFeatureType().getAttributeDescriptors()) {
+                String name = att instanceof GeometryDescriptor ? schema.getGeometryDescriptor().getLocalName()
+                        : att.getLocalName();
+                if (schema.getDescriptor(name) != null) {
+                    builder.set(name, source.getAttribute(att.getLocalName()));
+                } else if (ignored.add(name) && LOG.isDebugEnabled()) {
+                    LOG.debug("Property " + name + " is not in the sampled schema of " + file.getName());
+                }
+            }
+            SimpleFeature feature = builder.buildFeature(source.getID());
+            Geometry geometry = (Geometry) feature.getDefaultGeometry();
+            if (transform != null && geometry != null) {
+                try {
+                    feature.setDefaultGeometry(JTS.transform(geometry, transform));
+                } catch (TransformException e) {
+                    throw new IllegalStateException("Unable to reproject feature " + source.getID(), e);
+                }
+            }
+            return feature;
+        }
+
+        @Override
+        public void close() {
+            try {
+                features.close();
+            } finally {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    LOG.debug(e.getMessage());
+                }
+            }
+        }
+    }
+}
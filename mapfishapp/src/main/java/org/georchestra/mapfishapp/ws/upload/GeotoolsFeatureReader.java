@@ -39,7 +39,6 @@ import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.store.ReprojectingFeatureCollection;
 import org.geotools.feature.SchemaException;
-import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.operation.projection.ProjectionException;
 import org.geotools.wfs.GML.Version;
@@ -63,6 +62,11 @@ public class GeotoolsFeatureReader implements FeatureGeoFileReader {
 
     private static final Log LOG = LogFactory.getLog(GeotoolsFeatureReader.class.getPackage().getName());
 
+    /**
+     * Number of features the schema of a GeoJSON file is inferred from
+     */
+    static final int GEOJSON_SCHEMA_SAMPLE_SIZE = 1000;
+
     private final FileFormat[] formats = new FileFormat[] { FileFormat.shp, FileFormat.gml, FileFormat.kml,
             FileFormat.geojson };
 
@@ -110,34 +114,20 @@ public class GeotoolsFeatureReader implements FeatureGeoFileReader {
         }
     }
 
+    /**
+     * Creates a feature collection streaming the GeoJSON file: the schema is
+     * inferred from its first {@link #GEOJSON_SCHEMA_SAMPLE_SIZE} features, then
+     * the features are only parsed (and reprojected) while being read.
+     *
+     * @param file
+     * @param targetCRS
+     * @return {@link SimpleFeatureCollection}
+     * @throws IOException
+     */
     private SimpleFeatureCollection readGeoJSONFile(File file, CoordinateReferenceSystem targetCRS)
-            throws IOException, ProjectionException {
-
-        final FeatureJSON fjson = new FeatureJSON();
-        fjson.setEncodeFeatureCollectionCRS(true);
-        fjson.setEncodeFeatureCollectionBounds(true);
-
-        try (InputStream in = new FileInputStream(file)) {
-            // Build a schema with properties from all features, in case the file contains
-            // mixed type features
-            boolean nullValuesEncoded = false;
-            SimpleFeatureType targetSchema = fjson.readFeatureCollectionSchema(in, nullValuesEncoded);
-            fjson.setFeatureType(targetSchema);
-        }
-
-        try (InputStream in = new FileInputStream(file)) {
-            SimpleFeatureCollection sfc = (SimpleFeatureCollection) fjson.readFeatureCollection(in);
-
-            SimpleFeatureType sft = sfc.getSchema();
-            CoordinateReferenceSystem sourceCRS = sft.getCoordinateReferenceSystem();
-            if (sourceCRS == null) {
-                sourceCRS = CRS.decode("EPSG:4326");
-                sfc = new ForceCoordinateSystemFeatureResults(sfc, sourceCRS);
-            }
-            if (targetCRS != null && !CRS.equalsIgnoreMetadata(sourceCRS, targetCRS)) {
-                sfc = new ReprojectingFeatureCollection(sfc, targetCRS);
-            }
-            return sfc;
+            throws IOException {
+        try {
+            return new GeoJSONFeatureCollection(file, targetCRS, GEOJSON_SCHEMA_SAMPLE_SIZE);
         } catch (IOException e) {
             LOG.error(e.getMessage());
             throw e;
@@ -77,6 +77,12 @@ public class UpLoadFileManagement {
 
     private FeatureGeoFileReader reader;
 
+    /** number of decimals of the coordinates written in the GeoJSON output */
+    private int coordinatePrecision = 15;
+
+    /** distance tolerance of the geometries simplification, none if 0 */
+    private double simplificationTolerance;
+
     private UpLoadFileManagement() {
         // use the method factory
     }
@@ -290,20 +296,48 @@ public class UpLoadFileManagement {
     public void writeFeatureCollectionAsJSON(Writer writer, final CoordinateReferenceSystem crs)
             throws IOException, ProjectionException, UnsupportedGeofileFormatException {
 
+        writeFeaturesAsJSON(writer, getFeatureCollection(crs));
+    }
+
+    /**
+     * Returns the features read from the work directory, see
+     * {@link #writeFeatureCollectionAsJSON(Writer, CoordinateReferenceSystem)}.
+     * Depending on the format, the features may only be read while iterating the
+     * collection.
+     *
+     * @param crs if it is not null the features should be transformed to this
+     *            {@link CoordinateReferenceSystem}, in other case they won't
+     *            transformed.
+     * @return {@link SimpleFeatureCollection}
+     * @throws IOException
+     */
+    public SimpleFeatureCollection getFeatureCollection(final CoordinateReferenceSystem crs)
+            throws IOException, ProjectionException, UnsupportedGeofileFormatException {
+
         if (LOG.isDebugEnabled()) {
             LOG.debug("CRS to reproject:" + crs);
         }
 
-        // retrieves the feature collection from the filesystem and writes the
-        // underlying JSON string
+        // retrieves the feature collection from the filesystem
         String fileName = searchGeoFile();
         assert fileName != null;
 
-        SimpleFeatureCollection featureCollection = this.reader.getFeatureCollection(new File(fileName),
-                this.fileDescriptor.geoFileType, crs);
+        return this.reader.getFeatureCollection(new File(fileName), this.fileDescriptor.geoFileType, crs);
+    }
+
+    /**
+     * Writes the features as a GeoJSON feature collection, one feature at a time.
+     *
+     * @param writer            where the features must be written.
+     * @param featureCollection
+     * @throws IOException
+     */
+    public void writeFeaturesAsJSON(Writer writer, final SimpleFeatureCollection featureCollection)
+            throws IOException {
 
         // Using FeatureJSON2 which encodes the crs even if the collection is empty
-        FeatureJSON fjson = new FeatureJSON2(new GeometryJSON(15));
+        FeatureJSON fjson = new FeatureJSON2(new GeometryJSON(this.coordinatePrecision),
+                this.simplificationTolerance);
         SimpleFeatureType schema = featureCollection.getSchema();
 
         fjson.setFeatureType(schema);
@@ -357,6 +391,23 @@ public class UpLoadFileManagement {
         this.fileDescriptor.savedFile = f;
     }
 
+    /**
+     * Sets the number of decimals of the coordinates written in the GeoJSON
+     * output. Defaults to 15.
+     */
+    public void setCoordinatePrecision(int coordinatePrecision) {
+        this.coordinatePrecision = coordinatePrecision;
+    }
+
+    /**
+     * Sets the distance tolerance, in units of the output CRS, used to simplify
+     * the lines and polygons written in the GeoJSON output. Defaults to 0, no
+     * simplification.
+     */
+    public void setSimplificationTolerance(double simplificationTolerance) {
+        this.simplificationTolerance = simplificationTolerance;
+    }
+
     public JSONArray getFormatListAsJSON() {
         return this.reader.getFormatListAsJSON();
     }
@@ -205,7 +205,8 @@ GEOR.fileupload = (function() {
          * Return the panel for the WMS browser
          *
          * Parameters:
-         * options - {Object} Hash with key: srs (the map srs).
+         * options - {Object} Hash with keys: srs (the map srs) and resolution
+         * (the finest map resolution, the features are simplified to it).
          * The other options will be applied to panel
          *
          * Returns:
@@ -213,8 +214,9 @@ GEOR.fileupload = (function() {
          */
         getPanel: function(options) {
             tr = OpenLayers.i18n;
-            var srs = options.srs, msg;
+            var srs = options.srs, resolution = options.resolution, msg;
             delete options.srs;
+            delete options.resolution;
 
             if (!centerPanel) {
                 centerPanel = new Ext.Panel({
@@ -294,6 +296,10 @@ GEOR.fileupload = (function() {
                         xtype: 'hidden',
                         name: 'srs',
                         value: srs
+                    }, {
+                        xtype: 'hidden',
+                        name: 'resolution',
+                        value: resolution
                     }],
                     listeners: {
                         "clientvalidation": function(fp, isValid) {
@@ -241,6 +241,9 @@ GEOR.layerfinder = (function() {
 
         panels["file"] = GEOR.fileupload.getPanel({
             srs: mapSRS,
+            resolution: layerStore.map.baseLayer ?
+                layerStore.map.getResolutionForZoom(
+                    layerStore.map.getNumZoomLevels() - 1) : undefined,
             tabTip: tr("Add layers from local files")
         });
 
@@ -639,7 +639,10 @@ GEOR.mapinit = (function() {
                         url: GEOR.config.PATHNAME + "/ws/togeojson/",
                         params: {
                             "url": GEOR.config.CUSTOM_FILE,
-                            "srs": ls.map.getProjection()
+                            "srs": ls.map.getProjection(),
+                            "resolution": ls.map.baseLayer ?
+                                ls.map.getResolutionForZoom(
+                                    ls.map.getNumZoomLevels() - 1) : undefined
                         },
                         success: toGeoJSONSuccess,
                         failure: function(resp) {
@@ -141,7 +141,7 @@ GEOR.workspace = (function() {
             success: function(response) {
                 formPanel.ownerCt.close();
                 var o = Ext.decode(response.responseText);
-                window.location.href = GEOR.config.PATHNAME + "/" + o.filepath;
+                window.location.href = GEOR.config.PATHNAME + "/" + o.filepath + "?pretty=true";
             },
             scope: this
         });
@@ -533,7 +533,7 @@ GEOR.workspace = (function() {
                     disabled: true,
                     handler: function() {
                         var r = sm.getSelected();
-                        window.location.href = GEOR.config.PATHNAME + "/ws/wmc/geodoc" + r.get("hash") + ".wmc";
+                        window.location.href = GEOR.config.PATHNAME + "/ws/wmc/geodoc" + r.get("hash") + ".wmc?pretty=true";
                     }
                 }, "->", {
                     text: tr("Delete"),
@@ -0,0 +1,83 @@
+package org.georchestra.mapfishapp.ws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class CSVDocServiceTest {
+
+    private PreparedStatement st;
+
+    private CSVDocService service;
+
+    private String stored;
+
+    @Before
+    public void setUp() throws Exception {
+        DataSource pgPool = Mockito.mock(DataSource.class);
+        Connection c = Mockito.mock(Connection.class);
+        st = Mockito.mock(PreparedStatement.class);
+        Mockito.when(pgPool.getConnection()).thenReturn(c);
+        Mockito.when(c.prepareStatement(Mockito.anyString())).thenReturn(st);
+        // reads the streamed content when it is bound
+        Mockito.doAnswer(invocation -> {
+            InputStream in = (InputStream) invocation.getArguments()[1];
+            stored = IOUtils.toString(new GZIPInputStream(in), StandardCharsets.UTF_8);
+            return null;
+        }).when(st).setBinaryStream(Mockito.eq(3), Mockito.any(InputStream.class), Mockito.anyInt());
+        service = new CSVDocService("xml", pgPool);
+    }
+
+    private void save(String json) throws Exception {
+        service.saveData(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), "testadmin");
+    }
+
+    @Test
+    public void testStreamedConversion() throws Exception {
+        save("{\"columns\": [\"col1\", \"col2\"], \"data\": [[\"é\", 2], [3.5, null]]}");
+
+        assertEquals("col1;col2\r\né;2\r\n3.5;null\r\n", stored);
+        Mockito.verify(st).setInt(11, stored.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void testColumnsAfterRecords() throws Exception {
+        save("{\"data\": [[1, {\"a\": [1, 2]}]], \"other\": {\"columns\": 1}, \"columns\": [\"id\", \"value\"]}");
+
+        assertEquals("id;value\r\n1;{\"a\":[1,2]}\r\n", stored);
+    }
+
+    @Test
+    public void testRecordsMustBeArrays() throws Exception {
+        try {
+            save("{\"columns\": [\"col1\"], \"data\": [1, 2]}");
+            fail("DocServiceException expected");
+        } catch (DocServiceException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void testMissingColumns() throws Exception {
+        try {
+            save("{\"data\": [[1, 2]]}");
+            fail("DocServiceException expected");
+        } catch (DocServiceException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getErrorCode());
+        }
+    }
+}
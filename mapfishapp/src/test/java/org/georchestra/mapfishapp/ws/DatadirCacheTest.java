@@ -0,0 +1,153 @@
+package org.georchestra.mapfishapp.ws;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+public class DatadirCacheTest {
+
+    public @Rule TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private DatadirWatcher watcher;
+
+    private File datadir;
+
+    private AtomicInteger loads;
+
+    private DatadirCache<String> cache;
+
+    @Before
+    public void setUp() throws Exception {
+        watcher = new DatadirWatcher();
+        datadir = tmpFolder.newFolder("datadir");
+        FileUtils.writeStringToFile(new File(datadir, "wms.servers.json"), "v1", StandardCharsets.UTF_8);
+        loads = new AtomicInteger();
+        cache = new DatadirCache<>(w -> {
+            loads.incrementAndGet();
+            w.watch(datadir);
+            File f = new File(datadir, "wms.servers.json");
+            return f.exists() ? FileUtils.readFileToString(f, StandardCharsets.UTF_8) : null;
+        }, s -> s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @After
+    public void tearDown() {
+        watcher.dispose();
+    }
+
+    @Test
+    public void testLoadedOnceWhileUnchanged() throws Exception {
+        DatadirCache.Entry<String> first = cache.get(watcher);
+        DatadirCache.Entry<String> second = cache.get(watcher);
+
+        assertSame(first, second);
+        assertEquals(1, loads.get());
+        assertEquals("v1", first.getDocument());
+    }
+
+    @Test
+    public void testReloadedOnChange() throws Exception {
+        String etag = cache.get(watcher).getETag();
+
+        FileUtils.writeStringToFile(new File(datadir, "wms.servers.json"), "v2", StandardCharsets.UTF_8);
+
+        DatadirCache.Entry<String> entry = cache.get(watcher);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!"v2".equals(entry.getDocument()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            entry = cache.get(watcher);
+        }
+        assertEquals("v2", entry.getDocument());
+        assertNotEquals(etag, entry.getETag());
+    }
+
+    @Test
+    public void testConcurrentMissesLoadOnce() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        DatadirCache<String> slow = new DatadirCache<>(w -> {
+            loads.incrementAndGet();
+            w.watch(datadir);
+            loading.await();
+            return "v1";
+        }, s -> s.getBytes(StandardCharsets.UTF_8));
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<DatadirCache.Entry<String>>> entries = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                entries.add(executor.submit(() -> slow.get(watcher)));
+            }
+            Thread.sleep(200);
+            loading.countDown();
+            for (Future<DatadirCache.Entry<String>> entry : entries) {
+                assertSame(entries.get(0).get(), entry.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testNotCachedWithoutWatcher() throws Exception {
+        cache.get(null);
+        cache.get(null);
+        assertEquals(2, loads.get());
+
+        watcher.setEnabled(false);
+        cache.get(watcher);
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        DatadirCache.Entry<String> entry = cache.get(watcher);
+        assertTrue(entry.getETag().startsWith("\"") && entry.getETag().endsWith("\""));
+
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        entry.write(request, response, "application/json");
+
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        assertEquals(entry.getETag(), response.getHeader("ETag"));
+        assertArrayEquals("v1".getBytes(StandardCharsets.UTF_8), response.getContentAsByteArray());
+
+        request = new MockHttpServletRequest();
+        request.addHeader("If-None-Match", "\"outdated\", " + entry.getETag());
+        response = new MockHttpServletResponse();
+        entry.write(request, response, "application/json");
+
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+        assertEquals(0, response.getContentAsByteArray().length);
+
+        request = new MockHttpServletRequest();
+        request.addHeader("If-None-Match", "\"outdated\"");
+        response = new MockHttpServletResponse();
+        entry.write(request, response, "application/json");
+
+        assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+    }
+}
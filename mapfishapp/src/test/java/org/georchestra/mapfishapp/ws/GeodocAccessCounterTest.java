@@ -0,0 +1,88 @@
+package org.georchestra.mapfishapp.ws;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class GeodocAccessCounterTest {
+
+    private DataSource dataSource;
+    private Connection connection;
+    private PreparedStatement st;
+    private GeodocAccessCounter counter;
+
+    @Before
+    public void setUp() throws SQLException {
+        dataSource = Mockito.mock(DataSource.class);
+        connection = Mockito.mock(Connection.class);
+        st = Mockito.mock(PreparedStatement.class);
+        Mockito.when(dataSource.getConnection()).thenReturn(connection);
+        Mockito.when(connection.prepareStatement(Mockito.anyString())).thenReturn(st);
+        counter = new GeodocAccessCounter();
+        counter.setDataSource(dataSource);
+    }
+
+    @Test
+    public void testFlushBatchesTheAccesses() throws Exception {
+        counter.increment("b");
+        counter.increment("a");
+        counter.increment("b");
+
+        assertEquals(2, counter.flush());
+
+        Mockito.verify(st).setString(3, "a");
+        Mockito.verify(st).setInt(1, 1);
+        Mockito.verify(st).setString(3, "b");
+        Mockito.verify(st).setInt(1, 2);
+        Mockito.verify(st, Mockito.times(2)).addBatch();
+        Mockito.verify(st, Mockito.times(1)).executeBatch();
+        Mockito.verify(connection).commit();
+        assertEquals(0, counter.pendingCount());
+        assertEquals(0, counter.flush());
+    }
+
+    @Test
+    public void testFlushFailureKeepsTheAccesses() throws Exception {
+        Mockito.when(st.executeBatch()).thenThrow(new SQLException("unreachable"));
+        counter.increment("a");
+
+        assertEquals(0, counter.flush());
+        assertEquals(1, counter.pendingCount());
+
+        Mockito.reset(st);
+        counter.increment("a");
+        assertEquals(1, counter.flush());
+        Mockito.verify(st).setInt(1, 2);
+    }
+
+    @Test
+    public void testLoadCountsTheAccessInMemory() throws Exception {
+        MockConnectionPool pool = new MockConnectionPool();
+        WMCDocService service = new WMCDocService("xml", pool.create());
+        pool.setExpectedDocument("<ViewContext id=\"test\"/>");
+        service.setAccessCounter(counter);
+
+        service.loadFile("geodoc0123456789abcdef0123456789abcdef.wmc");
+
+        assertEquals("<ViewContext id=\"test\"/>", service.getContent());
+        assertEquals(1, counter.pendingCount());
+        Mockito.verify(pool.mockedStatementGet3, Mockito.never()).executeUpdate();
+    }
+
+    @Test(expected = DocServiceException.class)
+    public void testLoadMissingFile() throws Exception {
+        MockConnectionPool pool = new MockConnectionPool();
+        WMCDocService service = new WMCDocService("xml", pool.create());
+        Mockito.when(pool.rsGet2.next()).thenReturn(false);
+
+        service.loadFile("geodoc0123456789abcdef0123456789abcdef.wmc");
+    }
+}
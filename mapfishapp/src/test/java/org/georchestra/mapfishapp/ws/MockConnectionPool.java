@@ -1,9 +1,13 @@
 package org.georchestra.mapfishapp.ws;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
 
 import javax.sql.DataSource;
 
@@ -13,11 +17,9 @@ public class MockConnectionPool {
 
     Connection mockedConnection = Mockito.mock(Connection.class);
     PreparedStatement mockedStatementSet = Mockito.mock(PreparedStatement.class);
-    PreparedStatement mockedStatementGet = Mockito.mock(PreparedStatement.class);
     PreparedStatement mockedStatementGet2 = Mockito.mock(PreparedStatement.class);
     PreparedStatement mockedStatementGet3 = Mockito.mock(PreparedStatement.class);
 
-    ResultSet rsGet = Mockito.mock(ResultSet.class);
     ResultSet rsGet2 = Mockito.mock(ResultSet.class);
 
     public DataSource create() {
@@ -33,17 +35,12 @@ public class MockConnectionPool {
 
     private void setUpMocks() throws SQLException {
 
-        Mockito.when(mockedConnection
-                .prepareStatement("INSERT INTO mapfishapp.geodocs (username, standard, raw_file_content, "
-                        + "file_hash) VALUES (?,?,?,?);"))
-                .thenReturn(mockedStatementSet);
-
-        Mockito.when(mockedConnection
-                .prepareStatement("SELECT count(*)::integer from mapfishapp.geodocs WHERE file_hash = ?;"))
-                .thenReturn(mockedStatementGet);
+        // the statements storing the document and its content
+        Mockito.when(mockedConnection.prepareStatement(Mockito.anyString())).thenReturn(mockedStatementSet);
 
         Mockito.when(mockedConnection
-                .prepareStatement("SELECT raw_file_content from mapfishapp.geodocs WHERE file_hash = ?;"))
+                .prepareStatement("SELECT c.compression, c.content FROM mapfishapp.geodocs d "
+                        + "JOIN mapfishapp.geodoc_contents c ON c.content_hash = d.content_hash WHERE d.file_hash = ?;"))
                 .thenReturn(mockedStatementGet2);
 
         Mockito.when(
@@ -51,17 +48,18 @@ public class MockConnectionPool {
                         + "access_count + 1 WHERE file_hash = ?;"))
                 .thenReturn(mockedStatementGet3);
 
-        Mockito.when(rsGet.next()).thenReturn(true);
-        Mockito.when(rsGet.getInt(Mockito.anyInt())).thenReturn(1);
-
         Mockito.when(rsGet2.next()).thenReturn(true);
 
-        Mockito.when(mockedStatementGet.executeQuery()).thenReturn(rsGet);
         Mockito.when(mockedStatementGet2.executeQuery()).thenReturn(rsGet2);
     }
 
-    public void setExpectedDocument(String s) throws SQLException {
-        Mockito.when(rsGet2.getString(Mockito.anyInt())).thenReturn(s);
+    public void setExpectedDocument(String s) throws SQLException, IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(content)) {
+            gzip.write(s.getBytes(StandardCharsets.UTF_8));
+        }
+        Mockito.when(rsGet2.getString(1)).thenReturn("gzip");
+        Mockito.when(rsGet2.getBytes(2)).thenReturn(content.toByteArray());
     }
 
 }
@@ -4,10 +4,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.After;
 import org.junit.AfterClass;
@@ -194,6 +196,30 @@ public class OGCProxyTest {
                                                                                   // therefore headers must contain
                                                                                   // the gzip one
                                                                                   // to warn browser
+        assertEquals("Accept-Encoding", _response.getHeader("Vary"));
+    }
+
+    @Test
+    public void testCompressedResponseToClientWithoutGzip() throws Exception {
+        MockHttpServletRequest _request = new MockHttpServletRequest();
+        MockHttpServletResponse _response = new MockHttpServletResponse();
+        String url = "http://localhost/wms?request=GetCapabilities&service=WMS";
+        mockedHttpUrlConnection.setContentType("application/xml");
+        mockedHttpUrlConnection.setInputStream(getCapabilitiesGZipped);
+        mockedHttpUrlConnection.setHeaderFields("Content-Encoding", "gzip");
+
+        _request.setMethod("GET");
+
+        _proxy.handleGETRequest(_request, _response, url, mockedHttpUrlConnection);
+
+        assertEquals(_response.getErrorMessage(), 200, _response.getStatus());
+        // compression is still negotiated with the remote host
+        assertTrue(mockedHttpUrlConnection.getRequestProperties().get("Accept-Encoding").contains("gzip, deflate"));
+        // but the client gets the uncompressed document, with the charset found in it
+        assertFalse(_response.containsHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", _response.getHeader("Vary"));
+        assertTrue(_response.getHeader("Content-Type").toString().contains("charset=UTF-8"));
+        assertTrue(_response.getContentAsString().startsWith("<?xml"));
     }
 
     /**
@@ -236,6 +262,33 @@ public class OGCProxyTest {
         assertEquals(_response.getErrorMessage(), 403, _response.getStatus());
     }
 
+    /**
+     * The body of a rejected response is read and closed, so that the connection
+     * is kept alive
+     */
+    @Test
+    public void testRejectedResponseIsDiscarded() throws Exception {
+        MockHttpServletRequest _request = new MockHttpServletRequest();
+        MockHttpServletResponse _response = new MockHttpServletResponse();
+        final AtomicBoolean closed = new AtomicBoolean();
+        ByteArrayInputStream body = new ByteArrayInputStream("<html></html>".getBytes("UTF-8")) {
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+            }
+        };
+
+        _proxy.setAllowedHosts(null);
+        _request.setMethod("GET");
+        mockedHttpUrlConnection.setContentType("text/html");
+        mockedHttpUrlConnection.setInputStream(body);
+        _proxy.handleGETRequest(_request, _response, "http://www.example.com/", mockedHttpUrlConnection);
+
+        assertEquals(_response.getErrorMessage(), 403, _response.getStatus());
+        assertEquals(0, body.available());
+        assertTrue(closed.get());
+    }
+
     /**
      * Test reject from proxy when protocol is omitted
      * 
@@ -3,10 +3,14 @@ package org.georchestra.mapfishapp.ws;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
+import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
 
+import org.apache.commons.io.IOUtils;
 import org.georchestra.mapfishapp.ws.upload.GeotoolsFeatureReader;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -43,7 +47,7 @@ public class UploadGeoFileControllerTest {
 
     public @Test void testUploadUnsupportedFileType() throws Exception {
         URL url = fileURL("pigma_regions_POLYGON.dat");
-        controller.toGeoJsonFromURL(response, url, null, null);
+        controller.toGeoJsonFromURL(response, url, null, null, null);
 
         String responseBody = response.getContentAsString();
         assertEquals("application/json", response.getContentType());
@@ -57,7 +61,7 @@ public class UploadGeoFileControllerTest {
 
     public @Test void testUploadGeoJSONFromURL() throws Exception {
         URL url = fileURL("geojson_mixed_feautre_types.geojson");
-        controller.toGeoJsonFromURL(response, url, null, null);
+        controller.toGeoJsonFromURL(response, url, null, null, null);
 
         String responseBody = response.getContentAsString();
         assertEquals("application/json", response.getContentType());
@@ -69,7 +73,7 @@ public class UploadGeoFileControllerTest {
 
     public @Test void testUploadGeoJSONReproject() throws Exception {
         URL url = fileURL("geojson_mixed_feautre_types.geojson");
-        controller.toGeoJsonFromURL(response, url, "EPSG:3857", null);
+        controller.toGeoJsonFromURL(response, url, "EPSG:3857", null, null);
 
         String responseBody = response.getContentAsString();
         assertEquals("application/json", response.getContentType());
@@ -81,7 +85,7 @@ public class UploadGeoFileControllerTest {
 
     public @Test void testUploadKML22FromURL() throws Exception {
         URL url = fileURL("recettage.kml");
-        controller.toGeoJsonFromURL(response, url, null, null);
+        controller.toGeoJsonFromURL(response, url, null, null, null);
 
         String responseBody = response.getContentAsString();
         assertEquals("application/json", response.getContentType());
@@ -93,7 +97,7 @@ public class UploadGeoFileControllerTest {
 
     public @Test void testUploadKML22FromURLReproject() throws Exception {
         URL url = fileURL("recettage.kml");
-        controller.toGeoJsonFromURL(response, url, "EPSG:3857", null);
+        controller.toGeoJsonFromURL(response, url, "EPSG:3857", null, null);
 
         String responseBody = response.getContentAsString();
         assertEquals("application/json", response.getContentType());
@@ -105,7 +109,7 @@ public class UploadGeoFileControllerTest {
 
     public @Test void testUploadKML21FromURL() throws Exception {
         URL url = fileURL("recettage_v21.kml");
-        controller.toGeoJsonFromURL(response, url, null, null);
+        controller.toGeoJsonFromURL(response, url, null, null, null);
 
         String responseBody = response.getContentAsString();
         assertEquals("application/json", response.getContentType());
@@ -121,7 +125,7 @@ public class UploadGeoFileControllerTest {
         headers.put("Accept", Arrays.asList("text/html", "application/xhtml+xml", "application/xml;q=0.9", "image/webp",
                 "image/apng", "*/*;q=0.8", "application/signed-exchange;v=b3"));
 
-        controller.toGeoJsonFromURL(response, url, null, headers);
+        controller.toGeoJsonFromURL(response, url, null, null, headers);
 
         assertEquals("text/html", response.getContentType());
         String responseBody = response.getContentAsString();
@@ -131,6 +135,59 @@ public class UploadGeoFileControllerTest {
         assertFeatureCollection(jsonresponse, null, 5);
     }
 
+    public @Test void testUploadGeoJSONGzip() throws Exception {
+        URL url = fileURL("geojson_mixed_feautre_types.geojson");
+        HttpHeaders headers = new HttpHeaders();
+        headers.put("Accept-Encoding", Arrays.asList("gzip, deflate"));
+        controller.setResponseCharset("UTF-8");
+
+        controller.toGeoJsonFromURL(response, url, null, null, headers);
+
+        assertEquals(200, response.getStatus());
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        String responseBody;
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray()))) {
+            responseBody = IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+        JSONObject jsonresponse = (JSONObject) new JSONParser().parse(responseBody);
+        assertEquals(responseBody, "true", jsonresponse.get("success"));
+        assertFeatureCollection(jsonresponse, "EPSG:4326", 2);
+    }
+
+    public @Test void testUploadGeoJSONResolution() throws Exception {
+        URL url = fileURL("geojson_mixed_feautre_types.geojson");
+        controller.toGeoJsonFromURL(response, url, "EPSG:3857", 10d, null);
+
+        String responseBody = response.getContentAsString();
+        assertEquals(responseBody, 200, response.getStatus());
+        JSONObject jsonresponse = (JSONObject) new JSONParser().parse(responseBody);
+        assertFeatureCollection(jsonresponse, "EPSG:3857", 2);
+
+        // coordinates are rounded to a tenth of the resolution
+        JSONArray features = (JSONArray) ((JSONObject) jsonresponse.get("geojson")).get("features");
+        JSONObject line = (JSONObject) ((JSONObject) features.get(1)).get("geometry");
+        for (Object coordinate : (JSONArray) line.get("coordinates")) {
+            for (Object ordinate : (JSONArray) coordinate) {
+                double value = ((Number) ordinate).doubleValue();
+                assertEquals(Math.rint(value), value, 0);
+            }
+        }
+    }
+
+    public @Test void testUploadInvalidResolution() throws Exception {
+        URL url = fileURL("geojson_mixed_feautre_types.geojson");
+        controller.toGeoJsonFromURL(response, url, "EPSG:3857", -1d, null);
+
+        assertEquals(400, response.getStatus());
+    }
+
+    public @Test void testPrecisionForResolution() {
+        assertEquals(0, controller.precisionForResolution(10));
+        assertEquals(2, controller.precisionForResolution(0.6));
+        assertEquals(6, controller.precisionForResolution(0.00001));
+        assertEquals(15, controller.precisionForResolution(1e-20));
+    }
+
     private void assertFeatureCollection(JSONObject response, String expectedSRS, int expectedFeatureCount) {
         JSONObject featureCollection = (JSONObject) response.get("geojson");
         assertNotNull(response.toString(), featureCollection);
@@ -1,5 +1,7 @@
 package org.georchestra.mapfishapp.ws;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
@@ -7,20 +9,23 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import javax.sql.DataSource;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
-import org.apache.tools.ant.filters.StringInputStream;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.springframework.util.ReflectionUtils;
 import org.xml.sax.SAXParseException;
@@ -61,15 +66,150 @@ public class WMCDocServiceTest {
         Mockito.when(rs.next()).thenReturn(true, true, false);
         Mockito.when(rs.getString(Mockito.anyString())).thenReturn("dummy_string");
         // First returned doc is valid, next one is invalid.
-        Mockito.when(rs.getBinaryStream("raw_file_content")).thenReturn(
-                new StringInputStream("<xml><isValid>true</isValid></xml>"),
-                new StringInputStream("<xml><isValid>true</isObviouslyInValid></xml>"));
+        Mockito.when(rs.getObject("metadata_extracted")).thenReturn(true, false);
+        Mockito.when(rs.getInt("layer_count")).thenReturn(3);
 
         WMCDocService wmcds = new WMCDocService("xml", pgPool);
 
         JSONArray ret = wmcds.listFiles("testadmin");
 
         assertTrue("Expected only one element in WMCDocService.listFiles() return", ret.length() == 1);
+        assertEquals("dummy_string", ret.getJSONObject(0).getString("title"));
+        assertEquals(3, ret.getJSONObject(0).getInt("layer_count"));
+        // the documents are not parsed again
+        Mockito.verify(rs, Mockito.never()).getBinaryStream(Mockito.anyString());
+        Mockito.verify(rs, Mockito.never()).getString("raw_file_content");
+    }
+
+    @Test
+    public void testSaveExtractsListedFields() throws Exception {
+        DataSource pgPool = Mockito.mock(DataSource.class);
+        Connection c = Mockito.mock(Connection.class);
+        PreparedStatement st = Mockito.mock(PreparedStatement.class);
+        Mockito.when(pgPool.getConnection()).thenReturn(c);
+        Mockito.when(c.prepareStatement(Mockito.anyString())).thenReturn(st);
+        String wmc;
+        try (InputStream is = this.getClass().getResourceAsStream("/default.wmc")) {
+            wmc = IOUtils.toString(is, "UTF-8");
+        }
+
+        new WMCDocService("xml", pgPool).saveData(wmc, "testadmin");
+
+        Mockito.verify(st).setString(5, "Default context (OSM Géobretagne)");
+        Mockito.verify(st).setString(8, "EPSG:3857");
+        Mockito.verify(st).setBoolean(12, true);
+    }
+
+    @Test
+    public void testSaveSharesIdenticalContents() throws Exception {
+        DataSource pgPool = Mockito.mock(DataSource.class);
+        Connection c = Mockito.mock(Connection.class);
+        PreparedStatement st = Mockito.mock(PreparedStatement.class);
+        PreparedStatement update = Mockito.mock(PreparedStatement.class);
+        Mockito.when(pgPool.getConnection()).thenReturn(c);
+        Mockito.when(c.prepareStatement(Mockito.anyString())).thenReturn(st);
+        Mockito.when(c.prepareStatement(Mockito.startsWith("UPDATE mapfishapp.geodoc_contents"))).thenReturn(update);
+        // the content is only stored by the first save
+        Mockito.when(update.executeUpdate()).thenReturn(0, 1);
+        String wmc;
+        try (InputStream is = this.getClass().getResourceAsStream("/default.wmc")) {
+            wmc = IOUtils.toString(is, "UTF-8");
+        }
+
+        WMCDocService service = new WMCDocService("xml", pgPool);
+        String first = service.saveData(wmc, "testadmin");
+        String second = service.saveData(wmc.replaceAll(">\\s+<", "><"), "testuser");
+
+        assertNotEquals(first, second);
+        ArgumentCaptor<String> contentHash = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(st, Mockito.times(2)).setString(Mockito.eq(3), contentHash.capture());
+        assertEquals(64, contentHash.getAllValues().get(0).length());
+        assertEquals(contentHash.getAllValues().get(0), contentHash.getAllValues().get(1));
+        Mockito.verify(st, Mockito.times(1)).setBytes(Mockito.eq(3), Mockito.any(byte[].class));
+        Mockito.verify(c, Mockito.times(2)).commit();
+    }
+
+    @Test
+    public void testStreamedSaveSharesIdenticalContents() throws Exception {
+        DataSource pgPool = Mockito.mock(DataSource.class);
+        Connection c = Mockito.mock(Connection.class);
+        PreparedStatement st = Mockito.mock(PreparedStatement.class);
+        PreparedStatement update = Mockito.mock(PreparedStatement.class);
+        Mockito.when(pgPool.getConnection()).thenReturn(c);
+        Mockito.when(c.prepareStatement(Mockito.anyString())).thenReturn(st);
+        Mockito.when(c.prepareStatement(Mockito.startsWith("UPDATE mapfishapp.geodoc_contents"))).thenReturn(update);
+        Mockito.when(update.executeUpdate()).thenReturn(0, 1);
+        byte[] wmc;
+        try (InputStream is = this.getClass().getResourceAsStream("/default.wmc")) {
+            wmc = IOUtils.toByteArray(is);
+        }
+
+        WMCDocService service = new WMCDocService("xml", pgPool);
+        byte[] unindented = new String(wmc, "UTF-8").replaceAll(">\\s+<", "><").getBytes("UTF-8");
+        service.saveData(new ByteArrayInputStream(wmc), "testadmin");
+        service.saveData(new ByteArrayInputStream(unindented), "testuser");
+
+        ArgumentCaptor<String> contentHash = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(st, Mockito.times(2)).setString(Mockito.eq(3), contentHash.capture());
+        assertEquals(contentHash.getAllValues().get(0), contentHash.getAllValues().get(1));
+        // the content is streamed, and the listed fields extracted from it
+        Mockito.verify(st, Mockito.times(1)).setBinaryStream(Mockito.eq(3), Mockito.any(InputStream.class),
+                Mockito.anyInt());
+        Mockito.verify(st, Mockito.never()).setBytes(Mockito.eq(3), Mockito.any(byte[].class));
+        Mockito.verify(st, Mockito.times(2)).setString(5, "Default context (OSM Géobretagne)");
+        Mockito.verify(st, Mockito.times(2)).setBoolean(12, true);
+    }
+
+    @Test
+    public void testSavesBothWaysShareContents() throws Exception {
+        DataSource pgPool = Mockito.mock(DataSource.class);
+        Connection c = Mockito.mock(Connection.class);
+        PreparedStatement st = Mockito.mock(PreparedStatement.class);
+        PreparedStatement update = Mockito.mock(PreparedStatement.class);
+        Mockito.when(pgPool.getConnection()).thenReturn(c);
+        Mockito.when(c.prepareStatement(Mockito.anyString())).thenReturn(st);
+        Mockito.when(c.prepareStatement(Mockito.startsWith("UPDATE mapfishapp.geodoc_contents"))).thenReturn(update);
+        Mockito.when(update.executeUpdate()).thenReturn(0, 1);
+        String wmc;
+        try (InputStream is = this.getClass().getResourceAsStream("/default.wmc")) {
+            wmc = IOUtils.toString(is, "UTF-8");
+        }
+
+        WMCDocService service = new WMCDocService("xml", pgPool);
+        service.saveData(wmc, "testadmin");
+        service.saveData(new ByteArrayInputStream(wmc.getBytes(StandardCharsets.UTF_8)), "testuser");
+
+        ArgumentCaptor<String> contentHash = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(st, Mockito.times(2)).setString(Mockito.eq(3), contentHash.capture());
+        assertEquals(contentHash.getAllValues().get(0), contentHash.getAllValues().get(1));
+        // a single geodoc_contents row, inserted by the first save
+        Mockito.verify(st, Mockito.times(1)).setBytes(Mockito.eq(3), Mockito.any(byte[].class));
+        Mockito.verify(st, Mockito.never()).setBinaryStream(Mockito.eq(3), Mockito.any(InputStream.class),
+                Mockito.anyInt());
+    }
+
+    @Test
+    public void testStreamedSaveKeepsText() throws Exception {
+        DataSource pgPool = Mockito.mock(DataSource.class);
+        Connection c = Mockito.mock(Connection.class);
+        PreparedStatement st = Mockito.mock(PreparedStatement.class);
+        Mockito.when(pgPool.getConnection()).thenReturn(c);
+        Mockito.when(c.prepareStatement(Mockito.anyString())).thenReturn(st);
+        final String[] stored = new String[1];
+        Mockito.doAnswer(invocation -> {
+            InputStream in = (InputStream) invocation.getArguments()[1];
+            stored[0] = IOUtils.toString(new GZIPInputStream(in), StandardCharsets.UTF_8);
+            return null;
+        }).when(st).setBinaryStream(Mockito.eq(3), Mockito.any(InputStream.class), Mockito.anyInt());
+        String kml = "<kml>\n  <name>x&amp; &amp;y</name>\n  <description><![CDATA[ ]]></description>\n"
+                + "  <Snippet> &amp; </Snippet>\n  <address>  </address>\n</kml>";
+
+        new KMLDocService("xml", pgPool).saveData(new ByteArrayInputStream(kml.getBytes(StandardCharsets.UTF_8)),
+                "testadmin");
+
+        // only the indentation is removed, the spaces around the entities are kept
+        assertTrue(stored[0], stored[0].endsWith("<kml><name>x&amp; &amp;y</name>"
+                + "<description><![CDATA[ ]]></description><Snippet> &amp; </Snippet><address></address></kml>"));
     }
 
     @Test
@@ -4,7 +4,13 @@ import static org.junit.Assert.*;
 
 import javax.servlet.http.HttpServletResponse;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.Test;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 
 public class BufferControllerTest {
@@ -87,4 +93,97 @@ public class BufferControllerTest {
         assertTrue(e.contains("Unknown geometry type"));
     }
 
+    private static final String FEATURES = "{\"type\":\"FeatureCollection\",\"features\":["
+            + "{\"type\":\"Feature\",\"id\":\"f1\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[0,0]},\"properties\":{}},"
+            + "{\"type\":\"Feature\",\"id\":\"f2\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[150,0]},\"properties\":{}},"
+            + "{\"type\":\"Feature\",\"id\":\"f3\",\"geometry\":{\"type\":\"LineString\",\"coordinates\":[[1000,0],[2000,0]]},\"properties\":{}}"
+            + "]}";
+
+    private JSONObject computeBuffers(MockHttpServletRequest req, int quadrantSegments, boolean union)
+            throws Exception {
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        bc.computeBuffers(100, quadrantSegments, union, req, resp);
+        assertEquals(resp.getContentAsString(), HttpServletResponse.SC_OK, resp.getStatus());
+        return new JSONObject(resp.getContentAsString());
+    }
+
+    @Test
+    public void testComputeBuffersGeoJSON() throws Exception {
+        MockHttpServletRequest req = new MockHttpServletRequest("POST", "/buffer/100/batch");
+        req.setContentType("application/json");
+        req.setContent(FEATURES.getBytes("UTF-8"));
+
+        JSONArray features = computeBuffers(req, 8, false).getJSONArray("features");
+
+        assertEquals(3, features.length());
+        for (int i = 0; i < 3; i++) {
+            JSONObject feature = features.getJSONObject(i);
+            assertEquals("f" + (i + 1), feature.getString("id"));
+            assertEquals("Polygon", feature.getJSONObject("geometry").getString("type"));
+        }
+        // 4 quadrants of 8 segments, closed ring
+        assertEquals(33, features.getJSONObject(0).getJSONObject("geometry").getJSONArray("coordinates")
+                .getJSONArray(0).length());
+    }
+
+    @Test
+    public void testComputeBuffersUnion() throws Exception {
+        MockHttpServletRequest req = new MockHttpServletRequest("POST", "/buffer/100/batch");
+        req.setContentType("application/json");
+        req.setContent(FEATURES.getBytes("UTF-8"));
+
+        JSONArray features = computeBuffers(req, 2, true).getJSONArray("features");
+
+        // the buffers of the two points overlap
+        assertEquals(1, features.length());
+        JSONObject union = features.getJSONObject(0).getJSONObject("geometry");
+        assertEquals("MultiPolygon", union.getString("type"));
+        assertEquals(2, union.getJSONArray("coordinates").length());
+    }
+
+    @Test
+    public void testComputeBuffersWKB() throws Exception {
+        GeometryCollection collection = (GeometryCollection) new WKTReader()
+                .read("GEOMETRYCOLLECTION(POINT(0 0), LINESTRING(1000 0, 2000 0))");
+        MockHttpServletRequest req = new MockHttpServletRequest("POST", "/buffer/100/batch");
+        req.setContentType("application/octet-stream");
+        req.setContent(new WKBWriter().write(collection));
+
+        JSONArray features = computeBuffers(req, 8, false).getJSONArray("features");
+
+        assertEquals(2, features.length());
+        assertEquals("0", features.getJSONObject(0).getString("id"));
+        assertEquals("1", features.getJSONObject(1).getString("id"));
+    }
+
+    @Test
+    public void testComputeBuffersSingleGeometryWKB() throws Exception {
+        MockHttpServletRequest req = new MockHttpServletRequest("POST", "/buffer/100/batch");
+        req.setContentType("application/octet-stream");
+        req.setContent(new WKBWriter().write(new WKTReader().read("POLYGON((0 0, 100 0, 100 100, 0 0))")));
+
+        JSONArray features = computeBuffers(req, 8, false).getJSONArray("features");
+
+        assertEquals(1, features.length());
+        assertEquals("0", features.getJSONObject(0).getString("id"));
+        assertEquals("Polygon", features.getJSONObject(0).getJSONObject("geometry").getString("type"));
+    }
+
+    @Test
+    public void testComputeBuffersBadParam() throws Exception {
+        MockHttpServletRequest req = new MockHttpServletRequest("POST", "/buffer/100/batch");
+        req.setContentType("application/json");
+        req.setContent("Not Parseable input 12345{))".getBytes("UTF-8"));
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+
+        bc.computeBuffers(100, 8, false, req, resp);
+
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, resp.getStatus());
+        assertTrue(new JSONObject(resp.getContentAsString()).has("error"));
+
+        resp = new MockHttpServletResponse();
+        bc.computeBuffers(100, 1000, false, req, resp);
+        assertEquals(HttpServletResponse.SC_BAD_REQUEST, resp.getStatus());
+    }
+
 }
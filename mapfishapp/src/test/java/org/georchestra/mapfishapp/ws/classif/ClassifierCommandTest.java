@@ -6,6 +6,7 @@ import java.awt.Color;
 import java.net.URL;
 
 import org.georchestra.mapfishapp.ws.DocServiceException;
+import org.georchestra.mapfishapp.ws.classif.ClassifierCommand.E_ClassifMethod;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.junit.Test;
@@ -166,4 +167,45 @@ public class ClassifierCommandTest {
         ClassifierCommand command = new ClassifierCommand(jsReq);
     }
 
+    /**
+     * Verifies the classification method, quantile by default
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testClassificationMethod() throws Exception {
+
+        // build JSON request
+        String wfsUrl = "http://sigma.openplans.org/geoserver/wfs?service=WFS&request=GetCapabilities";
+        JSONObject jsReq = new JSONObject().put("type", "CHOROPLETHS").put("wfs_url", wfsUrl)
+                .put("layer_name", "topp:states").put("attribute_name", "PERSONS").put("class_count", 3)
+                .put("first_color", "#342534").put("symbol_type", "point").put("last_color", "#121212");
+
+        assertEquals(E_ClassifMethod.QUANTILE, new ClassifierCommand(jsReq).getClassifMethod());
+
+        jsReq.put("method", "jenks");
+        assertEquals(E_ClassifMethod.JENKS, new ClassifierCommand(jsReq).getClassifMethod());
+
+        jsReq.put("method", "EQUAL_INTERVAL");
+        assertEquals(E_ClassifMethod.EQUAL_INTERVAL, new ClassifierCommand(jsReq).getClassifMethod());
+    }
+
+    /**
+     * Checks exception when an unknown classification method is provided
+     * 
+     * @throws Exception
+     */
+    @Test(expected = DocServiceException.class)
+    public void testUnknownClassificationMethod() throws Exception {
+
+        // build JSON request
+        String wfsUrl = "http://sigma.openplans.org/geoserver/wfs?service=WFS&request=GetCapabilities";
+        JSONObject jsReq = new JSONObject().put("type", "PROP_SYMBOLS").put("wfs_url", wfsUrl)
+                .put("layer_name", "topp:states").put("attribute_name", "PERSONS").put("class_count", 3)
+                .put("min_size", 2).put("max_size", 10).put("symbol_type", "point").put("method", "WRONGMETHOD");
+
+        @SuppressWarnings("unused")
+        ClassifierCommand command = new ClassifierCommand(jsReq);
+    }
+
 }
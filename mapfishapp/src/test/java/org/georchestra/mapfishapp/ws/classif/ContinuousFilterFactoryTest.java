@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 
+import org.georchestra.mapfishapp.ws.classif.ClassifierCommand.E_ClassifMethod;
 import org.georchestra.mapfishapp.ws.classif.ContinuousFilterFactory;
 import org.georchestra.mapfishapp.ws.classif.Filter;
 import org.georchestra.mapfishapp.ws.classif.ContinuousFilterFactory.Interval;
@@ -155,4 +156,52 @@ public class ContinuousFilterFactoryTest {
         assertEquals(propertyName, (String) filter1.getGISFilter().accept(nameVisitor, null));
         assertEquals(propertyName, (String) filter2.getGISFilter().accept(nameVisitor, null));
     }
+
+    private static ValueSketch sketch(double... values) {
+        ValueSketch sketch = new ValueSketch();
+        for (double value : values) {
+            sketch.add(value);
+        }
+        return sketch;
+    }
+
+    /**
+     * Equal interval classification: empty intervals are skipped
+     */
+    @Test
+    public void testEqualInterval() {
+        ContinuousFilterFactory cff = new ContinuousFilterFactory(sketch(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10), 2, "foo",
+                E_ClassifMethod.EQUAL_INTERVAL);
+        assertEquals(2, cff.getIntervals().size());
+        assertEquals(0.0, cff.getIntervals().get(0).getLeft(), 0);
+        assertEquals(4.0, cff.getIntervals().get(0).getRight(), 0);
+        assertEquals(5.0, cff.getIntervals().get(1).getLeft(), 0);
+        assertEquals(10.0, cff.getIntervals().get(1).getRight(), 0);
+
+        cff = new ContinuousFilterFactory(sketch(1, 2, 3, 10, 11, 12, 100, 101, 102), 3, "foo",
+                E_ClassifMethod.EQUAL_INTERVAL);
+        assertEquals(2, cff.getIntervals().size());
+        assertEquals(12.0, cff.getIntervals().get(0).getRight(), 0);
+        assertEquals(100.0, cff.getIntervals().get(1).getLeft(), 0);
+    }
+
+    /**
+     * Jenks classification finds the natural groups of values
+     */
+    @Test
+    public void testJenks() {
+        ContinuousFilterFactory cff = new ContinuousFilterFactory(sketch(1, 2, 3, 10, 11, 12, 100, 101, 102), 3,
+                "foo", E_ClassifMethod.JENKS);
+        assertEquals(3, cff.getIntervals().size());
+        assertEquals(1.0, cff.getIntervals().get(0).getLeft(), 0);
+        assertEquals(3.0, cff.getIntervals().get(0).getRight(), 0);
+        assertEquals(10.0, cff.getIntervals().get(1).getLeft(), 0);
+        assertEquals(12.0, cff.getIntervals().get(1).getRight(), 0);
+        assertEquals(100.0, cff.getIntervals().get(2).getLeft(), 0);
+        assertEquals(102.0, cff.getIntervals().get(2).getRight(), 0);
+
+        // not enough distinct values
+        cff = new ContinuousFilterFactory(sketch(5, 5, 5), 3, "foo", E_ClassifMethod.JENKS);
+        assertEquals(1, cff.getIntervals().size());
+    }
 }
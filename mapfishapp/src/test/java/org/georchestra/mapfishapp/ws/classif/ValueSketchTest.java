@@ -0,0 +1,69 @@
+package org.georchestra.mapfishapp.ws.classif;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.georchestra.mapfishapp.ws.classif.ValueSketch.Bin;
+import org.junit.Test;
+
+/**
+ * Tests ValueSketch
+ */
+public class ValueSketchTest {
+
+    /**
+     * Below the capacity, each distinct value has its own bin
+     */
+    @Test
+    public void testExactBelowCapacity() {
+        ValueSketch sketch = new ValueSketch(8);
+        for (double value : new double[] { 3.0, 1.0, 2.0, 3.0, Double.NaN, 1.0, 3.0 }) {
+            sketch.add(value);
+        }
+
+        assertEquals(6, sketch.getCount());
+        List<Bin> bins = sketch.getBins();
+        assertEquals(3, bins.size());
+        assertEquals(1.0, bins.get(0).getLower(), 0);
+        assertEquals(1.0, bins.get(0).getUpper(), 0);
+        assertEquals(2, bins.get(0).getCount());
+        assertEquals(2.0, bins.get(1).getMean(), 0);
+        assertEquals(1, bins.get(1).getCount());
+        assertEquals(3, bins.get(2).getCount());
+    }
+
+    /**
+     * Above the capacity, bins are merged but stay sorted, disjoint and account
+     * for every value
+     */
+    @Test
+    public void testBoundedAboveCapacity() {
+        int capacity = 64;
+        ValueSketch sketch = new ValueSketch(capacity);
+        Random random = new Random(1);
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < 100000; i++) {
+            double value = random.nextGaussian();
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sketch.add(value);
+        }
+
+        List<Bin> bins = sketch.getBins();
+        assertTrue(bins.size() <= capacity);
+        assertEquals(min, bins.get(0).getLower(), 0);
+        assertEquals(max, bins.get(bins.size() - 1).getUpper(), 0);
+        long count = 0;
+        for (int i = 0; i < bins.size(); i++) {
+            count += bins.get(i).getCount();
+            if (i > 0) {
+                assertTrue(bins.get(i - 1).getUpper() < bins.get(i).getLower());
+            }
+        }
+        assertEquals(100000, count);
+        assertEquals(100000, sketch.getCount());
+    }
+}
@@ -11,10 +11,15 @@ import java.io.File;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.FilenameUtils;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.feature.FeatureIterator;
+import org.geotools.feature.collection.BaseSimpleFeatureCollection;
 import org.geotools.geojson.feature.FeatureJSON;
+import org.geotools.geojson.geom.GeometryJSON;
 import org.geotools.referencing.CRS;
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -231,6 +236,70 @@ public class UpLoadFileManagementGTImplTest {
         assertCoordinateContains(-252175.451614371791948, 6177255.152005254290998, json);
     }
 
+    /**
+     * Tests the GeoJSON features are reprojected while they are streamed.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGeoJSONCoordinatesFrom4326to3857() throws Exception {
+
+        String fullName = makeFullName("geojson_4326_point.geojson");
+
+        String json = testGetGeofileToJSON(fullName, "EPSG:3857");
+        assertCoordinateContains(-252175.451614371791948, 6177255.152005254290998, json);
+    }
+
+    /**
+     * Tests the number of decimals of the written coordinates.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGeoJSONCoordinatePrecision() throws Exception {
+
+        String fullName = makeFullName("geojson_4326_point.geojson");
+        FileDescriptor fd = new FileDescriptor(fullName);
+        fd.listOfFiles.add(fullName);
+        fd.listOfExtensions.add(FilenameUtils.getExtension(fullName));
+
+        UpLoadFileManagement fm = create();
+        fm.setWorkDirectory(new File(fullName).getParentFile());
+        fm.setFileDescriptor(fd);
+        fm.setCoordinatePrecision(3);
+
+        StringWriter out = new StringWriter();
+        fm.writeFeatureCollectionAsJSON(out, CRS.decode("EPSG:3857"));
+
+        assertCoordinateContains(-252175.452, 6177255.152, out.toString());
+    }
+
+    /**
+     * Tests the streamed GeoJSON file is read once when written, its bounds not
+     * being encoded.
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void testGeoJSONReadOnce() throws Exception {
+
+        File file = new File(makeFullName("geojson_4326_point.geojson"));
+        SimpleFeatureCollection source = new GeoJSONFeatureCollection(file, CRS.decode("EPSG:3857"), 100);
+        AtomicInteger reads = new AtomicInteger();
+        SimpleFeatureCollection features = new BaseSimpleFeatureCollection(source.getSchema()) {
+            public @Override SimpleFeatureIterator features() {
+                reads.incrementAndGet();
+                return source.features();
+            }
+        };
+
+        StringWriter out = new StringWriter();
+        new FeatureJSON2(new GeometryJSON(15)).writeFeatureCollection(features, out);
+
+        assertEquals(1, reads.get());
+        assertCoordinateContains(-252175.451614371791948, 6177255.152005254290998, out.toString());
+    }
+
     /**
      * Assert that the feature in json syntax contains its coordinate in the order
      * x, y.
@@ -0,0 +1,97 @@
+-- persisted extraction queue (extractorapp)
+CREATE TABLE extractorapp.extraction_queue(
+  request_id character varying NOT NULL,
+  state character varying NOT NULL,
+  priority integer NOT NULL,
+  request text NOT NULL,
+  username character varying,
+  roles character varying,
+  org character varying,
+  creation_date timestamp without time zone NOT NULL DEFAULT NOW(),
+  state_change_date timestamp without time zone NOT NULL DEFAULT NOW(),
+  lease_owner character varying,
+  lease_expiry timestamp without time zone,
+  archive_size bigint,
+  archive_date timestamp without time zone,
+  CONSTRAINT extraction_queue_pk PRIMARY KEY (request_id)
+);
+
+CREATE INDEX extraction_queue_state_lease_idx ON extractorapp.extraction_queue (state, lease_expiry);
+
+-- geodoc fields listed by the document services, extracted when saved (mapfishapp)
+ALTER TABLE mapfishapp.geodocs
+  ADD COLUMN title character varying,
+  ADD COLUMN abstract text,
+  ADD COLUMN keywords text[],
+  ADD COLUMN srs character varying(64),
+  ADD COLUMN bbox double precision[],
+  ADD COLUMN layer_count integer,
+  ADD COLUMN file_size integer,
+  ADD COLUMN metadata_extracted boolean;
+
+CREATE INDEX geodocs_username_standard_created_at ON mapfishapp.geodocs (username, standard, created_at DESC);
+
+-- only the WMC documents have specific fields, their elements are matched whatever their namespace
+CREATE FUNCTION pg_temp.geodoc_text(value xml) RETURNS text AS $$
+  SELECT replace(replace(replace(replace(replace(value::text,
+    '&lt;', '<'), '&gt;', '>'), '&quot;', '"'), '&apos;', ''''), '&amp;', '&');
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE FUNCTION pg_temp.geodoc_wmc_metadata(doc_id bigint, content text) RETURNS void AS $$
+DECLARE
+  doc xml;
+  general text := '/*[local-name()=''ViewContext'']/*[local-name()=''General'']';
+  bbox text := general || '/*[local-name()=''BoundingBox'']';
+BEGIN
+  doc := xmlparse(DOCUMENT content);
+  UPDATE mapfishapp.geodocs SET
+    title = pg_temp.geodoc_text((xpath(general || '/*[local-name()=''Title'']/text()', doc))[1]),
+    abstract = pg_temp.geodoc_text((xpath(general || '/*[local-name()=''Abstract'']/text()', doc))[1]),
+    keywords = NULLIF(ARRAY(SELECT pg_temp.geodoc_text(k) FROM unnest(xpath(general
+      || '/*[local-name()=''KeywordList'']/*[local-name()=''Keyword'']/text()', doc)) AS k), '{}'),
+    srs = pg_temp.geodoc_text((xpath(bbox || '/@SRS', doc))[1]),
+    bbox = CASE WHEN xpath_exists(bbox, doc) THEN ARRAY[
+      pg_temp.geodoc_text((xpath(bbox || '/@minx', doc))[1])::double precision,
+      pg_temp.geodoc_text((xpath(bbox || '/@miny', doc))[1])::double precision,
+      pg_temp.geodoc_text((xpath(bbox || '/@maxx', doc))[1])::double precision,
+      pg_temp.geodoc_text((xpath(bbox || '/@maxy', doc))[1])::double precision] END,
+    layer_count = pg_temp.geodoc_text((xpath('count(/*[local-name()=''ViewContext'']'
+      || '/*[local-name()=''LayerList'']/*[local-name()=''Layer''])', doc))[1])::numeric::integer,
+    metadata_extracted = true
+  WHERE id = doc_id;
+EXCEPTION WHEN others THEN
+  -- unparsable documents were already left out of the listings
+  UPDATE mapfishapp.geodocs SET metadata_extracted = false WHERE id = doc_id;
+END
+$$ LANGUAGE plpgsql;
+
+SELECT pg_temp.geodoc_wmc_metadata(id, raw_file_content) FROM mapfishapp.geodocs WHERE standard = 'wmc';
+UPDATE mapfishapp.geodocs SET metadata_extracted = true WHERE standard <> 'wmc';
+UPDATE mapfishapp.geodocs SET file_size = octet_length(raw_file_content);
+
+-- geodoc contents stored once per distinct content, compressed by mapfishapp (mapfishapp)
+CREATE TABLE mapfishapp.geodoc_contents(
+  content_hash character varying(64) NOT NULL,
+  compression character varying(8) NOT NULL,
+  content bytea NOT NULL,
+  content_size integer NOT NULL,
+  last_saved timestamp without time zone DEFAULT now(),
+  CONSTRAINT geodoc_contents_pk PRIMARY KEY (content_hash)
+);
+
+ALTER TABLE mapfishapp.geodocs ADD COLUMN content_hash character varying(64);
+UPDATE mapfishapp.geodocs SET content_hash = encode(sha256(convert_to(raw_file_content, 'UTF8')), 'hex');
+
+-- the existing contents are neither compressed nor canonicalized, mapfishapp reads them as they are;
+-- their hash thus differs from the one of the same content saved by mapfishapp, which is stored again
+INSERT INTO mapfishapp.geodoc_contents (content_hash, compression, content, content_size, last_saved)
+  SELECT DISTINCT ON (content_hash) content_hash, 'none', convert_to(raw_file_content, 'UTF8'),
+    octet_length(raw_file_content), created_at
+  FROM mapfishapp.geodocs ORDER BY content_hash, created_at DESC;
+
+ALTER TABLE mapfishapp.geodocs
+  ALTER COLUMN content_hash SET NOT NULL,
+  ADD CONSTRAINT geodocs_content_hash_fk FOREIGN KEY (content_hash) REFERENCES mapfishapp.geodoc_contents (content_hash),
+  DROP COLUMN raw_file_content;
+
+CREATE INDEX geodocs_content_hash ON mapfishapp.geodocs (content_hash);
@@ -2,15 +2,31 @@ begin;
 
 create schema mapfishapp;
 
+create table mapfishapp.geodoc_contents (
+  content_hash varchar(64) primary key, -- sha-256 of the file content, shared by identical documents
+  compression varchar(8) not null, -- gzip, or none
+  content bytea not null, -- compressed file content
+  content_size integer not null, -- uncompressed size, in bytes
+  last_saved timestamp without time zone default NOW() -- last time a document with this content was saved
+);
+
 create table mapfishapp.geodocs (
   id bigserial primary key, -- 1 to 9223372036854775807 (~ 1E19)
   username varchar(200), -- can be NULL (eg: anonymous user)
   standard varchar(3) not null, -- eg: CSV, KML, SLD, WMC, GML, WKT
-  raw_file_content text not null, -- file content
+  content_hash varchar(64) not null references mapfishapp.geodoc_contents, -- file content
   file_hash varchar(32) unique not null, -- md5sum
   created_at timestamp without time zone default NOW(), -- creation date
   last_access timestamp without time zone, -- last access date
-  access_count integer default 0 -- access count, defaults to 0
+  access_count integer default 0, -- access count, defaults to 0
+  title varchar, -- listed fields, extracted from the file content when saved
+  abstract text,
+  keywords text[],
+  srs varchar(64),
+  bbox double precision[], -- minx, miny, maxx, maxy
+  layer_count integer,
+  file_size integer, -- file content size, in bytes
+  metadata_extracted boolean -- false if the file content could not be parsed
 );
 
 create index geodocs_file_hash on mapfishapp.geodocs using btree (file_hash);
@@ -18,6 +34,8 @@ create index geodocs_username on mapfishapp.geodocs using btree (username);
 create index geodocs_standard on mapfishapp.geodocs using btree (standard);
 create index geodocs_created_at on mapfishapp.geodocs using btree (created_at);
 create index geodocs_last_access on mapfishapp.geodocs using btree (last_access);
+create index geodocs_content_hash on mapfishapp.geodocs using btree (content_hash);
 create index geodocs_access_count on mapfishapp.geodocs using btree (access_count);
+create index geodocs_username_standard_created_at on mapfishapp.geodocs using btree (username, standard, created_at desc);
 
 commit;
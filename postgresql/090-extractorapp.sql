@@ -26,3 +26,22 @@ CREATE TABLE extractorapp.extractor_layer_log(
   CONSTRAINT extractor_layer_log_fk FOREIGN KEY (extractor_log_id)
     REFERENCES extractorapp.extractor_log (id)
 );
+
+CREATE TABLE extractorapp.extraction_queue(
+  request_id character varying NOT NULL,
+  state character varying NOT NULL,
+  priority integer NOT NULL,
+  request text NOT NULL,
+  username character varying,
+  roles character varying,
+  org character varying,
+  creation_date timestamp without time zone NOT NULL DEFAULT NOW(),
+  state_change_date timestamp without time zone NOT NULL DEFAULT NOW(),
+  lease_owner character varying,
+  lease_expiry timestamp without time zone,
+  archive_size bigint,
+  archive_date timestamp without time zone,
+  CONSTRAINT extraction_queue_pk PRIMARY KEY (request_id)
+);
+
+CREATE INDEX extraction_queue_state_lease_idx ON extractorapp.extraction_queue (state, lease_expiry);